@@ -19,11 +19,21 @@ package com.forgerock.authenticator;
 import android.app.Application;
 import android.content.Context;
 
+import com.forgerock.authenticator.mechanisms.push.PushRegistrar;
+import com.forgerock.authenticator.message.DeviceTokenCache;
+import com.forgerock.authenticator.message.PushIngestionQueue;
+import com.forgerock.authenticator.message.ResponseOutbox;
+import com.forgerock.authenticator.message.SystemNotifier;
 import com.forgerock.authenticator.storage.IdentityModel;
-import com.forgerock.authenticator.storage.ModelOpenHelper;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.NotificationCompactor;
 import com.forgerock.authenticator.storage.Settings;
 import com.forgerock.authenticator.utils.MessageUtils;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+
+import java.util.concurrent.Executors;
 
 /**
  * Guice module for the ForgeRock Authenticator app.
@@ -41,8 +51,28 @@ public class AuthGuiceModule extends AbstractModule {
 
     @Override
     protected void configure() {
-        bind(MessageUtils.class).toInstance(new MessageUtils());
-        bind(IdentityModel.class).toInstance(new ModelOpenHelper(context).getModel());
+        MessageUtils messageUtils = new MessageUtils();
+        bind(MessageUtils.class).toInstance(messageUtils);
+        // The model is loaded on first use, so that a process started for a single message need not load it
+        IdentityModelProvider identityModelProvider = new IdentityModelProvider(context);
+        bind(IdentityModelProvider.class).toInstance(identityModelProvider);
+        bind(IdentityModel.class).toProvider(identityModelProvider);
         bind(Settings.class).toInstance(new Settings(context));
+        SystemNotifier systemNotifier = new SystemNotifier(context);
+        bind(SystemNotifier.class).toInstance(systemNotifier);
+        bind(PushIngestionQueue.class).toInstance(new PushIngestionQueue(context, identityModelProvider,
+                Executors.newSingleThreadExecutor(), systemNotifier));
+        bind(ResponseOutbox.class).toInstance(new ResponseOutbox(identityModelProvider, messageUtils,
+                systemNotifier, Executors.newSingleThreadScheduledExecutor()));
+        DeviceTokenCache deviceTokenCache = new DeviceTokenCache(context);
+        bind(DeviceTokenCache.class).toInstance(deviceTokenCache);
+        bind(PushRegistrar.class).toInstance(new PushRegistrar(context, identityModelProvider, messageUtils, deviceTokenCache,
+                Executors.newSingleThreadScheduledExecutor(), BuildConfig.PUSH_TOKEN_UPDATES));
+    }
+
+    @Provides
+    @Singleton
+    NotificationCompactor provideNotificationCompactor(IdentityModel identityModel, Settings settings) {
+        return new NotificationCompactor(identityModel, settings);
     }
 }
@@ -19,6 +19,7 @@ package com.forgerock.authenticator;
 import android.app.Application;
 import android.widget.Toast;
 
+import com.forgerock.authenticator.storage.MaintenanceScheduler;
 import com.forgerock.authenticator.utils.TestNGCheck;
 
 import roboguice.RoboGuice;
@@ -44,6 +45,8 @@ public class FRAuthApplication extends Application {
         if (TestNGCheck.isTestNGOnClassPath()) {
             Toast.makeText(getApplicationContext(), R.string.compiled_with_test_libraries, Toast.LENGTH_LONG).show();
         }
+
+        MaintenanceScheduler.schedule(this);
     }
 
 
@@ -48,8 +48,11 @@ import com.forgerock.authenticator.mechanisms.DuplicateMechanismException;
 import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.mechanisms.URIMappingException;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.push.PushRegistrar;
 import com.forgerock.authenticator.storage.IdentityModel;
 import com.forgerock.authenticator.storage.IdentityModelListener;
+import com.forgerock.authenticator.storage.NotificationCompactor;
+import com.forgerock.authenticator.storage.SecretEncryption;
 import com.squareup.picasso.Callback;
 import com.squareup.picasso.Picasso;
 
@@ -80,6 +83,14 @@ public class IdentityActivity extends BaseActivity implements ActivityCompat.OnR
         onNewIntent(getIntent());
         setContentView(R.layout.identity);
 
+        RoboGuice.getInjector(this).getInstance(NotificationCompactor.class).requestCompaction();
+        if (SecretEncryption.getInstance(this).isKeyLost()) {
+            Toast.makeText(this, R.string.secret_key_lost, Toast.LENGTH_LONG).show();
+        }
+        PushRegistrar pushRegistrar = RoboGuice.getInjector(this).getInstance(PushRegistrar.class);
+        pushRegistrar.rollBackAbandoned(identityModel);
+        pushRegistrar.requestReRegistration(identityModel);
+
         identityAdapter = new IdentityAdapter(this);
         final GridView identityView = ((GridView) findViewById(R.id.grid));
         identityView.setAdapter(identityAdapter);
@@ -107,6 +118,16 @@ public class IdentityActivity extends BaseActivity implements ActivityCompat.OnR
                     }
                 });
             }
+
+            @Override
+            public void mechanismChanged() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        identityAdapter.notifyDataSetChanged();
+                    }
+                });
+            }
         };
         identityModel.addListener(listener);
 
@@ -88,6 +88,19 @@ public class MechanismActivity extends BaseIdentityActivity {
                     }
                 });
             }
+
+            @Override
+            public void mechanismChanged() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mechanismAdapter.notifyDataSetChanged();
+                        if (getIdentity().getMechanisms().isEmpty()) {
+                            finish();
+                        }
+                    }
+                });
+            }
         };
         identityModel.addListener(listener);
 
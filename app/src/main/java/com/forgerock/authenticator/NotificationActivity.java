@@ -18,23 +18,34 @@ package com.forgerock.authenticator;
 
 import android.app.ActionBar;
 import android.database.DataSetObserver;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ExpandableListView;
+import android.widget.Toast;
 
 import com.forgerock.authenticator.baseactivities.BaseMechanismActivity;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.message.SystemNotifier;
+import com.forgerock.authenticator.notifications.Notification;
 import com.forgerock.authenticator.notifications.NotificationAdapter;
 import com.forgerock.authenticator.storage.IdentityModelListener;
 
+import java.util.List;
+
+import roboguice.RoboGuice;
+
 /**
  * Page for viewing a list of Notifications relating to a mechanism.
  */
-public class NotificationActivity extends BaseMechanismActivity {
+public class NotificationActivity extends BaseMechanismActivity
+        implements NotificationAdapter.SelectionListener {
 
     private NotificationAdapter notificationAdapter;
+    private ActionMode actionMode;
     private DataSetObserver dataSetObserver;
     private IdentityModelListener listener;
     private Mechanism mechanism;
@@ -54,6 +65,7 @@ public class NotificationActivity extends BaseMechanismActivity {
         }
 
         notificationAdapter = new NotificationAdapter(this, mechanism);
+        notificationAdapter.setSelectionListener(this);
         final ExpandableListView list = (ExpandableListView) findViewById(R.id.notification_list);
         list.setAdapter(notificationAdapter);
         for (int i = 0; i < notificationAdapter.getGroupCount(); i++) {
@@ -96,6 +108,18 @@ public class NotificationActivity extends BaseMechanismActivity {
                     }
                 });
             }
+
+            @Override
+            public void mechanismChanged() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mechanism.getOwner().getMechanisms().contains(mechanism)) {
+                            finish();
+                        }
+                    }
+                });
+            }
         };
         identityModel.addListener(listener);
 
@@ -123,6 +147,7 @@ public class NotificationActivity extends BaseMechanismActivity {
     public void onDestroy() {
         super.onDestroy();
         if (notificationAdapter != null) {
+            notificationAdapter.setSelectionListener(null);
             notificationAdapter.unregisterDataSetObserver(dataSetObserver);
         }
         identityModel.removeListener(listener);
@@ -153,6 +178,97 @@ public class NotificationActivity extends BaseMechanismActivity {
         return true;
     }
 
+    @Override
+    public void onSelectionChanged(int count) {
+        if (count == 0) {
+            if (actionMode != null) {
+                actionMode.finish();
+            }
+            return;
+        }
+        if (actionMode == null) {
+            actionMode = startActionMode(new SelectionActionBar());
+        }
+        if (actionMode != null) {
+            actionMode.setTitle(getString(R.string.notification_selection_count, count));
+        }
+    }
+
+    /**
+     * Action Bar which is displayed while Notifications are selected.
+     */
+    private class SelectionActionBar implements ActionMode.Callback {
+
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.notifications_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            switch (item.getItemId()) {
+                case R.id.action_approve_selected:
+                    new RespondTask(notificationAdapter.getSelection(), true).execute();
+                    break;
+                case R.id.action_deny_selected:
+                    new RespondTask(notificationAdapter.getSelection(), false).execute();
+                    break;
+                default:
+                    return false;
+            }
+            mode.finish();
+            return true;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            actionMode = null;
+            notificationAdapter.clearSelection();
+        }
+    }
+
+    /**
+     * Sends the responses to the selected Notifications in the background.
+     */
+    private class RespondTask extends AsyncTask<Void, Void, Integer> {
+
+        private final List<Notification> selection;
+        private final boolean approve;
+
+        public RespondTask(List<Notification> selection, boolean approve) {
+            this.selection = selection;
+            this.approve = approve;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            List<Notification> acknowledged = identityModel.respondToNotifications(selection, approve);
+            SystemNotifier systemNotifier = RoboGuice.getInjector(NotificationActivity.this)
+                    .getInstance(SystemNotifier.class);
+            for (Notification notification : acknowledged) {
+                systemNotifier.cancel(notification);
+            }
+            return acknowledged.size();
+        }
+
+        @Override
+        protected void onPostExecute(Integer acknowledged) {
+            int total = selection.size();
+            if (acknowledged < total) {
+                Toast.makeText(NotificationActivity.this,
+                        getString(R.string.notification_batch_response_failed, total - acknowledged, total),
+                        Toast.LENGTH_LONG).show();
+            }
+            notificationAdapter.notifyDataSetChanged();
+        }
+    }
+
     private class RefreshNotificationTime implements Runnable {
 
         private View view;
@@ -79,6 +79,15 @@ public class Identity extends ModelObject<Identity> {
         return mechanism;
     }
 
+    /**
+     * Adds a Mechanism which has already been stored to this Identity, when the Mechanism is
+     * loaded after the Identity.
+     * @param builder The builder for the stored mechanism.
+     */
+    public void populateMechanism(Mechanism.PartialMechanismBuilder builder) {
+        populateMechanisms(Collections.singletonList(builder));
+    }
+
     private Mechanism findMatching(Mechanism other) {
         for (Mechanism mechanism : mechanismList) {
             if (mechanism.matches(other)) {
@@ -214,14 +223,14 @@ public class Identity extends ModelObject<Identity> {
 
     @Override
     public void delete() {
-        for (Mechanism mechanism : mechanismList) {
-            mechanism.delete();
-        }
         if (id != NOT_STORED) {
+            // Removes the mechanisms and notifications of the identity in the same statement
             getModel().getStorageSystem().deleteIdentity(id);
             id = NOT_STORED;
         }
-
+        for (Mechanism mechanism : mechanismList) {
+            mechanism.markDeleted();
+        }
     }
 
     @Override
@@ -21,6 +21,7 @@ import android.content.Context;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.base.MechanismFactory;
 import com.forgerock.authenticator.mechanisms.base.MechanismInfo;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
 import com.forgerock.authenticator.storage.IdentityModel;
 
 import java.util.HashMap;
@@ -78,4 +79,20 @@ public class CoreMechanismFactory {
         }
         return factories.get(type).restoreFromParameters(version, map);
     }
+
+    /**
+     * Uses the record to create the Mechanism associated with the type and version provided.
+     * This must be added to an owner before it can be used.
+     * @param type The mechanism string for the Mechanism.
+     * @param version The version of the Mechanism being created.
+     * @param record The stored record.
+     * @return The incomplete mechanism builder.
+     * @throws MechanismCreationException If the data was not valid to create a Mechanism.
+     */
+    public Mechanism.PartialMechanismBuilder restoreFromRecord(String type, int version, MechanismRecord record) throws MechanismCreationException {
+        if(!factories.containsKey(type)) {
+            throw new MechanismCreationException("Unknown mechanism type stored \"" + type + "\"");
+        }
+        return factories.get(type).restoreFromRecord(version, record);
+    }
 }
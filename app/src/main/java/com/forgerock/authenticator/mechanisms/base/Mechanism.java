@@ -24,6 +24,8 @@ import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.model.ModelObject;
 import com.forgerock.authenticator.model.SortedList;
 import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.NotificationStatistics;
 import com.forgerock.authenticator.utils.TimeKeeper;
 
 import org.slf4j.Logger;
@@ -31,9 +33,11 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 
 /**
  * A mechanism used for authentication.
@@ -44,6 +48,7 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
     private final String mechanismUID;
     private final Identity owner;
     private final List<Notification> notificationList;
+    private NotificationStatistics archivedStatistics = NotificationStatistics.EMPTY;
 
     private static final Logger logger = LoggerFactory.getLogger(Mechanism.class);
 
@@ -86,19 +91,57 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
     }
 
     /**
-     * Delete inactive notifications from this Mechanism.
+     * Delete inactive notifications from this Mechanism. The notifications are removed from storage
+     * with a single bulk delete.
      */
     public void clearInactiveNotifications() {
-        List<Notification> deleteList = new ArrayList<>(notificationList);
-        for (Notification notification : deleteList) {
-            if (!notification.isActive()){
-                notification.delete();
-                notificationList.remove(notification);
+        long now = Calendar.getInstance(TimeZone.getTimeZone("UTC")).getTimeInMillis();
+        if (isStored()) {
+            getModel().getStorageSystem().deleteInactiveNotifications(this, now);
+        }
+        List<Notification> retainList = new ArrayList<>(notificationList.size());
+        for (Notification notification : notificationList) {
+            if (notification.isPending() && notification.getTimeExpired().getTimeInMillis() >= now) {
+                retainList.add(notification);
+            } else {
+                notification.markDeleted();
             }
         }
+        notificationList.clear();
+        notificationList.addAll(retainList);
         getModel().notifyNotificationChanged();
     }
 
+    /**
+     * Removes the notifications selected by the retention policy from this Mechanism, keeping their
+     * outcomes in the statistics. The notifications are expected to have already been removed from
+     * storage in bulk, so are not deleted individually.
+     * @param policy The retention policy to apply.
+     * @param now The time the policy was applied to storage, in milliseconds.
+     * @return The number of notifications removed.
+     */
+    public int pruneNotifications(NotificationRetentionPolicy policy, long now) {
+        List<Notification> pruneList = policy.selectForRemoval(notificationList, now);
+        for (Notification notification : pruneList) {
+            archivedStatistics = archivedStatistics.add(notification);
+            notificationList.remove(notification);
+        }
+        return pruneList.size();
+    }
+
+    /**
+     * Gets the counts of the outcomes of all notifications received by this Mechanism, including
+     * those which are no longer kept in history.
+     * @return The notification statistics.
+     */
+    public NotificationStatistics getNotificationStatistics() {
+        NotificationStatistics statistics = archivedStatistics;
+        for (Notification notification : notificationList) {
+            statistics = statistics.add(notification);
+        }
+        return statistics;
+    }
+
     /**
      * Delete a single notification from this Mechanism.
      * @param notification The notification to delete.
@@ -122,6 +165,16 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
      */
     public abstract Map<String, String> asMap();
 
+    /**
+     * Returns the Mechanism's properties as a typed record for storage. The factory should be able
+     * to use this record to recreate the Mechanism. By default all properties are placed in the
+     * generic extras of the record; Mechanisms with typed properties should override this.
+     * @return The Mechanism's properties.
+     */
+    public MechanismRecord asRecord() {
+        return new MechanismRecord().putExtras(asMap());
+    }
+
     /**
      * Gets the MechanismInfo which describes this Mechanism.
      * @return The related MechanismInfo.
@@ -158,6 +211,19 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
         }
     }
 
+    /**
+     * Stores a new counter value for this Mechanism without rewriting the rest of it. The whole
+     * Mechanism is saved if it has not yet been stored.
+     * @param counter The new value of the counter.
+     */
+    protected void saveCounter(long counter) {
+        if (!isStored()) {
+            save();
+        } else {
+            getModel().getStorageSystem().updateMechanismCounter(id, counter);
+        }
+    }
+
     @Override
     public boolean forceSave() {
         id = getModel().getStorageSystem().addMechanism(this);
@@ -166,12 +232,21 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
 
     @Override
     public void delete() {
-        for (Notification notification : notificationList) {
-            notification.delete();
-        }
         if (isStored()) {
             getModel().getStorageSystem().deleteMechanism(id);
         }
+        markDeleted();
+    }
+
+    /**
+     * Records that the Mechanism and its notifications have been removed from storage by a bulk
+     * delete of its owner. Should not be called from outside the object model.
+     */
+    public void markDeleted() {
+        id = NOT_STORED;
+        for (Notification notification : notificationList) {
+            notification.markDeleted();
+        }
     }
 
     @Override
@@ -232,6 +307,13 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
         }
         Mechanism otherMechanism = (Mechanism) other;
 
+        // Compare the cheap fields first, as the data may need secrets to be decoded
+        if (!owner.matches(otherMechanism.getOwner())
+                || !getInfo().getMechanismString().equals(otherMechanism.getInfo().getMechanismString())
+                || !mechanismUID.equals(otherMechanism.mechanismUID)) {
+            return false;
+        }
+
         boolean dataMatches = true;
 
         Map<String, String> data = asMap();
@@ -243,10 +325,7 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
             }
         }
 
-        return owner.matches(otherMechanism.getOwner())
-                && getInfo().getMechanismString().equals(otherMechanism.getInfo().getMechanismString())
-                && mechanismUID.equals(otherMechanism.mechanismUID)
-                && dataMatches;
+        return dataMatches;
     }
 
     @Override
@@ -281,6 +360,7 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
         protected long id = NOT_STORED;
         protected TimeKeeper timeKeeper = new TimeKeeper();
         private List<Notification.NotificationBuilder> notificationBuilders = new ArrayList<>();
+        private NotificationStatistics archivedStatistics = NotificationStatistics.EMPTY;
 
         /**
          * The instance of the extended builder, used for chaining.
@@ -327,6 +407,15 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
             return getThis();
         }
 
+        /**
+         * Sets the statistics of the notifications which are no longer kept in history.
+         * @param archivedStatistics The statistics of removed notifications.
+         */
+        public T setArchivedStatistics(NotificationStatistics archivedStatistics) {
+            this.archivedStatistics = archivedStatistics;
+            return getThis();
+        }
+
         /**
          * Used for Time Travel during testing.
          * @param timeKeeper The TimeKeeper implementation this Mechanism should use.
@@ -348,6 +437,7 @@ public abstract class Mechanism extends ModelObject<Mechanism> {
             }
             Mechanism newMechanism = buildImpl(owner);
             newMechanism.populateNotifications(notificationBuilders);
+            newMechanism.archivedStatistics = archivedStatistics;
             return newMechanism;
         }
 
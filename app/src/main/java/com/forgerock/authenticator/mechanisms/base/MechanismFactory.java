@@ -97,7 +97,9 @@ public abstract class MechanismFactory {
 
             Mechanism.PartialMechanismBuilder builder = createFromUriParameters(version, mechanismUID, values)
                     .setMechanismUID(mechanismUID);
-            return identity.addMechanism(builder);
+            Mechanism mechanism = identity.addMechanism(builder);
+            onMechanismCreated(version, mechanism, values);
+            return mechanism;
 
         } catch (MechanismCreationException e) {
             if (identity.getMechanisms().isEmpty()) {
@@ -120,6 +122,17 @@ public abstract class MechanismFactory {
     protected abstract Mechanism.PartialMechanismBuilder createFromUriParameters(
             int version, String mechanismUID, Map<String, String> map)  throws MechanismCreationException;
 
+    /**
+     * Called once a Mechanism created from a URI has been added to the model. Allows work which
+     * needs the stored Mechanism, such as registering it with a server, to be started. Does
+     * nothing by default.
+     * @param version The version extracted from the URI.
+     * @param mechanism The Mechanism that was added.
+     * @param map The map of values generated from the original URI.
+     */
+    protected void onMechanismCreated(int version, Mechanism mechanism, Map<String, String> map) {
+    }
+
     /**
      * Return the UriParser subclass used by the factory for a particular Mechanism type.
      * @return The UriParser.
@@ -138,6 +151,21 @@ public abstract class MechanismFactory {
     public abstract PartialMechanismBuilder restoreFromParameters(int version, Map<String, String> map)
             throws MechanismCreationException;
 
+    /**
+     * Uses the record to create the partial mechanism builder associated with the version provided.
+     * This is used to restore a mechanism that has been stored. By default the generic extras of
+     * the record are used; factories for Mechanisms with typed properties should override this.
+     * The resulting Mechanism builder must be added to the owner.
+     * @param version The version of the Mechanism being created.
+     * @param record The stored record.
+     * @return The create Mechanism.
+     * @throws MechanismCreationException If the data was not valid to create a Mechanism.
+     */
+    public PartialMechanismBuilder restoreFromRecord(int version, MechanismRecord record)
+            throws MechanismCreationException {
+        return restoreFromParameters(version, record.getExtras());
+    }
+
     protected final String get(Map<String, String> map, String name, String defaultValue) {
         String value = map.get(name);
         return value == null ? defaultValue : value;
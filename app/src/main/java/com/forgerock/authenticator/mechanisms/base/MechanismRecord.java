@@ -0,0 +1,225 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package com.forgerock.authenticator.mechanisms.base;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Typed representation of the stored state of a Mechanism. The fields used by the core Mechanism
+ * types are held as typed values so that they can be stored without an intermediate encoding.
+ * Any other properties are held in a generic map of extras, which allows new Mechanism types to be
+ * stored without changes to the storage system.
+ */
+public final class MechanismRecord {
+    private String tokenType;
+    private String algorithm;
+    private Integer digits;
+    private Integer period;
+    private Long counter;
+    private byte[] secret;
+    private byte[] encryptedSecret;
+    private SecretDecrypter secretDecrypter;
+    private String endpoint;
+    private final Map<String, String> extras = new HashMap<>();
+
+    /**
+     * Gets the type of token (e.g. HOTP or TOTP).
+     * @return The token type, or null if not set.
+     */
+    public String getTokenType() {
+        return tokenType;
+    }
+
+    /**
+     * Sets the type of token (e.g. HOTP or TOTP).
+     * @param tokenType The token type.
+     * @return This record.
+     */
+    public MechanismRecord setTokenType(String tokenType) {
+        this.tokenType = tokenType;
+        return this;
+    }
+
+    /**
+     * Gets the name of the algorithm used by the Mechanism.
+     * @return The algorithm, or null if not set.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Sets the name of the algorithm used by the Mechanism.
+     * @param algorithm The algorithm.
+     * @return This record.
+     */
+    public MechanismRecord setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+        return this;
+    }
+
+    /**
+     * Gets the number of digits in generated codes.
+     * @return The number of digits, or null if not set.
+     */
+    public Integer getDigits() {
+        return digits;
+    }
+
+    /**
+     * Sets the number of digits in generated codes.
+     * @param digits The number of digits.
+     * @return This record.
+     */
+    public MechanismRecord setDigits(Integer digits) {
+        this.digits = digits;
+        return this;
+    }
+
+    /**
+     * Gets the period in seconds between code changes.
+     * @return The period, or null if not set.
+     */
+    public Integer getPeriod() {
+        return period;
+    }
+
+    /**
+     * Sets the period in seconds between code changes.
+     * @param period The period.
+     * @return This record.
+     */
+    public MechanismRecord setPeriod(Integer period) {
+        this.period = period;
+        return this;
+    }
+
+    /**
+     * Gets the counter used for counter based codes.
+     * @return The counter, or null if not set.
+     */
+    public Long getCounter() {
+        return counter;
+    }
+
+    /**
+     * Sets the counter used for counter based codes.
+     * @param counter The counter.
+     * @return This record.
+     */
+    public MechanismRecord setCounter(Long counter) {
+        this.counter = counter;
+        return this;
+    }
+
+    /**
+     * Gets the raw bytes of the secret shared with the server. A secret which was loaded encrypted
+     * is decrypted on the first call.
+     * @return The secret, or null if not set or it could not be decrypted.
+     */
+    public byte[] getSecret() {
+        if (encryptedSecret != null) {
+            secret = secretDecrypter.decryptSecret(encryptedSecret);
+            encryptedSecret = null;
+            secretDecrypter = null;
+        }
+        return secret;
+    }
+
+    /**
+     * Determines whether a secret is set, without decrypting it.
+     * @return True if a secret is set, false otherwise.
+     */
+    public boolean hasSecret() {
+        return secret != null || encryptedSecret != null;
+    }
+
+    /**
+     * Sets the raw bytes of the secret shared with the server.
+     * @param secret The secret.
+     * @return This record.
+     */
+    public MechanismRecord setSecret(byte[] secret) {
+        this.secret = secret;
+        this.encryptedSecret = null;
+        this.secretDecrypter = null;
+        return this;
+    }
+
+    /**
+     * Sets the secret shared with the server in encrypted form. The secret is not decrypted until
+     * it is first requested.
+     * @param encryptedSecret The encrypted secret.
+     * @param secretDecrypter The decrypter for the secret.
+     * @return This record.
+     */
+    public MechanismRecord setEncryptedSecret(byte[] encryptedSecret, SecretDecrypter secretDecrypter) {
+        this.secret = null;
+        this.encryptedSecret = encryptedSecret;
+        this.secretDecrypter = secretDecrypter;
+        return this;
+    }
+
+    /**
+     * Gets the endpoint that the Mechanism communicates with.
+     * @return The endpoint, or null if not set.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Sets the endpoint that the Mechanism communicates with.
+     * @param endpoint The endpoint.
+     * @return This record.
+     */
+    public MechanismRecord setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+        return this;
+    }
+
+    /**
+     * Gets the properties which do not have a typed field.
+     * @return The modifiable map of additional properties.
+     */
+    public Map<String, String> getExtras() {
+        return extras;
+    }
+
+    /**
+     * Adds properties which do not have a typed field.
+     * @param values The properties to add.
+     * @return This record.
+     */
+    public MechanismRecord putExtras(Map<String, String> values) {
+        extras.putAll(values);
+        return this;
+    }
+
+    /**
+     * Decrypts secrets which are held encrypted by the storage system.
+     */
+    public interface SecretDecrypter {
+        /**
+         * Decrypts a secret.
+         * @param encryptedSecret The encrypted secret.
+         * @return The raw bytes of the secret, or null if it could not be decrypted.
+         */
+        byte[] decryptSecret(byte[] encryptedSecret);
+    }
+}
@@ -23,6 +23,7 @@ import android.support.annotation.VisibleForTesting;
 import com.forgerock.authenticator.identity.Identity;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.base.MechanismInfo;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
 import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.storage.IdentityModel;
 import com.forgerock.authenticator.utils.TimeKeeper;
@@ -69,6 +70,7 @@ public class Oath extends Mechanism {
     private TokenType type;
     private String algo;
     private byte[] secret;
+    private MechanismRecord storedSecret;
     private int digits;
     private long counter;
     private int period;
@@ -76,12 +78,13 @@ public class Oath extends Mechanism {
 
     private Logger logger = LoggerFactory.getLogger(Oath.class);
 
-    private Oath(Identity owner, long id, String mechanismUID, TokenType type, String algo, byte[] secret, int digits,
-                 long counter, int period, TimeKeeper keeper) {
+    private Oath(Identity owner, long id, String mechanismUID, TokenType type, String algo, byte[] secret,
+                 MechanismRecord storedSecret, int digits, long counter, int period, TimeKeeper keeper) {
         super(owner, id, mechanismUID);
         this.type = type;
         this.algo = algo;
         this.secret = secret;
+        this.storedSecret = storedSecret;
         this.digits = digits;
         this.counter = counter;
         this.period = period;
@@ -101,13 +104,25 @@ public class Oath extends Mechanism {
         Map<String, String> result = new HashMap<>();
         result.put(TOKEN_TYPE, type.toString());
         result.put(ALGO, algo);
-        result.put(SECRET, Base32String.encode(secret));
+        byte[] secret = getSecret();
+        result.put(SECRET, secret == null ? null : Base32String.encode(secret));
         result.put(DIGITS, Integer.toString(digits));
         result.put(COUNTER, Long.toString(counter));
         result.put(PERIOD, Integer.toString(period));
         return result;
     }
 
+    @Override
+    public MechanismRecord asRecord() {
+        return new MechanismRecord()
+                .setTokenType(type.toString())
+                .setAlgorithm(algo)
+                .setSecret(getSecret())
+                .setDigits(digits)
+                .setCounter(counter)
+                .setPeriod(period);
+    }
+
     @Override
     public int getVersion() {
         return VERSION;
@@ -158,7 +173,24 @@ public class Oath extends Mechanism {
      */
     @VisibleForTesting
     public boolean hasBase64Secret(String base64Secret) {
-        return new String(Base64.encode(secret)).equals(base64Secret);
+        byte[] secret = getSecret();
+        return secret != null && new String(Base64.encode(secret)).equals(base64Secret);
+    }
+
+    /**
+     * Tokens restored from storage do not read their secret until it is first used, as most are
+     * never used in a session. The secret is checked against the algorithm when the code is
+     * generated.
+     */
+    private synchronized byte[] getSecret() {
+        if (storedSecret != null) {
+            secret = storedSecret.getSecret();
+            storedSecret = null;
+            if (secret == null) {
+                logger.error("Stored secret could not be read.");
+            }
+        }
+        return secret;
     }
 
     /**
@@ -177,8 +209,12 @@ public class Oath extends Mechanism {
 
         switch (type) {
         case HOTP:
+            if (getSecret() == null) {
+                // No code can be generated, so the counter is left in step with the server
+                return new TokenCode(timeKeeper, "", cur, cur + (period * 1000));
+            }
             counter++;
-            save();
+            saveCounter(counter);
             return new TokenCode(timeKeeper, getHOTP(counter), cur, cur + (period * 1000));
 
         case TOTP:
@@ -201,6 +237,11 @@ public class Oath extends Mechanism {
         for (int i = digits; i > 0; i--)
             div *= 10;
 
+        byte[] secret = getSecret();
+        if (secret == null) {
+            return "";
+        }
+
         // Create the HMAC
         try {
             Mac mac = Mac.getInstance("Hmac" + algo);
@@ -240,6 +281,7 @@ public class Oath extends Mechanism {
         private TokenType type;
         private String algo = "SHA1";
         private byte[] secret;
+        private MechanismRecord storedSecret;
         private int digits = 6;
         private long counter;
         private int period = 30;
@@ -324,6 +366,7 @@ public class Oath extends Mechanism {
                 byte[] testSecret = Base32String.decode(secretStr);
                 validateAlgoSecretPair(algo, testSecret);
                 secret = testSecret;
+                storedSecret = null;
             } catch (DecodingException e) {
                 throw new MechanismCreationException("Could not decode secret: " + secretStr, e);
             } catch (NullPointerException e) {
@@ -332,6 +375,23 @@ public class Oath extends Mechanism {
             return this;
         }
 
+        /**
+         * Sets the raw bytes of the secret used for generating the OTP.
+         *
+         * @param secret A non null secret key.
+         * @return The current builder.
+         * @throws MechanismCreationException If the secret was not valid for the algorithm.
+         */
+        public OathBuilder setSecret(byte[] secret) throws MechanismCreationException {
+            if (secret == null) {
+                throw new MechanismCreationException("Unexpected null whilst parsing secret");
+            }
+            validateAlgoSecretPair(algo, secret);
+            this.secret = secret;
+            this.storedSecret = null;
+            return this;
+        }
+
         /**
          * Sets the counter for the OTP. Only useful for HOTP.
          * @param counterStr Non null counter as an integer.
@@ -363,6 +423,28 @@ public class Oath extends Mechanism {
                     .setPeriod(options.get(PERIOD));
         }
 
+        /**
+         * Sets all of the options for the Token being built. Takes a record that was generated by
+         * an existing Token. The secret is not read from the record, or validated against the
+         * algorithm, until the Token is first used.
+         * @param record The record that was generated.
+         * @return The current builder.
+         * @throws MechanismCreationException If any of the options were invalid.
+         */
+        public OathBuilder setRecord(MechanismRecord record) throws MechanismCreationException {
+            if (record.getTokenType() == null || record.getAlgorithm() == null || record.getDigits() == null
+                    || record.getCounter() == null || record.getPeriod() == null || !record.hasSecret()) {
+                throw new MechanismCreationException("Stored record was incomplete");
+            }
+            setType(record.getTokenType());
+            algo = record.getAlgorithm().toUpperCase(Locale.US);
+            secret = null;
+            storedSecret = record;
+            setDigits(Integer.toString(record.getDigits()));
+            counter = record.getCounter();
+            return setPeriod(Integer.toString(record.getPeriod()));
+        }
+
         @Override
         protected OathBuilder getThis() {
             return this;
@@ -377,10 +459,11 @@ public class Oath extends Mechanism {
             if (type == null) {
                 throw new MechanismCreationException("Must specify a valid type");
             }
-            if (secret == null) {
+            if (secret == null && storedSecret == null) {
                 throw new MechanismCreationException("Must specify a valid secret");
             }
-            return new Oath(owner, id, mechanismUID, type, algo, secret, digits, counter, period, timeKeeper);
+            return new Oath(owner, id, mechanismUID, type, algo, secret, storedSecret, digits, counter, period,
+                    timeKeeper);
         }
 
         private void validateAlgoSecretPair(String algo, byte[] secret) throws MechanismCreationException {
@@ -22,6 +22,7 @@ import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.base.MechanismFactory;
 import com.forgerock.authenticator.mechanisms.base.MechanismInfo;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
 import com.forgerock.authenticator.mechanisms.base.UriParser;
 import com.forgerock.authenticator.storage.IdentityModel;
 
@@ -72,4 +73,14 @@ class OathFactory extends MechanismFactory {
             throw new MechanismCreationException("Unknown version: " + version);
         }
     }
+
+    @Override
+    public Mechanism.PartialMechanismBuilder restoreFromRecord(int version, MechanismRecord record) throws MechanismCreationException {
+        if (version == 1) {
+            return Oath.builder()
+                    .setRecord(record);
+        } else {
+            throw new MechanismCreationException("Unknown version: " + version);
+        }
+    }
 }
@@ -20,6 +20,9 @@ import com.forgerock.authenticator.identity.Identity;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.mechanisms.base.MechanismInfo;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
+
+import org.forgerock.util.encode.Base64;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -33,13 +36,25 @@ import roboguice.util.Strings;
 public class Push extends Mechanism {
     private static final int VERSION = 1;
     private static final PushInfo pushInfo = new PushInfo();
+    private static final String REGISTERING_KEY = "registering";
+    private static final String REGISTERED_TOKEN_KEY = "registeredToken";
     private String endpoint;
+    private String registrationEndpoint;
+    private volatile String registeredToken;
     private String secret;
+    private MechanismRecord storedSecret;
+    private PushCredentials credentials;
+    private volatile boolean registering;
 
-    private Push(Identity owner, long id, String mechanismUID, String secret, String endpoint) {
+    private Push(Identity owner, long id, String mechanismUID, String secret, MechanismRecord storedSecret,
+                 String endpoint, String registrationEndpoint, String registeredToken, boolean registering) {
         super(owner, id, mechanismUID);
         this.endpoint = endpoint;
+        this.registrationEndpoint = registrationEndpoint;
+        this.registeredToken = registeredToken;
         this.secret = secret;
+        this.storedSecret = storedSecret;
+        this.registering = registering;
     }
 
     /**
@@ -64,21 +79,115 @@ public class Push extends Mechanism {
     }
 
     /**
-     * Get the secret used for signing messages.
-     * @return The base 64 encoded secret.
+     * Get the endpoint that this mechanism was registered with, which is also used to send the
+     * server a new device token.
+     * @return The registration endpoint, or null if it was not recorded when the mechanism was added.
+     */
+    public String getRegistrationEndpoint() {
+        return registrationEndpoint;
+    }
+
+    /**
+     * Get the device token that the server last accepted for this mechanism.
+     * @return The token, or null if it was not recorded.
+     */
+    public String getRegisteredToken() {
+        return registeredToken;
+    }
+
+    /**
+     * Get the secret used for signing messages. Mechanisms restored from storage do not read their
+     * secret until a message first arrives for them.
+     * @return The base 64 encoded secret, or null if the stored secret could not be read.
      */
-    public String getSecret() {
+    public synchronized String getSecret() {
+        if (storedSecret != null) {
+            byte[] secretBytes = storedSecret.getSecret();
+            secret = secretBytes == null ? null : Base64.encode(secretBytes);
+            storedSecret = null;
+        }
         return secret;
     }
 
+    /**
+     * Get the credentials used for verifying, signing and answering messages. These are created
+     * on first use and reused for every later message.
+     * @return The credentials, or null if the stored secret could not be read.
+     */
+    public synchronized PushCredentials getCredentials() {
+        if (credentials == null) {
+            String base64Secret = getSecret();
+            if (base64Secret == null) {
+                return null;
+            }
+            credentials = new PushCredentials(base64Secret);
+        }
+        return credentials;
+    }
+
+    /**
+     * Determines whether this mechanism is still being registered with the server. Messages are
+     * not sent to the mechanism until registration completes, and the mechanism is removed if
+     * registration fails.
+     * @return True if registration has not yet completed, false otherwise.
+     */
+    public boolean isRegistering() {
+        return registering;
+    }
+
+    /**
+     * Records that the server has accepted the registration of this mechanism with the given
+     * device token, and saves it.
+     * @param token The device token that was registered.
+     */
+    public void setRegistered(String token) {
+        boolean tokenChanged = token == null ? registeredToken != null : !token.equals(registeredToken);
+        if (registering || tokenChanged) {
+            registering = false;
+            registeredToken = token;
+            save();
+        }
+    }
+
     @Override
     public Map<String, String> asMap() {
         Map<String, String> result = new HashMap<>();
         result.put(PushAuthMapper.AUTH_ENDPOINT_KEY, endpoint);
-        result.put(PushAuthMapper.BASE_64_SHARED_SECRET_KEY, secret);
+        result.put(PushAuthMapper.BASE_64_SHARED_SECRET_KEY, getSecret());
+        putRegistration(result);
         return result;
     }
 
+    @Override
+    public MechanismRecord asRecord() {
+        MechanismRecord record = new MechanismRecord().setEndpoint(endpoint);
+        putRegistration(record.getExtras());
+        String secret = getSecret();
+        if (secret == null) {
+            return record;
+        }
+        byte[] secretBytes = Base64.decode(secret);
+        if (secretBytes != null && Base64.encode(secretBytes).equals(secret)) {
+            record.setSecret(secretBytes);
+        } else {
+            // Secrets which are not in canonical form cannot be stored as raw bytes without loss
+            record.getExtras().put(PushAuthMapper.BASE_64_SHARED_SECRET_KEY, secret);
+        }
+        return record;
+    }
+
+    private void putRegistration(Map<String, String> values) {
+        if (registering) {
+            values.put(REGISTERING_KEY, Boolean.TRUE.toString());
+        }
+        if (registrationEndpoint != null) {
+            values.put(PushAuthMapper.REG_ENDPOINT_KEY, registrationEndpoint);
+        }
+        if (registeredToken != null) {
+            values.put(REGISTERED_TOKEN_KEY, registeredToken);
+        }
+    }
+
     @Override
     public MechanismInfo getInfo() {
         return pushInfo;
@@ -90,6 +199,10 @@ public class Push extends Mechanism {
     public static class PushBuilder extends PartialMechanismBuilder<PushBuilder> {
         private String endpoint;
         private String secret;
+        private MechanismRecord storedSecret;
+        private String registrationEndpoint;
+        private String registeredToken;
+        private boolean registering;
 
         /**
          * Set the endpoint that will be used by this Push mechanism
@@ -108,6 +221,27 @@ public class Push extends Mechanism {
          */
         public PushBuilder setBase64Secret(String secret) {
             this.secret = secret;
+            this.storedSecret = null;
+            return this;
+        }
+
+        /**
+         * Set the endpoint that the mechanism is registered with.
+         * @param registrationEndpoint The registration endpoint.
+         * @return This builder.
+         */
+        public PushBuilder setRegistrationEndpoint(String registrationEndpoint) {
+            this.registrationEndpoint = registrationEndpoint;
+            return this;
+        }
+
+        /**
+         * Set whether the mechanism is still being registered with the server.
+         * @param registering True if registration has not yet completed.
+         * @return This builder.
+         */
+        public PushBuilder setRegistering(boolean registering) {
+            this.registering = registering;
             return this;
         }
 
@@ -121,9 +255,37 @@ public class Push extends Mechanism {
         public PushBuilder setOptions(Map<String, String> options) {
             endpoint = options.get(PushAuthMapper.AUTH_ENDPOINT_KEY);
             secret = options.get(PushAuthMapper.BASE_64_SHARED_SECRET_KEY);
+            storedSecret = null;
+            readRegistration(options);
+            return this;
+        }
+
+        /**
+         * Sets all of the options for the Push mechanism being built. Takes a record that was
+         * generated by an existing Push mechanism. The secret is not read from the record until
+         * it is first used.
+         * @param record The record that was generated.
+         * @return The current builder.
+         */
+        public PushBuilder setRecord(MechanismRecord record) {
+            endpoint = record.getEndpoint();
+            readRegistration(record.getExtras());
+            if (record.hasSecret()) {
+                secret = null;
+                storedSecret = record;
+            } else {
+                secret = record.getExtras().get(PushAuthMapper.BASE_64_SHARED_SECRET_KEY);
+                storedSecret = null;
+            }
             return this;
         }
 
+        private void readRegistration(Map<String, String> values) {
+            registering = Boolean.parseBoolean(values.get(REGISTERING_KEY));
+            registrationEndpoint = values.get(PushAuthMapper.REG_ENDPOINT_KEY);
+            registeredToken = values.get(REGISTERED_TOKEN_KEY);
+        }
+
         @Override
         protected PushBuilder getThis() {
             return this;
@@ -135,10 +297,11 @@ public class Push extends Mechanism {
          * @throws MechanismCreationException If an owner was not provided.
          */
         protected Push buildImpl(Identity owner) throws MechanismCreationException {
-            if (Strings.isEmpty(secret)) {
+            if (storedSecret == null && Strings.isEmpty(secret)) {
                 throw new MechanismCreationException("Secret was null or empty");
             }
-            return new Push(owner, id, mechanismUID, secret, endpoint);
+            return new Push(owner, id, mechanismUID, secret, storedSecret, endpoint, registrationEndpoint,
+                    registeredToken, registering);
         }
 
     }
@@ -28,7 +28,9 @@ import android.widget.TextView;
 
 import com.forgerock.authenticator.baseactivities.BaseNotificationActivity;
 import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.message.SystemNotifier;
 import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.PushNotification;
 import com.forgerock.authenticator.ui.ConfirmationSwipeBar;
 import com.forgerock.authenticator.R;
 import com.squareup.picasso.Picasso;
@@ -36,6 +38,8 @@ import com.squareup.picasso.Picasso;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import roboguice.RoboGuice;
+
 /**
  * Activity which allows the user to approve or reject a request for authentication that has been
  * provided by a message.
@@ -110,7 +114,24 @@ public class PushAuthActivity extends BaseNotificationActivity {
 
         @Override
         protected void onPostExecute(Boolean success) {
-            if (!success) {
+            boolean queued = !success && notification instanceof PushNotification
+                    && ((PushNotification) notification).isResponseQueued();
+            if (success || queued) {
+                RoboGuice.getInjector(PushAuthActivity.this).getInstance(SystemNotifier.class).cancel(notification);
+            }
+            if (queued) {
+                new AlertDialog.Builder(PushAuthActivity.this)
+                        .setTitle(R.string.pushauth_queued_title)
+                        .setMessage(R.string.notification_response_queued_message)
+                        .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                finish();
+                            }
+                        })
+                        .setIcon(android.R.drawable.ic_dialog_info)
+                        .show();
+            } else if (!success) {
                 new AlertDialog.Builder(PushAuthActivity.this)
                         .setTitle(R.string.pushauth_fail_title)
                         .setMessage(R.string.notification_error_network_failure_message)
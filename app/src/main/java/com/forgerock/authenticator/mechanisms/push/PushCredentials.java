@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.mechanisms.push;
+
+import org.forgerock.json.jose.builders.SignedJwtBuilderImpl;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.SigningManager;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.jwt.JwtClaimsSet;
+import org.forgerock.util.encode.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The cryptographic state derived from the secret a Push mechanism shares with the server. The
+ * secret is decoded once, and the handler used to sign messages and the HMAC used to verify
+ * messages and answer challenges are created once and reused. Safe for use from multiple threads.
+ */
+public final class PushCredentials {
+    private static final Logger logger = LoggerFactory.getLogger(PushCredentials.class);
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final byte[] secret;
+    private final SigningHandler signingHandler;
+    private Mac hmac;
+
+    /**
+     * Create the credentials for a secret.
+     * @param base64Secret The base 64 encoded secret shared with the server.
+     */
+    public PushCredentials(String base64Secret) {
+        secret = Base64.decode(base64Secret);
+        signingHandler = new SigningManager().newHmacSigningHandler(secret);
+    }
+
+    /**
+     * Sign a message to the server.
+     * @param claims The claims of the message.
+     * @return The signed JWT.
+     * @throws IllegalArgumentException If the secret is empty.
+     */
+    public synchronized String sign(JwtClaimsSet claims) {
+        SignedJwtBuilderImpl jwtBuilder = new SignedJwtBuilderImpl(signingHandler);
+        jwtBuilder.claims(claims);
+        jwtBuilder.headers().alg(JwsAlgorithm.HS256);
+        return jwtBuilder.build();
+    }
+
+    /**
+     * Verify the HS256 signature of a message from the server. The comparison takes the same time
+     * wherever the signatures differ, so does not reveal how much of a forged signature was correct.
+     * @param signingInput The signed part of the message.
+     * @param signature The raw bytes of the signature.
+     * @return True if the message was signed with the shared secret, false otherwise.
+     */
+    public synchronized boolean verifySignature(byte[] signingInput, byte[] signature) {
+        Mac mac = getHmac();
+        if (mac == null) {
+            return false;
+        }
+        byte[] expected = mac.doFinal(signingInput);
+        if (signature.length != expected.length) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            difference |= expected[i] ^ signature[i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Generate the response to a challenge sent by the server.
+     * @param base64Challenge The base 64 encoded challenge.
+     * @return The base 64 encoded response, or null if the response could not be generated.
+     */
+    public synchronized String generateChallengeResponse(String base64Challenge) {
+        Mac mac = getHmac();
+        if (mac == null) {
+            logger.error("Failed to generate challenge-response");
+            return null;
+        }
+        return Base64.encode(mac.doFinal(Base64.decode(base64Challenge)));
+    }
+
+    /**
+     * Gets the HMAC keyed with the secret, creating it on first use. doFinal resets the HMAC, so
+     * it is ready for the next use.
+     */
+    private Mac getHmac() {
+        if (hmac == null) {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(new SecretKeySpec(secret, 0, secret.length, HMAC_ALGORITHM));
+                hmac = mac;
+            } catch (NoSuchAlgorithmException | InvalidKeyException | IllegalArgumentException e) {
+                logger.error("Failed to create HMAC from secret", e);
+            }
+        }
+        return hmac;
+    }
+}
@@ -23,19 +23,12 @@ import com.forgerock.authenticator.R;
 import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.base.MechanismFactory;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
 import com.forgerock.authenticator.mechanisms.base.UriParser;
-import com.forgerock.authenticator.notifications.PushNotification;
 import com.forgerock.authenticator.storage.IdentityModel;
-import com.forgerock.authenticator.utils.MessageUtils;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
-import com.google.android.gms.gcm.GoogleCloudMessaging;
-import com.google.android.gms.iid.InstanceID;
 
-import org.json.JSONException;
-
-import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 
 import roboguice.RoboGuice;
@@ -48,58 +41,27 @@ import roboguice.RoboGuice;
  */
 public class PushFactory extends MechanismFactory {
     private PushAuthMapper mapper = new PushAuthMapper();
-    private InstanceID instanceID;
 
-    protected PushFactory(Context context, IdentityModel model, InstanceID instanceID) {
+    protected PushFactory(Context context, IdentityModel model) {
         super(context, model, new PushInfo());
-        this.instanceID = instanceID;
     }
 
     @Override
     protected Mechanism.PartialMechanismBuilder createFromUriParameters(
             int version, String mechanismUID, Map<String, String> map) throws MechanismCreationException {
         if (version == 1) {
-            String registrationEndpoint = map.get(PushAuthMapper.REG_ENDPOINT_KEY);
             String authenticationEndpoint = map.get(PushAuthMapper.AUTH_ENDPOINT_KEY);
             String base64Secret = map.get(PushAuthMapper.BASE_64_SHARED_SECRET_KEY);
-            String base64Challenge = map.get(PushAuthMapper.BASE_64_CHALLENGE_KEY);
-            String amlbCookie = map.get(PushAuthMapper.AM_LOAD_BALANCER_COOKIE_KEY);
-
-            String messageId = get(map, PushAuthMapper.MESSAGE_ID_KEY, null);
-
 
             // TODO: AME-9928 check should be performed in on-resume as well.
             if (!checkPlayServices()) {
                 throw new MechanismCreationException("Google play services not enabled");
             }
-            String token;
-            try {
-                token = instanceID.getToken(getContext().getString(R.string.gcm_defaultSenderId),
-                        GoogleCloudMessaging.INSTANCE_ID_SCOPE, null);
-            } catch (IOException e) {
-                throw new MechanismCreationException("Failed to retrieve GCM token.", e);
-            }
 
-            Map<String, Object> data = new HashMap<>();
-            data.put("deviceId", token);
-            data.put("deviceType", "android");
-            data.put("communicationType", "gcm");
-            data.put("mechanismUid", mechanismUID);
-            data.put("response", PushNotification.generateChallengeResponse(base64Secret, base64Challenge));
-
-            MessageUtils messageUtils = RoboGuice.getInjector(getContext()).getInstance(MessageUtils.class);
-
-            try {
-                int returnCode = messageUtils.respond(registrationEndpoint, amlbCookie, base64Secret, messageId, data);
-                if (returnCode != 200) {
-                    throw new MechanismCreationException("Communication with server returned " +
-                            returnCode + " code.");
-                }
-            } catch (IOException | JSONException e) {
-                throw new MechanismCreationException("Failed to register with server.", e);
-            }
-
-            Push.PushBuilder pushBuilder = Push.builder().setAuthEndpoint(authenticationEndpoint).setBase64Secret(base64Secret);
+            // Saved straight away, and registered with the server in the background
+            Push.PushBuilder pushBuilder = Push.builder().setAuthEndpoint(authenticationEndpoint)
+                    .setBase64Secret(base64Secret).setRegistering(true)
+                    .setRegistrationEndpoint(map.get(PushAuthMapper.REG_ENDPOINT_KEY));
 
             return pushBuilder;
         } else {
@@ -107,6 +69,16 @@ public class PushFactory extends MechanismFactory {
         }
     }
 
+    @Override
+    protected void onMechanismCreated(int version, Mechanism mechanism, Map<String, String> map) {
+        PushRegistrar.Registration registration = new PushRegistrar.Registration(
+                map.get(PushAuthMapper.REG_ENDPOINT_KEY),
+                map.get(PushAuthMapper.AM_LOAD_BALANCER_COOKIE_KEY),
+                get(map, PushAuthMapper.MESSAGE_ID_KEY, null),
+                map.get(PushAuthMapper.BASE_64_CHALLENGE_KEY));
+        RoboGuice.getInjector(getContext()).getInstance(PushRegistrar.class).register((Push) mechanism, registration);
+    }
+
     @Override
     protected UriParser getParser() {
         return mapper;
@@ -122,6 +94,16 @@ public class PushFactory extends MechanismFactory {
         }
     }
 
+    @Override
+    public Mechanism.PartialMechanismBuilder restoreFromRecord(int version, MechanismRecord record) throws MechanismCreationException {
+        if (version == 1) {
+            return Push.builder()
+                    .setRecord(record);
+        } else {
+            throw new MechanismCreationException("Unknown version: " + version);
+        }
+    }
+
     // TODO: AME-9928 should seek to upgrade this functionality
     private boolean checkPlayServices() {
         Context context = getContext();
@@ -24,7 +24,6 @@ import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.base.MechanismFactory;
 import com.forgerock.authenticator.mechanisms.base.MechanismInfo;
 import com.forgerock.authenticator.storage.IdentityModel;
-import com.google.android.gms.iid.InstanceID;
 
 /**
  * Provides information about the push mechanism.
@@ -55,7 +54,7 @@ public class PushInfo implements MechanismInfo {
 
     @Override
     public MechanismFactory getFactory(Context context, IdentityModel model) {
-        return new PushFactory(context, model, InstanceID.getInstance(context));
+        return new PushFactory(context, model);
     }
 
     @Override
@@ -67,6 +67,8 @@ public class PushLayout extends MechanismLayout<Push> {
         this.push = mechanism;
         MechanismIcon icon = (MechanismIcon) findViewById(R.id.icon);
         icon.setMechanism(mechanism);
+        // Dimmed until the server has accepted the registration
+        setAlpha(mechanism.isRegistering() ? 0.5f : 1f);
 
         setOnClickListener(new OnClickListener() {
             @Override
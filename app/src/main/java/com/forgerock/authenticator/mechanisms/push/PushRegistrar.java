@@ -0,0 +1,559 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.mechanisms.push;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.VisibleForTesting;
+import android.widget.Toast;
+
+import com.forgerock.authenticator.R;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.message.DeviceTokenCache;
+import com.forgerock.authenticator.message.ResponseOutbox;
+import com.forgerock.authenticator.storage.IdentityModel;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.StorageSystem;
+import com.forgerock.authenticator.utils.MessageUtils;
+
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers Push mechanisms with the server in the background, so that a mechanism can be saved
+ * as soon as its QR code is scanned. Each registration moves from registering to registered when
+ * the server accepts it. If the server cannot be reached it is retried a few times, and if it
+ * still fails, or the server rejects it, the mechanism is rolled back by removing it.
+ *
+ * When the device token changes, every registered mechanism is sent the new token at its
+ * registration endpoint, so that it keeps receiving messages. Up to
+ * {@link #MAX_PARALLEL_REGISTRATIONS} mechanisms are updated at the same time, each worker reusing
+ * the pooled connection to its server. Updates which cannot be sent are retried, and the token
+ * accepted for each mechanism is saved with it, so that mechanisms still holding an old token are
+ * updated again when the app next starts. A token the server rejected is recorded, and is not
+ * sent to that mechanism again. Updates are sent on their own executor, so that they never delay
+ * the registration of a newly scanned QR code.
+ *
+ * An update is sent to the registration endpoint signed with the secret of the mechanism, but
+ * without the challenge and message ID of a first registration. Servers which do not accept this
+ * reject every update, so updates are only sent when enabled with {@code tokenUpdatesEnabled}.
+ * The cached device token is refreshed whether or not updates are enabled, so that mechanisms
+ * registered later always use the current token.
+ *
+ * Network calls are made on background threads, and the model is only changed on the main
+ * thread.
+ */
+public class PushRegistrar {
+    private static final Logger logger = LoggerFactory.getLogger(PushRegistrar.class);
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    /** The maximum number of mechanisms which are sent a new device token at the same time. */
+    public static final int MAX_PARALLEL_REGISTRATIONS = 4;
+
+    /**
+     * The outcome of the latest attempt to send a new device token to a mechanism.
+     */
+    public enum Status {
+        /** The server accepted the token. */
+        REGISTERED,
+        /** The server could not be reached, and the token will be sent again. */
+        RETRYING,
+        /** The token was not accepted, and will not be sent to the mechanism again. */
+        FAILED
+    }
+
+    private final Context context;
+    private final IdentityModelProvider identityModelProvider;
+    private final MessageUtils messageUtils;
+    private final DeviceTokenCache deviceTokenCache;
+    private static final String PREFERENCES_NAME = "fr_auth_push_registrar";
+
+    private final ScheduledExecutorService executor;
+    private final ScheduledExecutorService updateExecutor;
+    private final boolean tokenUpdatesEnabled;
+    private final Handler handler;
+    private final SharedPreferences rejectedTokens;
+    private final Set<String> inFlight = Collections.synchronizedSet(new HashSet<String>());
+    private final Map<String, Status> statuses = new ConcurrentHashMap<>();
+    private boolean reRegistrationRequested;
+
+    /**
+     * Create a registrar.
+     * @param context The context used to report failed registrations.
+     * @param identityModelProvider The provider of the model holding the mechanisms.
+     * @param messageUtils The utilities used to contact the server.
+     * @param deviceTokenCache The cache of the token of this device.
+     * @param executor The executor which sends registrations. Should run tasks one at a time.
+     * @param tokenUpdatesEnabled True if the server accepts a new device token for an existing
+     * registration, false if new tokens should not be sent.
+     */
+    public PushRegistrar(Context context, IdentityModelProvider identityModelProvider, MessageUtils messageUtils,
+                         DeviceTokenCache deviceTokenCache, ScheduledExecutorService executor,
+                         boolean tokenUpdatesEnabled) {
+        this(context, identityModelProvider, messageUtils, deviceTokenCache, executor,
+                Executors.newSingleThreadScheduledExecutor(), tokenUpdatesEnabled,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    @VisibleForTesting
+    PushRegistrar(Context context, IdentityModelProvider identityModelProvider, MessageUtils messageUtils,
+                  DeviceTokenCache deviceTokenCache, ScheduledExecutorService executor,
+                  ScheduledExecutorService updateExecutor, boolean tokenUpdatesEnabled, Handler handler) {
+        this.context = context.getApplicationContext();
+        this.identityModelProvider = identityModelProvider;
+        this.messageUtils = messageUtils;
+        this.deviceTokenCache = deviceTokenCache;
+        this.executor = executor;
+        this.updateExecutor = updateExecutor;
+        this.tokenUpdatesEnabled = tokenUpdatesEnabled;
+        this.handler = handler;
+        rejectedTokens = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Register a Push mechanism which has been saved in the registering state. Returns
+     * immediately; the mechanism is marked as registered, or removed, once the server responds.
+     * @param push The mechanism to register.
+     * @param registration The details of the registration from the QR code.
+     */
+    public void register(Push push, Registration registration) {
+        inFlight.add(push.getMechanismUID());
+        attempt(push, registration, 1, 0);
+    }
+
+    /**
+     * Determines whether a registration is being sent for the mechanism.
+     * @param push The mechanism to check.
+     * @return True if the mechanism is being registered by this registrar, false otherwise.
+     */
+    public boolean isRegistering(Push push) {
+        return inFlight.contains(push.getMechanismUID());
+    }
+
+    /**
+     * Remove mechanisms which were left in the registering state when the app last stopped. The
+     * challenges of their QR codes will have expired, so their registration cannot be completed.
+     * Must be called on the main thread.
+     * @param model The model to check.
+     */
+    public void rollBackAbandoned(IdentityModel model) {
+        List<Push> abandoned = new ArrayList<>();
+        for (Mechanism mechanism : model.getMechanisms()) {
+            if (mechanism instanceof Push && ((Push) mechanism).isRegistering()
+                    && !isRegistering((Push) mechanism)) {
+                abandoned.add((Push) mechanism);
+            }
+        }
+        for (Push push : abandoned) {
+            logger.warn("Removing mechanism whose registration did not complete.");
+            push.getOwner().removeMechanism(push);
+        }
+        if (!abandoned.isEmpty()) {
+            model.notifyMechanismChanged();
+        }
+    }
+
+    /**
+     * Fetch a new token for this device in the background, after the Instance ID service reports
+     * that the token has changed, so that new registrations use it. If token updates are enabled,
+     * the token is also sent to every registered mechanism. Returns immediately.
+     */
+    public void refreshToken() {
+        updateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String token;
+                try {
+                    token = deviceTokenCache.refresh();
+                } catch (IOException e) {
+                    logger.error("Failed to refresh device token.", e);
+                    return;
+                }
+                if (tokenUpdatesEnabled) {
+                    reRegisterStale(identityModelProvider.get(), token);
+                }
+            }
+        });
+    }
+
+    /**
+     * Send the current device token to any registered mechanisms which the server does not yet
+     * hold it for, such as those which could not be reached when the token last changed. Only the
+     * first request made while the app runs has any effect. Returns immediately. Must be called
+     * on the main thread.
+     * @param model The model holding the mechanisms.
+     */
+    public void requestReRegistration(final IdentityModel model) {
+        if (!tokenUpdatesEnabled || reRegistrationRequested) {
+            return;
+        }
+        reRegistrationRequested = true;
+        updateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reRegisterStale(model, deviceTokenCache.getToken());
+                } catch (IOException e) {
+                    logger.error("Failed to read device token.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the outcome of the latest attempt to send a new device token to the mechanism.
+     * @param push The mechanism.
+     * @return The status, or null if no new token has been sent to the mechanism.
+     */
+    public Status getStatus(Push push) {
+        Status status = statuses.get(push.getMechanismUID());
+        if (status == null && rejectedTokens.contains(push.getMechanismUID())) {
+            return Status.FAILED;
+        }
+        return status;
+    }
+
+    /**
+     * Finds the mechanisms whose registered token differs from the current token on the main
+     * thread, then sends them the token in the background. Mechanisms which have rejected the
+     * token are skipped.
+     */
+    private void reRegisterStale(final IdentityModel model, final String token) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final List<Push> stale = new ArrayList<>();
+                Set<String> mechanismUIDs = new HashSet<>();
+                for (Mechanism mechanism : model.getMechanisms()) {
+                    if (!(mechanism instanceof Push)) {
+                        continue;
+                    }
+                    Push push = (Push) mechanism;
+                    mechanismUIDs.add(push.getMechanismUID());
+                    if (push.isRegistering() || push.getRegistrationEndpoint() == null
+                            || token.equals(push.getRegisteredToken())
+                            || token.equals(rejectedTokens.getString(push.getMechanismUID(), null))) {
+                        continue;
+                    }
+                    if (inFlight.add(push.getMechanismUID())) {
+                        stale.add(push);
+                    }
+                }
+                forgetRejectedTokens(mechanismUIDs);
+                if (stale.isEmpty()) {
+                    return;
+                }
+                logger.info("Sending new device token to {} mechanisms.", stale.size());
+                updateExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        reRegister(stale, token, 1);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends the token to each mechanism over a bounded pool of workers, then saves the mechanisms
+     * which accepted it in one transaction. Mechanisms which could not be reached are tried again
+     * after a delay.
+     */
+    private void reRegister(List<Push> pushes, final String token, final int attempt) {
+        final List<Push> accepted = new ArrayList<>();
+        final List<Push> retry = new ArrayList<>();
+        final List<Push> failed = new ArrayList<>();
+        List<Push> rejected = new ArrayList<>();
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(pushes.size(), MAX_PARALLEL_REGISTRATIONS));
+        try {
+            List<Future<Status>> results = new ArrayList<>();
+            for (final Push push : pushes) {
+                results.add(workers.submit(new Callable<Status>() {
+                    @Override
+                    public Status call() {
+                        return sendToken(push, token);
+                    }
+                }));
+            }
+            for (int i = 0; i < pushes.size(); i++) {
+                Status status;
+                try {
+                    status = results.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    status = Status.FAILED;
+                } catch (ExecutionException e) {
+                    logger.error("Failed to send device token.", e.getCause());
+                    status = null;
+                }
+                if (status == Status.FAILED) {
+                    rejected.add(pushes.get(i));
+                } else if (status == null || (status == Status.RETRYING && attempt >= MAX_ATTEMPTS)) {
+                    // Not rejected by the server, so sent again when the app next starts
+                    status = Status.FAILED;
+                }
+                statuses.put(pushes.get(i).getMechanismUID(), status);
+                if (status == Status.REGISTERED) {
+                    accepted.add(pushes.get(i));
+                } else if (status == Status.RETRYING) {
+                    retry.add(pushes.get(i));
+                } else {
+                    failed.add(pushes.get(i));
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+        logger.info("Device token accepted for {} mechanisms, {} to retry, {} failed.",
+                accepted.size(), retry.size(), failed.size());
+        recordRejectedToken(accepted, rejected, token);
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                saveRegisteredToken(accepted, token);
+                for (Push push : accepted) {
+                    inFlight.remove(push.getMechanismUID());
+                }
+                for (Push push : failed) {
+                    inFlight.remove(push.getMechanismUID());
+                }
+            }
+        });
+        if (!retry.isEmpty()) {
+            updateExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reRegister(retry, token, attempt + 1);
+                }
+            }, RETRY_DELAY_MILLIS * attempt, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the token to one mechanism.
+     * @return REGISTERED if the server accepted the token, RETRYING if it could not be reached, or
+     * FAILED if the token was rejected or could not be sent.
+     */
+    private Status sendToken(Push push, String token) {
+        PushCredentials credentials = push.getCredentials();
+        if (credentials == null) {
+            logger.error("Secret for mechanism could not be read.");
+            return Status.FAILED;
+        }
+        boolean retriable;
+        try {
+            int returnCode = send(push, credentials, token, null);
+            if (returnCode == 200) {
+                return Status.REGISTERED;
+            }
+            logger.warn("Device token update returned {}.", returnCode);
+            retriable = ResponseOutbox.isRetriable(returnCode);
+        } catch (IOException e) {
+            logger.warn("Failed to contact server to update device token.", e);
+            retriable = true;
+        } catch (JSONException e) {
+            logger.error("Failed to encode device token update.", e);
+            retriable = false;
+        }
+        return retriable ? Status.RETRYING : Status.FAILED;
+    }
+
+    /**
+     * Records the token rejected by each mechanism, so that it is not sent again, and
+     * forgets any earlier rejection by the mechanisms which accepted the token.
+     */
+    private void recordRejectedToken(List<Push> accepted, List<Push> rejected, String token) {
+        if (accepted.isEmpty() && rejected.isEmpty()) {
+            return;
+        }
+        SharedPreferences.Editor editor = rejectedTokens.edit();
+        for (Push push : accepted) {
+            editor.remove(push.getMechanismUID());
+        }
+        for (Push push : rejected) {
+            editor.putString(push.getMechanismUID(), token);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets the tokens rejected by mechanisms which have since been deleted.
+     * @param mechanismUIDs The UIDs of the Push mechanisms which still exist.
+     */
+    private void forgetRejectedTokens(Set<String> mechanismUIDs) {
+        Set<String> deleted = new HashSet<>(rejectedTokens.getAll().keySet());
+        deleted.removeAll(mechanismUIDs);
+        if (deleted.isEmpty()) {
+            return;
+        }
+        SharedPreferences.Editor editor = rejectedTokens.edit();
+        for (String mechanismUID : deleted) {
+            editor.remove(mechanismUID);
+        }
+        editor.apply();
+    }
+
+    private static void saveRegisteredToken(List<Push> pushes, String token) {
+        if (pushes.isEmpty()) {
+            return;
+        }
+        IdentityModel model = pushes.get(0).getModel();
+        StorageSystem storageSystem = model.getStorageSystem();
+        model.beginBatch();
+        storageSystem.beginTransaction();
+        try {
+            for (Push push : pushes) {
+                // Mechanisms deleted during the update are not saved again
+                if (push.getOwner().getMechanisms().contains(push)) {
+                    push.setRegistered(token);
+                }
+            }
+            storageSystem.setTransactionSuccessful();
+        } finally {
+            storageSystem.endTransaction();
+            model.endBatch();
+        }
+    }
+
+    private void attempt(final Push push, final Registration registration, final int attempt, long delayMillis) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                PushCredentials credentials = push.getCredentials();
+                if (credentials == null) {
+                    logger.error("Secret for mechanism could not be read.");
+                    complete(push, null);
+                    return;
+                }
+                boolean retriable = false;
+                try {
+                    String token = deviceTokenCache.getToken();
+                    int returnCode = send(push, credentials, token, registration);
+                    if (returnCode == 200) {
+                        complete(push, token);
+                        return;
+                    }
+                    logger.warn("Registration returned {}.", returnCode);
+                    retriable = ResponseOutbox.isRetriable(returnCode);
+                } catch (IOException e) {
+                    logger.warn("Failed to contact server for registration.", e);
+                    retriable = true;
+                } catch (JSONException e) {
+                    logger.error("Failed to encode registration.", e);
+                }
+                if (retriable && attempt < MAX_ATTEMPTS) {
+                    attempt(push, registration, attempt + 1, RETRY_DELAY_MILLIS * attempt);
+                } else {
+                    complete(push, null);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the device token to the registration endpoint, signed with the secret of the
+     * mechanism. A first registration also answers the challenge from the QR code.
+     * @param registration The details from the QR code, or null to update an existing registration.
+     */
+    private int send(Push push, PushCredentials credentials, String token, Registration registration)
+            throws IOException, JSONException {
+        Map<String, Object> data = new HashMap<>();
+        data.put("deviceId", token);
+        data.put("deviceType", "android");
+        data.put("communicationType", "gcm");
+        data.put("mechanismUid", push.getMechanismUID());
+        if (registration == null) {
+            return messageUtils.respond(push.getRegistrationEndpoint(), null, credentials, null, data);
+        }
+        data.put("response", credentials.generateChallengeResponse(registration.base64Challenge));
+        return messageUtils.respond(registration.endpoint, registration.amlbCookie, credentials,
+                registration.messageId, data);
+    }
+
+    /**
+     * Completes a first registration on the main thread.
+     * @param token The token the server accepted, or null if registration failed.
+     */
+    private void complete(final Push push, final String token) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                inFlight.remove(push.getMechanismUID());
+                if (!push.getOwner().getMechanisms().contains(push)) {
+                    // Deleted while registering
+                    return;
+                }
+                if (token != null) {
+                    push.setRegistered(token);
+                } else {
+                    push.getOwner().removeMechanism(push);
+                    Toast.makeText(context, R.string.push_registration_failed, Toast.LENGTH_LONG).show();
+                }
+                push.getModel().notifyMechanismChanged();
+            }
+        });
+    }
+
+    /**
+     * The details needed to register a Push mechanism, as read from its QR code.
+     */
+    public static final class Registration {
+        private final String endpoint;
+        private final String amlbCookie;
+        private final String messageId;
+        private final String base64Challenge;
+
+        /**
+         * Create the details of a registration.
+         * @param endpoint The registration endpoint.
+         * @param amlbCookie The load balancer cookie to send, or null.
+         * @param messageId The ID of the registration message.
+         * @param base64Challenge The challenge to answer, base 64 encoded.
+         */
+        public Registration(String endpoint, String amlbCookie, String messageId, String base64Challenge) {
+            this.endpoint = endpoint;
+            this.amlbCookie = amlbCookie;
+            this.messageId = messageId;
+            this.base64Challenge = base64Challenge;
+        }
+    }
+}
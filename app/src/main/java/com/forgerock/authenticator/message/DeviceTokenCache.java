@@ -0,0 +1,90 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.VisibleForTesting;
+
+import com.forgerock.authenticator.R;
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.google.android.gms.iid.InstanceID;
+
+import java.io.IOException;
+
+/**
+ * Holds the GCM registration token of this device, so that registering a Push mechanism does not
+ * wait for a token to be fetched. The token is only fetched if none has been stored, or when the
+ * Instance ID service reports that it has changed through {@link InstanceIdListener}.
+ *
+ * Fetching a token blocks, so {@link #getToken()} and {@link #refresh()} must not be called on the
+ * UI thread.
+ */
+public class DeviceTokenCache {
+    private static final String PREFERENCES_NAME = "fr_auth_device_token";
+    private static final String TOKEN_KEY = "gcm_token";
+
+    private final SharedPreferences sharedPreferences;
+    private final InstanceID instanceID;
+    private final String senderId;
+    private String token;
+
+    /**
+     * Create the cache, and read any stored token.
+     * @param context The context used to store the token.
+     */
+    public DeviceTokenCache(Context context) {
+        this(context, InstanceID.getInstance(context));
+    }
+
+    @VisibleForTesting
+    DeviceTokenCache(Context context, InstanceID instanceID) {
+        sharedPreferences = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.instanceID = instanceID;
+        this.senderId = context.getString(R.string.gcm_defaultSenderId);
+        token = sharedPreferences.getString(TOKEN_KEY, null);
+    }
+
+    /**
+     * Get the token of this device, fetching it only if none has been stored.
+     * @return The token.
+     * @throws IOException If the token had to be fetched, and could not be.
+     */
+    public synchronized String getToken() throws IOException {
+        if (token == null) {
+            return refresh();
+        }
+        return token;
+    }
+
+    /**
+     * Fetch a new token from the Instance ID service, and store it in place of the old one.
+     * @return The new token.
+     * @throws IOException If the token could not be fetched.
+     */
+    public synchronized String refresh() throws IOException {
+        String newToken = instanceID.getToken(senderId, GoogleCloudMessaging.INSTANCE_ID_SCOPE, null);
+        if (newToken == null) {
+            throw new IOException("Instance ID service returned no token.");
+        }
+        token = newToken;
+        sharedPreferences.edit().putString(TOKEN_KEY, token).apply();
+        return token;
+    }
+}
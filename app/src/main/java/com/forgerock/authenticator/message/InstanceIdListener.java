@@ -16,8 +16,11 @@
 
 package com.forgerock.authenticator.message;
 
+import com.forgerock.authenticator.mechanisms.push.PushRegistrar;
 import com.google.android.gms.iid.InstanceIDListenerService;
 
+import roboguice.RoboGuice;
+
 /**
  * Respond to a request from Instance ID service to refresh the registration
  * token which may be stored on the device if registration has been performed.
@@ -39,11 +42,7 @@ public class InstanceIdListener extends InstanceIDListenerService {
 
     @Override
     public void onTokenRefresh() {
-
-        /* TODO: once work has been done to communicate with the server this will need to notify
-         * the server of changes to the messaging token
-         */
-
-        // Fetch updated Instance ID token and notify our app's server of any changes (if applicable).
+        // The token is fetched and sent to each registered mechanism in the background
+        RoboGuice.getInjector(this).getInstance(PushRegistrar.class).refreshToken();
     }
 }
\ No newline at end of file
@@ -0,0 +1,366 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import android.content.Context;
+
+import com.forgerock.authenticator.mechanisms.InvalidNotificationException;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
+import com.forgerock.authenticator.notifications.PushNotification;
+import com.forgerock.authenticator.storage.IdentityModel;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.NotificationCompactor;
+import com.forgerock.authenticator.storage.Settings;
+import com.forgerock.authenticator.storage.StorageSystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import roboguice.RoboGuice;
+
+/**
+ * Ingestion stage for push messages. Messages are placed on a bounded queue, and messages whose ID
+ * has recently been seen are dropped, so that retries from the server are not handled twice.
+ * A single worker verifies the queued messages in batches, stores the accepted notifications of
+ * each batch in one transaction, and notifies listeners of the model once per batch. A batch
+ * which fails does not stop the worker, and retries of its messages which were not stored are
+ * accepted.
+ */
+public class PushIngestionQueue {
+    private static final Logger logger = LoggerFactory.getLogger(PushIngestionQueue.class);
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int MAX_BATCH_SIZE = 16;
+    private static final int RECENT_MESSAGE_IDS = 128;
+
+    private static final int DEFAULT_TTL_SECONDS = 120;
+
+    private final Context context;
+    private final IdentityModelProvider identityModelProvider;
+    private final Executor worker;
+    private final SystemNotifier systemNotifier;
+    private final BlockingQueue<PushMessage> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Map<String, Boolean> recentMessageIds =
+            new LinkedHashMap<String, Boolean>(RECENT_MESSAGE_IDS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > RECENT_MESSAGE_IDS;
+                }
+            };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            List<PushMessage> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            try {
+                do {
+                    batch.clear();
+                    queue.drainTo(batch, MAX_BATCH_SIZE);
+                    if (!batch.isEmpty()) {
+                        try {
+                            processBatch(batch);
+                        } catch (RuntimeException e) {
+                            logger.error("Failed to process push messages.", e);
+                            forgetUnstored(batch);
+                        } finally {
+                            for (PushMessage message : batch) {
+                                message.completion.run();
+                            }
+                        }
+                    }
+                } while (!queue.isEmpty());
+            } finally {
+                drainScheduled.set(false);
+            }
+            // A message may have been queued after the last check, but before the flag was cleared
+            if (!queue.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    };
+
+    /**
+     * Create an ingestion queue which stores notifications in the model from the provider.
+     * @param context The context used to raise system notifications.
+     * @param identityModelProvider The provider of the model.
+     * @param worker The executor which verifies and stores queued messages. Should run tasks one
+     *               at a time.
+     */
+    public PushIngestionQueue(Context context, IdentityModelProvider identityModelProvider, Executor worker) {
+        this(context, identityModelProvider, worker, new SystemNotifier(context));
+    }
+
+    /**
+     * Create an ingestion queue which stores notifications in the model from the provider.
+     * @param context The context used to look up services.
+     * @param identityModelProvider The provider of the model.
+     * @param worker The executor which verifies and stores queued messages. Should run tasks one
+     *               at a time.
+     * @param systemNotifier The notifier which shows the accepted notifications in the system tray.
+     */
+    public PushIngestionQueue(Context context, IdentityModelProvider identityModelProvider, Executor worker,
+                              SystemNotifier systemNotifier) {
+        this.context = context.getApplicationContext();
+        this.identityModelProvider = identityModelProvider;
+        this.worker = worker;
+        this.systemNotifier = systemNotifier;
+    }
+
+    /**
+     * Queue a message for processing. The returned future completes once the batch containing the
+     * message has been committed to storage, so a caller which must not return before the message
+     * is safe can wait on it.
+     * @param messageId The ID of the message.
+     * @param jwtString The signed JWT which forms the body of the message.
+     * @return A future which gives true if the message was stored, or false if it was a duplicate,
+     * the queue was full, or the message was rejected.
+     */
+    public Future<Boolean> offer(String messageId, String jwtString) {
+        if (messageId != null) {
+            synchronized (recentMessageIds) {
+                if (recentMessageIds.put(messageId, Boolean.TRUE) != null) {
+                    logger.debug("Dropping duplicate message {}.", messageId);
+                    return notStored();
+                }
+            }
+        }
+        PushMessage message = new PushMessage(messageId, jwtString);
+        if (!queue.offer(message)) {
+            logger.warn("Message queue is full, dropping message {}.", messageId);
+            if (messageId != null) {
+                synchronized (recentMessageIds) {
+                    // Allow a later retry to be accepted
+                    recentMessageIds.remove(messageId);
+                }
+            }
+            return notStored();
+        }
+        scheduleDrain();
+        return message.completion;
+    }
+
+    private static Future<Boolean> notStored() {
+        FutureTask<Boolean> result = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return false;
+            }
+        });
+        result.run();
+        return result;
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            worker.execute(drain);
+        }
+    }
+
+    /**
+     * Allows retries of the messages of a failed batch which were not stored to be accepted.
+     */
+    private void forgetUnstored(List<PushMessage> batch) {
+        synchronized (recentMessageIds) {
+            for (PushMessage message : batch) {
+                if (!message.stored && message.messageId != null) {
+                    recentMessageIds.remove(message.messageId);
+                }
+            }
+        }
+    }
+
+    private void processBatch(List<PushMessage> batch) {
+        List<com.forgerock.authenticator.notifications.Notification> accepted = new ArrayList<>();
+        // Held so that the model is not loaded between looking up mechanisms and storing notifications
+        synchronized (identityModelProvider) {
+            Map<IdentityModel, List<PendingNotification>> pendingByModel = new LinkedHashMap<>();
+            for (PushMessage message : batch) {
+                PendingNotification pending = verify(message);
+                if (pending == null) {
+                    continue;
+                }
+                IdentityModel model = pending.push.getModel();
+                List<PendingNotification> pendingList = pendingByModel.get(model);
+                if (pendingList == null) {
+                    pendingList = new ArrayList<>();
+                    pendingByModel.put(model, pendingList);
+                }
+                pendingList.add(pending);
+            }
+            for (Map.Entry<IdentityModel, List<PendingNotification>> entry : pendingByModel.entrySet()) {
+                accepted.addAll(store(entry.getKey(), entry.getValue()));
+            }
+            // Sign the responses in advance, so that the user's choice can be sent straight away
+            for (com.forgerock.authenticator.notifications.Notification notification : accepted) {
+                if (notification instanceof PushNotification) {
+                    ((PushNotification) notification).prepareResponses();
+                }
+            }
+        }
+
+        systemNotifier.show(accepted);
+        if (!accepted.isEmpty()
+                && RoboGuice.getInjector(context).getInstance(Settings.class).isConnectionWarmUpEnabled()) {
+            for (com.forgerock.authenticator.notifications.Notification notification : accepted) {
+                if (notification instanceof PushNotification) {
+                    ((PushNotification) notification).warmUpConnection();
+                }
+            }
+        }
+        if (!accepted.isEmpty()) {
+            // Responses left queued when the process last stopped may still be in time
+            RoboGuice.getInjector(context).getInstance(ResponseOutbox.class).requestDrain();
+        }
+        if (!accepted.isEmpty() && identityModelProvider.isLoaded()) {
+            // Compaction needs the full model, so is left until it is next loaded
+            RoboGuice.getInjector(context).getInstance(NotificationCompactor.class).requestCompaction();
+        }
+    }
+
+    private PendingNotification verify(PushMessage message) {
+        PushMessageParser.ParsedMessage parsedMessage = PushMessageParser.parse(message.jwtString);
+        if (parsedMessage == null) {
+            logger.error("Failed to reconstruct JWT.");
+            return null;
+        }
+        String mechanismUid = parsedMessage.getMechanismUid();
+        if (message.messageId == null || mechanismUid == null) {
+            logger.error("Message did not contain required fields.");
+            return null;
+        }
+
+        Mechanism mechanism = identityModelProvider.getMechanism(mechanismUid);
+        if (!(mechanism instanceof Push)) {
+            return null;
+        }
+        Push push = (Push) mechanism;
+
+        PushCredentials credentials = push.getCredentials();
+        if (credentials == null) {
+            logger.error("Secret for mechanism could not be read.");
+            return null;
+        }
+
+        PushMessageParser.Claims claims = parsedMessage.verify(credentials);
+        if (claims == null) {
+            logger.error("Failed to validate jwt.");
+            return null;
+        }
+
+        String base64Challenge = claims.getChallenge();
+        if (base64Challenge == null) {
+            logger.error("Message did not contain required fields.");
+            return null;
+        }
+        int ttl;
+        try {
+            ttl = claims.getTtlSeconds(DEFAULT_TTL_SECONDS);
+        } catch (NumberFormatException e) {
+            logger.error("TTL was not a number");
+            return null;
+        }
+
+        Calendar timeReceived = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        Calendar timeExpired = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        timeExpired.add(Calendar.SECOND, ttl);
+
+        PushNotification.PushNotificationBuilder notificationBuilder = PushNotification.builder()
+                .setTimeAdded(timeReceived)
+                .setTimeExpired(timeExpired)
+                .setMessageId(message.messageId)
+                .setChallenge(base64Challenge)
+                .setAmlbCookie(claims.getAmlbCookie());
+        return new PendingNotification(message, push, notificationBuilder);
+    }
+
+    private List<com.forgerock.authenticator.notifications.Notification> store(
+            IdentityModel model, List<PendingNotification> pendingList) {
+        List<com.forgerock.authenticator.notifications.Notification> stored = new ArrayList<>();
+        List<PushMessage> storedMessages = new ArrayList<>();
+        StorageSystem storageSystem = model.getStorageSystem();
+        model.beginBatch();
+        storageSystem.beginTransaction();
+        try {
+            for (PendingNotification pending : pendingList) {
+                try {
+                    stored.add(pending.push.addNotification(pending.notificationBuilder));
+                    storedMessages.add(pending.message);
+                } catch (InvalidNotificationException e) {
+                    logger.error("Received message mapped invalid Notification to Mechanism. Skipping...");
+                }
+            }
+            storageSystem.setTransactionSuccessful();
+        } finally {
+            storageSystem.endTransaction();
+            model.endBatch();
+        }
+        // Only once the transaction has been committed
+        for (PushMessage message : storedMessages) {
+            message.stored = true;
+        }
+        return stored;
+    }
+
+    private static final class PushMessage {
+        private final String messageId;
+        private final String jwtString;
+        // Set by the worker before it runs the completion
+        private boolean stored;
+        private final FutureTask<Boolean> completion = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return stored;
+            }
+        });
+
+        private PushMessage(String messageId, String jwtString) {
+            this.messageId = messageId;
+            this.jwtString = jwtString;
+        }
+    }
+
+    private static final class PendingNotification {
+        private final PushMessage message;
+        private final Push push;
+        private final PushNotification.PushNotificationBuilder notificationBuilder;
+
+        private PendingNotification(PushMessage message, Push push,
+                                    PushNotification.PushNotificationBuilder notificationBuilder) {
+            this.message = message;
+            this.push = push;
+            this.notificationBuilder = notificationBuilder;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import org.forgerock.util.encode.Base64;
+import org.forgerock.util.encode.Base64url;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Parser for the compact serialised, HS256 signed JWTs which carry push messages. Only the parts
+ * needed for these messages are decoded, and the signature is checked against the raw bytes of
+ * the message before any claim other than the mechanism UID, which selects the key, is used.
+ */
+public final class PushMessageParser {
+    private static final String HS256 = "HS256";
+    private static final String CHARSET = "UTF-8";
+    private static final Gson gson = new Gson();
+
+    private PushMessageParser() {
+    }
+
+    /**
+     * Split a message into its parts, and decode its header and claims.
+     * @param jwt The compact serialised JWT.
+     * @return The parsed message, or null if the message is not a compact serialised HS256 JWT.
+     */
+    public static ParsedMessage parse(String jwt) {
+        if (jwt == null) {
+            return null;
+        }
+        int headerEnd = jwt.indexOf('.');
+        int payloadEnd = headerEnd < 0 ? -1 : jwt.indexOf('.', headerEnd + 1);
+        if (payloadEnd < 0 || jwt.indexOf('.', payloadEnd + 1) >= 0) {
+            return null;
+        }
+        try {
+            Header header = gson.fromJson(decodeString(jwt.substring(0, headerEnd)), Header.class);
+            if (header == null || !HS256.equals(header.alg)) {
+                return null;
+            }
+            Claims claims = gson.fromJson(decodeString(jwt.substring(headerEnd + 1, payloadEnd)), Claims.class);
+            byte[] signature = Base64url.decode(jwt.substring(payloadEnd + 1));
+            if (claims == null || signature == null) {
+                return null;
+            }
+            return new ParsedMessage(jwt.substring(0, payloadEnd).getBytes(CHARSET), signature, claims);
+        } catch (JsonParseException | UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static String decodeString(String base64url) throws UnsupportedEncodingException {
+        byte[] bytes = Base64url.decode(base64url);
+        return bytes == null ? null : new String(bytes, CHARSET);
+    }
+
+    /**
+     * A push message which has been split into its parts, but not yet verified.
+     */
+    public static final class ParsedMessage {
+        private final byte[] signingInput;
+        private final byte[] signature;
+        private final Claims claims;
+
+        private ParsedMessage(byte[] signingInput, byte[] signature, Claims claims) {
+            this.signingInput = signingInput;
+            this.signature = signature;
+            this.claims = claims;
+        }
+
+        /**
+         * Get the UID of the mechanism the message is for, which identifies the key it was signed
+         * with.
+         * @return The mechanism UID, or null if not present.
+         */
+        public String getMechanismUid() {
+            return claims.u;
+        }
+
+        /**
+         * Verify the signature of the message.
+         * @param credentials The credentials of the mechanism the message is for.
+         * @return The claims of the message, or null if the signature is not valid.
+         */
+        public Claims verify(PushCredentials credentials) {
+            return credentials.verifySignature(signingInput, signature) ? claims : null;
+        }
+    }
+
+    /**
+     * The claims of a push message.
+     */
+    public static final class Claims {
+        private String u;
+        private String c;
+        private String l;
+        private String t;
+
+        /**
+         * Get the UID of the mechanism the message is for.
+         * @return The mechanism UID, or null if not present.
+         */
+        public String getMechanismUid() {
+            return u;
+        }
+
+        /**
+         * Get the challenge to respond to.
+         * @return The base 64 encoded challenge, or null if not present.
+         */
+        public String getChallenge() {
+            return c;
+        }
+
+        /**
+         * Get the load balancer cookie to return with the response.
+         * @return The decoded cookie, or null if not present.
+         */
+        public String getAmlbCookie() {
+            return l == null ? null : new String(Base64.decode(l));
+        }
+
+        /**
+         * Get how long the message is valid for.
+         * @param defaultSeconds The value to use if the message does not set one.
+         * @return The time to live in seconds.
+         * @throws NumberFormatException If the time to live is not a number.
+         */
+        public int getTtlSeconds(int defaultSeconds) {
+            return t == null ? defaultSeconds : Integer.parseInt(t);
+        }
+    }
+
+    private static final class Header {
+        private String alg;
+    }
+}
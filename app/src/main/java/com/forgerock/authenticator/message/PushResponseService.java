@@ -0,0 +1,135 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import android.app.IntentService;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+import com.forgerock.authenticator.R;
+import com.forgerock.authenticator.baseactivities.BaseNotificationActivity;
+import com.forgerock.authenticator.mechanisms.push.PushAuthActivity;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.PushNotification;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+
+import roboguice.RoboGuice;
+
+/**
+ * Responds to a Notification from the Approve and Deny actions of its system notification,
+ * without bringing up any UI. Once the response has been sent, the system notification is
+ * replaced with the result by the {@link SystemNotifier}, which also removes it from its group.
+ * While the device is locked no response is sent, and the Notification is opened in the app
+ * instead, so that a login can only be approved by someone who can unlock the device.
+ */
+public class PushResponseService extends IntentService {
+    private static final Logger logger = LoggerFactory.getLogger(PushResponseService.class);
+
+    /** The action used to approve the Notification. */
+    public static final String ACTION_APPROVE = "com.forgerock.authenticator.action.APPROVE";
+    /** The action used to deny the Notification. */
+    public static final String ACTION_DENY = "com.forgerock.authenticator.action.DENY";
+
+    private static final String MECHANISM_UID = "mechanismUID";
+    private static final String NOTIFICATION_REFERENCE = "notificationReference";
+    private static final String SYSTEM_NOTIFICATION_ID = "systemNotificationId";
+    private static final String SYSTEM_NOTIFICATION_TITLE = "systemNotificationTitle";
+
+    /**
+     * Creates the service.
+     */
+    public PushResponseService() {
+        super(PushResponseService.class.getSimpleName());
+    }
+
+    /**
+     * Loads an intent with the required information to respond to a Notification.
+     * @param context The context that the service is being started from.
+     * @param action Either {@link #ACTION_APPROVE} or {@link #ACTION_DENY}.
+     * @param notification The notification to respond to.
+     * @param systemNotificationId The ID of the system notification to update with the result.
+     * @param systemNotificationTitle The title of the system notification.
+     * @return The generated intent.
+     */
+    public static Intent setupIntent(Context context, String action, Notification notification,
+                                     int systemNotificationId, String systemNotificationTitle) {
+        Intent intent = new Intent(context, PushResponseService.class);
+        intent.setAction(action);
+        intent.putExtra(MECHANISM_UID, notification.getMechanism().getMechanismUID());
+        intent.putExtra(NOTIFICATION_REFERENCE, notification.getOpaqueReference());
+        intent.putExtra(SYSTEM_NOTIFICATION_ID, systemNotificationId);
+        intent.putExtra(SYSTEM_NOTIFICATION_TITLE, systemNotificationTitle);
+        return intent;
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String mechanismUID = intent.getStringExtra(MECHANISM_UID);
+        ArrayList<String> notificationReference = intent.getStringArrayListExtra(NOTIFICATION_REFERENCE);
+        if (mechanismUID == null || notificationReference == null
+                || !intent.hasExtra(SYSTEM_NOTIFICATION_ID)) {
+            logger.error("Response intent did not contain required fields.");
+            return;
+        }
+        boolean deny = ACTION_DENY.equals(intent.getAction());
+        int systemNotificationId = intent.getIntExtra(SYSTEM_NOTIFICATION_ID, 0);
+
+        Notification notification = RoboGuice.getInjector(this).getInstance(IdentityModelProvider.class)
+                .getNotification(mechanismUID, notificationReference);
+
+        if (notification != null && notification.isActive() && isDeviceLocked()) {
+            logger.info("Device is locked, so opening the notification rather than responding.");
+            Intent activityIntent = BaseNotificationActivity.setupIntent(this, PushAuthActivity.class, notification);
+            activityIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivity(activityIntent);
+            return;
+        }
+
+        int result;
+        Intent retryIntent = null;
+        if (notification == null || !notification.isActive()) {
+            result = R.string.notification_status_expired;
+        } else if (deny ? notification.deny() : notification.accept()) {
+            result = deny ? R.string.notification_status_rejected : R.string.notification_status_approved;
+        } else if (notification instanceof PushNotification && ((PushNotification) notification).isResponseQueued()) {
+            result = R.string.system_notification_response_queued;
+        } else {
+            logger.error("Failed to respond to notification.");
+            result = R.string.system_notification_response_failed;
+            retryIntent = BaseNotificationActivity.setupIntent(this, PushAuthActivity.class, notification);
+        }
+
+        RoboGuice.getInjector(this).getInstance(SystemNotifier.class).showResult(systemNotificationId,
+                intent.getStringExtra(SYSTEM_NOTIFICATION_TITLE), getString(result), retryIntent);
+    }
+
+    private boolean isDeviceLocked() {
+        KeyguardManager keyguardManager = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return keyguardManager.isKeyguardLocked();
+        }
+        return keyguardManager.inKeyguardRestrictedInputMode();
+    }
+}
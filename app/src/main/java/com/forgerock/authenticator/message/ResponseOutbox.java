@@ -0,0 +1,276 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import android.support.annotation.VisibleForTesting;
+
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.QueuedResponse;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.StorageSystem;
+import com.forgerock.authenticator.utils.MessageUtils;
+
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable outbox for responses to push notifications which could not be delivered when the user
+ * answered. Queued responses are held in storage and sent by a background worker, with an
+ * exponential backoff between attempts, until the server acknowledges them or the notification
+ * expires. A notification is only settled as approved or denied once its response is acknowledged.
+ */
+public class ResponseOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(ResponseOutbox.class);
+
+    private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int RECENT_ACKNOWLEDGEMENTS = 32;
+
+    private final IdentityModelProvider identityModelProvider;
+    private final MessageUtils messageUtils;
+    private final SystemNotifier systemNotifier;
+    private final ScheduledExecutorService worker;
+    private final Random random;
+    private ScheduledFuture<?> scheduledDrain;
+    private long scheduledDrainTime;
+
+    // Held while a queued response is sent, so that the user's answer cannot race with it
+    private final Object sendLock = new Object();
+    // Responses withdrawn since the current drain read the queue, guarded by the send lock
+    private final Set<String> withdrawn = new HashSet<>();
+    // Whether each recently acknowledged response was a denial, guarded by the send lock
+    private final Map<String, Boolean> acknowledged =
+            new LinkedHashMap<String, Boolean>(RECENT_ACKNOWLEDGEMENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > RECENT_ACKNOWLEDGEMENTS;
+                }
+            };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drain();
+            } catch (RuntimeException e) {
+                logger.error("Failed to send queued responses.", e);
+            }
+        }
+    };
+
+    /**
+     * Create an outbox which stores responses in the storage system of the model from the provider.
+     * @param identityModelProvider The provider of the model.
+     * @param messageUtils The utility used to send responses.
+     * @param systemNotifier The notifier whose system notification is removed once a response is
+     *                       acknowledged.
+     * @param worker The executor which sends queued responses.
+     */
+    public ResponseOutbox(IdentityModelProvider identityModelProvider, MessageUtils messageUtils,
+                          SystemNotifier systemNotifier, ScheduledExecutorService worker) {
+        this(identityModelProvider, messageUtils, systemNotifier, worker, new Random());
+    }
+
+    @VisibleForTesting
+    ResponseOutbox(IdentityModelProvider identityModelProvider, MessageUtils messageUtils,
+                   SystemNotifier systemNotifier, ScheduledExecutorService worker, Random random) {
+        this.identityModelProvider = identityModelProvider;
+        this.messageUtils = messageUtils;
+        this.systemNotifier = systemNotifier;
+        this.worker = worker;
+        this.random = random;
+    }
+
+    /**
+     * Queue a response whose first attempt to be sent has failed. Replaces any response already
+     * queued for the same notification.
+     * @param response The response to queue.
+     */
+    public void queue(QueuedResponse response) {
+        long nextAttempt = System.currentTimeMillis() + getBackoff(response.getAttempts() + 1);
+        if (nextAttempt >= response.getDeadline()) {
+            logger.warn("Not queueing response, as the notification expires before it could be retried.");
+            return;
+        }
+        QueuedResponse queued = response.afterFailedAttempt(nextAttempt);
+        if (identityModelProvider.getStorageSystem().queueResponse(queued)) {
+            schedule(nextAttempt);
+        }
+    }
+
+    /**
+     * Withdraw the queued response to a notification, before the user answers it again. If the
+     * response is being sent, waits until the server has replied, so that the server never
+     * receives both answers.
+     * @param mechanismUID The UID of the mechanism which received the notification.
+     * @param timeAdded The time the notification was received, in milliseconds.
+     * @return Null if no queued response has been acknowledged, so the user's answer should be
+     * sent. Otherwise true if the acknowledged response was a denial, or false if it was an approval.
+     */
+    public Boolean cancel(String mechanismUID, long timeAdded) {
+        String key = getKey(mechanismUID, timeAdded);
+        synchronized (sendLock) {
+            Boolean acknowledgedDeny = acknowledged.remove(key);
+            if (acknowledgedDeny == null) {
+                withdrawn.add(key);
+                identityModelProvider.getStorageSystem().deleteQueuedResponse(mechanismUID, timeAdded);
+            }
+            return acknowledgedDeny;
+        }
+    }
+
+    /**
+     * Send any queued responses which are due, such as those left when the process last stopped.
+     */
+    public void requestDrain() {
+        schedule(System.currentTimeMillis());
+    }
+
+    private synchronized void schedule(long time) {
+        if (scheduledDrain != null && !scheduledDrain.isDone()) {
+            if (scheduledDrainTime <= time) {
+                return;
+            }
+            scheduledDrain.cancel(false);
+        }
+        scheduledDrainTime = time;
+        scheduledDrain = worker.schedule(drain, Math.max(0, time - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the queued responses which are due, and schedules the next drain for the earliest
+     * response which is not.
+     */
+    @VisibleForTesting
+    void drain() {
+        StorageSystem storageSystem = identityModelProvider.getStorageSystem();
+        long now = System.currentTimeMillis();
+        long nextAttempt = Long.MAX_VALUE;
+
+        List<QueuedResponse> responses;
+        synchronized (sendLock) {
+            withdrawn.clear();
+            responses = storageSystem.getQueuedResponses();
+        }
+        for (QueuedResponse response : responses) {
+            if (response.getDeadline() <= now) {
+                logger.warn("Discarding queued response to message {}, as it has expired.", response.getMessageId());
+                storageSystem.deleteQueuedResponse(response.getMechanismUID(), response.getTimeAdded());
+            } else if (response.getNextAttemptTime() > now) {
+                nextAttempt = Math.min(nextAttempt, response.getNextAttemptTime());
+            } else {
+                QueuedResponse retry;
+                synchronized (sendLock) {
+                    if (withdrawn.contains(getKey(response.getMechanismUID(), response.getTimeAdded()))) {
+                        continue;
+                    }
+                    retry = send(storageSystem, response, now);
+                }
+                if (retry != null) {
+                    nextAttempt = Math.min(nextAttempt, retry.getNextAttemptTime());
+                }
+            }
+        }
+        if (nextAttempt != Long.MAX_VALUE) {
+            schedule(nextAttempt);
+        }
+    }
+
+    /**
+     * Sends a queued response.
+     * @return The response with its next attempt, if it should be retried, otherwise null.
+     */
+    private QueuedResponse send(StorageSystem storageSystem, QueuedResponse response, long now) {
+        int returnCode;
+        try {
+            returnCode = messageUtils.respond(response.getEndpoint(), response.getAmlbCookie(),
+                    response.getMessageId(), response.getSignedResponse());
+        } catch (IOException | JSONException e) {
+            logger.warn("Failed to send queued response.", e);
+            returnCode = -1;
+        }
+
+        if (returnCode == 200) {
+            storageSystem.deleteQueuedResponse(response.getMechanismUID(), response.getTimeAdded());
+            acknowledged.put(getKey(response.getMechanismUID(), response.getTimeAdded()), response.isDeny());
+            Notification notification = identityModelProvider.getNotification(response.getMechanismUID(),
+                    response.getTimeAdded());
+            if (notification != null) {
+                notification.settle(!response.isDeny());
+                systemNotifier.cancel(notification);
+            }
+            return null;
+        }
+        if (returnCode != -1 && !isRetriable(returnCode)) {
+            logger.error("Server rejected queued response to message {} with status {}.",
+                    response.getMessageId(), returnCode);
+            storageSystem.deleteQueuedResponse(response.getMechanismUID(), response.getTimeAdded());
+            return null;
+        }
+
+        long nextAttempt = now + getBackoff(response.getAttempts() + 1);
+        if (nextAttempt >= response.getDeadline()) {
+            logger.warn("Discarding queued response to message {}, as it expires before the next attempt.",
+                    response.getMessageId());
+            storageSystem.deleteQueuedResponse(response.getMechanismUID(), response.getTimeAdded());
+            return null;
+        }
+        QueuedResponse retry = response.afterFailedAttempt(nextAttempt);
+        storageSystem.queueResponse(retry);
+        return retry;
+    }
+
+    private static String getKey(String mechanismUID, long timeAdded) {
+        return mechanismUID + ":" + timeAdded;
+    }
+
+    /**
+     * Gets the delay before an attempt to send a response. The delay doubles with each attempt, up
+     * to a maximum, and half of it is random so that devices which lost their connection at the
+     * same time do not all retry together.
+     * @param attempt The number of the attempt, starting from 1 for the first retry.
+     * @return The delay in milliseconds.
+     */
+    @VisibleForTesting
+    long getBackoff(int attempt) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    /**
+     * Determines whether a failed response may succeed if it is sent again.
+     * @param statusCode The HTTP status returned by the server.
+     * @return True for server errors, timeouts and rate limiting, false otherwise.
+     */
+    public static boolean isRetriable(int statusCode) {
+        return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.forgerock.authenticator.message;
 
-import com.forgerock.authenticator.storage.IdentityModel;
 import com.google.android.gms.gcm.GcmListenerService;
 import com.google.inject.Injector;
 import com.google.inject.Key;
@@ -33,14 +32,12 @@ import roboguice.util.RoboContext;
 public class RoboGcmListenerService extends GcmListenerService implements RoboContext {
 
     protected HashMap<Key<?>,Object> scopedObjects = new HashMap<Key<?>, Object>();
-    protected IdentityModel identityModel;
 
     @Override
     public void onCreate() {
         final Injector injector = RoboGuice.getInjector(this);
         injector.injectMembers(this);
         super.onCreate();
-        identityModel = RoboGuice.getInjector(this).getInstance(IdentityModel.class);
     }
 
     @Override
@@ -0,0 +1,304 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package com.forgerock.authenticator.message;
+
+import android.app.AlarmManager;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.support.annotation.VisibleForTesting;
+
+import com.forgerock.authenticator.IdentityActivity;
+import com.forgerock.authenticator.R;
+import com.forgerock.authenticator.baseactivities.BaseNotificationActivity;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.push.PushAuthActivity;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.utils.ContextService;
+import com.forgerock.authenticator.utils.NotificationFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows Notifications in the system tray. Each Notification is shown under an ID derived from it,
+ * so that showing it again updates it in place, and the Notifications of each identity are
+ * grouped together. When several Notifications arrive together, only the most recent of each
+ * identity are shown individually, and at most one of them alerts the user, with later alerts
+ * held back until {@link #ALERT_INTERVAL_MILLIS} has passed. Notifications are removed from the
+ * tray when they expire, or when they are answered in the app, and are replaced by the result when
+ * answered from the tray. Group summaries are shown under their own tag, so that their IDs never
+ * collide with those of Notifications.
+ *
+ * The Notifications shown in each group are recorded in SharedPreferences, and expiry is scheduled
+ * with the AlarmManager, so that the tray is kept up to date after the process which showed a
+ * Notification has stopped.
+ */
+public class SystemNotifier {
+    /** The shortest time between alerts. Notifications shown sooner are shown silently. */
+    public static final long ALERT_INTERVAL_MILLIS = 5000;
+    /** The most Notifications of an identity shown individually when several arrive together. */
+    public static final int MAX_SHOWN_PER_IDENTITY = 3;
+
+    private static final String SUMMARY_TAG = "summary";
+    private static final String EXTRA_ID = "systemNotificationId";
+    private static final String PREFERENCES_NAME = "fr_auth_system_notifier";
+    // The group of each Notification currently shown, and when it expires, by ID
+    private static final String GROUP_PREFIX = "group.";
+    private static final String EXPIRY_PREFIX = "expiry.";
+    // The owner of each group, and the number of its Notifications which were not shown individually
+    private static final String ISSUER_PREFIX = "issuer.";
+    private static final String ACCOUNT_NAME_PREFIX = "accountName.";
+    private static final String COALESCED_PREFIX = "coalesced.";
+
+    private final Context context;
+    private final NotificationFactory notificationFactory;
+    private final ContextService contextService;
+    // The shown Notifications and their groups, also locked while they are read or changed
+    private final SharedPreferences state;
+    private long lastAlertTime = -ALERT_INTERVAL_MILLIS;
+
+    /**
+     * Create a notifier which shows Notifications in the system tray.
+     * @param context The context used to show system notifications.
+     */
+    public SystemNotifier(Context context) {
+        this(context, new NotificationFactory(), new ContextService());
+    }
+
+    @VisibleForTesting
+    SystemNotifier(Context context, NotificationFactory notificationFactory, ContextService contextService) {
+        this.context = context.getApplicationContext();
+        this.notificationFactory = notificationFactory;
+        this.contextService = contextService;
+        state = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Gets the ID that the Notification is shown under in the system tray.
+     * @param notification The Notification.
+     * @return The ID, which is the same each time it is requested for the Notification.
+     */
+    public static int getId(Notification notification) {
+        return notification.getOpaqueReference().hashCode();
+    }
+
+    /**
+     * Show the Notifications in the system tray, replacing any that are already shown.
+     * @param notifications The Notifications which have just arrived, oldest first.
+     */
+    public void show(List<Notification> notifications) {
+        Map<String, List<Notification>> byGroup = new LinkedHashMap<>();
+        for (Notification notification : notifications) {
+            String group = getGroup(notification.getMechanism().getOwner());
+            List<Notification> groupList = byGroup.get(group);
+            if (groupList == null) {
+                groupList = new ArrayList<>();
+                byGroup.put(group, groupList);
+            }
+            groupList.add(notification);
+        }
+        if (byGroup.isEmpty()) {
+            return;
+        }
+
+        boolean alert;
+        synchronized (state) {
+            long now = System.currentTimeMillis();
+            alert = now - lastAlertTime >= ALERT_INTERVAL_MILLIS;
+            if (alert) {
+                lastAlertTime = now;
+            }
+        }
+
+        NotificationManager notificationManager = contextService.getService(context, Context.NOTIFICATION_SERVICE);
+        for (Map.Entry<String, List<Notification>> entry : byGroup.entrySet()) {
+            String group = entry.getKey();
+            List<Notification> groupList = entry.getValue();
+            int coalesced = Math.max(0, groupList.size() - MAX_SHOWN_PER_IDENTITY);
+            Identity owner = groupList.get(0).getMechanism().getOwner();
+            synchronized (state) {
+                state.edit()
+                        .putString(ISSUER_PREFIX + group, owner.getIssuer())
+                        .putString(ACCOUNT_NAME_PREFIX + group, owner.getAccountName())
+                        .putInt(COALESCED_PREFIX + group, state.getInt(COALESCED_PREFIX + group, 0) + coalesced)
+                        .apply();
+            }
+            for (Notification notification : groupList.subList(coalesced, groupList.size())) {
+                int id = getId(notification);
+                long expiry = notification.getTimeExpired().getTimeInMillis();
+                notificationManager.notify(id, createPending(notification, id, group, alert));
+                alert = false;
+                synchronized (state) {
+                    state.edit()
+                            .putString(GROUP_PREFIX + id, group)
+                            .putLong(EXPIRY_PREFIX + id, expiry)
+                            .apply();
+                }
+                scheduleExpiry(id, expiry);
+            }
+            updateSummary(notificationManager, group);
+        }
+    }
+
+    /**
+     * Replace the Notification in the system tray with the result of answering it from the tray.
+     * The result is no longer part of its group, and is not removed when the Notification expires.
+     * @param id The ID that the Notification is shown under.
+     * @param title The title of the result.
+     * @param message The result.
+     * @param intent The intent to trigger when the result is selected, or null if none.
+     */
+    public void showResult(int id, String title, String message, Intent intent) {
+        NotificationManager notificationManager = contextService.getService(context, Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(id, notificationFactory.generateResult(context, id, title, message, intent));
+        cancelExpiry(id);
+        String group = forget(id);
+        if (group != null) {
+            updateSummary(notificationManager, group);
+        }
+    }
+
+    /**
+     * Remove the Notification from the system tray. It is removed even if it was shown by a
+     * process which has since stopped.
+     * @param notification The Notification which has been answered.
+     */
+    public void cancel(Notification notification) {
+        int id = getId(notification);
+        cancelExpiry(id);
+        cancel(id);
+    }
+
+    /**
+     * Removes the Notification whose expiry alarm has gone off from the system tray.
+     * @param intent The intent of the alarm.
+     */
+    void handleExpiry(Intent intent) {
+        if (intent.hasExtra(EXTRA_ID)) {
+            cancel(intent.getIntExtra(EXTRA_ID, 0));
+        }
+    }
+
+    private void cancel(int id) {
+        NotificationManager notificationManager = contextService.getService(context, Context.NOTIFICATION_SERVICE);
+        notificationManager.cancel(id);
+        String group = forget(id);
+        if (group != null) {
+            updateSummary(notificationManager, group);
+        }
+    }
+
+    /**
+     * Stops recording the Notification as shown in its group.
+     * @return The group, or null if the Notification was not recorded.
+     */
+    private String forget(int id) {
+        synchronized (state) {
+            String group = state.getString(GROUP_PREFIX + id, null);
+            state.edit().remove(GROUP_PREFIX + id).remove(EXPIRY_PREFIX + id).apply();
+            return group;
+        }
+    }
+
+    private void scheduleExpiry(int id, long expiry) {
+        AlarmManager alarmManager = contextService.getService(context, Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC, expiry, getExpiryIntent(id));
+    }
+
+    private void cancelExpiry(int id) {
+        AlarmManager alarmManager = contextService.getService(context, Context.ALARM_SERVICE);
+        alarmManager.cancel(getExpiryIntent(id));
+    }
+
+    private PendingIntent getExpiryIntent(int id) {
+        Intent intent = new Intent(context, NotificationExpiryReceiver.class);
+        intent.putExtra(EXTRA_ID, id);
+        return PendingIntent.getBroadcast(context, id, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private android.app.Notification createPending(Notification notification, int id, String group, boolean alert) {
+        Identity owner = notification.getMechanism().getOwner();
+        String title = String.format(context.getString(R.string.system_notification_title),
+                owner.getAccountName(), owner.getIssuer());
+        String body = context.getString(R.string.system_notification_body);
+
+        Intent intent = BaseNotificationActivity.setupIntent(context, PushAuthActivity.class, notification);
+        Intent approveIntent = PushResponseService.setupIntent(context, PushResponseService.ACTION_APPROVE,
+                notification, id, title);
+        Intent denyIntent = PushResponseService.setupIntent(context, PushResponseService.ACTION_DENY,
+                notification, id, title);
+
+        return notificationFactory.generatePending(context, id, title, body, intent, approveIntent, denyIntent,
+                group, alert);
+    }
+
+    /**
+     * Shows a summary of the group while it holds more than one Notification, which is needed for
+     * the group to be bundled on versions of Android before 7.0, and removes it otherwise.
+     * Notifications whose expiry has passed are not counted, as their alarm may have been lost
+     * when the device restarted.
+     */
+    private void updateSummary(NotificationManager notificationManager, String group) {
+        int count = 0;
+        String issuer;
+        String accountName;
+        synchronized (state) {
+            long now = System.currentTimeMillis();
+            SharedPreferences.Editor editor = state.edit();
+            for (Map.Entry<String, ?> entry : state.getAll().entrySet()) {
+                if (!entry.getKey().startsWith(GROUP_PREFIX) || !group.equals(entry.getValue())) {
+                    continue;
+                }
+                String id = entry.getKey().substring(GROUP_PREFIX.length());
+                if (state.getLong(EXPIRY_PREFIX + id, 0) < now) {
+                    editor.remove(entry.getKey()).remove(EXPIRY_PREFIX + id);
+                } else {
+                    count++;
+                }
+            }
+            issuer = state.getString(ISSUER_PREFIX + group, null);
+            accountName = state.getString(ACCOUNT_NAME_PREFIX + group, null);
+            if (count == 0) {
+                editor.remove(ISSUER_PREFIX + group)
+                        .remove(ACCOUNT_NAME_PREFIX + group)
+                        .remove(COALESCED_PREFIX + group);
+            } else {
+                count += state.getInt(COALESCED_PREFIX + group, 0);
+            }
+            editor.apply();
+        }
+        int summaryId = group.hashCode();
+        if (count < 2) {
+            notificationManager.cancel(SUMMARY_TAG, summaryId);
+            return;
+        }
+        String title = String.format(context.getString(R.string.system_notification_summary),
+                count, accountName, issuer);
+        Intent intent = new Intent(context, IdentityActivity.class);
+        notificationManager.notify(SUMMARY_TAG, summaryId, notificationFactory.generateSummary(context,
+                summaryId, title, context.getString(R.string.system_notification_body), intent, group));
+    }
+
+    private static String getGroup(Identity owner) {
+        return owner.getIssuer() + ":" + owner.getAccountName();
+    }
+}
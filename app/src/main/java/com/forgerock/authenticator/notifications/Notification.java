@@ -16,9 +16,12 @@
 
 package com.forgerock.authenticator.notifications;
 
+import android.support.annotation.VisibleForTesting;
+
 import com.forgerock.authenticator.mechanisms.InvalidNotificationException;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.model.ModelObject;
+import com.forgerock.authenticator.utils.TimeKeeper;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -39,6 +42,7 @@ public abstract class Notification extends ModelObject<Notification> {
     private boolean approved;
     private boolean pending;
     private long id = NOT_STORED;
+    private TimeKeeper timeKeeper;
 
     protected Notification(Mechanism mechanism, long id, Calendar timeAdded, Calendar timeExpired, boolean approved, boolean pending) {
         super(mechanism.getModel());
@@ -117,6 +121,14 @@ public abstract class Notification extends ModelObject<Notification> {
         }
     }
 
+    /**
+     * Records that the notification has been removed from storage by a bulk delete of its
+     * Mechanism or history. Should not be called from outside the object model.
+     */
+    public void markDeleted() {
+        id = NOT_STORED;
+    }
+
     @Override
     public boolean validate() {
         return isStored();
@@ -206,8 +218,7 @@ public abstract class Notification extends ModelObject<Notification> {
      * @return True if the notification has expired, false otherwise.
      */
     public final boolean isExpired() {
-        return timeExpired.getTimeInMillis() < Calendar.getInstance(TimeZone.getTimeZone("UTC"))
-                .getTimeInMillis();
+        return timeExpired.getTimeInMillis() < timeKeeper.getCurrentTimeMillis();
     }
 
     /**
@@ -215,10 +226,8 @@ public abstract class Notification extends ModelObject<Notification> {
      * @return True if the accept succeeded, false otherwise.
      */
     public final boolean accept() {
-        if (isPending() && performAccept()) {
-            pending = false;
-            approved = true;
-            save();
+        if (sendResponse(true)) {
+            settle(true);
             return true;
         }
         return false;
@@ -235,15 +244,46 @@ public abstract class Notification extends ModelObject<Notification> {
      * @return True if the deny succeeded, false otherwise.
      */
     public final boolean deny() {
-        if (isPending() && performDeny()) {
-            pending = false;
-            approved = false;
-            save();
+        if (sendResponse(false)) {
+            settle(false);
             return true;
         }
         return false;
     }
 
+    /**
+     * Sends the response to the authentication request, without recording the outcome. Allows the
+     * outcomes of several Notifications to be recorded together, using {@link #settle(boolean)}.
+     * @param approve True to approve the request, false to deny it.
+     * @return True if the response was acknowledged, false otherwise.
+     */
+    public final boolean sendResponse(boolean approve) {
+        return isPending() && (approve ? performAccept() : performDeny());
+    }
+
+    /**
+     * Gets the endpoint that responses to this Notification are sent to. Responses to the same
+     * endpoint can share a connection.
+     * @return The endpoint, or null if it is not known.
+     */
+    public String getResponseEndpoint() {
+        return null;
+    }
+
+    /**
+     * Records the outcome of a response which the server has acknowledged. Used directly when the
+     * response was acknowledged after {@link #accept()} or {@link #deny()} returned, such as when it
+     * was queued to be retried.
+     * @param approved True if the request was approved, false if it was denied.
+     */
+    public final void settle(boolean approved) {
+        if (isPending()) {
+            pending = false;
+            this.approved = approved;
+            save();
+        }
+    }
+
     /**
      * Implementation of the behaviour to perform upon denying the authentication request.
      * @return True if the operation successfully completed, false otherwise.
@@ -273,6 +313,7 @@ public abstract class Notification extends ModelObject<Notification> {
         protected Calendar timeExpired = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
         protected long id = NOT_STORED;
         protected boolean pending = true;
+        protected TimeKeeper timeKeeper = new TimeKeeper();
 
         protected abstract T getThis();
 
@@ -331,6 +372,17 @@ public abstract class Notification extends ModelObject<Notification> {
             return getThis();
         }
 
+        /**
+         * Used for Time Travel during testing.
+         * @param timeKeeper The TimeKeeper implementation this Notification should use.
+         * @return This builder.
+         */
+        @VisibleForTesting
+        public T setTimeKeeper(TimeKeeper timeKeeper) {
+            this.timeKeeper = timeKeeper;
+            return getThis();
+        }
+
         /**
          * Build the notification.
          * @return The final notification.
@@ -343,7 +395,9 @@ public abstract class Notification extends ModelObject<Notification> {
                 throw new InvalidNotificationException("Tried to attach notification to incorrect type of Mechanism");
             }
             this.parent = mechanism;
-            return buildImpl();
+            Notification notification = buildImpl();
+            notification.timeKeeper = timeKeeper;
+            return notification;
         }
 
         public abstract Notification buildImpl();
@@ -30,7 +30,9 @@ import com.forgerock.authenticator.storage.IdentityModel;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 
 import roboguice.RoboGuice;
@@ -44,6 +46,8 @@ public class NotificationAdapter extends BaseExpandableListAdapter {
     private List<Notification> pendingList;
     private List<Notification> historyList;
     private List<NotificationLayout> layoutList;
+    private final Set<Notification> selection;
+    private SelectionListener selectionListener;
     private String historyTitle;
     private String pendingTitle;
 
@@ -56,6 +60,7 @@ public class NotificationAdapter extends BaseExpandableListAdapter {
         pendingList = new SortedList<>();
         historyList = new SortedList<>();
         layoutList = new ArrayList<>();
+        selection = new LinkedHashSet<>();
         reloadData();
     }
 
@@ -133,7 +138,7 @@ public class NotificationAdapter extends BaseExpandableListAdapter {
 
         Notification notification = getChild(groupPosition, childPosition);
         NotificationLayout layout = ((NotificationLayout) convertView);
-        layout.bind(notification);
+        layout.bind(notification, this);
         layoutList.add(layout);
         return convertView;
     }
@@ -160,6 +165,86 @@ public class NotificationAdapter extends BaseExpandableListAdapter {
                 historyList.add(notification);
             }
         }
+        if (selection.retainAll(pendingList)) {
+            notifySelectionChanged();
+        }
+    }
+
+    /**
+     * Sets the listener which is told when the selected Notifications change.
+     * @param listener The listener, or null to remove it.
+     */
+    public void setSelectionListener(SelectionListener listener) {
+        selectionListener = listener;
+    }
+
+    /**
+     * Adds the Notification to the selection, or removes it if it is already selected. Only
+     * active Notifications can be selected.
+     * @param notification The Notification to select or deselect.
+     */
+    public void toggleSelection(Notification notification) {
+        if (!selection.remove(notification)) {
+            if (!notification.isActive()) {
+                return;
+            }
+            selection.add(notification);
+        }
+        notifySelectionChanged();
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * Determines whether the Notification is selected.
+     * @param notification The Notification to check.
+     * @return True if the Notification is selected, false otherwise.
+     */
+    public boolean isSelected(Notification notification) {
+        return selection.contains(notification);
+    }
+
+    /**
+     * Determines whether any Notifications are selected.
+     * @return True if at least one Notification is selected, false otherwise.
+     */
+    public boolean hasSelection() {
+        return !selection.isEmpty();
+    }
+
+    /**
+     * Gets the selected Notifications, in the order they were selected.
+     * @return A copy of the selected Notifications.
+     */
+    public List<Notification> getSelection() {
+        return new ArrayList<>(selection);
+    }
+
+    /**
+     * Deselects all Notifications.
+     */
+    public void clearSelection() {
+        if (!selection.isEmpty()) {
+            selection.clear();
+            notifySelectionChanged();
+            super.notifyDataSetChanged();
+        }
+    }
+
+    private void notifySelectionChanged() {
+        if (selectionListener != null) {
+            selectionListener.onSelectionChanged(selection.size());
+        }
+    }
+
+    /**
+     * Listener which is told when the selected Notifications change.
+     */
+    public interface SelectionListener {
+        /**
+         * Called when a Notification is selected or deselected.
+         * @param count The number of Notifications now selected.
+         */
+        void onSelectionChanged(int count);
     }
 
     /**
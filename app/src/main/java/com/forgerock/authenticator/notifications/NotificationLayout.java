@@ -79,21 +79,37 @@ public class NotificationLayout extends FrameLayout {
     }
 
     /**
-     * Set the Notification that this Layout displays.
+     * Set the Notification that this Layout displays. While any Notifications are selected,
+     * tapping an active Notification changes whether it is selected instead of opening it.
      * @param notification The Notification to display.
+     * @param adapter The adapter which holds the selected Notifications.
      */
-    void bind(final Notification notification) {
+    void bind(final Notification notification, final NotificationAdapter adapter) {
         this.notification = notification;
         final Context context = getContext();
 
         setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                BaseNotificationActivity.start(context, PushAuthActivity.class, notification);
+                if (adapter.hasSelection()) {
+                    adapter.toggleSelection(notification);
+                } else {
+                    BaseNotificationActivity.start(context, PushAuthActivity.class, notification);
+                }
+            }
+        });
+
+        setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                adapter.toggleSelection(notification);
+                return true;
             }
         });
 
         setClickable(notification.isActive());
+        setLongClickable(notification.isActive());
+        setSelected(adapter.isSelected(notification));
 
         refresh();
     }
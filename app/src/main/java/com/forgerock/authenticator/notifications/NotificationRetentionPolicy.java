@@ -0,0 +1,197 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.notifications;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how long the history of inactive notifications is kept for. Active notifications are
+ * never removed by a retention policy.
+ *
+ * Inactive notifications are removed once they are older than the maximum age, or once a Mechanism
+ * has more than the maximum count of newer inactive notifications. Denied notifications may
+ * indicate an attempted attack, so they are kept for a separate, normally longer, period and do
+ * not count towards the maximum count.
+ */
+public final class NotificationRetentionPolicy {
+    /** The default policy applied to notification history. */
+    public static final NotificationRetentionPolicy DEFAULT = builder().build();
+
+    private final long maxAgeMillis;
+    private final int maxCountPerMechanism;
+    private final long deniedMaxAgeMillis;
+
+    private NotificationRetentionPolicy(long maxAgeMillis, int maxCountPerMechanism, long deniedMaxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxCountPerMechanism = maxCountPerMechanism;
+        this.deniedMaxAgeMillis = deniedMaxAgeMillis;
+    }
+
+    /**
+     * Returns a builder for creating a NotificationRetentionPolicy.
+     * @return The builder.
+     */
+    public static NotificationRetentionPolicyBuilder builder() {
+        return new NotificationRetentionPolicyBuilder();
+    }
+
+    /**
+     * Gets the maximum age of inactive notifications that have not been denied.
+     * @return The maximum age in milliseconds.
+     */
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * Gets the maximum number of inactive notifications, excluding denied notifications, which are
+     * kept for each Mechanism.
+     * @return The maximum count.
+     */
+    public int getMaxCountPerMechanism() {
+        return maxCountPerMechanism;
+    }
+
+    /**
+     * Gets the maximum age of denied notifications.
+     * @return The maximum age in milliseconds.
+     */
+    public long getDeniedMaxAgeMillis() {
+        return deniedMaxAgeMillis;
+    }
+
+    /**
+     * Selects the notifications which should be removed under this policy. Must give the same result
+     * as the bulk delete performed by the storage system for the same time.
+     * @param notifications The notifications of a single Mechanism, ordered newest first.
+     * @param now The current time in milliseconds.
+     * @return The notifications to remove.
+     */
+    public List<Notification> selectForRemoval(List<Notification> notifications, long now) {
+        Selector selector = newSelector(now);
+        List<Notification> result = new ArrayList<>();
+
+        for (Notification notification : notifications) {
+            if (selector.remove(notification.isPending(), notification.wasApproved(),
+                    notification.getTimeAdded().getTimeInMillis(),
+                    notification.getTimeExpired().getTimeInMillis())) {
+                result.add(notification);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a selector for applying this policy to the notifications of a single Mechanism.
+     * @param now The current time in milliseconds.
+     * @return The selector.
+     */
+    public Selector newSelector(long now) {
+        return new Selector(now);
+    }
+
+    /**
+     * Applies the policy to the notifications of a single Mechanism, one at a time. Notifications
+     * must be passed in newest first, as the maximum count depends on the notifications before.
+     */
+    public final class Selector {
+        private final long now;
+        private final long ageCutoff;
+        private final long deniedCutoff;
+        private int retainedCount;
+
+        private Selector(long now) {
+            this.now = now;
+            ageCutoff = now - maxAgeMillis;
+            deniedCutoff = now - deniedMaxAgeMillis;
+        }
+
+        /**
+         * Determines whether the next notification should be removed.
+         * @param pending Whether the notification is still pending.
+         * @param approved Whether the notification was approved.
+         * @param timeAdded The time the notification was received, in milliseconds.
+         * @param timeExpired The time the notification expires, in milliseconds.
+         * @return True if the notification should be removed, false otherwise.
+         */
+        public boolean remove(boolean pending, boolean approved, long timeAdded, long timeExpired) {
+            boolean inactive = !pending || timeExpired < now;
+            if (!inactive) {
+                return false;
+            }
+            if (!pending && !approved) {
+                return timeAdded < deniedCutoff;
+            }
+            retainedCount++;
+            return timeAdded < ageCutoff || retainedCount > maxCountPerMechanism;
+        }
+    }
+
+    /**
+     * Builder class responsible for producing NotificationRetentionPolicies.
+     */
+    public static class NotificationRetentionPolicyBuilder {
+        private long maxAgeMillis = TimeUnit.DAYS.toMillis(30);
+        private int maxCountPerMechanism = 100;
+        private long deniedMaxAgeMillis = TimeUnit.DAYS.toMillis(90);
+
+        /**
+         * Sets the maximum age of inactive notifications that have not been denied.
+         * @param maxAgeMillis The maximum age in milliseconds.
+         * @return This builder.
+         */
+        public NotificationRetentionPolicyBuilder setMaxAge(long maxAgeMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of inactive notifications, excluding denied notifications, kept
+         * for each Mechanism.
+         * @param maxCountPerMechanism The maximum count.
+         * @return This builder.
+         */
+        public NotificationRetentionPolicyBuilder setMaxCountPerMechanism(int maxCountPerMechanism) {
+            this.maxCountPerMechanism = maxCountPerMechanism;
+            return this;
+        }
+
+        /**
+         * Sets the maximum age of denied notifications.
+         * @param deniedMaxAgeMillis The maximum age in milliseconds.
+         * @return This builder.
+         */
+        public NotificationRetentionPolicyBuilder setDeniedMaxAge(long deniedMaxAgeMillis) {
+            this.deniedMaxAgeMillis = deniedMaxAgeMillis;
+            return this;
+        }
+
+        /**
+         * Produces the described policy.
+         * @return The policy.
+         */
+        public NotificationRetentionPolicy build() {
+            if (maxAgeMillis < 0 || deniedMaxAgeMillis < 0 || maxCountPerMechanism < 0) {
+                throw new IllegalArgumentException("Retention limits must not be negative");
+            }
+            return new NotificationRetentionPolicy(maxAgeMillis, maxCountPerMechanism, deniedMaxAgeMillis);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.notifications;
+
+/**
+ * Immutable counts of the outcomes of the notifications received by a Mechanism. Used to retain a
+ * summary of notifications which have been removed from history by a retention policy.
+ */
+public final class NotificationStatistics {
+    /** Statistics with no recorded notifications. */
+    public static final NotificationStatistics EMPTY = new NotificationStatistics(0, 0, 0);
+
+    private final long approvedCount;
+    private final long deniedCount;
+    private final long expiredCount;
+
+    /**
+     * Creates a set of statistics.
+     * @param approvedCount The number of notifications which were approved.
+     * @param deniedCount The number of notifications which were denied.
+     * @param expiredCount The number of notifications which expired without being answered.
+     */
+    public NotificationStatistics(long approvedCount, long deniedCount, long expiredCount) {
+        this.approvedCount = approvedCount;
+        this.deniedCount = deniedCount;
+        this.expiredCount = expiredCount;
+    }
+
+    /**
+     * Gets the number of notifications which were approved.
+     * @return The approved count.
+     */
+    public long getApprovedCount() {
+        return approvedCount;
+    }
+
+    /**
+     * Gets the number of notifications which were denied.
+     * @return The denied count.
+     */
+    public long getDeniedCount() {
+        return deniedCount;
+    }
+
+    /**
+     * Gets the number of notifications which expired without being answered.
+     * @return The expired count.
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Gets the total number of notifications counted.
+     * @return The total count.
+     */
+    public long getTotalCount() {
+        return approvedCount + deniedCount + expiredCount;
+    }
+
+    /**
+     * Combines these statistics with another set.
+     * @param other The statistics to add.
+     * @return The combined statistics.
+     */
+    public NotificationStatistics add(NotificationStatistics other) {
+        return new NotificationStatistics(approvedCount + other.approvedCount,
+                deniedCount + other.deniedCount, expiredCount + other.expiredCount);
+    }
+
+    /**
+     * Produces statistics which include the outcome of the provided, inactive, notification.
+     * Active notifications are not counted.
+     * @param notification The notification to count.
+     * @return The combined statistics.
+     */
+    public NotificationStatistics add(Notification notification) {
+        if (notification.isPending()) {
+            if (!notification.isExpired()) {
+                return this;
+            }
+            return new NotificationStatistics(approvedCount, deniedCount, expiredCount + 1);
+        }
+        if (notification.wasApproved()) {
+            return new NotificationStatistics(approvedCount + 1, deniedCount, expiredCount);
+        }
+        return new NotificationStatistics(approvedCount, deniedCount + 1, expiredCount);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof NotificationStatistics)) {
+            return false;
+        }
+        NotificationStatistics otherStatistics = (NotificationStatistics) other;
+        return approvedCount == otherStatistics.approvedCount
+                && deniedCount == otherStatistics.deniedCount
+                && expiredCount == otherStatistics.expiredCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (31 * (31 * approvedCount + deniedCount) + expiredCount);
+    }
+}
@@ -18,24 +18,19 @@ package com.forgerock.authenticator.notifications;
 
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
+import com.forgerock.authenticator.message.ResponseOutbox;
 import com.forgerock.authenticator.utils.MessageUtils;
 
-import org.forgerock.util.encode.Base64;
 import org.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-
 import roboguice.RoboGuice;
 
 /**
@@ -53,6 +48,9 @@ public class PushNotification extends Notification {
     private MessageUtils messageUtils;
     private String messageId;
     private String base64Challenge;
+    private String preparedAccept;
+    private String preparedDeny;
+    private volatile boolean responseQueued;
 
     private PushNotification(Mechanism mechanism, long id, String amlbCookie, Calendar timeAdded, Calendar timeExpired, boolean accepted, boolean active, String messageId, String base64Challenge) {
         super(mechanism, id, timeAdded, timeExpired, accepted, active);
@@ -69,6 +67,10 @@ public class PushNotification extends Notification {
         return messageUtils;
     }
 
+    private ResponseOutbox getResponseOutbox() {
+        return getMechanism().getModel().getInjector().getInstance(ResponseOutbox.class);
+    }
+
     @Override
     public Map<String, String> getData() {
         Map<String, String> data = new HashMap<>();
@@ -78,53 +80,175 @@ public class PushNotification extends Notification {
         return data;
     }
 
-    @Override
-    protected boolean performAccept() {
-        int returnCode = 404;
+    /**
+     * Compute and sign the accept and deny responses in advance, so that the user's choice can be
+     * sent without further work. The responses are discarded once the notification expires.
+     */
+    public synchronized void prepareResponses() {
+        if (!isActive()) {
+            return;
+        }
+        PushCredentials credentials = ((Push) getMechanism()).getCredentials();
+        if (credentials == null) {
+            return;
+        }
         try {
-            Push push = (Push) getMechanism();
-            Map<String, Object> data = new HashMap<>();
-            data.put(RESPONSE_KEY, generateChallengeResponse(push.getSecret(), base64Challenge));
-            returnCode = getMessageUtils().respond(push.getEndpoint(), amlbCookie, push.getSecret(), messageId, data);
-        } catch (IOException | JSONException e) {
-            logger.error("Response to server failed.", e);
+            preparedAccept = getMessageUtils().signResponse(credentials, getResponseData(credentials, false));
+            preparedDeny = getMessageUtils().signResponse(credentials, getResponseData(credentials, true));
+        } catch (IOException e) {
+            logger.warn("Failed to prepare responses.", e);
+            discardPreparedResponses();
+        }
+    }
+
+    /**
+     * Open a connection to the endpoint of the Push mechanism, so that the response to this
+     * notification does not wait for the connection to be set up. The connection is closed when
+     * the notification expires, if no longer needed.
+     */
+    public void warmUpConnection() {
+        if (isActive()) {
+            getMessageUtils().warmUp(((Push) getMechanism()).getEndpoint(), amlbCookie,
+                    getTimeExpired().getTimeInMillis());
+        }
+    }
+
+    /**
+     * Take the prepared responses of an equivalent notification, such as one loaded before the
+     * full model was loaded.
+     * @param other The notification whose prepared responses should be used.
+     */
+    public void usePreparedResponses(PushNotification other) {
+        String accept;
+        String deny;
+        synchronized (other) {
+            accept = other.preparedAccept;
+            deny = other.preparedDeny;
+        }
+        synchronized (this) {
+            preparedAccept = accept;
+            preparedDeny = deny;
+        }
+    }
+
+    private synchronized String getPreparedResponse(boolean deny) {
+        if (isExpired()) {
+            discardPreparedResponses();
+            return null;
+        }
+        return deny ? preparedDeny : preparedAccept;
+    }
+
+    private synchronized void discardPreparedResponses() {
+        preparedAccept = null;
+        preparedDeny = null;
+    }
+
+    private Map<String, Object> getResponseData(PushCredentials credentials, boolean deny) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(RESPONSE_KEY, credentials.generateChallengeResponse(base64Challenge));
+        if (deny) {
+            data.put(DENY_KEY, true);
         }
+        return data;
+    }
+
+    @Override
+    public String getResponseEndpoint() {
+        return ((Push) getMechanism()).getEndpoint();
+    }
 
-        return returnCode == 200;
+    @Override
+    protected boolean performAccept() {
+        return respond(false);
     }
 
     @Override
     protected boolean performDeny() {
+        return respond(true);
+    }
+
+    private boolean respond(boolean deny) {
         int returnCode = 404;
+        boolean retriable = false;
+        Push push = (Push) getMechanism();
+
+        // Withdraw any earlier answer left in the outbox, including by a previous process
+        Boolean queuedDeny = getResponseOutbox().cancel(push.getMechanismUID(), getTimeAdded().getTimeInMillis());
+        responseQueued = false;
+        if (queuedDeny != null) {
+            // The earlier answer reached the server first, so this one must not be sent
+            discardPreparedResponses();
+            settle(!queuedDeny);
+            return queuedDeny == deny;
+        }
+
+        String preparedResponse = getPreparedResponse(deny);
+        PushCredentials credentials = null;
         try {
-            Push push = (Push) getMechanism();
-            Map<String, Object> data = new HashMap<>();
-            data.put(RESPONSE_KEY, generateChallengeResponse(push.getSecret(), base64Challenge));
-            data.put(DENY_KEY, true);
-            returnCode = getMessageUtils().respond(push.getEndpoint(), amlbCookie, push.getSecret(), messageId, data);
-        } catch (IOException | JSONException e) {
+            if (preparedResponse != null) {
+                returnCode = getMessageUtils().respond(push.getEndpoint(), amlbCookie, messageId, preparedResponse);
+            } else {
+                credentials = push.getCredentials();
+                if (credentials == null) {
+                    logger.error("Secret for mechanism could not be read.");
+                    return false;
+                }
+                returnCode = getMessageUtils().respond(push.getEndpoint(), amlbCookie, credentials, messageId,
+                        getResponseData(credentials, deny));
+            }
+            retriable = ResponseOutbox.isRetriable(returnCode);
+        } catch (IOException e) {
+            logger.error("Response to server failed.", e);
+            retriable = true;
+        } catch (JSONException e) {
             logger.error("Response to server failed.", e);
         }
 
-        return returnCode == 200;
+        if (returnCode == 200) {
+            discardPreparedResponses();
+            return true;
+        }
+        if (retriable && isActive()) {
+            queueResponse(push, deny, preparedResponse, credentials);
+        }
+        return false;
     }
 
-    public static String generateChallengeResponse(String base64Secret, String base64Challenge) {
-        byte[] secret = Base64.decode(base64Secret);
-        byte[] challenge;
-
-        challenge = Base64.decode(base64Challenge);
-
-        Mac hmac = null;
-        SecretKey key = new SecretKeySpec(secret, 0, secret.length, "HmacSHA256");
+    /**
+     * Places a response which could not be sent in the outbox, so that it is retried in the
+     * background until the server acknowledges it or the notification expires.
+     */
+    private void queueResponse(Push push, boolean deny, String signedResponse, PushCredentials credentials) {
         try {
-            hmac = Mac.getInstance("HmacSHA256");
-            hmac.init(key);
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            logger.error("Failed to generate challenge-response", e);
+            if (signedResponse == null) {
+                signedResponse = getMessageUtils().signResponse(credentials, getResponseData(credentials, deny));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to sign response for the outbox.", e);
+            return;
         }
-        byte[] output = hmac.doFinal(challenge);
-        return Base64.encode(output);
+        if (signedResponse == null) {
+            return;
+        }
+        getResponseOutbox().queue(QueuedResponse.builder()
+                .setNotification(push.getMechanismUID(), getTimeAdded().getTimeInMillis())
+                .setEndpoint(push.getEndpoint())
+                .setAmlbCookie(amlbCookie)
+                .setMessageId(messageId)
+                .setSignedResponse(signedResponse, deny)
+                .setDeadline(getTimeExpired().getTimeInMillis())
+                .build());
+        responseQueued = true;
+    }
+
+    /**
+     * Whether a response which could not be sent has been queued, to be retried in the background.
+     * The notification remains pending until the server acknowledges the response.
+     * @return True if a response is queued, false otherwise.
+     */
+    public boolean isResponseQueued() {
+        return responseQueued;
     }
 
     /**
@@ -0,0 +1,262 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.notifications;
+
+/**
+ * A signed response to a PushNotification which could not be delivered when the user answered it,
+ * and is held in storage to be retried. A queued response is identified by the Notification it
+ * answers, so there is at most one for each Notification.
+ */
+public final class QueuedResponse {
+    private final String mechanismUID;
+    private final long timeAdded;
+    private final String endpoint;
+    private final String amlbCookie;
+    private final String messageId;
+    private final String signedResponse;
+    private final boolean deny;
+    private final int attempts;
+    private final long nextAttemptTime;
+    private final long deadline;
+
+    private QueuedResponse(String mechanismUID, long timeAdded, String endpoint, String amlbCookie,
+                           String messageId, String signedResponse, boolean deny, int attempts,
+                           long nextAttemptTime, long deadline) {
+        this.mechanismUID = mechanismUID;
+        this.timeAdded = timeAdded;
+        this.endpoint = endpoint;
+        this.amlbCookie = amlbCookie;
+        this.messageId = messageId;
+        this.signedResponse = signedResponse;
+        this.deny = deny;
+        this.attempts = attempts;
+        this.nextAttemptTime = nextAttemptTime;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns a builder for creating a QueuedResponse.
+     * @return The builder.
+     */
+    public static QueuedResponseBuilder builder() {
+        return new QueuedResponseBuilder();
+    }
+
+    /**
+     * Gets the UID of the Mechanism which received the Notification.
+     * @return The Mechanism UID.
+     */
+    public String getMechanismUID() {
+        return mechanismUID;
+    }
+
+    /**
+     * Gets the time the Notification was received, which identifies it within its Mechanism.
+     * @return The time in milliseconds.
+     */
+    public long getTimeAdded() {
+        return timeAdded;
+    }
+
+    /**
+     * Gets the endpoint the response is sent to.
+     * @return The endpoint.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Gets the load balancer cookie sent with the response.
+     * @return The cookie, or null if there is none.
+     */
+    public String getAmlbCookie() {
+        return amlbCookie;
+    }
+
+    /**
+     * Gets the ID of the message the response answers.
+     * @return The message ID.
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Gets the signed JWT which forms the body of the response.
+     * @return The signed response.
+     */
+    public String getSignedResponse() {
+        return signedResponse;
+    }
+
+    /**
+     * Whether the response denies the request, rather than approving it.
+     * @return True if the response is a denial, false otherwise.
+     */
+    public boolean isDeny() {
+        return deny;
+    }
+
+    /**
+     * Gets the number of attempts to send the response which have failed.
+     * @return The number of failed attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Gets the earliest time the response should next be sent.
+     * @return The time in milliseconds.
+     */
+    public long getNextAttemptTime() {
+        return nextAttemptTime;
+    }
+
+    /**
+     * Gets the time after which the response is no longer accepted by the server, and so should
+     * be discarded.
+     * @return The time in milliseconds.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns a copy of this response recording one more failed attempt.
+     * @param nextAttemptTime The earliest time the response should next be sent, in milliseconds.
+     * @return The updated response.
+     */
+    public QueuedResponse afterFailedAttempt(long nextAttemptTime) {
+        return new QueuedResponse(mechanismUID, timeAdded, endpoint, amlbCookie, messageId, signedResponse,
+                deny, attempts + 1, nextAttemptTime, deadline);
+    }
+
+    /**
+     * Builder class responsible for producing QueuedResponses.
+     */
+    public static class QueuedResponseBuilder {
+        private String mechanismUID;
+        private long timeAdded;
+        private String endpoint;
+        private String amlbCookie;
+        private String messageId;
+        private String signedResponse;
+        private boolean deny;
+        private int attempts;
+        private long nextAttemptTime;
+        private long deadline;
+
+        /**
+         * Sets the Notification which the response answers.
+         * @param mechanismUID The UID of the Mechanism which received the Notification.
+         * @param timeAdded The time the Notification was received, in milliseconds.
+         * @return This builder.
+         */
+        public QueuedResponseBuilder setNotification(String mechanismUID, long timeAdded) {
+            this.mechanismUID = mechanismUID;
+            this.timeAdded = timeAdded;
+            return this;
+        }
+
+        /**
+         * Sets the endpoint the response is sent to.
+         * @param endpoint The endpoint.
+         * @return This builder.
+         */
+        public QueuedResponseBuilder setEndpoint(String endpoint) {
+            this.endpoint = endpoint;
+            return this;
+        }
+
+        /**
+         * Sets the load balancer cookie sent with the response.
+         * @param amlbCookie The cookie, or null if there is none.
+         * @return This builder.
+         */
+        public QueuedResponseBuilder setAmlbCookie(String amlbCookie) {
+            this.amlbCookie = amlbCookie;
+            return this;
+        }
+
+        /**
+         * Sets the ID of the message the response answers.
+         * @param messageId The message ID.
+         * @return This builder.
+         */
+        public QueuedResponseBuilder setMessageId(String messageId) {
+            this.messageId = messageId;
+            return this;
+        }
+
+        /**
+         * Sets the signed JWT which forms the body of the response.
+         * @param signedResponse The signed response.
+         * @param deny True if the response is a denial, false if it is an approval.
+         * @return This builder.
+         */
+        public QueuedResponseBuilder setSignedResponse(String signedResponse, boolean deny) {
+            this.signedResponse = signedResponse;
+            this.deny = deny;
+            return this;
+        }
+
+        /**
+         * Sets the number of attempts to send the response which have failed.
+         * @param attempts The number of failed attempts.
+         * @return This builder.
+         */
+        public QueuedResponseBuilder setAttempts(int attempts) {
+            this.attempts = attempts;
+            return this;
+        }
+
+        /**
+         * Sets the earliest time the response should next be sent.
+         * @param nextAttemptTime The time in milliseconds.
+         * @return This builder.
+         */
+        public QueuedResponseBuilder setNextAttemptTime(long nextAttemptTime) {
+            this.nextAttemptTime = nextAttemptTime;
+            return this;
+        }
+
+        /**
+         * Sets the time after which the response is discarded.
+         * @param deadline The time in milliseconds.
+         * @return This builder.
+         */
+        public QueuedResponseBuilder setDeadline(long deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * Produces the described response.
+         * @return The response.
+         */
+        public QueuedResponse build() {
+            if (mechanismUID == null || signedResponse == null) {
+                throw new IllegalArgumentException("A queued response needs a Notification and a signed response");
+            }
+            return new QueuedResponse(mechanismUID, timeAdded, endpoint, amlbCookie, messageId, signedResponse,
+                    deny, attempts, nextAttemptTime, deadline);
+        }
+    }
+}
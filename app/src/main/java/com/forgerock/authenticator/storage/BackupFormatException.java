@@ -0,0 +1,43 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import java.io.IOException;
+
+/**
+ * Represents a backup which could not be read, either because it is not a backup, was written by
+ * another version or with a different backup key, or has been damaged.
+ */
+public class BackupFormatException extends IOException {
+    /**
+     * Create a new exception containing a message.
+     * @param detailMessage The message cause of the exception.
+     */
+    public BackupFormatException(String detailMessage) {
+        super(detailMessage);
+    }
+
+    /**
+     * Create a new exception containing a message.
+     * @param detailMessage The message cause of the exception.
+     * @param throwable The throwable cause of the exception.
+     */
+    public BackupFormatException(String detailMessage, Throwable throwable) {
+        super(detailMessage, throwable);
+    }
+}
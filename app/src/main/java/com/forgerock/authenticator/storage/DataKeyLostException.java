@@ -0,0 +1,34 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Thrown when the data key that stored secrets were encrypted with can no longer be recovered.
+ * A new data key is not created in its place, so that the problem is not hidden.
+ */
+public class DataKeyLostException extends GeneralSecurityException {
+    /**
+     * Create the exception with a message.
+     * @param detailMessage The reason the data key was lost.
+     */
+    public DataKeyLostException(String detailMessage) {
+        super(detailMessage);
+    }
+}
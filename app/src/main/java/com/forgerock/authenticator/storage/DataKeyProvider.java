@@ -0,0 +1,38 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Provides the data key used to encrypt secrets held in storage.
+ */
+public interface DataKeyProvider {
+    /**
+     * Gets the data key, creating it if it does not yet exist and creation is allowed. May be slow,
+     * so is only called once per process.
+     * @param create True if a data key may be created, false if secrets encrypted with an existing
+     *               data key are already stored.
+     * @return The AES data key.
+     * @throws DataKeyLostException If a data key was created before, but can no longer be recovered.
+     * @throws GeneralSecurityException If the data key is not available on this device.
+     */
+    SecretKey getDataKey(boolean create) throws GeneralSecurityException;
+}
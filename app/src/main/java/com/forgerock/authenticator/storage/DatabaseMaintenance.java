@@ -0,0 +1,126 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the database compact and its query plans current, as history rows are constantly inserted
+ * and deleted. Should only be run while the device is idle, as it may rewrite the whole database.
+ */
+class DatabaseMaintenance {
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private static final String JOURNAL_MODE_WAL = "wal";
+
+    private final SQLiteDatabase database;
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseMaintenance.class);
+
+    /**
+     * Creates maintenance for the provided database.
+     * @param database The database to maintain.
+     */
+    DatabaseMaintenance(SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Checks the integrity of the database, updates the statistics used by the query planner,
+     * returns unused pages to the file system and checkpoints the write ahead log. Must not be
+     * called while a transaction is in progress on this thread.
+     * @return The figures recorded by the run.
+     */
+    MaintenanceReport run() {
+        long start = SystemClock.elapsedRealtime();
+        long pageSize = pragma("page_size");
+        long pageCountBefore = pragma("page_count");
+        long freelistCountBefore = pragma("freelist_count");
+
+        boolean integrityOk = checkIntegrity();
+        if (integrityOk) {
+            database.execSQL("ANALYZE;");
+            vacuum(freelistCountBefore);
+            checkpoint();
+        }
+
+        MaintenanceReport report = new MaintenanceReport(System.currentTimeMillis(),
+                SystemClock.elapsedRealtime() - start, pageSize, pageCountBefore, pragma("page_count"),
+                freelistCountBefore, pragma("freelist_count"), integrityOk);
+        logger.info("Completed database maintenance: {}", report);
+        return report;
+    }
+
+    private boolean checkIntegrity() {
+        Cursor cursor = database.rawQuery("PRAGMA integrity_check;", null);
+        try {
+            if (cursor.moveToFirst() && "ok".equalsIgnoreCase(cursor.getString(0))) {
+                return true;
+            }
+            do {
+                logger.error("Database integrity check failed: {}", cursor.getString(0));
+            } while (cursor.moveToNext());
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Databases created before maintenance was introduced do not track free pages, so are rebuilt
+     * once with incremental vacuuming enabled. Later runs only release the free pages.
+     */
+    private void vacuum(long freelistCount) {
+        if (pragma("auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+            database.execSQL("VACUUM;");
+        } else if (freelistCount > 0) {
+            consume("PRAGMA incremental_vacuum(" + freelistCount + ");");
+        }
+    }
+
+    private void checkpoint() {
+        String journalMode = DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode;", null);
+        if (JOURNAL_MODE_WAL.equalsIgnoreCase(journalMode)) {
+            consume("PRAGMA wal_checkpoint(FULL);");
+        }
+    }
+
+    private long pragma(String name) {
+        return DatabaseUtils.longForQuery(database, "PRAGMA " + name + ";", null);
+    }
+
+    /**
+     * Some pragmas do their work as their results are stepped through, so must be run as queries.
+     */
+    private void consume(String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                // Step through all rows
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
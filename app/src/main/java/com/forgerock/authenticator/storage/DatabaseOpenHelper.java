@@ -17,6 +17,7 @@
 package com.forgerock.authenticator.storage;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
@@ -27,8 +28,13 @@ import android.database.sqlite.SQLiteOpenHelper;
  */
 class DatabaseOpenHelper extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 6;
     private static final String DATABASE_NAME = "FR_AUTH";
+    private static final String REBUILD_SUFFIX = "_rebuild";
+
+    private static DatabaseOpenHelper instance;
+
+    private final Context context;
 
     /**
      * Creates the help for access to the database.
@@ -36,6 +42,21 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
      */
     public DatabaseOpenHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    /**
+     * Gets the helper shared by the application, so that every IdentityDatabase uses the same
+     * connection and none is left open when one is discarded.
+     * @param context The context the database is to be opened from.
+     * @return The shared helper.
+     */
+    public static synchronized DatabaseOpenHelper getInstance(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        if (instance == null || instance.context != applicationContext) {
+            instance = new DatabaseOpenHelper(applicationContext);
+        }
+        return instance;
     }
 
     @Override
@@ -47,19 +68,36 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
                 IdentityDatabase.BG_COLOR + " TEXT, " +
                 "PRIMARY KEY(" + IdentityDatabase.ISSUER + ", " + IdentityDatabase.ACCOUNT_NAME + "));");
 
-        db.execSQL("CREATE TABLE " + IdentityDatabase.MECHANISM_TABLE_NAME + " (" +
+        createMechanismTable(db, IdentityDatabase.MECHANISM_TABLE_NAME);
+        createNotificationTable(db, IdentityDatabase.NOTIFICATION_TABLE_NAME);
+        createNotificationSummaryTable(db, IdentityDatabase.NOTIFICATION_SUMMARY_TABLE_NAME);
+        createOutboxTable(db);
+    }
+
+    private void createMechanismTable(SQLiteDatabase db, String tableName) {
+        db.execSQL("CREATE TABLE " + tableName + " (" +
                 IdentityDatabase.ID_ISSUER + " TEXT, " +
                 IdentityDatabase.ID_ACCOUNT_NAME + " TEXT, " +
                 IdentityDatabase.MECHANISM_UID + " TEXT UNIQUE, " +
                 IdentityDatabase.TYPE + " TEXT, " +
                 IdentityDatabase.VERSION + " INTEGER, " +
                 IdentityDatabase.OPTIONS + " TEXT, " +
+                IdentityDatabase.TOKEN_TYPE + " TEXT, " +
+                IdentityDatabase.ALGORITHM + " TEXT, " +
+                IdentityDatabase.DIGITS + " INTEGER, " +
+                IdentityDatabase.PERIOD + " INTEGER, " +
+                IdentityDatabase.COUNTER + " INTEGER, " +
+                IdentityDatabase.SECRET + " BLOB, " +
+                IdentityDatabase.ENCRYPTED_SECRET + " BLOB, " +
+                IdentityDatabase.ENDPOINT + " TEXT, " +
                 "PRIMARY KEY(" + IdentityDatabase.ID_ISSUER + ", " + IdentityDatabase.ID_ACCOUNT_NAME + ", " + IdentityDatabase.TYPE + "), " +
                 "FOREIGN KEY(" + IdentityDatabase.ID_ISSUER + ", " + IdentityDatabase.ID_ACCOUNT_NAME + ") " +
                 "REFERENCES " + IdentityDatabase.IDENTITY_TABLE_NAME
-                + "(" + IdentityDatabase.ISSUER + ", " + IdentityDatabase.ACCOUNT_NAME + "));");
+                + "(" + IdentityDatabase.ISSUER + ", " + IdentityDatabase.ACCOUNT_NAME + ") ON DELETE CASCADE);");
+    }
 
-        db.execSQL("CREATE TABLE " + IdentityDatabase.NOTIFICATION_TABLE_NAME + " (" +
+    private void createNotificationTable(SQLiteDatabase db, String tableName) {
+        db.execSQL("CREATE TABLE " + tableName + " (" +
                 IdentityDatabase.MECHANISM_UID + " TEXT, " +
                 IdentityDatabase.TIME_RECEIVED + " TEXT, " +
                 IdentityDatabase.TIME_EXPIRED + " TEXT, " +
@@ -69,12 +107,96 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
                 "PRIMARY KEY(" + IdentityDatabase.MECHANISM_UID + ", " + IdentityDatabase.TIME_RECEIVED + "), " +
                 "FOREIGN KEY(" + IdentityDatabase.MECHANISM_UID + ") " +
                 "REFERENCES " + IdentityDatabase.MECHANISM_TABLE_NAME
-                + "(" + IdentityDatabase.MECHANISM_UID + "));");
+                + "(" + IdentityDatabase.MECHANISM_UID + ") ON DELETE CASCADE);");
+    }
+
+    private void createNotificationSummaryTable(SQLiteDatabase db, String tableName) {
+        db.execSQL("CREATE TABLE " + tableName + " (" +
+                IdentityDatabase.MECHANISM_UID + " TEXT PRIMARY KEY, " +
+                IdentityDatabase.APPROVED_COUNT + " INTEGER, " +
+                IdentityDatabase.DENIED_COUNT + " INTEGER, " +
+                IdentityDatabase.EXPIRED_COUNT + " INTEGER, " +
+                "FOREIGN KEY(" + IdentityDatabase.MECHANISM_UID + ") " +
+                "REFERENCES " + IdentityDatabase.MECHANISM_TABLE_NAME
+                + "(" + IdentityDatabase.MECHANISM_UID + ") ON DELETE CASCADE);");
+    }
+
+    private void createOutboxTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + IdentityDatabase.OUTBOX_TABLE_NAME + " (" +
+                IdentityDatabase.MECHANISM_UID + " TEXT, " +
+                IdentityDatabase.TIME_RECEIVED + " INTEGER, " +
+                IdentityDatabase.ENDPOINT + " TEXT, " +
+                IdentityDatabase.AMLB_COOKIE + " TEXT, " +
+                IdentityDatabase.MESSAGE_ID + " TEXT, " +
+                IdentityDatabase.SIGNED_RESPONSE + " TEXT, " +
+                IdentityDatabase.DENY + " INT, " +
+                IdentityDatabase.ATTEMPTS + " INTEGER, " +
+                IdentityDatabase.NEXT_ATTEMPT + " INTEGER, " +
+                IdentityDatabase.DEADLINE + " INTEGER, " +
+                "PRIMARY KEY(" + IdentityDatabase.MECHANISM_UID + ", " + IdentityDatabase.TIME_RECEIVED + "), " +
+                "FOREIGN KEY(" + IdentityDatabase.MECHANISM_UID + ") " +
+                "REFERENCES " + IdentityDatabase.MECHANISM_TABLE_NAME
+                + "(" + IdentityDatabase.MECHANISM_UID + ") ON DELETE CASCADE);");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // SHOULD never be necessary
+        if (oldVersion < 2) {
+            // Existing rows keep their options, and are rewritten to the typed columns when next loaded
+            addColumn(db, IdentityDatabase.TOKEN_TYPE, "TEXT");
+            addColumn(db, IdentityDatabase.ALGORITHM, "TEXT");
+            addColumn(db, IdentityDatabase.DIGITS, "INTEGER");
+            addColumn(db, IdentityDatabase.PERIOD, "INTEGER");
+            addColumn(db, IdentityDatabase.COUNTER, "INTEGER");
+            addColumn(db, IdentityDatabase.SECRET, "BLOB");
+            addColumn(db, IdentityDatabase.ENDPOINT, "TEXT");
+        }
+        if (oldVersion < 3) {
+            createNotificationSummaryTable(db, IdentityDatabase.NOTIFICATION_SUMMARY_TABLE_NAME);
+        }
+        if (oldVersion < 4) {
+            // SQLite cannot add constraints to existing tables, so the tables which reference
+            // others are rebuilt with cascading deletes. Foreign keys are not enforced until the
+            // database is opened, so the tables can be replaced in any order.
+            createMechanismTable(db, IdentityDatabase.MECHANISM_TABLE_NAME + REBUILD_SUFFIX);
+            createNotificationTable(db, IdentityDatabase.NOTIFICATION_TABLE_NAME + REBUILD_SUFFIX);
+            createNotificationSummaryTable(db, IdentityDatabase.NOTIFICATION_SUMMARY_TABLE_NAME + REBUILD_SUFFIX);
+            replaceTable(db, IdentityDatabase.MECHANISM_TABLE_NAME);
+            replaceTable(db, IdentityDatabase.NOTIFICATION_TABLE_NAME);
+            replaceTable(db, IdentityDatabase.NOTIFICATION_SUMMARY_TABLE_NAME);
+        } else if (oldVersion < 5) {
+            // Rebuilt tables already have the column
+            addColumn(db, IdentityDatabase.ENCRYPTED_SECRET, "BLOB");
+        }
+        if (oldVersion < 6) {
+            createOutboxTable(db);
+        }
+    }
+
+    /**
+     * Copies a table into its rebuilt replacement, keeping the row ids, and then swaps them. Columns
+     * which only exist in the replacement are left empty.
+     */
+    private void replaceTable(SQLiteDatabase db, String tableName) {
+        String rebuiltName = tableName + REBUILD_SUFFIX;
+        StringBuilder columns = new StringBuilder("rowid");
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ");", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                columns.append(", ").append(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("INSERT INTO " + rebuiltName + " (" + columns + ") SELECT " + columns
+                + " FROM " + tableName + ";");
+        db.execSQL("DROP TABLE " + tableName + ";");
+        db.execSQL("ALTER TABLE " + rebuiltName + " RENAME TO " + tableName + ";");
+    }
+
+    private void addColumn(SQLiteDatabase db, String column, String type) {
+        db.execSQL("ALTER TABLE " + IdentityDatabase.MECHANISM_TABLE_NAME + " ADD COLUMN " + column + " " + type + ";");
     }
 
     @Override
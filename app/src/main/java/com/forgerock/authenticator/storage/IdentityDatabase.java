@@ -22,24 +22,30 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 
+import com.forgerock.authenticator.BuildConfig;
 import com.forgerock.authenticator.identity.Identity;
 import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.MechanismCreationException;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
 import com.forgerock.authenticator.notifications.Notification;
-import com.forgerock.authenticator.notifications.PushNotification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.NotificationStatistics;
+import com.forgerock.authenticator.notifications.QueuedResponse;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Set;
 
 /**
  * Data Access Object which can store and load both Identities and Mechanisms. Encapsulates the
@@ -52,6 +58,10 @@ public class IdentityDatabase implements StorageSystem {
     static final String MECHANISM_TABLE_NAME = "mechanism";
     /**The name of the table the notifications are stored in */
     static final String NOTIFICATION_TABLE_NAME = "notification";
+    /**The name of the table the statistics of removed notifications are stored in */
+    static final String NOTIFICATION_SUMMARY_TABLE_NAME = "notification_summary";
+    /**The name of the table the responses waiting to be sent are stored in */
+    static final String OUTBOX_TABLE_NAME = "response_outbox";
 
     // Identity columns
     /** The IDP name column */
@@ -72,10 +82,26 @@ public class IdentityDatabase implements StorageSystem {
     static final String TYPE = "type";
     /** The mechanism version column */
     static final String VERSION = "version";
-    /** The mechanism options column */
+    /** The mechanism options column, used for properties which do not have a typed column */
     static final String OPTIONS = "options";
     /** The mechanism uid generated if the mechanism can receive notifications */
     static final String MECHANISM_UID = "mechanismUID";
+    /** The mechanism token type column (e.g. HOTP or TOTP) */
+    static final String TOKEN_TYPE = "tokenType";
+    /** The mechanism algorithm column */
+    static final String ALGORITHM = "algorithm";
+    /** The mechanism code length column */
+    static final String DIGITS = "digits";
+    /** The mechanism code period column */
+    static final String PERIOD = "period";
+    /** The mechanism counter column */
+    static final String COUNTER = "counter";
+    /** The mechanism shared secret column, stored as raw bytes */
+    static final String SECRET = "secret";
+    /** The secret shared with the server, encrypted with the data key */
+    static final String ENCRYPTED_SECRET = "encryptedSecret";
+    /** The mechanism endpoint column */
+    static final String ENDPOINT = "endpoint";
 
     // Notification columns
     /** The time that the notification was received */
@@ -89,10 +115,39 @@ public class IdentityDatabase implements StorageSystem {
     /** Whether the notification has been handled, for historical purposes */
     static final String PENDING = "pending";
 
+    // Notification summary columns
+    /** The number of removed notifications which were approved */
+    static final String APPROVED_COUNT = "approvedCount";
+    /** The number of removed notifications which were denied */
+    static final String DENIED_COUNT = "deniedCount";
+    /** The number of removed notifications which expired without being answered */
+    static final String EXPIRED_COUNT = "expiredCount";
+
+    // Outbox columns
+    /** The load balancer cookie sent with the response */
+    static final String AMLB_COOKIE = "amlbCookie";
+    /** The ID of the message the response answers */
+    static final String MESSAGE_ID = "messageId";
+    /** The signed JWT which forms the body of the response */
+    static final String SIGNED_RESPONSE = "signedResponse";
+    /** Whether the response denies the request */
+    static final String DENY = "deny";
+    /** The number of attempts to send the response which have failed */
+    static final String ATTEMPTS = "attempts";
+    /** The earliest time the response should next be sent */
+    static final String NEXT_ATTEMPT = "nextAttempt";
+    /** The time after which the response is discarded */
+    static final String DEADLINE = "deadline";
+
+
+    private static final Type MAP_TYPE = new TypeToken<Map<String, String>>() {
+    }.getType();
 
     private final Gson gson = new Gson();
     private final SQLiteDatabase database;
     private final CoreMechanismFactory coreMechanismFactory;
+    private final NotificationStore notificationStore;
+    private final SecretEncryption secretEncryption;
     private static final Logger logger = LoggerFactory.getLogger(IdentityDatabase.class);
 
     /**
@@ -100,14 +155,67 @@ public class IdentityDatabase implements StorageSystem {
      * @param context The context that requested the connection.
      */
     IdentityDatabase(Context context, CoreMechanismFactory factory) {
-        DatabaseOpenHelper databaseOpeHelper = new DatabaseOpenHelper(context);
+        this(context, factory, null);
+    }
+
+    /**
+     * Creates a connection to the database using the provided Context, which stores Notifications
+     * in the provided store.
+     * @param context The context that requested the connection.
+     * @param factory The factory used to restore Mechanisms.
+     * @param notificationStore The store for Notifications, or null to use the store chosen for
+     * this device.
+     */
+    IdentityDatabase(Context context, CoreMechanismFactory factory, NotificationStore notificationStore) {
+        this(context, factory, notificationStore, SecretEncryption.getInstance(context));
+    }
+
+    /**
+     * Creates a connection to the database using the provided Context, which stores Notifications
+     * in the provided store and encrypts secrets with the provided encryption.
+     * @param context The context that requested the connection.
+     * @param factory The factory used to restore Mechanisms.
+     * @param notificationStore The store for Notifications, or null to use the store chosen for
+     * this device.
+     * @param secretEncryption The encryption for the secrets of Mechanisms.
+     */
+    IdentityDatabase(Context context, CoreMechanismFactory factory, NotificationStore notificationStore,
+                     SecretEncryption secretEncryption) {
+        DatabaseOpenHelper databaseOpeHelper = DatabaseOpenHelper.getInstance(context);
         database = databaseOpeHelper.getWritableDatabase();
         coreMechanismFactory = factory;
+        this.notificationStore = notificationStore == null
+                ? openNotificationStore(context, database) : notificationStore;
+        this.secretEncryption = secretEncryption;
+        if (DatabaseUtils.queryNumEntries(database, MECHANISM_TABLE_NAME, ENCRYPTED_SECRET + " IS NOT NULL") > 0) {
+            secretEncryption.requireExistingKey();
+        }
+    }
+
+    /**
+     * Opens the store for Notifications chosen for this device. The NotificationLog is used if it
+     * has been created, or if it is enabled and the database holds no Notifications to be lost.
+     * Otherwise Notifications are stored in the database.
+     */
+    private static NotificationStore openNotificationStore(Context context, SQLiteDatabase database) {
+        if (NotificationLog.exists(context) || (BuildConfig.NOTIFICATION_LOG
+                && DatabaseUtils.queryNumEntries(database, NOTIFICATION_TABLE_NAME) == 0)) {
+            try {
+                return NotificationLog.getInstance(context);
+            } catch (IOException e) {
+                logger.error("Failed to open notification log, so storing notifications in the database.", e);
+            }
+        }
+        return new SqliteNotificationStore(database);
     }
 
     @Override
     public List<Identity> getModel(IdentityModel model) {
-        List<Identity.IdentityBuilder> identityBuilders = getIdentityBuilders();
+        if (secretEncryption.isAvailable()) {
+            encryptPlaintextSecrets();
+        }
+        Set<String> legacyMechanismUIDs = new HashSet<>();
+        List<Identity.IdentityBuilder> identityBuilders = getIdentityBuilders(legacyMechanismUIDs);
 
         List<Identity> identities = new ArrayList<>();
 
@@ -115,9 +223,63 @@ public class IdentityDatabase implements StorageSystem {
             identities.add(identityBuilder.build(model));
         }
 
+        if (!legacyMechanismUIDs.isEmpty()) {
+            upgradeLegacyMechanisms(identities, legacyMechanismUIDs);
+        }
+
         return identities;
     }
 
+    /**
+     * Mechanisms stored before the typed columns were introduced only have the options column
+     * populated. Rewrite these once, so that later loads do not need to parse the options.
+     */
+    private void upgradeLegacyMechanisms(List<Identity> identities, Set<String> legacyMechanismUIDs) {
+        for (Identity identity : identities) {
+            for (Mechanism mechanism : identity.getMechanisms()) {
+                if (legacyMechanismUIDs.contains(mechanism.getMechanismUID())) {
+                    MechanismRecord record = mechanism.asRecord();
+                    if (hasTypedValues(record)) {
+                        ContentValues values = new ContentValues();
+                        putRecord(values, record);
+                        String[] selectionArgs = { mechanism.getMechanismUID() };
+                        database.update(MECHANISM_TABLE_NAME, values, MECHANISM_UID + " = ?", selectionArgs);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Secrets stored before encryption was introduced, or while it was not available, are held in
+     * plaintext. Encrypt these once, in place.
+     */
+    private void encryptPlaintextSecrets() {
+        Cursor cursor = database.rawQuery("SELECT rowid, " + SECRET + " FROM " + MECHANISM_TABLE_NAME
+                + " WHERE " + SECRET + " IS NOT NULL", null);
+        try {
+            if (cursor.getCount() == 0) {
+                return;
+            }
+            database.beginTransaction();
+            try {
+                while (cursor.moveToNext()) {
+                    ContentValues values = new ContentValues();
+                    values.put(ENCRYPTED_SECRET, secretEncryption.encrypt(cursor.getBlob(1)));
+                    values.putNull(SECRET);
+                    database.update(MECHANISM_TABLE_NAME, values, "rowId = " + cursor.getLong(0), null);
+                }
+                database.setTransactionSuccessful();
+            } catch (GeneralSecurityException e) {
+                logger.error("Failed to encrypt stored secrets.", e);
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     @Override
     public long addIdentity(Identity id) {
         String issuer = id.getIssuer();
@@ -141,15 +303,14 @@ public class IdentityDatabase implements StorageSystem {
         String accountName = mechanism.getOwner().getAccountName();
         String type = mechanism.getInfo().getMechanismString();
         int version = mechanism.getVersion();
-        String options = gson.toJson(mechanism.asMap());
 
         ContentValues values = new ContentValues();
         values.put(ID_ISSUER, issuer);
         values.put(ID_ACCOUNT_NAME, accountName);
         values.put(TYPE, type);
         values.put(VERSION, version);
-        values.put(OPTIONS, options);
         values.put(MECHANISM_UID, mechanism.getMechanismUID());
+        putRecord(values, mechanism.asRecord());
 
         long rowId = database.insert(MECHANISM_TABLE_NAME, null, values);
         return rowId;
@@ -157,60 +318,190 @@ public class IdentityDatabase implements StorageSystem {
 
     @Override
     public long addNotification(Notification notification) {
-        long timeAdded = notification.getTimeAdded().getTimeInMillis();
-        long timeExpired = notification.getTimeExpired().getTimeInMillis();
-        int wasApproved = notification.wasApproved() ? 1 : 0;
-        int isPending = notification.isPending() ? 1 : 0;
-        String mechanismUID = notification.getMechanism().getMechanismUID();
-        String data = gson.toJson(notification.getData());
+        if (!notificationStore.enforcesMechanismReference()
+                && !mechanismExists(notification.getMechanism().getMechanismUID())) {
+            return -1;
+        }
+        return notificationStore.addNotification(notification);
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(TIME_RECEIVED, timeAdded);
-        values.put(TIME_EXPIRED, timeExpired);
-        values.put(APPROVED, wasApproved);
-        values.put(MECHANISM_UID, mechanismUID);
-        values.put(DATA, data);
-        values.put(PENDING, isPending);
-
-        long rowId = database.insert(NOTIFICATION_TABLE_NAME, null, values);
-        return rowId;
+    private boolean mechanismExists(String mechanismUID) {
+        if (mechanismUID == null) {
+            return false;
+        }
+        return DatabaseUtils.queryNumEntries(database, MECHANISM_TABLE_NAME, MECHANISM_UID + " = ?",
+                new String[] { mechanismUID }) > 0;
     }
 
     @Override
     public boolean updateMechanism(long mechanismId, Mechanism mechanism) {
         ContentValues values = new ContentValues();
-        String options = gson.toJson(mechanism.asMap());
-        values.put(OPTIONS, options);
+        putRecord(values, mechanism.asRecord());
         String[] selectionArgs = { Long.toString(mechanismId) };
         return database.update(MECHANISM_TABLE_NAME, values, "rowId = ?", selectionArgs) == 1;
     }
 
     @Override
-    public boolean updateNotification(long notificationId, Notification notification) {
+    public boolean updateMechanismCounter(long mechanismId, long counter) {
+        // Only the counter changes when a code is generated, so the secret is not encrypted again
         ContentValues values = new ContentValues();
+        values.put(COUNTER, counter);
+        String[] selectionArgs = { Long.toString(mechanismId) };
+        return database.update(MECHANISM_TABLE_NAME, values, "rowId = ?", selectionArgs) == 1;
+    }
 
-        int wasApproved = notification.wasApproved() ? 1 : 0;
-        int isPending = notification.isPending() ? 1 : 0;
-
-        values.put(PENDING, isPending);
-        values.put(APPROVED, wasApproved);
-        String[] selectionArgs = { Long.toString(notificationId) };
-        return database.update(NOTIFICATION_TABLE_NAME, values, "rowId = ?", selectionArgs) == 1;
+    @Override
+    public boolean updateNotification(long notificationId, Notification notification) {
+        return notificationStore.updateNotification(notificationId, notification);
     }
 
     @Override
     public boolean deleteMechanism(long mechanismId) {
+        if (!notificationStore.enforcesMechanismReference()) {
+            deleteStoredNotifications("SELECT " + MECHANISM_UID + " FROM " + MECHANISM_TABLE_NAME
+                    + " WHERE rowId = ?", mechanismId);
+        }
+        // Notifications and statistics held in the database are removed by cascading deletes
         return database.delete(MECHANISM_TABLE_NAME, "rowId = " + mechanismId, null) == 1;
     }
 
     @Override
     public boolean deleteIdentity(long identityId) {
+        if (!notificationStore.enforcesMechanismReference()) {
+            deleteStoredNotifications("SELECT m." + MECHANISM_UID + " FROM " + MECHANISM_TABLE_NAME
+                    + " m JOIN " + IDENTITY_TABLE_NAME + " i ON m." + ID_ISSUER + " = i." + ISSUER
+                    + " AND m." + ID_ACCOUNT_NAME + " = i." + ACCOUNT_NAME + " WHERE i.rowId = ?", identityId);
+        }
+        // Mechanisms, and everything beneath them, are removed by cascading deletes
         return database.delete(IDENTITY_TABLE_NAME, "rowId = " + identityId, null) == 1;
     }
 
+    /**
+     * Deletes the notifications of the Mechanisms selected by the query, when they are held
+     * outside of the database and so are not removed by cascading deletes.
+     */
+    private void deleteStoredNotifications(String mechanismUIDQuery, long id) {
+        String[] selectionArgs = { Long.toString(id) };
+        Cursor cursor = database.rawQuery(mechanismUIDQuery, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) {
+                    notificationStore.deleteNotifications(cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     @Override
     public boolean deleteNotification(long notificationId) {
-        return database.delete(NOTIFICATION_TABLE_NAME, "rowId = " + notificationId, null) == 1;
+        return notificationStore.deleteNotification(notificationId);
+    }
+
+    @Override
+    public int deleteInactiveNotifications(Mechanism mechanism, long now) {
+        if (mechanism.getMechanismUID() == null) {
+            return 0;
+        }
+        return notificationStore.deleteInactiveNotifications(mechanism.getMechanismUID(), now);
+    }
+
+    @Override
+    public int compactNotifications(NotificationRetentionPolicy policy, long now) {
+        long total = 0;
+        // When the notifications are stored in the database, the removal and the summary are
+        // committed together
+        database.beginTransaction();
+        try {
+            Map<String, NotificationStatistics> removed = notificationStore.compact(policy, now);
+            for (Map.Entry<String, NotificationStatistics> entry : removed.entrySet()) {
+                NotificationStatistics statistics = entry.getValue();
+                ContentValues values = new ContentValues();
+                values.put(MECHANISM_UID, entry.getKey());
+                values.put(APPROVED_COUNT, 0);
+                values.put(DENIED_COUNT, 0);
+                values.put(EXPIRED_COUNT, 0);
+                database.insertWithOnConflict(NOTIFICATION_SUMMARY_TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_IGNORE);
+                database.execSQL("UPDATE " + NOTIFICATION_SUMMARY_TABLE_NAME + " SET "
+                        + APPROVED_COUNT + " = " + APPROVED_COUNT + " + ?, "
+                        + DENIED_COUNT + " = " + DENIED_COUNT + " + ?, "
+                        + EXPIRED_COUNT + " = " + EXPIRED_COUNT + " + ? WHERE " + MECHANISM_UID + " = ?",
+                        new Object[] { statistics.getApprovedCount(), statistics.getDeniedCount(),
+                                statistics.getExpiredCount(), entry.getKey() });
+                total += statistics.getTotalCount();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return (int) total;
+    }
+
+    @Override
+    public boolean queueResponse(QueuedResponse response) {
+        ContentValues values = new ContentValues();
+        values.put(MECHANISM_UID, response.getMechanismUID());
+        values.put(TIME_RECEIVED, response.getTimeAdded());
+        values.put(ENDPOINT, response.getEndpoint());
+        values.put(AMLB_COOKIE, response.getAmlbCookie());
+        values.put(MESSAGE_ID, response.getMessageId());
+        values.put(SIGNED_RESPONSE, response.getSignedResponse());
+        values.put(DENY, response.isDeny() ? 1 : 0);
+        values.put(ATTEMPTS, response.getAttempts());
+        values.put(NEXT_ATTEMPT, response.getNextAttemptTime());
+        values.put(DEADLINE, response.getDeadline());
+        return database.insertWithOnConflict(OUTBOX_TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE) != -1;
+    }
+
+    @Override
+    public List<QueuedResponse> getQueuedResponses() {
+        Cursor cursor = database.rawQuery("SELECT * FROM " + OUTBOX_TABLE_NAME
+                + " ORDER BY " + NEXT_ATTEMPT, null);
+        List<QueuedResponse> result = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                result.add(QueuedResponse.builder()
+                        .setNotification(cursor.getString(cursor.getColumnIndex(MECHANISM_UID)),
+                                cursor.getLong(cursor.getColumnIndex(TIME_RECEIVED)))
+                        .setEndpoint(cursor.getString(cursor.getColumnIndex(ENDPOINT)))
+                        .setAmlbCookie(cursor.getString(cursor.getColumnIndex(AMLB_COOKIE)))
+                        .setMessageId(cursor.getString(cursor.getColumnIndex(MESSAGE_ID)))
+                        .setSignedResponse(cursor.getString(cursor.getColumnIndex(SIGNED_RESPONSE)),
+                                cursor.getInt(cursor.getColumnIndex(DENY)) == 1)
+                        .setAttempts(cursor.getInt(cursor.getColumnIndex(ATTEMPTS)))
+                        .setNextAttemptTime(cursor.getLong(cursor.getColumnIndex(NEXT_ATTEMPT)))
+                        .setDeadline(cursor.getLong(cursor.getColumnIndex(DEADLINE)))
+                        .build());
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean deleteQueuedResponse(String mechanismUID, long timeAdded) {
+        String[] selectionArgs = { mechanismUID, Long.toString(timeAdded) };
+        return database.delete(OUTBOX_TABLE_NAME, MECHANISM_UID + " = ? AND " + TIME_RECEIVED + " = ?",
+                selectionArgs) == 1;
+    }
+
+    @Override
+    public void beginTransaction() {
+        database.beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        database.setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        database.endTransaction();
     }
 
     @Override
@@ -219,28 +510,83 @@ public class IdentityDatabase implements StorageSystem {
         return identityDataCount == 0;
     }
 
-    private List<Identity.IdentityBuilder> getIdentityBuilders() {
+    /**
+     * Checks, analyses and compacts the database. This may rewrite the whole database, so should
+     * only be called in the background while the device is idle.
+     * @return The figures recorded by the maintenance.
+     */
+    public MaintenanceReport performMaintenance() {
+        return new DatabaseMaintenance(database).run();
+    }
+
+    private void putRecord(ContentValues values, MechanismRecord record) {
+        values.put(TOKEN_TYPE, record.getTokenType());
+        values.put(ALGORITHM, record.getAlgorithm());
+        values.put(DIGITS, record.getDigits());
+        values.put(PERIOD, record.getPeriod());
+        values.put(COUNTER, record.getCounter());
+        if (record.hasSecret()) {
+            // A secret which could not be read is left as it is stored, rather than erased
+            putSecret(values, record.getSecret());
+        }
+        values.put(ENDPOINT, record.getEndpoint());
+        if (record.getExtras().isEmpty()) {
+            values.putNull(OPTIONS);
+        } else {
+            values.put(OPTIONS, gson.toJson(record.getExtras()));
+        }
+    }
+
+    private void putSecret(ContentValues values, byte[] secret) {
+        if (secret == null) {
+            return;
+        }
+        if (secretEncryption.isAvailable()) {
+            try {
+                values.put(ENCRYPTED_SECRET, secretEncryption.encrypt(secret));
+                values.putNull(SECRET);
+                return;
+            } catch (GeneralSecurityException e) {
+                logger.error("Failed to encrypt secret, so storing it unencrypted.", e);
+            }
+        }
+        values.put(SECRET, secret);
+        values.putNull(ENCRYPTED_SECRET);
+    }
+
+    private boolean hasTypedValues(MechanismRecord record) {
+        return record.getTokenType() != null || record.getAlgorithm() != null || record.getDigits() != null
+                || record.getPeriod() != null || record.getCounter() != null || record.hasSecret()
+                || record.getEndpoint() != null;
+    }
+
+    private List<Identity.IdentityBuilder> getIdentityBuilders(Set<String> legacyMechanismUIDs) {
         Cursor cursor = database.rawQuery("SELECT rowid, * FROM " + IDENTITY_TABLE_NAME + " ORDER BY "
                 + ISSUER + " ASC, " + ACCOUNT_NAME + " ASC", null);
         List<Identity.IdentityBuilder> result = new ArrayList<>();
         cursor.moveToFirst();
         while (!cursor.isAfterLast()) {
-            Identity.IdentityBuilder newIdentityBuilder = cursorToIdentityBuilder(cursor);
+            Identity.IdentityBuilder newIdentityBuilder = cursorToIdentityBuilder(cursor, legacyMechanismUIDs);
             result.add(newIdentityBuilder);
             cursor.moveToNext();
         }
         return result;
     }
 
-    private Identity.IdentityBuilder cursorToIdentityBuilder(Cursor cursor) {
+    private Identity.IdentityBuilder cursorToIdentityBuilder(Cursor cursor, Set<String> legacyMechanismUIDs) {
+        String issuer = cursor.getString(cursor.getColumnIndex(ISSUER));
+        String accountName = cursor.getString(cursor.getColumnIndex(ACCOUNT_NAME));
+        return cursorToIdentityBuilder(cursor, getMechanismBuilders(issuer, accountName, legacyMechanismUIDs));
+    }
+
+    private Identity.IdentityBuilder cursorToIdentityBuilder(Cursor cursor,
+                                                             List<Mechanism.PartialMechanismBuilder> mechanismBuilders) {
         int rowid = cursor.getInt(cursor.getColumnIndex("rowid"));
         String issuer = cursor.getString(cursor.getColumnIndex(ISSUER));
         String accountName = cursor.getString(cursor.getColumnIndex(ACCOUNT_NAME));
         String imageURL = cursor.getString(cursor.getColumnIndex(IMAGE_URL));
         String backgroundColor = cursor.getString(cursor.getColumnIndex(BG_COLOR));
 
-        List<Mechanism.PartialMechanismBuilder> mechanismBuilders = getMechanismBuilders(issuer, accountName);
-
         Identity.IdentityBuilder identityBuilder = Identity.builder()
                 .setIssuer(issuer)
                 .setAccountName(accountName)
@@ -251,7 +597,59 @@ public class IdentityDatabase implements StorageSystem {
         return identityBuilder;
     }
 
-    private List<Mechanism.PartialMechanismBuilder> getMechanismBuilders(String issuer, String accountName) {
+    /**
+     * Loads the Identity which owns the Mechanism with the given UID, holding only that Mechanism.
+     * Both rows are found through their indexes, so that a single message can be handled without
+     * loading the full model. If the model already holds the Identity, the Mechanism is added to
+     * it instead.
+     * @param model The model to build the Identity in.
+     * @param mechanismUID The UID of the Mechanism.
+     * @return The Identity, or null if no Mechanism with the UID could be loaded.
+     */
+    public Identity getIdentityForMechanism(IdentityModel model, String mechanismUID) {
+        String[] mechanismArgs = { mechanismUID };
+        Mechanism.PartialMechanismBuilder mechanismBuilder;
+        String[] identityArgs;
+        Cursor cursor = database.rawQuery("SELECT rowid, * FROM " + MECHANISM_TABLE_NAME
+                + " WHERE " + MECHANISM_UID + " = ?", mechanismArgs);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            mechanismBuilder = cursorToMechanismBuilder(cursor, new HashSet<String>());
+            identityArgs = new String[] { cursor.getString(cursor.getColumnIndex(ID_ISSUER)),
+                    cursor.getString(cursor.getColumnIndex(ID_ACCOUNT_NAME)) };
+        } catch (MechanismCreationException e) {
+            logger.error("Failed to load mechanism.", e);
+            return null;
+        } finally {
+            cursor.close();
+        }
+
+        // Another Mechanism of the Identity may already have been loaded
+        for (Identity identity : model.getIdentities()) {
+            if (identity.getIssuer().equals(identityArgs[0]) && identity.getAccountName().equals(identityArgs[1])) {
+                identity.populateMechanism(mechanismBuilder);
+                return identity;
+            }
+        }
+
+        cursor = database.rawQuery("SELECT rowid, * FROM " + IDENTITY_TABLE_NAME
+                + " WHERE " + ISSUER + " = ? AND " + ACCOUNT_NAME + " = ?", identityArgs);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            List<Mechanism.PartialMechanismBuilder> mechanismBuilders = new ArrayList<>();
+            mechanismBuilders.add(mechanismBuilder);
+            return cursorToIdentityBuilder(cursor, mechanismBuilders).build(model);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<Mechanism.PartialMechanismBuilder> getMechanismBuilders(String issuer, String accountName,
+                                                                         Set<String> legacyMechanismUIDs) {
         String[] selectionArgs = { issuer, accountName };
 
         Cursor cursor = database.rawQuery("SELECT rowid, * FROM " + MECHANISM_TABLE_NAME +
@@ -261,7 +659,7 @@ public class IdentityDatabase implements StorageSystem {
 
         while (!cursor.isAfterLast()) {
             try {
-                result.add(cursorToMechanismBuilder(cursor));
+                result.add(cursorToMechanismBuilder(cursor, legacyMechanismUIDs));
             } catch (MechanismCreationException e) {
                 logger.error("Failed to load mechanism. This may be caused by invalid data, or data " +
                         "that has not been upgraded.", e);
@@ -272,64 +670,83 @@ public class IdentityDatabase implements StorageSystem {
         return result;
     }
 
-    private Mechanism.PartialMechanismBuilder cursorToMechanismBuilder(Cursor cursor) throws MechanismCreationException {
+    private Mechanism.PartialMechanismBuilder cursorToMechanismBuilder(Cursor cursor, Set<String> legacyMechanismUIDs)
+            throws MechanismCreationException {
         String type = cursor.getString(cursor.getColumnIndex(TYPE));
         int version = cursor.getInt(cursor.getColumnIndex(VERSION));
-        Type mapType = new TypeToken<Map<String, String>>() {
-        }.getType();
-        Map<String, String> options =
-                gson.fromJson(cursor.getString(cursor.getColumnIndex(OPTIONS)), mapType);
-
         String mechanismUID = cursor.getString(cursor.getColumnIndex(MECHANISM_UID));
 
-        List<Notification.NotificationBuilder> notificationBuilders = getNotificationBuilders(mechanismUID);
+        MechanismRecord record = cursorToMechanismRecord(cursor);
+        int optionsIndex = cursor.getColumnIndex(OPTIONS);
+        if (!cursor.isNull(optionsIndex)) {
+            // Generic fallback for properties which do not have a typed column
+            Map<String, String> options = gson.fromJson(cursor.getString(optionsIndex), MAP_TYPE);
+            record.putExtras(options);
+        }
+
+        Mechanism.PartialMechanismBuilder mechanismBuilder;
+        if (hasTypedValues(record)) {
+            mechanismBuilder = coreMechanismFactory.restoreFromRecord(type, version, record);
+        } else {
+            mechanismBuilder = coreMechanismFactory.restoreFromParameters(type, version, record.getExtras());
+            if (mechanismUID != null) {
+                legacyMechanismUIDs.add(mechanismUID);
+            }
+        }
+
+        List<Notification.NotificationBuilder> notificationBuilders = mechanismUID == null
+                ? new ArrayList<Notification.NotificationBuilder>()
+                : notificationStore.getNotificationBuilders(mechanismUID);
 
-        Mechanism.PartialMechanismBuilder mechanismBuilder = coreMechanismFactory.restoreFromParameters(type, version, options);
         mechanismBuilder.setId(cursor.getLong(cursor.getColumnIndex("rowid")))
                 .setMechanismUID(mechanismUID)
-                .setNotifications(notificationBuilders);
+                .setNotifications(notificationBuilders)
+                .setArchivedStatistics(getArchivedStatistics(mechanismUID));
         return mechanismBuilder;
     }
 
-    private List<Notification.NotificationBuilder> getNotificationBuilders(String mechanismUid) {
+    private MechanismRecord cursorToMechanismRecord(Cursor cursor) {
+        MechanismRecord record = new MechanismRecord();
+        int tokenTypeIndex = cursor.getColumnIndex(TOKEN_TYPE);
+        int algorithmIndex = cursor.getColumnIndex(ALGORITHM);
+        int digitsIndex = cursor.getColumnIndex(DIGITS);
+        int periodIndex = cursor.getColumnIndex(PERIOD);
+        int counterIndex = cursor.getColumnIndex(COUNTER);
+        int secretIndex = cursor.getColumnIndex(SECRET);
+        int encryptedSecretIndex = cursor.getColumnIndex(ENCRYPTED_SECRET);
+        int endpointIndex = cursor.getColumnIndex(ENDPOINT);
+
+        record.setTokenType(cursor.getString(tokenTypeIndex))
+                .setAlgorithm(cursor.getString(algorithmIndex))
+                .setDigits(cursor.isNull(digitsIndex) ? null : cursor.getInt(digitsIndex))
+                .setPeriod(cursor.isNull(periodIndex) ? null : cursor.getInt(periodIndex))
+                .setCounter(cursor.isNull(counterIndex) ? null : cursor.getLong(counterIndex))
+                .setSecret(cursor.isNull(secretIndex) ? null : cursor.getBlob(secretIndex))
+                .setEndpoint(cursor.getString(endpointIndex));
+        if (!cursor.isNull(encryptedSecretIndex)) {
+            // Decrypted when the secret is first used
+            record.setEncryptedSecret(cursor.getBlob(encryptedSecretIndex), secretEncryption);
+        }
+        return record;
+    }
+
+    private NotificationStatistics getArchivedStatistics(String mechanismUid) {
         if (mechanismUid == null) {
-            return new ArrayList<>();
+            return NotificationStatistics.EMPTY;
         }
         String[] selectionArgs = { mechanismUid };
 
-        Cursor cursor = database.rawQuery("SELECT rowid, * FROM " + NOTIFICATION_TABLE_NAME +
+        Cursor cursor = database.rawQuery("SELECT * FROM " + NOTIFICATION_SUMMARY_TABLE_NAME +
                 " WHERE " + MECHANISM_UID + " = ?", selectionArgs);
-        List<Notification.NotificationBuilder> result = new ArrayList<>();
-        cursor.moveToFirst();
-
-        while (!cursor.isAfterLast()) {
-            result.add(cursorToNotificationBuilder(cursor));
-            cursor.moveToNext();
+        try {
+            if (!cursor.moveToFirst()) {
+                return NotificationStatistics.EMPTY;
+            }
+            return new NotificationStatistics(cursor.getLong(cursor.getColumnIndex(APPROVED_COUNT)),
+                    cursor.getLong(cursor.getColumnIndex(DENIED_COUNT)),
+                    cursor.getLong(cursor.getColumnIndex(EXPIRED_COUNT)));
+        } finally {
+            cursor.close();
         }
-        return result;
-    }
-
-    private Notification.NotificationBuilder cursorToNotificationBuilder(Cursor cursor) {
-        int rowid = cursor.getInt(cursor.getColumnIndex("rowid"));
-        Calendar addedTime = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        addedTime.setTimeInMillis(cursor.getLong(cursor.getColumnIndex(TIME_RECEIVED)));
-        Calendar expiryTime = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        expiryTime.setTimeInMillis(cursor.getLong(cursor.getColumnIndex(TIME_EXPIRED)));
-        boolean approved = cursor.getLong(cursor.getColumnIndex(APPROVED)) == 1;
-        boolean pending = cursor.getLong(cursor.getColumnIndex(PENDING)) == 1;
-        Type mapType = new TypeToken<Map<String, String>>() {
-        }.getType();
-        Map<String, String> data =
-                gson.fromJson(cursor.getString(cursor.getColumnIndex(DATA)), mapType);
-
-        // TODO: When more types of Notification are possible, get base builder from Mechanism, or possibly use a factory.
-        PushNotification.PushNotificationBuilder notificationBuilder = PushNotification.builder()
-                .setApproved(approved)
-                .setTimeAdded(addedTime)
-                .setTimeExpired(expiryTime)
-                .setData(data)
-                .setId(rowid)
-                .setPending(pending);
-        return notificationBuilder;
     }
 }
@@ -22,10 +22,24 @@ import android.support.annotation.VisibleForTesting;
 import com.forgerock.authenticator.identity.Identity;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import roboguice.RoboGuice;
 import roboguice.inject.RoboInjector;
@@ -35,10 +49,19 @@ import roboguice.inject.RoboInjector;
  * Loads the full data from the database on initialisation.
  */
 public class IdentityModel {
+    /** The maximum number of responses sent at the same time. */
+    public static final int MAX_PARALLEL_RESPONSES = 8;
+    /** The maximum number of responses sent to the same endpoint at the same time. */
+    public static final int MAX_PARALLEL_RESPONSES_PER_ENDPOINT = 4;
+
+    private static final Logger logger = LoggerFactory.getLogger(IdentityModel.class);
+
     private List<Identity> identities;
     private List<IdentityModelListener> listeners;
     private StorageSystem storageSystem;
     private Context context;
+    private int batchDepth;
+    private boolean notificationChangePending;
 
     /**
      * Load the model from the database.
@@ -67,6 +90,42 @@ public class IdentityModel {
         }
     }
 
+    /**
+     * Load only the Mechanism with the given UID, and the Identity which owns it, from the
+     * database. Used to handle messages without loading the full model. May be called repeatedly
+     * to load further Mechanisms, but only with the database first used, and never for a Model
+     * loaded with {@link #loadFromStorageSystem(StorageSystem)}.
+     * @param database The database to load the Mechanism from.
+     * @param mechanismUID The UID of the Mechanism to load.
+     * @return The Mechanism, or null if it could not be loaded.
+     */
+    public Mechanism loadMechanism(IdentityDatabase database, String mechanismUID) {
+        if (storageSystem == null) {
+            storageSystem = database;
+            identities = new ArrayList<>();
+        } else if (storageSystem != database) {
+            return null;
+        }
+        for (Mechanism mechanism : getMechanisms()) {
+            if (mechanism.getMechanismUID().equals(mechanismUID)) {
+                return mechanism;
+            }
+        }
+        Identity identity = database.getIdentityForMechanism(this, mechanismUID);
+        if (identity == null || !identity.validate()) {
+            return null;
+        }
+        if (!identities.contains(identity)) {
+            identities.add(identity);
+        }
+        for (Mechanism mechanism : identity.getMechanisms()) {
+            if (mechanism.getMechanismUID().equals(mechanismUID)) {
+                return mechanism;
+            }
+        }
+        return null;
+    }
+
     @VisibleForTesting
     public IdentityModel(IdentityDatabase database) {
         storageSystem = database;
@@ -255,6 +314,133 @@ public class IdentityModel {
         }
     }
 
+    /**
+     * Remove the history of notifications which is not kept under the retention policy, from both
+     * the storage system and the model.
+     * @param policy The retention policy to apply.
+     * @param now The current time in milliseconds.
+     * @return The number of notifications removed from storage.
+     */
+    public int applyRetentionPolicy(NotificationRetentionPolicy policy, long now) {
+        int removed = storageSystem.compactNotifications(policy, now);
+        pruneNotifications(policy, now);
+        return removed;
+    }
+
+    /**
+     * Remove the history of notifications which is not kept under the retention policy from the
+     * model only. Used once the storage system has already been compacted.
+     * @param policy The retention policy that was applied.
+     * @param now The time that the policy was applied to storage, in milliseconds.
+     */
+    public void pruneNotifications(NotificationRetentionPolicy policy, long now) {
+        int removed = 0;
+        for (Mechanism mechanism : getMechanisms()) {
+            removed += mechanism.pruneNotifications(policy, now);
+        }
+        if (removed > 0) {
+            notifyNotificationChanged();
+        }
+    }
+
+    /**
+     * Respond to several Notifications at once. Responses are sent in parallel, up to
+     * {@link #MAX_PARALLEL_RESPONSES} at a time, and at most
+     * {@link #MAX_PARALLEL_RESPONSES_PER_ENDPOINT} to the same endpoint, so that each endpoint is
+     * sent its responses over a few pooled connections. Once all responses have been sent, the
+     * outcomes of those which were acknowledged are saved in a single transaction. Must not be
+     * called on the UI thread.
+     * @param notifications The Notifications to respond to.
+     * @param approve True to approve the requests, false to deny them.
+     * @return The Notifications whose responses were acknowledged, in the order they were given.
+     */
+    public List<Notification> respondToNotifications(List<Notification> notifications,
+                                                     final boolean approve) {
+        Map<String, List<Notification>> byEndpoint = new LinkedHashMap<>();
+        for (Notification notification : notifications) {
+            String endpoint = notification.getResponseEndpoint();
+            List<Notification> group = byEndpoint.get(endpoint);
+            if (group == null) {
+                group = new ArrayList<>();
+                byEndpoint.put(endpoint, group);
+            }
+            group.add(notification);
+        }
+
+        List<Notification> acknowledged = new ArrayList<>();
+        if (byEndpoint.isEmpty()) {
+            return acknowledged;
+        }
+
+        // Each endpoint's responses are shared between up to the allowed number of workers
+        List<List<Notification>> tasks = new ArrayList<>();
+        for (List<Notification> group : byEndpoint.values()) {
+            int workers = Math.min(group.size(), MAX_PARALLEL_RESPONSES_PER_ENDPOINT);
+            int first = tasks.size();
+            for (int i = 0; i < workers; i++) {
+                tasks.add(new ArrayList<Notification>());
+            }
+            for (int i = 0; i < group.size(); i++) {
+                tasks.get(first + i % workers).add(group.get(i));
+            }
+        }
+
+        Set<Notification> sent = Collections.newSetFromMap(new IdentityHashMap<Notification, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks.size(), MAX_PARALLEL_RESPONSES));
+        try {
+            List<Future<List<Notification>>> results = new ArrayList<>();
+            for (final List<Notification> group : tasks) {
+                results.add(executor.submit(new Callable<List<Notification>>() {
+                    @Override
+                    public List<Notification> call() {
+                        List<Notification> sent = new ArrayList<>();
+                        for (Notification notification : group) {
+                            if (notification.sendResponse(approve)) {
+                                sent.add(notification);
+                            }
+                        }
+                        return sent;
+                    }
+                }));
+            }
+            for (Future<List<Notification>> result : results) {
+                try {
+                    sent.addAll(result.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted while waiting for responses to be sent.", e);
+                } catch (ExecutionException e) {
+                    logger.error("Failed to send responses.", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (Notification notification : notifications) {
+            if (sent.contains(notification)) {
+                acknowledged.add(notification);
+            }
+        }
+
+        if (acknowledged.isEmpty()) {
+            return acknowledged;
+        }
+
+        beginBatch();
+        storageSystem.beginTransaction();
+        try {
+            for (Notification notification : acknowledged) {
+                notification.settle(approve);
+            }
+            storageSystem.setTransactionSuccessful();
+        } finally {
+            storageSystem.endTransaction();
+            notifyNotificationChanged();
+            endBatch();
+        }
+        return acknowledged;
+    }
+
     /**
      * Add a listener to this model.
      * @param listener The listener to add.
@@ -272,11 +458,48 @@ public class IdentityModel {
     }
 
     /**
-     * Used to notify all listeners that a notification has been added or removed.
+     * Used to notify all listeners that a notification has been added or removed. Within a batch,
+     * listeners are notified once when the batch ends.
      */
     public void notifyNotificationChanged() {
+        if (batchDepth > 0) {
+            notificationChangePending = true;
+            return;
+        }
         for (IdentityModelListener listener : listeners) {
             listener.notificationChanged();
         }
     }
+
+    /**
+     * Used to notify all listeners that a mechanism has changed in the background.
+     */
+    public void notifyMechanismChanged() {
+        for (IdentityModelListener listener : listeners) {
+            listener.mechanismChanged();
+        }
+    }
+
+    /**
+     * Begin a batch of changes, during which listeners are not notified of each change. Batches
+     * may be nested, and every call must be matched by a call to {@link #endBatch()}.
+     */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * End a batch of changes. When the outermost batch ends, listeners are notified once of any
+     * changes made during it.
+     */
+    public void endBatch() {
+        if (batchDepth == 0) {
+            return;
+        }
+        batchDepth--;
+        if (batchDepth == 0 && notificationChangePending) {
+            notificationChangePending = false;
+            notifyNotificationChanged();
+        }
+    }
 }
@@ -24,4 +24,10 @@ public interface IdentityModelListener {
      * Fired when a notification is added or removed.
      */
     void notificationChanged();
+
+    /**
+     * Fired when a mechanism changes in the background, such as when its registration completes
+     * or fails.
+     */
+    void mechanismChanged();
 }
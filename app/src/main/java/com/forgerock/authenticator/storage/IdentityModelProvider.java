@@ -0,0 +1,200 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.PushNotification;
+import com.google.inject.Provider;
+
+import java.util.ArrayList;
+
+/**
+ * Provides the IdentityModel, loading it from storage on first use rather than when the
+ * application starts. Also allows a single Mechanism to be looked up before the model is loaded,
+ * so that a process started to handle one message does not need to load every stored entry.
+ *
+ * Callers which add data through a Mechanism returned before the model is loaded should hold the
+ * lock on this provider while doing so, so that the model is not loaded part way through and
+ * miss the change.
+ */
+public class IdentityModelProvider implements Provider<IdentityModel> {
+    private final Context context;
+    private IdentityModel identityModel;
+    private IdentityModel partialModel;
+    private IdentityDatabase partialDatabase;
+
+    /**
+     * Create a provider which loads the model on first use.
+     * @param context The context the model is loaded from.
+     */
+    public IdentityModelProvider(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Create a provider for a model which has already been loaded.
+     * @param context The context the model was loaded from.
+     * @param identityModel The loaded model.
+     */
+    @VisibleForTesting
+    public IdentityModelProvider(Context context, IdentityModel identityModel) {
+        this(context);
+        this.identityModel = identityModel;
+    }
+
+    @Override
+    public synchronized IdentityModel get() {
+        if (identityModel == null) {
+            identityModel = new ModelOpenHelper(context).getModel();
+            if (partialModel != null) {
+                keepPreparedResponses(partialModel, identityModel);
+            }
+            // The partial database shares its connection with the model, so is not closed
+            partialModel = null;
+            partialDatabase = null;
+        }
+        return identityModel;
+    }
+
+    /**
+     * Responses prepared for notifications which arrived before the model was loaded are moved to
+     * the equivalent notifications of the loaded model.
+     */
+    private static void keepPreparedResponses(IdentityModel partial, IdentityModel loaded) {
+        for (Notification prepared : partial.getNotifications()) {
+            if (!(prepared instanceof PushNotification) || !prepared.isActive()) {
+                continue;
+            }
+            for (Notification notification : loaded.getNotifications()) {
+                if (notification instanceof PushNotification && notification.matches(prepared)) {
+                    ((PushNotification) notification).usePreparedResponses((PushNotification) prepared);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines whether the model has been loaded.
+     * @return True if the model has been loaded, false otherwise.
+     */
+    public synchronized boolean isLoaded() {
+        return identityModel != null;
+    }
+
+    /**
+     * Get the Mechanism with the given UID. If the model has not been loaded, only the Mechanism
+     * and its owner are read from storage, using the index on the mechanism UID. Mechanisms
+     * returned in this way share a partial model until the model is loaded, but are not part of
+     * the model that is loaded later, which reads its data afresh from storage. As every
+     * IdentityDatabase shares one connection, they may still be changed after the model is loaded.
+     * @param mechanismUID The UID of the Mechanism.
+     * @return The Mechanism, or null if there is no Mechanism with the UID.
+     */
+    public synchronized Mechanism getMechanism(String mechanismUID) {
+        if (identityModel == null && openPartialModel()) {
+            return partialModel.loadMechanism(partialDatabase, mechanismUID);
+        }
+        for (Mechanism mechanism : get().getMechanisms()) {
+            if (mechanism.getMechanismUID().equals(mechanismUID)) {
+                return mechanism;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the Notification with the given opaque reference. The Notification is first looked for
+     * amongst those of the Mechanism returned by {@link #getMechanism(String)}, so that one which
+     * arrived since the process started can be found without loading the model. Otherwise the
+     * model is loaded and searched.
+     * @param mechanismUID The UID of the Mechanism the Notification belongs to.
+     * @param opaqueReference The opaque reference of the Notification.
+     * @return The Notification, or null if it could not be found.
+     */
+    public synchronized Notification getNotification(String mechanismUID, ArrayList<String> opaqueReference) {
+        Mechanism mechanism = getMechanism(mechanismUID);
+        if (mechanism != null) {
+            for (Notification notification : mechanism.getNotifications()) {
+                if (opaqueReference.equals(notification.getOpaqueReference())) {
+                    return notification;
+                }
+            }
+        }
+        if (identityModel != null) {
+            return null;
+        }
+        return get().getNotification(new ArrayList<>(opaqueReference));
+    }
+
+    /**
+     * Get the Notification which was received by a Mechanism at the given time. As with
+     * {@link #getNotification(String, ArrayList)}, the model is only loaded if the Notification did
+     * not arrive since the process started.
+     * @param mechanismUID The UID of the Mechanism the Notification belongs to.
+     * @param timeAdded The time the Notification was received, in milliseconds.
+     * @return The Notification, or null if it could not be found.
+     */
+    public synchronized Notification getNotification(String mechanismUID, long timeAdded) {
+        Notification notification = findNotification(getMechanism(mechanismUID), timeAdded);
+        if (notification != null || identityModel != null) {
+            return notification;
+        }
+        get();
+        return findNotification(getMechanism(mechanismUID), timeAdded);
+    }
+
+    private static Notification findNotification(Mechanism mechanism, long timeAdded) {
+        if (mechanism != null) {
+            for (Notification notification : mechanism.getNotifications()) {
+                if (notification.getTimeAdded().getTimeInMillis() == timeAdded) {
+                    return notification;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the storage system of the model. If the model has not been loaded, the storage shared by
+     * the Mechanisms returned before it is loaded is used instead, so the model is not loaded.
+     * @return The storage system.
+     */
+    public synchronized StorageSystem getStorageSystem() {
+        if (identityModel == null && openPartialModel()) {
+            return partialDatabase;
+        }
+        return get().getStorageSystem();
+    }
+
+    /**
+     * Opens the storage used before the model is loaded, if not already open.
+     * @return True if the storage is open, false if it cannot be used until the model is loaded.
+     */
+    private boolean openPartialModel() {
+        if (partialModel == null) {
+            partialModel = new IdentityModel(context);
+            partialDatabase = new ModelOpenHelper(context).openLatestDatabase(partialModel);
+        }
+        return partialDatabase != null;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.KeyPairGeneratorSpec;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Calendar;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Envelope encryption for the data key. A random data key is generated in software, and stored
+ * wrapped by a key encryption key which never leaves the Android key store. The key encryption key
+ * is an AES key where the key store supports them, and an RSA key pair on earlier versions. No data
+ * key is provided before Android 4.4, which lacks the AES-GCM parameters that secrets are encrypted
+ * with, so secrets are stored unencrypted there.
+ */
+public class KeyStoreDataKeyProvider implements DataKeyProvider {
+    private static final String KEY_STORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "fr_auth_data_key_encryption_key";
+    private static final String KEYS_NAME = "fr_auth_keys";
+    private static final String WRAPPED_DATA_KEY = "wrapped_data_key";
+    private static final String WRAPPING_ALGORITHM = "wrapping_algorithm";
+    private static final String AES = "AES";
+    private static final String RSA = "RSA";
+    private static final String AES_WRAPPING = "AES/GCM/NoPadding";
+    private static final String RSA_WRAPPING = "RSA/ECB/PKCS1Padding";
+    private static final int DATA_KEY_LENGTH = 32;
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+    private static final int GCM_IV_LENGTH = 12;
+
+    private final Context context;
+    private final SharedPreferences sharedPreferences;
+
+    /**
+     * Creates a provider which keeps the wrapped data key in the app's private storage.
+     * @param context The context for the key store and SharedPreferences.
+     */
+    public KeyStoreDataKeyProvider(Context context) {
+        this.context = context.getApplicationContext();
+        sharedPreferences = this.context.getSharedPreferences(KEYS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public SecretKey getDataKey(boolean create) throws GeneralSecurityException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            throw new GeneralSecurityException("AES-GCM is not available before Android 4.4");
+        }
+        KeyStore keyStore = loadKeyStore();
+        String wrapped = sharedPreferences.getString(WRAPPED_DATA_KEY, null);
+        String algorithm = sharedPreferences.getString(WRAPPING_ALGORITHM, null);
+        if (wrapped != null && algorithm != null && keyStore.containsAlias(KEY_ALIAS)) {
+            return unwrap(keyStore, algorithm, Base64.decode(wrapped, Base64.NO_WRAP));
+        }
+        if (wrapped != null) {
+            // The key store entry has been removed, for example by a change to the lock screen
+            throw new DataKeyLostException("The key encryption key has been lost");
+        }
+        if (!create) {
+            throw new DataKeyLostException("Encrypted secrets are stored, but the data key is missing");
+        }
+
+        // This is the first run, so any key encryption key left behind protects nothing
+        algorithm = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? AES : RSA;
+        if (keyStore.containsAlias(KEY_ALIAS)) {
+            keyStore.deleteEntry(KEY_ALIAS);
+        }
+        if (AES.equals(algorithm)) {
+            generateAesKey();
+        } else {
+            generateRsaKeyPair();
+        }
+
+        byte[] dataKey = new byte[DATA_KEY_LENGTH];
+        new SecureRandom().nextBytes(dataKey);
+        SecretKey key = new SecretKeySpec(dataKey, AES);
+        boolean stored = sharedPreferences.edit()
+                .putString(WRAPPED_DATA_KEY, Base64.encodeToString(wrap(loadKeyStore(), algorithm, key),
+                        Base64.NO_WRAP))
+                .putString(WRAPPING_ALGORITHM, algorithm)
+                .commit();
+        if (!stored) {
+            // Secrets must not be encrypted with a key which will not be there next time
+            throw new GeneralSecurityException("Failed to store the wrapped data key");
+        }
+        return key;
+    }
+
+    private KeyStore loadKeyStore() throws GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KEY_STORE);
+        try {
+            keyStore.load(null);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Failed to load the Android key store", e);
+        }
+        return keyStore;
+    }
+
+    private byte[] wrap(KeyStore keyStore, String algorithm, SecretKey dataKey) throws GeneralSecurityException {
+        if (AES.equals(algorithm)) {
+            Cipher cipher = Cipher.getInstance(AES_WRAPPING);
+            cipher.init(Cipher.ENCRYPT_MODE, keyStore.getKey(KEY_ALIAS, null));
+            byte[] iv = cipher.getIV();
+            byte[] encrypted = cipher.doFinal(dataKey.getEncoded());
+            byte[] result = new byte[iv.length + encrypted.length];
+            System.arraycopy(iv, 0, result, 0, iv.length);
+            System.arraycopy(encrypted, 0, result, iv.length, encrypted.length);
+            return result;
+        }
+        Cipher cipher = Cipher.getInstance(RSA_WRAPPING);
+        cipher.init(Cipher.WRAP_MODE, keyStore.getCertificate(KEY_ALIAS).getPublicKey());
+        return cipher.wrap(dataKey);
+    }
+
+    private SecretKey unwrap(KeyStore keyStore, String algorithm, byte[] wrapped) throws GeneralSecurityException {
+        Key keyEncryptionKey = keyStore.getKey(KEY_ALIAS, null);
+        if (AES.equals(algorithm)) {
+            Cipher cipher = Cipher.getInstance(AES_WRAPPING);
+            cipher.init(Cipher.DECRYPT_MODE, keyEncryptionKey,
+                    new GCMParameterSpec(GCM_TAG_LENGTH_BITS, wrapped, 0, GCM_IV_LENGTH));
+            return new SecretKeySpec(cipher.doFinal(wrapped, GCM_IV_LENGTH, wrapped.length - GCM_IV_LENGTH), AES);
+        }
+        Cipher cipher = Cipher.getInstance(RSA_WRAPPING);
+        cipher.init(Cipher.UNWRAP_MODE, keyEncryptionKey);
+        return (SecretKey) cipher.unwrap(wrapped, AES, Cipher.SECRET_KEY);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void generateAesKey() throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEY_STORE);
+        generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+        generator.generateKey();
+    }
+
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void generateRsaKeyPair() throws GeneralSecurityException {
+        Calendar start = Calendar.getInstance();
+        Calendar end = Calendar.getInstance();
+        end.add(Calendar.YEAR, 100);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(RSA, KEY_STORE);
+        generator.initialize(new KeyPairGeneratorSpec.Builder(context)
+                .setAlias(KEY_ALIAS)
+                .setSubject(new X500Principal("CN=" + KEY_ALIAS))
+                .setSerialNumber(BigInteger.ONE)
+                .setStartDate(start.getTime())
+                .setEndDate(end.getTime())
+                .build());
+        generator.generateKeyPair();
+    }
+}
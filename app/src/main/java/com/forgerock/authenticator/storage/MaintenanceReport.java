@@ -0,0 +1,144 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+/**
+ * The figures recorded by a run of database maintenance, used to monitor the health of storage.
+ */
+public final class MaintenanceReport {
+    private final long timeCompleted;
+    private final long durationMillis;
+    private final long pageSize;
+    private final long pageCountBefore;
+    private final long pageCountAfter;
+    private final long freelistCountBefore;
+    private final long freelistCountAfter;
+    private final boolean integrityOk;
+
+    /**
+     * Creates a report of a maintenance run.
+     * @param timeCompleted The time the run completed, in milliseconds since the epoch.
+     * @param durationMillis The time the run took, in milliseconds.
+     * @param pageSize The size of a database page, in bytes.
+     * @param pageCountBefore The number of pages in the database before the run.
+     * @param pageCountAfter The number of pages in the database after the run.
+     * @param freelistCountBefore The number of unused pages before the run.
+     * @param freelistCountAfter The number of unused pages after the run.
+     * @param integrityOk True if the integrity check passed, false otherwise.
+     */
+    public MaintenanceReport(long timeCompleted, long durationMillis, long pageSize, long pageCountBefore,
+                             long pageCountAfter, long freelistCountBefore, long freelistCountAfter,
+                             boolean integrityOk) {
+        this.timeCompleted = timeCompleted;
+        this.durationMillis = durationMillis;
+        this.pageSize = pageSize;
+        this.pageCountBefore = pageCountBefore;
+        this.pageCountAfter = pageCountAfter;
+        this.freelistCountBefore = freelistCountBefore;
+        this.freelistCountAfter = freelistCountAfter;
+        this.integrityOk = integrityOk;
+    }
+
+    /**
+     * Gets the time the run completed.
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimeCompleted() {
+        return timeCompleted;
+    }
+
+    /**
+     * Gets the time the run took.
+     * @return The duration in milliseconds.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Gets the size of a database page.
+     * @return The page size in bytes.
+     */
+    public long getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Gets the number of pages in the database before the run.
+     * @return The page count.
+     */
+    public long getPageCountBefore() {
+        return pageCountBefore;
+    }
+
+    /**
+     * Gets the number of pages in the database after the run.
+     * @return The page count.
+     */
+    public long getPageCountAfter() {
+        return pageCountAfter;
+    }
+
+    /**
+     * Gets the number of unused pages in the database before the run.
+     * @return The freelist count.
+     */
+    public long getFreelistCountBefore() {
+        return freelistCountBefore;
+    }
+
+    /**
+     * Gets the number of unused pages in the database after the run.
+     * @return The freelist count.
+     */
+    public long getFreelistCountAfter() {
+        return freelistCountAfter;
+    }
+
+    /**
+     * Gets the size of the database after the run.
+     * @return The size in bytes.
+     */
+    public long getDatabaseSize() {
+        return pageCountAfter * pageSize;
+    }
+
+    /**
+     * Gets the proportion of the database which was unused after the run.
+     * @return The fragmentation, between 0 and 1.
+     */
+    public double getFragmentation() {
+        return pageCountAfter == 0 ? 0 : (double) freelistCountAfter / pageCountAfter;
+    }
+
+    /**
+     * Determines whether the integrity check passed.
+     * @return True if the database passed the integrity check, false otherwise.
+     */
+    public boolean isIntegrityOk() {
+        return integrityOk;
+    }
+
+    @Override
+    public String toString() {
+        return "MaintenanceReport{pages=" + pageCountBefore + "->" + pageCountAfter
+                + ", freelist=" + freelistCountBefore + "->" + freelistCountAfter
+                + ", pageSize=" + pageSize + ", durationMillis=" + durationMillis
+                + ", integrityOk=" + integrityOk + "}";
+    }
+}
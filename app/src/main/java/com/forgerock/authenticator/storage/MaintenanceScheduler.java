@@ -0,0 +1,115 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import roboguice.RoboGuice;
+
+/**
+ * Schedules database maintenance to run periodically while the device is idle and charging. Uses
+ * the JobScheduler where available, and otherwise falls back to an inexact alarm, with the idle
+ * and charging conditions checked when the alarm fires.
+ */
+public final class MaintenanceScheduler {
+    /** The id of the maintenance job, unique within the app */
+    static final int JOB_ID = 1001;
+    private static final long INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final Logger logger = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+    private MaintenanceScheduler() {
+        // Static utility class
+    }
+
+    /**
+     * Schedules periodic maintenance, unless it is already scheduled.
+     * @param context The context to schedule from.
+     */
+    public static void schedule(Context context) {
+        Context appContext = context.getApplicationContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            scheduleJob(appContext);
+        } else {
+            scheduleAlarm(appContext);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            logger.warn("Unable to schedule maintenance, as the JobScheduler is not available.");
+            return;
+        }
+        for (JobInfo job : jobScheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, MaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(INTERVAL_MILLIS)
+                .build());
+    }
+
+    private static void scheduleAlarm(Context context) {
+        Intent intent = new Intent(context, MaintenanceService.class);
+        if (PendingIntent.getService(context, JOB_ID, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + INTERVAL_MILLIS, INTERVAL_MILLIS,
+                PendingIntent.getService(context, JOB_ID, intent, 0));
+    }
+
+    /**
+     * Runs maintenance on the database backing the model, and records the figures for diagnostics.
+     * Blocks until maintenance is complete, so must not be called on the main thread.
+     * @param context The context to run maintenance from.
+     * @return The figures recorded, or null if the model is not backed by the database.
+     */
+    static MaintenanceReport runMaintenance(Context context) {
+        StorageSystem storageSystem = RoboGuice.getInjector(context.getApplicationContext())
+                .getInstance(IdentityModel.class).getStorageSystem();
+        if (!(storageSystem instanceof IdentityDatabase)) {
+            logger.debug("Skipping maintenance, as storage is not backed by the database.");
+            return null;
+        }
+        MaintenanceReport report = ((IdentityDatabase) storageSystem).performMaintenance();
+        new StorageDiagnostics(context).recordMaintenance(report);
+        return report;
+    }
+}
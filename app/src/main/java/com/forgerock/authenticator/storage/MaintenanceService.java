@@ -0,0 +1,65 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs database maintenance from an alarm, on versions of Android without the JobScheduler. The
+ * alarm cannot wait for the device to be idle and charging, so maintenance is skipped until the
+ * next alarm if it is not.
+ */
+public class MaintenanceService extends IntentService {
+    private static final Logger logger = LoggerFactory.getLogger(MaintenanceService.class);
+
+    /**
+     * Creates the service.
+     */
+    public MaintenanceService() {
+        super(MaintenanceService.class.getSimpleName());
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (!isIdleAndCharging()) {
+            logger.debug("Skipping maintenance, as the device is in use or not charging.");
+            return;
+        }
+        try {
+            MaintenanceScheduler.runMaintenance(this);
+        } catch (RuntimeException e) {
+            logger.error("Database maintenance failed.", e);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isIdleAndCharging() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        return charging && !powerManager.isScreenOn();
+    }
+}
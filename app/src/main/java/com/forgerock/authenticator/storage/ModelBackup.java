@@ -0,0 +1,392 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.InvalidNotificationException;
+import com.forgerock.authenticator.mechanisms.MechanismCreationException;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
+import com.forgerock.authenticator.notifications.Notification;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Writes the model to, and restores it from, a compact binary backup.
+ *
+ * A backup starts with a magic number, the format version and a set of flags. It is followed by
+ * one section for each Identity, which holds the Identity, its Mechanisms and, optionally, their
+ * notification history, and ends with a section holding the number of Identities and Mechanisms
+ * written. Each section is written as its type, its length and a CRC32 of its body, followed by
+ * the body. Only one section is held in memory at a time, when both writing and reading.
+ *
+ * Secrets are encrypted with AES-GCM under a backup key supplied by the caller, in the same layout
+ * as secrets held in storage. The backup key cannot be the data key of this device, which never
+ * leaves the key store, as the backup could then only be restored here; the caller is responsible
+ * for deriving or holding it. Everything other than the secrets is written unencrypted. As AES-GCM
+ * is not available before Android 4.4, backups holding secrets cannot be written or restored there.
+ */
+public class ModelBackup {
+    /** The version of the format written by this class */
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int MAGIC = 0x46524142; // "FRAB"
+    private static final int NOTIFICATIONS_FLAG = 1;
+    private static final byte IDENTITY_SECTION = 1;
+    private static final byte END_SECTION = 2;
+    private static final int MAX_SECTION_LENGTH = 16 * 1024 * 1024;
+    private static final long NOT_STORED = -1;
+
+    private final IdentityModel model;
+    private final CoreMechanismFactory coreMechanismFactory;
+    private final SecretEncryption encryption;
+
+    /**
+     * Creates a backup for the provided model.
+     * @param model The model to write, and to restore Identities into.
+     * @param factory The factory used to restore Mechanisms.
+     * @param backupKey The AES key which secrets are encrypted with when written, and decrypted with
+     *                  when restored.
+     */
+    public ModelBackup(IdentityModel model, CoreMechanismFactory factory, final SecretKey backupKey) {
+        this.model = model;
+        coreMechanismFactory = factory;
+        encryption = new SecretEncryption(new DataKeyProvider() {
+            @Override
+            public SecretKey getDataKey(boolean create) {
+                return backupKey;
+            }
+        });
+    }
+
+    /**
+     * Writes a backup of the model to the stream. The stream is not closed.
+     * @param output The stream to write to.
+     * @param includeNotifications True if the notification history should be included.
+     * @throws IOException If the backup could not be written.
+     */
+    public void write(OutputStream output, boolean includeNotifications) throws IOException {
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(output));
+        stream.writeInt(MAGIC);
+        stream.writeInt(FORMAT_VERSION);
+        stream.writeByte(includeNotifications ? NOTIFICATIONS_FLAG : 0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+        int identityCount = 0;
+        int mechanismCount = 0;
+
+        for (Identity identity : model.getIdentities()) {
+            bytes.reset();
+            writeString(body, identity.getIssuer());
+            writeString(body, identity.getAccountName());
+            writeString(body, identity.getImageURL() == null ? null : identity.getImageURL().toString());
+            writeString(body, identity.getBackgroundColor());
+            body.writeInt(identity.getMechanisms().size());
+            for (Mechanism mechanism : identity.getMechanisms()) {
+                writeMechanism(encryption, body, mechanism, includeNotifications);
+                mechanismCount++;
+            }
+            writeSection(stream, IDENTITY_SECTION, body, bytes, crc);
+            identityCount++;
+        }
+
+        bytes.reset();
+        body.writeInt(identityCount);
+        body.writeInt(mechanismCount);
+        writeSection(stream, END_SECTION, body, bytes, crc);
+        stream.flush();
+    }
+
+    private static void writeMechanism(SecretEncryption encryption, DataOutputStream body, Mechanism mechanism,
+                                       boolean includeNotifications) throws IOException {
+        MechanismRecord record = mechanism.asRecord();
+        body.writeUTF(mechanism.getInfo().getMechanismString());
+        body.writeInt(mechanism.getVersion());
+        writeString(body, mechanism.getMechanismUID());
+        writeString(body, record.getTokenType());
+        writeString(body, record.getAlgorithm());
+        writeLong(body, record.getDigits() == null ? null : record.getDigits().longValue());
+        writeLong(body, record.getPeriod() == null ? null : record.getPeriod().longValue());
+        writeLong(body, record.getCounter());
+        byte[] secret = record.getSecret();
+        try {
+            writeBytes(body, secret == null ? null : encryption.encrypt(secret));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt secret", e);
+        }
+        writeString(body, record.getEndpoint());
+        writeMap(body, record.getExtras());
+
+        if (!includeNotifications) {
+            body.writeInt(0);
+            return;
+        }
+        body.writeInt(mechanism.getNotifications().size());
+        for (Notification notification : mechanism.getNotifications()) {
+            body.writeLong(notification.getTimeAdded().getTimeInMillis());
+            body.writeLong(notification.getTimeExpired().getTimeInMillis());
+            body.writeBoolean(notification.wasApproved());
+            body.writeBoolean(notification.isPending());
+            writeMap(body, notification.getData());
+        }
+    }
+
+    private static void writeSection(DataOutputStream stream, byte type, DataOutputStream body,
+                                     ByteArrayOutputStream bytes, CRC32 crc) throws IOException {
+        body.flush();
+        byte[] content = bytes.toByteArray();
+        crc.reset();
+        crc.update(content, 0, content.length);
+        stream.writeByte(type);
+        stream.writeInt(content.length);
+        stream.writeInt((int) crc.getValue());
+        stream.write(content);
+    }
+
+    /**
+     * Restores a backup into the storage system, within a single transaction. Identities and
+     * Mechanisms which are already stored are skipped. If the backup is damaged, or was written
+     * with a different backup key, nothing is restored. The stream is not closed.
+     * @param input The stream to read from.
+     * @param storageSystem The storage system to restore into.
+     * @return The number of Mechanisms restored.
+     * @throws BackupFormatException If the stream does not contain a complete, valid backup which
+     * can be decrypted with the backup key.
+     * @throws IOException If the backup could not be read.
+     */
+    public int restore(InputStream input, StorageSystem storageSystem) throws IOException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(input));
+        int restored = 0;
+
+        storageSystem.beginTransaction();
+        try {
+            int flags;
+            try {
+                if (stream.readInt() != MAGIC) {
+                    throw new BackupFormatException("Not a backup");
+                }
+                int version = stream.readInt();
+                if (version != FORMAT_VERSION) {
+                    throw new BackupFormatException("Unsupported backup version " + version);
+                }
+                flags = stream.readByte();
+            } catch (EOFException e) {
+                throw new BackupFormatException("Not a backup", e);
+            }
+
+            CRC32 crc = new CRC32();
+            byte[] content = new byte[0];
+            int identityCount = 0;
+            int mechanismCount = 0;
+
+            while (true) {
+                byte type;
+                int length;
+                try {
+                    type = stream.readByte();
+                    length = stream.readInt();
+                    if (length < 0 || length > MAX_SECTION_LENGTH) {
+                        throw new BackupFormatException("Invalid section length " + length);
+                    }
+                    int checksum = stream.readInt();
+                    if (content.length < length) {
+                        content = new byte[Math.max(length, content.length * 2)];
+                    }
+                    stream.readFully(content, 0, length);
+                    crc.reset();
+                    crc.update(content, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new BackupFormatException("Backup section " + identityCount + " is damaged");
+                    }
+                } catch (EOFException e) {
+                    throw new BackupFormatException("Backup is incomplete", e);
+                }
+
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(content, 0, length));
+                if (type == END_SECTION) {
+                    if (body.readInt() != identityCount || body.readInt() != mechanismCount) {
+                        throw new BackupFormatException("Backup is incomplete");
+                    }
+                    break;
+                } else if (type == IDENTITY_SECTION) {
+                    Identity identity = readIdentity(body);
+                    storageSystem.addIdentity(identity);
+                    int count = body.readInt();
+                    for (int i = 0; i < count; i++) {
+                        if (restoreMechanism(body, identity, storageSystem, (flags & NOTIFICATIONS_FLAG) != 0)) {
+                            restored++;
+                        }
+                    }
+                    identityCount++;
+                    mechanismCount += count;
+                } else {
+                    throw new BackupFormatException("Unknown backup section " + type);
+                }
+            }
+            storageSystem.setTransactionSuccessful();
+        } finally {
+            storageSystem.endTransaction();
+        }
+        return restored;
+    }
+
+    private Identity readIdentity(DataInputStream body) throws IOException {
+        return Identity.builder()
+                .setIssuer(readString(body))
+                .setAccountName(readString(body))
+                .setImageURL(readString(body))
+                .setBackgroundColor(readString(body))
+                .build(model);
+    }
+
+    private boolean restoreMechanism(DataInputStream body, Identity identity, StorageSystem storageSystem,
+                                     boolean includesNotifications) throws IOException {
+        String type = body.readUTF();
+        int version = body.readInt();
+        String mechanismUID = readString(body);
+        MechanismRecord record = new MechanismRecord()
+                .setTokenType(readString(body))
+                .setAlgorithm(readString(body));
+        Long digits = readLong(body);
+        Long period = readLong(body);
+        record.setDigits(digits == null ? null : digits.intValue())
+                .setPeriod(period == null ? null : period.intValue())
+                .setCounter(readLong(body));
+        byte[] encryptedSecret = readBytes(body);
+        try {
+            record.setSecret(encryptedSecret == null ? null : encryption.decrypt(encryptedSecret));
+        } catch (GeneralSecurityException e) {
+            throw new BackupFormatException("Backup was written with a different key", e);
+        }
+        record.setEndpoint(readString(body))
+                .putExtras(readMap(body));
+
+        Mechanism mechanism;
+        try {
+            mechanism = coreMechanismFactory.restoreFromRecord(type, version, record)
+                    .setMechanismUID(mechanismUID)
+                    .build(identity);
+        } catch (MechanismCreationException e) {
+            throw new BackupFormatException("Backup contains an invalid mechanism", e);
+        }
+        boolean added = storageSystem.addMechanism(mechanism) != NOT_STORED;
+
+        int notificationCount = body.readInt();
+        if (notificationCount > 0 && !includesNotifications) {
+            throw new BackupFormatException("Backup contains unexpected notifications");
+        }
+        for (int i = 0; i < notificationCount; i++) {
+            long timeAdded = body.readLong();
+            long timeExpired = body.readLong();
+            boolean approved = body.readBoolean();
+            boolean pending = body.readBoolean();
+            Map<String, String> data = readMap(body);
+            if (!added) {
+                continue;
+            }
+            try {
+                Notification notification = NotificationStore.newNotificationBuilder(NOT_STORED, timeAdded,
+                        timeExpired, approved, pending, data).build(mechanism);
+                storageSystem.addNotification(notification);
+            } catch (InvalidNotificationException e) {
+                throw new BackupFormatException("Backup contains an invalid notification", e);
+            }
+        }
+        return added;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private static void writeLong(DataOutputStream output, Long value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeLong(value);
+        }
+    }
+
+    private static Long readLong(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readLong() : null;
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] value) throws IOException {
+        output.writeInt(value == null ? -1 : value.length);
+        if (value != null) {
+            output.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        input.readFully(value);
+        return value;
+    }
+
+    private static void writeMap(DataOutputStream output, Map<String, String> map) throws IOException {
+        int count = 0;
+        for (String value : map.values()) {
+            count += value == null ? 0 : 1;
+        }
+        output.writeInt(count);
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (entry.getValue() != null) {
+                output.writeUTF(entry.getKey());
+                output.writeUTF(entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            map.put(input.readUTF(), input.readUTF());
+        }
+        return map;
+    }
+}
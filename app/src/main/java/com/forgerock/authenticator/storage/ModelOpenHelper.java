@@ -23,11 +23,13 @@ import android.support.annotation.VisibleForTesting;
 import com.forgerock.authenticator.identity.Identity;
 import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
-import com.forgerock.authenticator.model.ModelObject;
 import com.forgerock.authenticator.notifications.Notification;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Used by the app to update the storage system to the latest version.
@@ -40,6 +42,7 @@ public class ModelOpenHelper {
     private final int DATABASE_V1 = 2;
 
     private final int STORAGE_VERSION = DATABASE_V1;
+    private static final long INSERT_FAILED = -1;
 
     private final String INFO_NAME = "applicationInfo";
     private final String LAST_VERSION = "lastVersion";
@@ -61,135 +64,173 @@ public class ModelOpenHelper {
      * @return The Identity model.
      */
     public IdentityModel getModel() {
-        processVersion();
+        IdentityModel upgradedModel = processVersion();
+        if (upgradedModel != null) {
+            return upgradedModel;
+        }
         return getModelFromLatest(context);
     }
 
-    private void processVersion() {
-        int lastVersion;
+    /**
+     * Opens the latest storage system for reading individual entries, without loading the model.
+     * This is only possible when no upgrade is pending, as entries may otherwise still be held in
+     * an old storage system.
+     * @param model The model that entries read from the database will belong to.
+     * @return The database, or null if an upgrade is pending.
+     */
+    public IdentityDatabase openLatestDatabase(IdentityModel model) {
+        if (getLastVersion() != STORAGE_VERSION) {
+            return null;
+        }
+        return new IdentityDatabase(context, new CoreMechanismFactory(context, model));
+    }
+
+    private IdentityModel processVersion() {
+        return handleUpgrade(getLastVersion());
+    }
+
+    private int getLastVersion() {
         if (!sharedPreferences.contains(LAST_VERSION)) {
             // Determine whether this has not been set due to this being the first run, or an old version.
             if (context.getApplicationContext()
                     .getSharedPreferences("tokens", Context.MODE_PRIVATE)
                     .contains("tokenOrder")) {
-                lastVersion = 1;
-            } else {
-                lastVersion = STORAGE_VERSION;
+                return 1;
             }
-        } else {
-            lastVersion = sharedPreferences.getInt(LAST_VERSION, STORAGE_VERSION);
+            return STORAGE_VERSION;
         }
-        handleUpgrade(lastVersion);
+        return sharedPreferences.getInt(LAST_VERSION, STORAGE_VERSION);
     }
 
-    private void handleUpgrade(int lastVersion) {
+    private IdentityModel handleUpgrade(int lastVersion) {
         if (lastVersion == STORAGE_VERSION) {
-            return;
+            return null;
         }
 
-        IdentityModel oldModel = getModelFromSystem(context, lastVersion);
-        List<ModelObject> oldData = extractNonIdentityData(oldModel);
-        StorageSystem oldStorage = oldModel.getStorageSystem();
-
-        IdentityModel latestModel = getModelFromLatest(context);
-        List<ModelObject> originalData = extractNonIdentityData(getModelFromLatest(context));
-
-        removeOutdatedDataFromOldStorage(oldData, originalData);
-        oldModel.transferStorage(latestModel.getStorageSystem());
-        removeUnexpectedDataFromNewStorage(oldData, originalData);
-        clearSuccessfullyTransferredValuesFromOldStorage(lastVersion);
+        IdentityModel oldModel = new IdentityModel(context);
+        StorageSystem oldStorage = getStorageSystem(lastVersion, new CoreMechanismFactory(context, oldModel));
+        IdentityModel latestModel = migrate(oldModel, oldStorage);
 
         if (oldStorage.isEmpty()) {
             sharedPreferences.edit().putInt(LAST_VERSION, STORAGE_VERSION).apply();
         }
+        return latestModel;
     }
 
     /**
-     * Establish which values already exist in the new storage, and throw those away in the old storage
-     * (prevents overwrite)
+     * Loads the old model from the old storage system, and transfers its data into the latest
+     * storage system. Entries read from SharedPreferences are transferred batch by batch as they
+     * are read, so that the old entries are read and written in a single pass. Each store is
+     * loaded once, and entries are matched on their issuer, account name and mechanism type.
+     * Data already present in the latest storage system is never overwritten. Old entries are only
+     * removed from the old storage system once they are found intact in the latest storage system,
+     * or are superseded by data which was present before the transfer. Where several old entries
+     * share a key, only the one which was transferred is removed, and the others are left intact.
+     * @param oldModel The empty model to load from the old storage system.
+     * @param oldStorage The old storage system.
+     * @return The model loaded from the latest storage system after the transfer.
      */
-    private void removeOutdatedDataFromOldStorage(List<ModelObject> oldData, List<ModelObject> originalData) {
-        List<ModelObject> matching = intersectMatching(oldData, originalData);
-        for (ModelObject current : matching) {
-            current.delete();
-        }
-    }
+    @VisibleForTesting
+    IdentityModel migrate(IdentityModel oldModel, StorageSystem oldStorage) {
+        final StorageSystem newStorage = getStorageSystem(STORAGE_VERSION,
+                new CoreMechanismFactory(context, oldModel));
+        // The old entry which was transferred under each key
+        final Map<MechanismKey, Mechanism> transferred = new HashMap<>();
 
-    /**
-     * Establish what data is expected to be present after the transfer
-     * Compare expected data with actual data, delete any unexpected from new storage
-     * (prevents incorrect transfer)
-     */
-    private void removeUnexpectedDataFromNewStorage(List<ModelObject> oldData, List<ModelObject> originalData) {
-        List<ModelObject> expectedData = new ArrayList<>();
-        expectedData.addAll(oldData);
-        expectedData.removeAll(intersectMatching(oldData, originalData));
-        expectedData.addAll(originalData);
-
-        List<ModelObject> postAddData = extractNonIdentityData(getModelFromLatest(context));
-
-        List<ModelObject> unexpectedData = new ArrayList<>();
-        unexpectedData.addAll(postAddData);
-        unexpectedData.removeAll(expectedData);
-        for (ModelObject current : unexpectedData) {
-            current.delete();
+        if (oldStorage instanceof SharedPreferencesStorage) {
+            ((SharedPreferencesStorage) oldStorage).setBatchListener(
+                    new SharedPreferencesStorage.IdentityBatchListener() {
+                        @Override
+                        public void onBatch(List<Identity> identities) {
+                            transfer(identities, newStorage, transferred);
+                        }
+                    });
+            oldModel.loadFromStorageSystem(oldStorage);
+        } else {
+            oldModel.loadFromStorageSystem(oldStorage);
+            transfer(oldModel.getIdentities(), newStorage, transferred);
         }
-    }
 
-    private List<ModelObject> extractNonIdentityData(IdentityModel model) {
-        List<ModelObject> result = new ArrayList<>();
-        result.addAll(model.getMechanisms());
-        result.addAll(model.getNotifications());
-        return result;
-    }
-
-    private void clearSuccessfullyTransferredValuesFromOldStorage(int lastVersion) {
-
-        List<Identity> oldModel = getModelFromSystem(context, lastVersion).getIdentities();
-        List<Identity> newModel = getModelFromLatest(context).getIdentities();
+        IdentityModel latestModel = getModelFromLatest(context);
+        Map<MechanismKey, Mechanism> storedMechanisms = new HashMap<>();
+        for (Mechanism mechanism : latestModel.getMechanisms()) {
+            storedMechanisms.put(new MechanismKey(mechanism), mechanism);
+        }
 
-        for (Identity oldIdentity : new ArrayList<>(oldModel)) {
-            if (containsMatching(newModel, oldIdentity)) {
-                Identity newIdentity = getMatching(newModel, oldIdentity);
-                for (Mechanism oldMechanism : new ArrayList<>(oldIdentity.getMechanisms())) {
-                    if (newIdentity.getMechanisms().contains(oldMechanism)) {
-                        for (Notification oldNotification : new ArrayList<>(oldMechanism.getNotifications())) {
-                            oldMechanism.removeNotification(oldNotification);
+        oldStorage.beginTransaction();
+        try {
+            for (Identity oldIdentity : oldModel.getIdentities()) {
+                List<Mechanism> completed = new ArrayList<>();
+                for (Mechanism oldMechanism : oldIdentity.getMechanisms()) {
+                    MechanismKey key = new MechanismKey(oldMechanism);
+                    Mechanism storedMechanism = storedMechanisms.get(key);
+                    if (storedMechanism == null) {
+                        // Failed to transfer, so leave the old data intact
+                        continue;
+                    }
+                    Mechanism transferredMechanism = transferred.get(key);
+                    if (transferredMechanism == oldMechanism) {
+                        if (storedMechanism.equals(oldMechanism)) {
+                            completed.add(oldMechanism);
+                        } else {
+                            // Transferred incorrectly, so remove from the latest storage system
+                            storedMechanism.getOwner().removeMechanism(storedMechanism);
                         }
-                        oldIdentity.removeMechanism(oldMechanism);
+                    } else if (transferredMechanism == null) {
+                        // Present before the transfer, so the latest storage system takes precedence
+                        completed.add(oldMechanism);
+                    }
+                    // Otherwise the stored entry belongs to another old entry with the same key, so
+                    // this one could not be transferred and is left intact
+                }
+                if (completed.size() == oldIdentity.getMechanisms().size()) {
+                    oldIdentity.delete();
+                } else {
+                    for (Mechanism oldMechanism : completed) {
+                        oldMechanism.delete();
                     }
                 }
             }
-            // Note that the Identity is not explicitly deleted, as it will be implicitly deleted if it has 0 mechanisms.
-        }
-    }
-
-    private <T extends ModelObject<T>> List<T> intersectMatching(List<T> groupA, List<T> groupB) {
-        List<T> result = new ArrayList<>(groupA);
-        for (T oldObject : groupA) {
-            if (!containsMatching(groupB, oldObject)) {
-                result.remove(oldObject);
-            }
+            oldStorage.setTransactionSuccessful();
+        } finally {
+            oldStorage.endTransaction();
         }
-        return result;
-    }
 
-    private <T extends ModelObject<T>> T getMatching(List<T> list, T modelObject) {
-        for (T current : list) {
-            if (modelObject.getClass().equals(current.getClass()) && modelObject.matches(current)) {
-                return current;
-            }
-        }
-        return null;
+        return latestModel;
     }
 
-    private <T extends ModelObject<T>> boolean containsMatching(List<T> list, T modelObject) {
-        for (T current : list) {
-            if (modelObject.getClass().equals(current.getClass()) && modelObject.matches(current)) {
-                return true;
+    /**
+     * Adds the old Identities, and their Mechanisms and Notifications, to the latest storage
+     * system in one transaction. Identities which fail to validate are not transferred.
+     * @param identities The old Identities.
+     * @param newStorage The latest storage system.
+     * @param transferred The old Mechanism transferred under each key, which is added to.
+     */
+    private static void transfer(List<Identity> identities, StorageSystem newStorage,
+                                 Map<MechanismKey, Mechanism> transferred) {
+        newStorage.beginTransaction();
+        try {
+            for (Identity identity : identities) {
+                if (!identity.validate()) {
+                    continue;
+                }
+                // Fails without effect if the identity is already present
+                newStorage.addIdentity(identity);
+                for (Mechanism mechanism : identity.getMechanisms()) {
+                    MechanismKey key = new MechanismKey(mechanism);
+                    if (newStorage.addMechanism(mechanism) == INSERT_FAILED) {
+                        continue;
+                    }
+                    transferred.put(key, mechanism);
+                    for (Notification notification : mechanism.getNotifications()) {
+                        newStorage.addNotification(notification);
+                    }
+                }
             }
+            newStorage.setTransactionSuccessful();
+        } finally {
+            newStorage.endTransaction();
         }
-        return false;
     }
 
     private StorageSystem getStorageSystem(int version, CoreMechanismFactory mechanismFactory) {
@@ -216,4 +257,36 @@ public class ModelOpenHelper {
     protected IdentityModel getModelFromLatest(Context context) {
         return getModelFromSystem(context, STORAGE_VERSION);
     }
+
+    /**
+     * Identifies a Mechanism across storage systems. At most one Mechanism of each type may exist
+     * for an Identity.
+     */
+    private static final class MechanismKey {
+        private final String issuer;
+        private final String accountName;
+        private final String type;
+
+        private MechanismKey(Mechanism mechanism) {
+            issuer = mechanism.getOwner().getIssuer();
+            accountName = mechanism.getOwner().getAccountName();
+            type = mechanism.getInfo().getMechanismString();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof MechanismKey)) {
+                return false;
+            }
+            MechanismKey otherKey = (MechanismKey) other;
+            return issuer.equals(otherKey.issuer)
+                    && accountName.equals(otherKey.accountName)
+                    && type.equals(otherKey.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { issuer, accountName, type });
+        }
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.VisibleForTesting;
+
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.utils.TimeKeeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the notification retention policy in the background, so that the size of the database
+ * and the time taken to load the model stay bounded. Storage is compacted with bulk deletes on a
+ * background thread, after which the model is pruned to match on the main thread.
+ */
+public class NotificationCompactor {
+    private static final long MIN_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final IdentityModel model;
+    private final Settings settings;
+    private final Executor executor;
+    private final Handler handler;
+    private final TimeKeeper timeKeeper;
+    private long lastCompaction = Long.MIN_VALUE;
+
+    private static final Logger logger = LoggerFactory.getLogger(NotificationCompactor.class);
+
+    /**
+     * Creates a compactor for the provided model.
+     * @param model The model to compact.
+     * @param settings The settings holding the retention policy.
+     */
+    public NotificationCompactor(IdentityModel model, Settings settings) {
+        this(model, settings, Executors.newSingleThreadExecutor(), new Handler(Looper.getMainLooper()),
+                new TimeKeeper());
+    }
+
+    @VisibleForTesting
+    NotificationCompactor(IdentityModel model, Settings settings, Executor executor, Handler handler,
+                          TimeKeeper timeKeeper) {
+        this.model = model;
+        this.settings = settings;
+        this.executor = executor;
+        this.handler = handler;
+        this.timeKeeper = timeKeeper;
+    }
+
+    /**
+     * Requests that the retention policy is applied. Requests made within an hour of the last
+     * compaction are ignored.
+     */
+    public synchronized void requestCompaction() {
+        final long now = timeKeeper.getCurrentTimeMillis();
+        if (lastCompaction != Long.MIN_VALUE && now - lastCompaction < MIN_INTERVAL_MILLIS) {
+            return;
+        }
+        lastCompaction = now;
+        final NotificationRetentionPolicy policy = settings.getNotificationRetentionPolicy();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int removed = model.getStorageSystem().compactNotifications(policy, now);
+                logger.debug("Removed {} notifications from history.", removed);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        model.pruneNotifications(policy, now);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.NotificationStatistics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Stores Notifications in a segmented, memory-mapped, append-only log. Notifications are added
+ * far more often than they are changed, and are only ever changed by being answered, so each
+ * change is appended as a small patch or tombstone record rather than rewriting the notification.
+ *
+ * Each record is written as its length, a CRC32 of its body, and the body. The length is written
+ * last, so a record which was only partly written is ignored when the log is opened. The index is
+ * held in memory and rebuilt by a single sequential scan of the segments on open. Once less than
+ * half of the log is live, the live notifications are rewritten to a new generation of segments
+ * in the background.
+ *
+ * The log is used in place of the notification table when the NOTIFICATION_LOG build option is
+ * enabled and no notifications are yet stored in the database. Once created, the log is used
+ * whatever the build option, so that the notifications it holds are not lost.
+ */
+class NotificationLog extends NotificationStore {
+    /** The name of the directory, within the files directory, which holds the log */
+    static final String DIRECTORY_NAME = "notification_log";
+    /** The default size of each segment in bytes */
+    static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String CURRENT_FILE_NAME = "CURRENT";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("gen-(\\d+)-(\\d+)\\.seg");
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte ADD = 1;
+    private static final byte PATCH = 2;
+    private static final byte TOMBSTONE = 3;
+
+    private static final int APPROVED_FLAG = 1;
+    private static final int PENDING_FLAG = 2;
+
+    private final File directory;
+    private final int segmentSize;
+    private final Executor executor;
+    private final TreeMap<Long, Entry> entries = new TreeMap<>();
+    private final Map<String, TreeMap<Long, Entry>> mechanismEntries = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private int generation;
+    private long nextId = 1;
+    private long liveBytes;
+    private long totalBytes;
+    private boolean rewriteScheduled;
+
+    private static NotificationLog instance;
+    private static Context instanceContext;
+
+    private static final Logger logger = LoggerFactory.getLogger(NotificationLog.class);
+
+    /**
+     * Gets the log shared by the application, opening it if necessary. Only one log may be open
+     * on a directory, as each appends to its segments.
+     * @param context The context that requested the log.
+     * @return The shared log.
+     * @throws IOException If the log could not be opened.
+     */
+    static synchronized NotificationLog getInstance(Context context) throws IOException {
+        Context applicationContext = context.getApplicationContext();
+        if (instance == null || instanceContext != applicationContext) {
+            instance = new NotificationLog(applicationContext);
+            instanceContext = applicationContext;
+        }
+        return instance;
+    }
+
+    /**
+     * Determines whether the log has been created in the files directory of the provided Context.
+     * @param context The context to check.
+     * @return True if the log exists, false otherwise.
+     */
+    static boolean exists(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME).exists();
+    }
+
+    /**
+     * Opens the log held in the files directory of the provided Context.
+     * @param context The context that requested the log.
+     * @throws IOException If the log could not be opened.
+     */
+    NotificationLog(Context context) throws IOException {
+        this(new File(context.getFilesDir(), DIRECTORY_NAME), DEFAULT_SEGMENT_SIZE,
+                Executors.newSingleThreadExecutor());
+    }
+
+    @VisibleForTesting
+    NotificationLog(File directory, int segmentSize, Executor executor) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.executor = executor;
+        open();
+    }
+
+    @Override
+    synchronized long addNotification(Notification notification) {
+        String mechanismUID = notification.getMechanism().getMechanismUID();
+        long timeAdded = notification.getTimeAdded().getTimeInMillis();
+        if (mechanismUID == null) {
+            return -1;
+        }
+        TreeMap<Long, Entry> history = mechanismEntries.get(mechanismUID);
+        if (history != null && history.containsKey(timeAdded)) {
+            return -1;
+        }
+
+        Map<String, String> data = new HashMap<>();
+        if (notification.getData() != null) {
+            for (Map.Entry<String, String> item : notification.getData().entrySet()) {
+                if (item.getKey() != null && item.getValue() != null) {
+                    data.put(item.getKey(), item.getValue());
+                }
+            }
+        }
+        Entry entry = new Entry(nextId, mechanismUID, timeAdded,
+                notification.getTimeExpired().getTimeInMillis(), data);
+        entry.flags = flags(notification.wasApproved(), notification.isPending());
+
+        try {
+            entry.size = append(encodeAdd(entry));
+        } catch (IOException e) {
+            logger.error("Failed to append notification to log.", e);
+            return -1;
+        }
+        nextId++;
+        index(entry);
+        return entry.id;
+    }
+
+    @Override
+    synchronized boolean updateNotification(long notificationId, Notification notification) {
+        Entry entry = entries.get(notificationId);
+        if (entry == null) {
+            return false;
+        }
+        int flags = flags(notification.wasApproved(), notification.isPending());
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeByte(PATCH);
+            output.writeLong(notificationId);
+            output.writeByte(flags);
+            output.flush();
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            logger.error("Failed to append notification update to log.", e);
+            return false;
+        }
+        entry.flags = flags;
+        scheduleRewriteIfSparse();
+        return true;
+    }
+
+    @Override
+    synchronized boolean deleteNotification(long notificationId) {
+        Entry entry = entries.get(notificationId);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            appendTombstone(notificationId);
+        } catch (IOException e) {
+            logger.error("Failed to append notification removal to log.", e);
+            return false;
+        }
+        unindex(notificationId);
+        scheduleRewriteIfSparse();
+        return true;
+    }
+
+    @Override
+    synchronized int deleteNotifications(String mechanismUID) {
+        return deleteMatching(mechanismUID, Long.MAX_VALUE, true);
+    }
+
+    @Override
+    synchronized int deleteInactiveNotifications(String mechanismUID, long now) {
+        return deleteMatching(mechanismUID, now, false);
+    }
+
+    private int deleteMatching(String mechanismUID, long now, boolean includeActive) {
+        TreeMap<Long, Entry> history = mechanismEntries.get(mechanismUID);
+        if (history == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (Entry entry : new ArrayList<>(history.values())) {
+            boolean pending = (entry.flags & PENDING_FLAG) != 0;
+            if (includeActive || !pending || entry.timeExpired < now) {
+                try {
+                    appendTombstone(entry.id);
+                } catch (IOException e) {
+                    logger.error("Failed to append notification removal to log.", e);
+                    break;
+                }
+                unindex(entry.id);
+                deleted++;
+            }
+        }
+        scheduleRewriteIfSparse();
+        return deleted;
+    }
+
+    @Override
+    synchronized List<Notification.NotificationBuilder> getNotificationBuilders(String mechanismUID) {
+        List<Notification.NotificationBuilder> result = new ArrayList<>();
+        TreeMap<Long, Entry> history = mechanismEntries.get(mechanismUID);
+        if (history == null) {
+            return result;
+        }
+        for (Entry entry : history.values()) {
+            result.add(newNotificationBuilder(entry.id, entry.timeAdded, entry.timeExpired,
+                    (entry.flags & APPROVED_FLAG) != 0, (entry.flags & PENDING_FLAG) != 0,
+                    new HashMap<>(entry.data)));
+        }
+        return result;
+    }
+
+    @Override
+    synchronized Map<String, NotificationStatistics> compact(NotificationRetentionPolicy policy, long now) {
+        Map<String, NotificationStatistics> result = new HashMap<>();
+        List<Entry> removed = new ArrayList<>();
+
+        for (Map.Entry<String, TreeMap<Long, Entry>> history : mechanismEntries.entrySet()) {
+            NotificationRetentionPolicy.Selector selector = policy.newSelector(now);
+            long approved = 0;
+            long denied = 0;
+            long expired = 0;
+            for (Entry entry : history.getValue().descendingMap().values()) {
+                boolean isApproved = (entry.flags & APPROVED_FLAG) != 0;
+                boolean isPending = (entry.flags & PENDING_FLAG) != 0;
+                if (selector.remove(isPending, isApproved, entry.timeAdded, entry.timeExpired)) {
+                    removed.add(entry);
+                    if (isPending) {
+                        expired++;
+                    } else if (isApproved) {
+                        approved++;
+                    } else {
+                        denied++;
+                    }
+                }
+            }
+            if (approved + denied + expired > 0) {
+                result.put(history.getKey(), new NotificationStatistics(approved, denied, expired));
+            }
+        }
+
+        for (Entry entry : removed) {
+            try {
+                appendTombstone(entry.id);
+            } catch (IOException e) {
+                logger.error("Failed to append notification removal to log.", e);
+                // Only report the notifications which were removed before the failure
+                return statisticsOf(removed.subList(0, removed.indexOf(entry)));
+            }
+            unindex(entry.id);
+        }
+        scheduleRewriteIfSparse();
+        return result;
+    }
+
+    @Override
+    boolean enforcesMechanismReference() {
+        return false;
+    }
+
+    private Map<String, NotificationStatistics> statisticsOf(List<Entry> removed) {
+        Map<String, NotificationStatistics> result = new HashMap<>();
+        for (Entry entry : removed) {
+            NotificationStatistics statistics = result.get(entry.mechanismUID);
+            if (statistics == null) {
+                statistics = NotificationStatistics.EMPTY;
+            }
+            if ((entry.flags & PENDING_FLAG) != 0) {
+                statistics = statistics.add(new NotificationStatistics(0, 0, 1));
+            } else if ((entry.flags & APPROVED_FLAG) != 0) {
+                statistics = statistics.add(new NotificationStatistics(1, 0, 0));
+            } else {
+                statistics = statistics.add(new NotificationStatistics(0, 1, 0));
+            }
+            result.put(entry.mechanismUID, statistics);
+        }
+        return result;
+    }
+
+    private static int flags(boolean approved, boolean pending) {
+        return (approved ? APPROVED_FLAG : 0) | (pending ? PENDING_FLAG : 0);
+    }
+
+    private void index(Entry entry) {
+        entries.put(entry.id, entry);
+        TreeMap<Long, Entry> history = mechanismEntries.get(entry.mechanismUID);
+        if (history == null) {
+            history = new TreeMap<>();
+            mechanismEntries.put(entry.mechanismUID, history);
+        }
+        history.put(entry.timeAdded, entry);
+        liveBytes += entry.size;
+    }
+
+    private void unindex(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        TreeMap<Long, Entry> history = mechanismEntries.get(entry.mechanismUID);
+        history.remove(entry.timeAdded);
+        if (history.isEmpty()) {
+            mechanismEntries.remove(entry.mechanismUID);
+        }
+        liveBytes -= entry.size;
+    }
+
+    private void appendTombstone(long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(TOMBSTONE);
+        output.writeLong(id);
+        output.flush();
+        append(bytes.toByteArray());
+    }
+
+    private static byte[] encodeAdd(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(ADD);
+        output.writeLong(entry.id);
+        output.writeUTF(entry.mechanismUID);
+        output.writeLong(entry.timeAdded);
+        output.writeLong(entry.timeExpired);
+        output.writeByte(entry.flags);
+        output.writeInt(entry.data.size());
+        for (Map.Entry<String, String> item : entry.data.entrySet()) {
+            output.writeUTF(item.getKey());
+            output.writeUTF(item.getValue());
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Appends a record to the last segment, starting a new segment if it does not fit.
+     * @return The number of bytes used by the record.
+     */
+    private int append(byte[] body) throws IOException {
+        int size = HEADER_SIZE + body.length;
+        if (size > segmentSize) {
+            throw new IOException("Record of " + size + " bytes does not fit in a segment");
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.remaining() < size) {
+            segment.force();
+            segment = Segment.create(segmentFile(generation, segments.size()), segmentSize);
+            segments.add(segment);
+        }
+        segment.write(body);
+        totalBytes += size;
+        return size;
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        generation = readCurrentGeneration();
+
+        TreeMap<Integer, File> currentFiles = new TreeMap<>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches() && Integer.parseInt(matcher.group(1)) == generation) {
+                currentFiles.put(Integer.parseInt(matcher.group(2)), file);
+            } else if (!file.getName().equals(CURRENT_FILE_NAME)) {
+                // Left behind by a rewrite which did not complete
+                deleteFile(file);
+            }
+        }
+
+        for (File file : currentFiles.values()) {
+            Segment segment = Segment.open(file, segmentSize);
+            scan(segment);
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(segmentFile(generation, 0), segmentSize));
+        }
+    }
+
+    /**
+     * Applies each complete record in the segment to the index, leaving the segment positioned
+     * after the last complete record.
+     */
+    private void scan(Segment segment) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length <= 0 || length > buffer.limit() - start - HEADER_SIZE) {
+                break;
+            }
+            int checksum = buffer.getInt(start + 4);
+            byte[] body = new byte[length];
+            buffer.position(start + HEADER_SIZE);
+            buffer.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Ignoring incomplete record in notification log {}.", segment.file.getName());
+                buffer.position(start);
+                segment.clearRemaining();
+                break;
+            }
+            apply(body);
+            totalBytes += HEADER_SIZE + length;
+        }
+    }
+
+    private void apply(byte[] body) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = input.readByte();
+        long id = input.readLong();
+        switch (type) {
+            case ADD:
+                String mechanismUID = input.readUTF();
+                long timeAdded = input.readLong();
+                long timeExpired = input.readLong();
+                int flags = input.readByte();
+                int count = input.readInt();
+                Map<String, String> data = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    data.put(input.readUTF(), input.readUTF());
+                }
+                Entry entry = new Entry(id, mechanismUID, timeAdded, timeExpired, data);
+                entry.flags = flags;
+                entry.size = HEADER_SIZE + body.length;
+                index(entry);
+                nextId = Math.max(nextId, id + 1);
+                break;
+            case PATCH:
+                Entry patched = entries.get(id);
+                if (patched != null) {
+                    patched.flags = input.readByte();
+                }
+                break;
+            case TOMBSTONE:
+                unindex(id);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private void scheduleRewriteIfSparse() {
+        if (rewriteScheduled || segments.size() < 2 || liveBytes * 2 > totalBytes) {
+            return;
+        }
+        rewriteScheduled = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (NotificationLog.this) {
+                    rewriteScheduled = false;
+                    try {
+                        rewrite();
+                    } catch (IOException e) {
+                        logger.error("Failed to compact notification log.", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the live notifications to a new generation of segments, and switches to it once it
+     * is durable.
+     */
+    @VisibleForTesting
+    synchronized void rewrite() throws IOException {
+        int newGeneration = generation + 1;
+        List<Segment> newSegments = new ArrayList<>();
+        Segment segment = Segment.create(segmentFile(newGeneration, 0), segmentSize);
+        newSegments.add(segment);
+        long written = 0;
+
+        for (Entry entry : entries.values()) {
+            byte[] body = encodeAdd(entry);
+            if (segment.remaining() < HEADER_SIZE + body.length) {
+                segment.force();
+                segment = Segment.create(segmentFile(newGeneration, newSegments.size()), segmentSize);
+                newSegments.add(segment);
+            }
+            segment.write(body);
+            written += HEADER_SIZE + body.length;
+        }
+        segment.force();
+        writeCurrentGeneration(newGeneration);
+
+        for (Segment oldSegment : segments) {
+            deleteFile(oldSegment.file);
+        }
+        segments.clear();
+        segments.addAll(newSegments);
+        generation = newGeneration;
+        totalBytes = written;
+        liveBytes = written;
+    }
+
+    /**
+     * Gets the number of segment files in the current generation.
+     * @return The number of segments.
+     */
+    @VisibleForTesting
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private File segmentFile(int generation, int number) {
+        return new File(directory, "gen-" + generation + "-" + number + ".seg");
+    }
+
+    private int readCurrentGeneration() throws IOException {
+        File current = new File(directory, CURRENT_FILE_NAME);
+        if (!current.exists()) {
+            return 0;
+        }
+        DataInputStream input = new DataInputStream(new FileInputStream(current));
+        try {
+            return input.readInt();
+        } finally {
+            input.close();
+        }
+    }
+
+    private void writeCurrentGeneration(int newGeneration) throws IOException {
+        File temporary = new File(directory, CURRENT_FILE_NAME + ".tmp");
+        FileOutputStream output = new FileOutputStream(temporary);
+        try {
+            DataOutputStream data = new DataOutputStream(output);
+            data.writeInt(newGeneration);
+            data.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(new File(directory, CURRENT_FILE_NAME))) {
+            throw new IOException("Failed to switch notification log to generation " + newGeneration);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            logger.warn("Failed to delete {}.", file);
+        }
+    }
+
+    /**
+     * The indexed state of a single notification.
+     */
+    private static final class Entry {
+        private final long id;
+        private final String mechanismUID;
+        private final long timeAdded;
+        private final long timeExpired;
+        private final Map<String, String> data;
+        private int flags;
+        private int size;
+
+        private Entry(long id, String mechanismUID, long timeAdded, long timeExpired,
+                      Map<String, String> data) {
+            this.id = id;
+            this.mechanismUID = mechanismUID;
+            this.timeAdded = timeAdded;
+            this.timeExpired = timeExpired;
+            this.data = Collections.unmodifiableMap(data);
+        }
+    }
+
+    /**
+     * A single memory-mapped segment file. Records are written through the mapping, so are not
+     * lost if the process dies; they are forced to disk when the segment is full.
+     */
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private static Segment create(File file, int size) throws IOException {
+            return new Segment(file, map(file, size));
+        }
+
+        private static Segment open(File file, int size) throws IOException {
+            return new Segment(file, map(file, (int) Math.max(size, file.length())));
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                // The mapping remains valid once the file is closed
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        private int remaining() {
+            return buffer.remaining();
+        }
+
+        private void write(byte[] body) {
+            int start = buffer.position();
+            crc.reset();
+            crc.update(body, 0, body.length);
+            buffer.position(start + HEADER_SIZE);
+            buffer.put(body);
+            buffer.putInt(start + 4, (int) crc.getValue());
+            buffer.putInt(start, body.length);
+        }
+
+        private void clearRemaining() {
+            int start = buffer.position();
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0);
+            }
+            buffer.position(start);
+        }
+
+        private void force() {
+            buffer.force();
+        }
+    }
+}
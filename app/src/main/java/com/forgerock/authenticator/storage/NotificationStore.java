@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.NotificationStatistics;
+import com.forgerock.authenticator.notifications.PushNotification;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Stores the Notifications on behalf of the IdentityDatabase. Allows the Notifications, which are
+ * written far more often than Identities and Mechanisms, to be kept in a backend suited to them.
+ */
+abstract class NotificationStore {
+
+    /**
+     * Add the notification to the store.
+     * @param notification The notification to store.
+     * @return The id of the stored notification, or -1 if it could not be stored.
+     */
+    abstract long addNotification(Notification notification);
+
+    /**
+     * Update the pending and approved state of a stored notification.
+     * @param notificationId The id of the notification to update.
+     * @param notification The notification to update it with.
+     * @return True if the notification was updated, false otherwise.
+     */
+    abstract boolean updateNotification(long notificationId, Notification notification);
+
+    /**
+     * Delete the notification uniquely identified by an id.
+     * @param notificationId The id of the notification to delete.
+     * @return True if the notification was deleted, false otherwise.
+     */
+    abstract boolean deleteNotification(long notificationId);
+
+    /**
+     * Delete all of the notifications which belong to a Mechanism.
+     * @param mechanismUID The UID of the Mechanism.
+     * @return The number of notifications deleted.
+     */
+    abstract int deleteNotifications(String mechanismUID);
+
+    /**
+     * Delete the notifications which belong to a Mechanism and are no longer pending, or have
+     * expired.
+     * @param mechanismUID The UID of the Mechanism.
+     * @param now The current time in milliseconds.
+     * @return The number of notifications deleted.
+     */
+    abstract int deleteInactiveNotifications(String mechanismUID, long now);
+
+    /**
+     * Load the notifications which belong to a Mechanism.
+     * @param mechanismUID The UID of the Mechanism.
+     * @return Incomplete builders for each of the Mechanism's notifications.
+     */
+    abstract List<Notification.NotificationBuilder> getNotificationBuilders(String mechanismUID);
+
+    /**
+     * Delete the inactive notifications which are not kept under the retention policy.
+     * @param policy The retention policy to apply.
+     * @param now The current time in milliseconds.
+     * @return The statistics of the deleted notifications, for each Mechanism UID.
+     */
+    abstract Map<String, NotificationStatistics> compact(NotificationRetentionPolicy policy, long now);
+
+    /**
+     * Whether the store rejects notifications for Mechanisms which are not stored, and removes the
+     * notifications of Mechanisms which are deleted. If not, the IdentityDatabase must do so.
+     * @return True if the store maintains the Mechanism reference, false otherwise.
+     */
+    abstract boolean enforcesMechanismReference();
+
+    /**
+     * Creates the builder for a stored notification.
+     */
+    static Notification.NotificationBuilder newNotificationBuilder(long id, long timeAdded, long timeExpired,
+                                                                   boolean approved, boolean pending,
+                                                                   Map<String, String> data) {
+        Calendar addedTime = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        addedTime.setTimeInMillis(timeAdded);
+        Calendar expiryTime = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        expiryTime.setTimeInMillis(timeExpired);
+
+        // TODO: When more types of Notification are possible, get base builder from Mechanism, or possibly use a factory.
+        return PushNotification.builder()
+                .setApproved(approved)
+                .setTimeAdded(addedTime)
+                .setTimeExpired(expiryTime)
+                .setData(data)
+                .setId(id)
+                .setPending(pending);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.content.Context;
+import android.os.Build;
+
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts the secrets of Mechanisms with AES-GCM before they are written to storage. The data key
+ * is requested from the provider once per process, and Cipher instances are pooled, so that the
+ * only cost per secret is the cipher operation itself.
+ *
+ * Encrypted secrets are laid out as a version byte, followed by the IV and then the ciphertext with
+ * the authentication tag appended.
+ */
+public class SecretEncryption implements MechanismRecord.SecretDecrypter {
+    private static final byte FORMAT_VERSION = 1;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final int MAX_POOLED_CIPHERS = 4;
+
+    private static SecretEncryption instance;
+
+    private final DataKeyProvider keyProvider;
+    private final Deque<Cipher> cipherPool = new ArrayDeque<>();
+    private final SecureRandom random = new SecureRandom();
+    private SecretKey dataKey;
+    private boolean keyUnavailable;
+    private boolean keyLost;
+    private boolean existingKeyRequired;
+
+    private static final Logger logger = LoggerFactory.getLogger(SecretEncryption.class);
+
+    /**
+     * Gets the encryption shared by the process, backed by the Android key store.
+     * @param context The context for the key store.
+     * @return The shared encryption.
+     */
+    public static synchronized SecretEncryption getInstance(Context context) {
+        if (instance == null) {
+            instance = new SecretEncryption(new KeyStoreDataKeyProvider(context));
+        }
+        return instance;
+    }
+
+    /**
+     * Creates encryption using the data key from the provided source.
+     * @param keyProvider The provider of the data key.
+     */
+    public SecretEncryption(DataKeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+    }
+
+    /**
+     * Records that secrets encrypted with the existing data key are stored, so that a new data key
+     * is never created in place of one which has been lost. Must be called before the data key is
+     * first used.
+     */
+    public synchronized void requireExistingKey() {
+        existingKeyRequired = true;
+    }
+
+    /**
+     * Determines whether the data key which stored secrets were encrypted with has been found to be
+     * lost, so that those secrets cannot be decrypted.
+     * @return True if the data key has been lost, false if it has not been requested or is available.
+     */
+    public synchronized boolean isKeyLost() {
+        return keyLost;
+    }
+
+    /**
+     * Determines whether secrets can be encrypted on this device. If not, secrets are stored
+     * unencrypted, as they were before encryption was introduced.
+     * @return True if the data key is available, false otherwise.
+     */
+    public boolean isAvailable() {
+        return getDataKey() != null;
+    }
+
+    /**
+     * Encrypts a secret.
+     * @param secret The raw bytes of the secret.
+     * @return The encrypted secret.
+     * @throws GeneralSecurityException If the secret could not be encrypted.
+     */
+    public byte[] encrypt(byte[] secret) throws GeneralSecurityException {
+        SecretKey key = getDataKey();
+        if (key == null) {
+            throw new GeneralSecurityException("Data key is not available");
+        }
+        byte[] result = new byte[1 + IV_LENGTH + secret.length + TAG_LENGTH_BITS / 8];
+        result[0] = FORMAT_VERSION;
+        synchronized (random) {
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            System.arraycopy(iv, 0, result, 1, IV_LENGTH);
+        }
+        Cipher cipher = borrowCipher();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, result, 1, IV_LENGTH));
+            cipher.doFinal(secret, 0, secret.length, result, 1 + IV_LENGTH);
+        } finally {
+            returnCipher(cipher);
+        }
+        return result;
+    }
+
+    /**
+     * Decrypts a secret.
+     * @param encrypted The encrypted secret.
+     * @return The raw bytes of the secret.
+     * @throws GeneralSecurityException If the secret could not be decrypted or had been modified.
+     */
+    public byte[] decrypt(byte[] encrypted) throws GeneralSecurityException {
+        SecretKey key = getDataKey();
+        if (key == null) {
+            throw new GeneralSecurityException("Data key is not available");
+        }
+        if (encrypted.length < 1 + IV_LENGTH + TAG_LENGTH_BITS / 8 || encrypted[0] != FORMAT_VERSION) {
+            throw new GeneralSecurityException("Unrecognised encrypted secret");
+        }
+        Cipher cipher = borrowCipher();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, encrypted, 1, IV_LENGTH));
+            return cipher.doFinal(encrypted, 1 + IV_LENGTH, encrypted.length - 1 - IV_LENGTH);
+        } finally {
+            returnCipher(cipher);
+        }
+    }
+
+    @Override
+    public byte[] decryptSecret(byte[] encryptedSecret) {
+        try {
+            return decrypt(encryptedSecret);
+        } catch (GeneralSecurityException e) {
+            logger.error("Failed to decrypt stored secret.", e);
+            return null;
+        }
+    }
+
+    private synchronized SecretKey getDataKey() {
+        if (dataKey == null && !keyUnavailable && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // GCMParameterSpec does not exist, whatever key is provided
+            logger.warn("AES-GCM is not available, so secrets will not be encrypted.");
+            keyUnavailable = true;
+        }
+        if (dataKey == null && !keyUnavailable) {
+            try {
+                dataKey = keyProvider.getDataKey(!existingKeyRequired);
+            } catch (DataKeyLostException e) {
+                logger.error("Data key has been lost, so stored secrets cannot be decrypted.", e);
+                keyUnavailable = true;
+                keyLost = true;
+            } catch (GeneralSecurityException e) {
+                logger.warn("Data key is not available, so secrets will not be encrypted.", e);
+                keyUnavailable = true;
+            }
+        }
+        return dataKey;
+    }
+
+    private Cipher borrowCipher() throws GeneralSecurityException {
+        synchronized (cipherPool) {
+            Cipher cipher = cipherPool.poll();
+            if (cipher != null) {
+                return cipher;
+            }
+        }
+        return Cipher.getInstance(TRANSFORMATION);
+    }
+
+    private void returnCipher(Cipher cipher) {
+        synchronized (cipherPool) {
+            if (cipherPool.size() < MAX_POOLED_CIPHERS) {
+                cipherPool.push(cipher);
+            }
+        }
+    }
+}
@@ -19,6 +19,10 @@ package com.forgerock.authenticator.storage;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+
+import java.util.concurrent.TimeUnit;
+
 /**
  * Class for wrapping the settings that can be applied to the app. Designed to be passed around
  * using Guice.
@@ -27,11 +31,17 @@ public class Settings {
     private static final String SETTINGS_NAME = "fr_auth_settings";
     private static final String CAMERA_ENABLED_SETTING = "camera_enabled";
     private static final String SPLASH_ENABLED_SETTING = "splash_enabled";
+    private static final String NOTIFICATION_MAX_AGE_SETTING = "notification_max_age_days";
+    private static final String NOTIFICATION_MAX_COUNT_SETTING = "notification_max_count";
+    private static final String NOTIFICATION_DENIED_MAX_AGE_SETTING = "notification_denied_max_age_days";
+    private static final String CONNECTION_WARM_UP_SETTING = "connection_warm_up_enabled";
 
     private final SharedPreferences sharedPreferences;
 
     private boolean cameraEnabled;
     private boolean splashEnabled;
+    private boolean connectionWarmUpEnabled;
+    private NotificationRetentionPolicy retentionPolicy;
 
     /**
      * Load the settings from SharedPreferences, or set default values if they are not there.
@@ -51,6 +61,18 @@ public class Settings {
         if (!sharedPreferences.contains(SPLASH_ENABLED_SETTING)) {
             setSplashEnabled(splashEnabled);
         }
+
+        connectionWarmUpEnabled = sharedPreferences.getBoolean(CONNECTION_WARM_UP_SETTING, true);
+
+        NotificationRetentionPolicy defaults = NotificationRetentionPolicy.DEFAULT;
+        retentionPolicy = NotificationRetentionPolicy.builder()
+                .setMaxAge(TimeUnit.DAYS.toMillis(sharedPreferences.getInt(NOTIFICATION_MAX_AGE_SETTING,
+                        (int) TimeUnit.MILLISECONDS.toDays(defaults.getMaxAgeMillis()))))
+                .setMaxCountPerMechanism(sharedPreferences.getInt(NOTIFICATION_MAX_COUNT_SETTING,
+                        defaults.getMaxCountPerMechanism()))
+                .setDeniedMaxAge(TimeUnit.DAYS.toMillis(sharedPreferences.getInt(NOTIFICATION_DENIED_MAX_AGE_SETTING,
+                        (int) TimeUnit.MILLISECONDS.toDays(defaults.getDeniedMaxAgeMillis()))))
+                .build();
     }
 
     /**
@@ -86,4 +108,51 @@ public class Settings {
     public boolean isSplashEnabled() {
         return splashEnabled;
     }
+
+    /**
+     * Set whether a connection to the server is opened when a push notification arrives, so that
+     * the user's response can be sent without waiting for the connection to be set up. The
+     * connection is opened by sending a HEAD request to the AM push endpoint of the mechanism,
+     * which reaches the server before the user has responded and appears in its access logs.
+     * @param enabled True if connections should be opened in advance, false otherwise.
+     */
+    public void setConnectionWarmUpEnabled(boolean enabled) {
+        sharedPreferences.edit().putBoolean(CONNECTION_WARM_UP_SETTING, enabled).apply();
+        connectionWarmUpEnabled = enabled;
+    }
+
+    /**
+     * Returns whether a connection to the server is opened when a push notification arrives.
+     * @return True if connections are opened in advance, false otherwise.
+     */
+    public boolean isConnectionWarmUpEnabled() {
+        return connectionWarmUpEnabled;
+    }
+
+    /**
+     * Set how long the history of notifications is kept for.
+     * @param maxAgeDays The number of days inactive notifications are kept for.
+     * @param maxCount The number of inactive notifications kept for each mechanism.
+     * @param deniedMaxAgeDays The number of days denied notifications are kept for.
+     */
+    public void setNotificationRetention(int maxAgeDays, int maxCount, int deniedMaxAgeDays) {
+        retentionPolicy = NotificationRetentionPolicy.builder()
+                .setMaxAge(TimeUnit.DAYS.toMillis(maxAgeDays))
+                .setMaxCountPerMechanism(maxCount)
+                .setDeniedMaxAge(TimeUnit.DAYS.toMillis(deniedMaxAgeDays))
+                .build();
+        sharedPreferences.edit()
+                .putInt(NOTIFICATION_MAX_AGE_SETTING, maxAgeDays)
+                .putInt(NOTIFICATION_MAX_COUNT_SETTING, maxCount)
+                .putInt(NOTIFICATION_DENIED_MAX_AGE_SETTING, deniedMaxAgeDays)
+                .apply();
+    }
+
+    /**
+     * Returns the policy describing how long the history of notifications is kept for.
+     * @return The notification retention policy.
+     */
+    public NotificationRetentionPolicy getNotificationRetentionPolicy() {
+        return retentionPolicy;
+    }
 }
@@ -30,18 +30,22 @@ import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.oath.Oath;
 import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
 import com.forgerock.authenticator.notifications.PushNotification;
+import com.forgerock.authenticator.notifications.QueuedResponse;
 import com.google.android.apps.authenticator.Base32String;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -77,8 +81,13 @@ public class SharedPreferencesStorage implements StorageSystem {
 
     private static final String NAME  = "tokens";
     private static final String ORDER = "tokenOrder";
+    private static final int BATCH_SIZE = 100;
 
     private final SharedPreferences prefs;
+    private IdentityBatchListener batchListener;
+    private List<String> transactionOrder;
+    private SharedPreferences.Editor transactionEditor;
+    private boolean transactionSuccessful;
     private static final Logger logger = LoggerFactory.getLogger(SharedPreferencesStorage.class);
 
     /**
@@ -91,37 +100,156 @@ public class SharedPreferencesStorage implements StorageSystem {
     }
 
     @Override
-    public List<Identity> getModel(IdentityModel model) {
-        List<Identity> identities = new ArrayList<>();
+    public List<Identity> getModel(final IdentityModel model) {
+        final List<Identity> identities = new ArrayList<>();
+
+        readEntries(BATCH_SIZE, new EntryBatchListener() {
+            @Override
+            public void onBatch(List<Identity.IdentityBuilder> identityBuilders) {
+                List<Identity> batch = new ArrayList<>(identityBuilders.size());
+                for (Identity.IdentityBuilder identityBuilder : identityBuilders) {
+                    batch.add(identityBuilder.build(model));
+                }
+                identities.addAll(batch);
+                if (batchListener != null) {
+                    batchListener.onBatch(batch);
+                }
+            }
+        });
+
+        return identities;
+    }
 
-        for (int i = 0; i < length(); i++) {
+    /**
+     * Receives the Identities loaded by {@link #getModel(IdentityModel)} in batches, as they are
+     * read.
+     */
+    interface IdentityBatchListener {
+        /**
+         * Called with each batch of Identities loaded.
+         * @param identities The Identities loaded, each with a single Mechanism.
+         */
+        void onBatch(List<Identity> identities);
+    }
+
+    /**
+     * Sets the listener which receives each batch of Identities as the model is loaded, so that
+     * they can be processed without waiting for every entry to be read.
+     * @param listener The listener, or null for none.
+     */
+    void setBatchListener(IdentityBatchListener listener) {
+        batchListener = listener;
+    }
+
+    /**
+     * Receives the entries read from SharedPreferences, in batches of builders.
+     */
+    interface EntryBatchListener {
+        /**
+         * Called with each batch of entries read.
+         * @param identityBuilders The builders for the Identities read, each with a single Mechanism.
+         */
+        void onBatch(List<Identity.IdentityBuilder> identityBuilders);
+    }
+
+    /**
+     * Reads every entry in a single pass. The token order is parsed once, and each entry is
+     * streamed through a pull parser. Entries which cannot be read are skipped.
+     * @param batchSize The maximum number of entries passed to the listener at once.
+     * @param listener The listener to pass the entries to.
+     */
+    void readEntries(int batchSize, EntryBatchListener listener) {
+        List<String> order = getTokenOrder();
+        List<Identity.IdentityBuilder> batch = new ArrayList<>(batchSize);
+
+        for (int position = 0; position < order.size(); position++) {
+            String key = order.get(position);
+            if (key.equals("")) {
+                // The entry has been deleted
+                continue;
+            }
             try {
-                identities.add(getIdentityFromPosition(model, i));
+                batch.add(readEntry(prefs.getString(key, null), position));
             } catch (MechanismCreationException e) {
-                logger.error("Failed to load mechanism");
+                logger.error("Failed to load mechanism", e);
+            }
+            if (batch.size() == batchSize) {
+                listener.onBatch(batch);
+                batch = new ArrayList<>(batchSize);
             }
         }
-
-        return identities;
+        if (!batch.isEmpty()) {
+            listener.onBatch(batch);
+        }
     }
 
-    private Identity getIdentityFromPosition(IdentityModel model, int position) throws MechanismCreationException{
-        JSONObject data = getMapFromPosition(position);
-
-        if (data == null) {
-            throw new MechanismCreationException("Mechanism entry has been deleted");
+    private Identity.IdentityBuilder readEntry(String entry, int position) throws MechanismCreationException {
+        if (entry == null) {
+            throw new MechanismCreationException("Mechanism entry is missing");
         }
 
-        String issuer = getStringWithDefault(data, ISSUER, "");
-        String accountName = getStringWithDefault(data, ACCOUNT_NAME, "");
-        String imageURL = getStringWithDefault(data, IMAGE_URL, "");
+        String issuer = "";
+        String accountName = "";
+        String imageURL = "";
+        String type = "";
+        String algorithm = "";
+        int counter = 0;
+        int digits = 6;
+        int period = 30;
+        byte[] secret = null;
+
+        JsonReader reader = new JsonReader(new StringReader(entry));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case ISSUER:
+                        issuer = reader.nextString();
+                        break;
+                    case ACCOUNT_NAME:
+                        accountName = reader.nextString();
+                        break;
+                    case IMAGE_URL:
+                        imageURL = reader.nextString();
+                        break;
+                    case TYPE:
+                        type = reader.nextString();
+                        break;
+                    case ALGORITHM:
+                        algorithm = reader.nextString();
+                        break;
+                    case COUNTER:
+                        counter = reader.nextInt();
+                        break;
+                    case DIGITS:
+                        digits = reader.nextInt();
+                        break;
+                    case PERIOD:
+                        period = reader.nextInt();
+                        break;
+                    case SECRET:
+                        secret = readByteArray(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new MechanismCreationException("Failed to parse previously saved Mechanism", e);
+        } finally {
+            closeQuietly(reader);
+        }
 
-        String type = getStringWithDefault(data, TYPE, "");
-        String algorithm = getStringWithDefault(data, ALGORITHM, "");
-        int counter = getIntWithDefault(data, COUNTER, 0);
-        int digits = getIntWithDefault(data, DIGITS, 6);
-        int period = getIntWithDefault(data, PERIOD, 30);
-        byte[] secret = getByteArray(data, SECRET);
+        if (secret == null) {
+            throw new MechanismCreationException("Previously saved Mechanism has no secret");
+        }
 
         Mechanism.PartialMechanismBuilder builder = Oath
                 .builder()
@@ -139,37 +267,24 @@ public class SharedPreferencesStorage implements StorageSystem {
             .setAccountName(accountName)
             .setImageURL(imageURL)
             .setMechanisms(Collections.singletonList(builder))
-            .setId(position)
-            .build(model);
+            .setId(position);
     }
 
-    private String getStringWithDefault(JSONObject values, String key, String defaultValue) {
-        try {
-            return values.getString(key);
-        } catch (JSONException e) {
-            return defaultValue;
+    private byte[] readByteArray(JsonReader reader) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            bytes.write((byte) reader.nextInt());
         }
+        reader.endArray();
+        return bytes.toByteArray();
     }
 
-    private int getIntWithDefault(JSONObject values, String key, int defaultValue) {
+    private void closeQuietly(JsonReader reader) {
         try {
-            return values.getInt(key);
-        } catch (JSONException e) {
-            return defaultValue;
-        }
-    }
-
-    private byte[] getByteArray(JSONObject values, String key) {
-        try {
-            JSONArray array = values.getJSONArray(key);
-            byte[] byteArray = new byte[array.length()];
-
-            for (int i = 0; i < array.length(); i++) {
-                byteArray[i] = (byte) array.getInt(i);
-            }
-            return byteArray;
-        } catch (JSONException e) {
-            return null;
+            reader.close();
+        } catch (IOException e) {
+            // Nothing further to release
         }
     }
 
@@ -180,24 +295,6 @@ public class SharedPreferencesStorage implements StorageSystem {
         return order == null ? new LinkedList<String>() : order;
     }
 
-    private int length() {
-        return getTokenOrder().size();
-    }
-
-    private JSONObject getMapFromPosition(int position) {
-        String key = getTokenOrder().get(position);
-        if (key.equals("")) {
-            return null;
-        }
-        String str = prefs.getString(key, null);
-        try {
-            return new JSONObject(str);
-        } catch (JSONException e) {
-            logger.error("Failed to restore previously saved Mechanism", e);
-        }
-        return null;
-    }
-
     public boolean isEmpty() {
         return !prefs.contains(ORDER);
     }
@@ -222,6 +319,11 @@ public class SharedPreferencesStorage implements StorageSystem {
         throw new RuntimeException("Not implemented");
     }
 
+    @Override
+    public boolean updateMechanismCounter(long mechanismId, long counter) {
+        throw new RuntimeException("Not implemented");
+    }
+
     @Override
     public boolean updateNotification(long notificationId, Notification notification) {
         throw new RuntimeException("Not implemented");
@@ -244,8 +346,64 @@ public class SharedPreferencesStorage implements StorageSystem {
         throw new RuntimeException("Not implemented");
     }
 
+    @Override
+    public int deleteInactiveNotifications(Mechanism mechanism, long now) {
+        // Notifications were never stored in SharedPreferences
+        return 0;
+    }
+
+    @Override
+    public int compactNotifications(NotificationRetentionPolicy policy, long now) {
+        // Notifications were never stored in SharedPreferences
+        return 0;
+    }
+
+    @Override
+    public boolean queueResponse(QueuedResponse response) {
+        throw new RuntimeException("Not implemented");
+    }
+
+    @Override
+    public List<QueuedResponse> getQueuedResponses() {
+        // Responses were never stored in SharedPreferences
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean deleteQueuedResponse(String mechanismUID, long timeAdded) {
+        return false;
+    }
+
+    /**
+     * Deletes made during a transaction are held in memory, and written in a single edit when the
+     * transaction ends, rather than rewriting the token order for every delete.
+     */
+    @Override
+    public void beginTransaction() {
+        transactionOrder = getTokenOrder();
+        transactionEditor = prefs.edit();
+        transactionSuccessful = false;
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        transactionSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        if (transactionSuccessful) {
+            writeTokenOrder(transactionOrder, transactionEditor);
+        }
+        transactionOrder = null;
+        transactionEditor = null;
+        transactionSuccessful = false;
+    }
+
     private void deleteEntry(int id) {
-        List<String> order = getTokenOrder();
+        boolean inTransaction = transactionOrder != null;
+        List<String> order = inTransaction ? transactionOrder : getTokenOrder();
+        SharedPreferences.Editor editor = inTransaction ? transactionEditor : prefs.edit();
         if (id > order.size()) {
             return;
         }
@@ -255,19 +413,24 @@ public class SharedPreferencesStorage implements StorageSystem {
             return;
         }
 
-        prefs.edit().remove(key).apply();
-
+        editor.remove(key);
         order.set(id, "");
 
+        if (!inTransaction) {
+            writeTokenOrder(order, editor);
+        }
+    }
+
+    private void writeTokenOrder(List<String> order, SharedPreferences.Editor editor) {
         boolean containsValue = false;
         for (String value : order) {
             containsValue |= !value.equals("");
         }
         if (!containsValue) {
-            prefs.edit().remove(ORDER).apply();
+            editor.remove(ORDER);
         } else {
-            prefs.edit().putString(ORDER, gson.toJson(order)).apply();
+            editor.putString(ORDER, gson.toJson(order));
         }
-
+        editor.apply();
     }
 }
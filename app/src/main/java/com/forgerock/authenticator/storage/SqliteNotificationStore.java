@@ -0,0 +1,240 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.NotificationStatistics;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.forgerock.authenticator.storage.IdentityDatabase.APPROVED;
+import static com.forgerock.authenticator.storage.IdentityDatabase.DATA;
+import static com.forgerock.authenticator.storage.IdentityDatabase.MECHANISM_UID;
+import static com.forgerock.authenticator.storage.IdentityDatabase.NOTIFICATION_TABLE_NAME;
+import static com.forgerock.authenticator.storage.IdentityDatabase.PENDING;
+import static com.forgerock.authenticator.storage.IdentityDatabase.TIME_EXPIRED;
+import static com.forgerock.authenticator.storage.IdentityDatabase.TIME_RECEIVED;
+
+/**
+ * Stores Notifications in the notification table of the SQLite database.
+ */
+class SqliteNotificationStore extends NotificationStore {
+    /**The name of the temporary table used to select notifications for compaction */
+    private static final String COMPACTION_TABLE_NAME = "compaction_candidate";
+
+    private static final Type MAP_TYPE = new TypeToken<Map<String, String>>() {
+    }.getType();
+
+    private final Gson gson = new Gson();
+    private final SQLiteDatabase database;
+
+    /**
+     * Creates a store backed by the provided database.
+     * @param database The open database.
+     */
+    SqliteNotificationStore(SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    @Override
+    long addNotification(Notification notification) {
+        long timeAdded = notification.getTimeAdded().getTimeInMillis();
+        long timeExpired = notification.getTimeExpired().getTimeInMillis();
+        int wasApproved = notification.wasApproved() ? 1 : 0;
+        int isPending = notification.isPending() ? 1 : 0;
+        String mechanismUID = notification.getMechanism().getMechanismUID();
+        String data = gson.toJson(notification.getData());
+
+        ContentValues values = new ContentValues();
+        values.put(TIME_RECEIVED, timeAdded);
+        values.put(TIME_EXPIRED, timeExpired);
+        values.put(APPROVED, wasApproved);
+        values.put(MECHANISM_UID, mechanismUID);
+        values.put(DATA, data);
+        values.put(PENDING, isPending);
+
+        long rowId = database.insert(NOTIFICATION_TABLE_NAME, null, values);
+        return rowId;
+    }
+
+    @Override
+    boolean updateNotification(long notificationId, Notification notification) {
+        ContentValues values = new ContentValues();
+
+        int wasApproved = notification.wasApproved() ? 1 : 0;
+        int isPending = notification.isPending() ? 1 : 0;
+
+        values.put(PENDING, isPending);
+        values.put(APPROVED, wasApproved);
+        String[] selectionArgs = { Long.toString(notificationId) };
+        return database.update(NOTIFICATION_TABLE_NAME, values, "rowId = ?", selectionArgs) == 1;
+    }
+
+    @Override
+    boolean deleteNotification(long notificationId) {
+        return database.delete(NOTIFICATION_TABLE_NAME, "rowId = " + notificationId, null) == 1;
+    }
+
+    @Override
+    int deleteNotifications(String mechanismUID) {
+        String[] selectionArgs = { mechanismUID };
+        return database.delete(NOTIFICATION_TABLE_NAME, MECHANISM_UID + " = ?", selectionArgs);
+    }
+
+    @Override
+    int deleteInactiveNotifications(String mechanismUID, long now) {
+        SQLiteStatement delete = database.compileStatement("DELETE FROM " + NOTIFICATION_TABLE_NAME
+                + " WHERE " + MECHANISM_UID + " = ? AND " + inactive(NOTIFICATION_TABLE_NAME));
+        try {
+            delete.bindString(1, mechanismUID);
+            delete.bindLong(2, now);
+            return delete.executeUpdateDelete();
+        } finally {
+            delete.close();
+        }
+    }
+
+    @Override
+    List<Notification.NotificationBuilder> getNotificationBuilders(String mechanismUid) {
+        if (mechanismUid == null) {
+            return new ArrayList<>();
+        }
+        String[] selectionArgs = { mechanismUid };
+
+        Cursor cursor = database.rawQuery("SELECT rowid, * FROM " + NOTIFICATION_TABLE_NAME +
+                " WHERE " + MECHANISM_UID + " = ?", selectionArgs);
+        List<Notification.NotificationBuilder> result = new ArrayList<>();
+        cursor.moveToFirst();
+
+        while (!cursor.isAfterLast()) {
+            result.add(cursorToNotificationBuilder(cursor));
+            cursor.moveToNext();
+        }
+        return result;
+    }
+
+    private Notification.NotificationBuilder cursorToNotificationBuilder(Cursor cursor) {
+        int rowid = cursor.getInt(cursor.getColumnIndex("rowid"));
+        long addedTime = cursor.getLong(cursor.getColumnIndex(TIME_RECEIVED));
+        long expiryTime = cursor.getLong(cursor.getColumnIndex(TIME_EXPIRED));
+        boolean approved = cursor.getLong(cursor.getColumnIndex(APPROVED)) == 1;
+        boolean pending = cursor.getLong(cursor.getColumnIndex(PENDING)) == 1;
+        Map<String, String> data =
+                gson.fromJson(cursor.getString(cursor.getColumnIndex(DATA)), MAP_TYPE);
+
+        return newNotificationBuilder(rowid, addedTime, expiryTime, approved, pending, data);
+    }
+
+    @Override
+    Map<String, NotificationStatistics> compact(NotificationRetentionPolicy policy, long now) {
+        long ageCutoff = now - policy.getMaxAgeMillis();
+        long deniedCutoff = now - policy.getDeniedMaxAgeMillis();
+        int maxCount = policy.getMaxCountPerMechanism();
+        Map<String, NotificationStatistics> result = new HashMap<>();
+
+        database.beginTransaction();
+        try {
+            database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + COMPACTION_TABLE_NAME + " (id INTEGER PRIMARY KEY)");
+            database.execSQL("DELETE FROM " + COMPACTION_TABLE_NAME);
+
+            // Inactive notifications older than the maximum age for their outcome
+            database.execSQL("INSERT INTO " + COMPACTION_TABLE_NAME + " SELECT n.rowid FROM "
+                    + NOTIFICATION_TABLE_NAME + " n WHERE " + inactive("n") + " AND ((" + denied("n")
+                    + " AND " + time("n", TIME_RECEIVED) + " < ?) OR (NOT " + denied("n") + " AND "
+                    + time("n", TIME_RECEIVED) + " < ?))",
+                    new Object[] { now, deniedCutoff, ageCutoff });
+
+            // Inactive notifications beyond the maximum count for their Mechanism. Denied
+            // notifications are only limited by age.
+            String countLimit = maxCount == 0 ? "" : " AND " + time("n", TIME_RECEIVED)
+                    + " < (SELECT " + time("m", TIME_RECEIVED) + " FROM " + NOTIFICATION_TABLE_NAME
+                    + " m WHERE m." + MECHANISM_UID + " = n." + MECHANISM_UID + " AND " + inactive("m")
+                    + " AND NOT " + denied("m") + " ORDER BY " + time("m", TIME_RECEIVED)
+                    + " DESC LIMIT 1 OFFSET " + (maxCount - 1) + ")";
+            Object[] countArgs = maxCount == 0 ? new Object[] { now } : new Object[] { now, now };
+            database.execSQL("INSERT OR IGNORE INTO " + COMPACTION_TABLE_NAME + " SELECT n.rowid FROM "
+                    + NOTIFICATION_TABLE_NAME + " n WHERE " + inactive("n") + " AND NOT " + denied("n")
+                    + countLimit, countArgs);
+
+            // Keep the outcomes of the notifications being removed
+            Cursor cursor = database.rawQuery("SELECT n." + MECHANISM_UID
+                    + ", SUM(n." + PENDING + " = 0 AND n." + APPROVED + " = 1)"
+                    + ", SUM(" + denied("n") + ")"
+                    + ", SUM(n." + PENDING + " = 1)"
+                    + " FROM " + NOTIFICATION_TABLE_NAME + " n JOIN " + COMPACTION_TABLE_NAME
+                    + " c ON n.rowid = c.id GROUP BY n." + MECHANISM_UID, null);
+            try {
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0),
+                            new NotificationStatistics(cursor.getLong(1), cursor.getLong(2), cursor.getLong(3)));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            SQLiteStatement delete = database.compileStatement("DELETE FROM " + NOTIFICATION_TABLE_NAME
+                    + " WHERE rowid IN (SELECT id FROM " + COMPACTION_TABLE_NAME + ")");
+            try {
+                delete.executeUpdateDelete();
+            } finally {
+                delete.close();
+            }
+            database.execSQL("DELETE FROM " + COMPACTION_TABLE_NAME);
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return result;
+    }
+
+    @Override
+    boolean enforcesMechanismReference() {
+        return true;
+    }
+
+    /**
+     * Times are stored in TEXT columns, so must be cast to be compared numerically.
+     */
+    private static String time(String alias, String column) {
+        return "CAST(" + alias + "." + column + " AS INTEGER)";
+    }
+
+    /**
+     * Condition for a notification being inactive, binding the current time as a single argument.
+     */
+    private static String inactive(String alias) {
+        return "(" + alias + "." + PENDING + " = 0 OR " + time(alias, TIME_EXPIRED) + " < ?)";
+    }
+
+    private static String denied(String alias) {
+        return "(" + alias + "." + PENDING + " = 0 AND " + alias + "." + APPROVED + " = 0)";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Internal diagnostics API describing the health of storage on the device. Holds the figures
+ * recorded by the most recent run of database maintenance.
+ */
+public class StorageDiagnostics {
+    private static final String DIAGNOSTICS_NAME = "fr_auth_diagnostics";
+    private static final String TIME_COMPLETED = "maintenance_time_completed";
+    private static final String DURATION = "maintenance_duration_millis";
+    private static final String PAGE_SIZE = "maintenance_page_size";
+    private static final String PAGE_COUNT_BEFORE = "maintenance_page_count_before";
+    private static final String PAGE_COUNT_AFTER = "maintenance_page_count_after";
+    private static final String FREELIST_COUNT_BEFORE = "maintenance_freelist_count_before";
+    private static final String FREELIST_COUNT_AFTER = "maintenance_freelist_count_after";
+    private static final String INTEGRITY_OK = "maintenance_integrity_ok";
+
+    private final SharedPreferences sharedPreferences;
+
+    /**
+     * Creates access to the diagnostics for the app.
+     * @param context The context for the SharedPreferences.
+     */
+    public StorageDiagnostics(Context context) {
+        sharedPreferences = context.getApplicationContext()
+                .getSharedPreferences(DIAGNOSTICS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Gets the figures recorded by the most recent run of database maintenance.
+     * @return The report, or null if maintenance has never run.
+     */
+    public MaintenanceReport getLastMaintenanceReport() {
+        if (!sharedPreferences.contains(TIME_COMPLETED)) {
+            return null;
+        }
+        return new MaintenanceReport(
+                sharedPreferences.getLong(TIME_COMPLETED, 0),
+                sharedPreferences.getLong(DURATION, 0),
+                sharedPreferences.getLong(PAGE_SIZE, 0),
+                sharedPreferences.getLong(PAGE_COUNT_BEFORE, 0),
+                sharedPreferences.getLong(PAGE_COUNT_AFTER, 0),
+                sharedPreferences.getLong(FREELIST_COUNT_BEFORE, 0),
+                sharedPreferences.getLong(FREELIST_COUNT_AFTER, 0),
+                sharedPreferences.getBoolean(INTEGRITY_OK, false));
+    }
+
+    /**
+     * Records the figures from a run of database maintenance, replacing those of the previous run.
+     * @param report The report to record.
+     */
+    void recordMaintenance(MaintenanceReport report) {
+        sharedPreferences.edit()
+                .putLong(TIME_COMPLETED, report.getTimeCompleted())
+                .putLong(DURATION, report.getDurationMillis())
+                .putLong(PAGE_SIZE, report.getPageSize())
+                .putLong(PAGE_COUNT_BEFORE, report.getPageCountBefore())
+                .putLong(PAGE_COUNT_AFTER, report.getPageCountAfter())
+                .putLong(FREELIST_COUNT_BEFORE, report.getFreelistCountBefore())
+                .putLong(FREELIST_COUNT_AFTER, report.getFreelistCountAfter())
+                .putBoolean(INTEGRITY_OK, report.isIntegrityOk())
+                .apply();
+    }
+}
@@ -19,6 +19,8 @@ package com.forgerock.authenticator.storage;
 import com.forgerock.authenticator.identity.Identity;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.QueuedResponse;
 
 import java.util.List;
 
@@ -60,6 +62,14 @@ public interface StorageSystem {
      */
     boolean updateMechanism(long mechanismId, Mechanism mechanism);
 
+    /**
+     * Update only the counter of the mechanism in the database, leaving the rest of it as stored.
+     * Does not create it if it does not exist.
+     * @param mechanismId The id of the mechanism to update.
+     * @param counter The new value of the counter.
+     */
+    boolean updateMechanismCounter(long mechanismId, long counter);
+
     /**
      * Update the notification in the database. Does not create it if it does not exist.
      * @param notificationId The id of the notification to update.
@@ -68,13 +78,13 @@ public interface StorageSystem {
     boolean updateNotification(long notificationId, Notification notification);
 
     /**
-     * Delete the mechanism uniquely identified by an id.
+     * Delete the mechanism uniquely identified by an id, along with its notifications.
      * @param mechanismId The id of the mechanism to delete.
      */
     boolean deleteMechanism(long mechanismId);
 
     /**
-     * Delete the identity that was passed in.
+     * Delete the identity that was passed in, along with its mechanisms and their notifications.
      * @param identityId The if of the identity to delete.
      */
     boolean deleteIdentity(long identityId);
@@ -85,6 +95,62 @@ public interface StorageSystem {
      */
     boolean deleteNotification(long notificationId);
 
+    /**
+     * Delete, in bulk, the notifications of a mechanism which are no longer pending, or have
+     * expired.
+     * @param mechanism The mechanism to delete the notifications of.
+     * @param now The current time in milliseconds.
+     * @return The number of notifications deleted.
+     */
+    int deleteInactiveNotifications(Mechanism mechanism, long now);
+
+    /**
+     * Delete, in bulk, the inactive notifications which are not kept under the retention policy.
+     * The outcomes of the deleted notifications are added to the statistics of their Mechanism.
+     * @param policy The retention policy to apply.
+     * @param now The current time in milliseconds.
+     * @return The number of notifications deleted.
+     */
+    int compactNotifications(NotificationRetentionPolicy policy, long now);
+
+    /**
+     * Add a response to the outbox of responses waiting to be sent, replacing any response queued
+     * for the same notification. Queued responses are deleted along with their mechanism.
+     * @param response The response to queue.
+     * @return True if the response was queued, false otherwise.
+     */
+    boolean queueResponse(QueuedResponse response);
+
+    /**
+     * Load the responses waiting to be sent.
+     * @return The queued responses, ordered by the time of their next attempt.
+     */
+    List<QueuedResponse> getQueuedResponses();
+
+    /**
+     * Delete the queued response to a notification.
+     * @param mechanismUID The UID of the mechanism which received the notification.
+     * @param timeAdded The time the notification was received, in milliseconds.
+     * @return True if a response was deleted, false otherwise.
+     */
+    boolean deleteQueuedResponse(String mechanismUID, long timeAdded);
+
+    /**
+     * Begins a transaction. Changes made until the transaction ends are applied together, and are
+     * only kept if the transaction is marked as successful.
+     */
+    void beginTransaction();
+
+    /**
+     * Marks the current transaction as successful, so that its changes are kept when it ends.
+     */
+    void setTransactionSuccessful();
+
+    /**
+     * Ends the current transaction, keeping its changes if it was marked as successful.
+     */
+    void endTransaction();
+
     /**
      * Whether the storage system currently contains any data.
      * @return True if the storage system is empty, false otherwise.
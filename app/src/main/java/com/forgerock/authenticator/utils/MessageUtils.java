@@ -16,28 +16,58 @@
 
 package com.forgerock.authenticator.utils;
 
+import android.support.annotation.VisibleForTesting;
+
 import com.forgerock.authenticator.FRAuthApplication;
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
 
 import org.forgerock.json.jose.builders.JwtClaimsSetBuilder;
-import org.forgerock.json.jose.builders.SignedJwtBuilderImpl;
-import org.forgerock.json.jose.jws.JwsAlgorithm;
-import org.forgerock.json.jose.jws.SigningManager;
-import org.forgerock.json.jose.jws.handlers.SigningHandler;
-import org.forgerock.util.encode.Base64;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 
 /**
- * Utility methods related to Messages received from OpenAM.
+ * Utility methods related to Messages received from OpenAM. Responses are sent through a single
+ * HTTP client, which keeps connections to each endpoint alive so that later responses to the same
+ * server reuse the connection and its TLS session.
  */
 public class MessageUtils {
+    private static final Logger logger = LoggerFactory.getLogger(MessageUtils.class);
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long READ_TIMEOUT_SECONDS = 20;
+    private static final long WRITE_TIMEOUT_SECONDS = 20;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private final OkHttpClient client;
+
+    /**
+     * Create the utilities, with a client which pools connections to each endpoint.
+     */
+    public MessageUtils() {
+        client = new OkHttpClient.Builder()
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .build();
+    }
 
     /**
      * Used to respond to a given message ID at a given endpoint.
@@ -51,53 +81,128 @@ public class MessageUtils {
     public int respond(String endpoint, String amlbCookie, String base64Secret,
                               String messageId, Map<String, Object> data)
             throws IOException, JSONException {
-        HttpURLConnection connection = null;
-        int returnCode = 404;
+        return respond(endpoint, amlbCookie, new PushCredentials(base64Secret), messageId, data);
+    }
+
+    /**
+     * Used to respond to a given message ID at a given endpoint, signing the response with
+     * existing credentials.
+     * @param endpoint The endpoint to respond to.
+     * @param amlbCookie The load balancer cookie to send, or null.
+     * @param credentials The credentials to sign the response with.
+     * @param messageId The id of the message being responded to.
+     * @param data The data to attach to the response.
+     * @return The response code of the request.
+     * @throws IOException If a network issue occurred.
+     * @throws JSONException If an encoding issue occurred.
+     */
+    public int respond(String endpoint, String amlbCookie, PushCredentials credentials,
+                       String messageId, Map<String, Object> data)
+            throws IOException, JSONException {
+        return respond(endpoint, amlbCookie, messageId, signResponse(credentials, data));
+    }
+
+    /**
+     * Used to respond to a given message ID at a given endpoint with a response which has
+     * already been signed.
+     * @param endpoint The endpoint to respond to.
+     * @param amlbCookie The load balancer cookie to send, or null.
+     * @param messageId The id of the message being responded to.
+     * @param signedJwt The signed response, as produced by
+     *                  {@link #signResponse(PushCredentials, Map)}.
+     * @return The response code of the request.
+     * @throws IOException If a network issue occurred.
+     * @throws JSONException If an encoding issue occurred.
+     */
+    public int respond(String endpoint, String amlbCookie, String messageId, String signedJwt)
+            throws IOException, JSONException {
+        JSONObject message = new JSONObject();
+        message.put("messageId", messageId);
+        message.put("jwt", signedJwt);
+
+        HttpUrl url = HttpUrl.parse(endpoint);
+        if (url == null) {
+            throw new IOException("Invalid endpoint: " + endpoint);
+        }
+        // The body is sent with a fixed length, so that no chunked encoding is needed
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(url)
+                .header("Accept-API-Version", "resource=1.0, protocol=1.0")
+                .post(RequestBody.create(JSON, message.toString().getBytes("UTF-8")));
+        if (amlbCookie != null) {
+            requestBuilder.header("Cookie", amlbCookie);
+        }
+
+        Response response = client.newCall(requestBuilder.build()).execute();
         try {
-            URL url = new URL(endpoint);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setDoInput(true);
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Accept-API-Version", "resource=1.0, protocol=1.0");
-            if (amlbCookie != null) {
-                connection.setRequestProperty("Cookie", amlbCookie);
-            }
-            connection.connect();
-
-            JSONObject message = new JSONObject();
-            message.put("messageId", messageId);
-            message.put("jwt", generateJwt(base64Secret, data));
-
-            OutputStream os = connection.getOutputStream();
-            OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-            osw.write(message.toString());
-            osw.flush();
-            osw.close();
-            returnCode = connection.getResponseCode();
+            return response.code();
         } finally {
-            if(connection != null) {
-                connection.disconnect();
-            }
+            // Closing the body returns the connection to the pool
+            response.body().close();
         }
-        return returnCode;
     }
 
-    private String generateJwt(String base64Secret, Map<String, Object> data) throws IOException {
+    /**
+     * Open a connection to an endpoint in advance of a response, so that the response does not
+     * wait for the connection to be set up. The connection is opened in the background by a
+     * request for the headers of the endpoint, sent with the load balancer cookie so that the
+     * connection is made to the server which will receive the response. The connection is closed
+     * by the pool once it has been idle for the keep-alive time, like any other.
+     * @param endpoint The endpoint that will be responded to.
+     * @param amlbCookie The load balancer cookie to send, or null.
+     * @param expiryMillis The time after which a response will no longer be sent, in milliseconds.
+     *                     Nothing is opened if this has already passed.
+     */
+    public void warmUp(String endpoint, String amlbCookie, long expiryMillis) {
+        HttpUrl url = HttpUrl.parse(endpoint);
+        if (url == null || expiryMillis <= System.currentTimeMillis()) {
+            return;
+        }
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(url)
+                .head()
+                .header("Accept-API-Version", "resource=1.0, protocol=1.0");
+        if (amlbCookie != null) {
+            requestBuilder.header("Cookie", amlbCookie);
+        }
+        client.newCall(requestBuilder.build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                logger.debug("Failed to open connection in advance.", e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                // Closing the body returns the connection to the pool
+                response.body().close();
+            }
+        });
+    }
+
+    /**
+     * Get the number of idle connections which are kept open for later responses.
+     * @return The number of idle connections.
+     */
+    @VisibleForTesting
+    int getIdleConnectionCount() {
+        return client.connectionPool().idleConnectionCount();
+    }
+
+    /**
+     * Sign the data of a response, so that it can be sent later.
+     * @param credentials The credentials to sign the response with.
+     * @param data The data to attach to the response.
+     * @return The signed JWT.
+     * @throws IOException If the secret of the credentials is empty.
+     */
+    public String signResponse(PushCredentials credentials, Map<String, Object> data) throws IOException {
         JwtClaimsSetBuilder builder = new JwtClaimsSetBuilder();
         for (String key : data.keySet()) {
             builder.claim(key, data.get(key));
         }
 
-        byte[] secret = Base64.decode(base64Secret);
-
-        SigningHandler signingHandler = new SigningManager().newHmacSigningHandler(secret);
-        SignedJwtBuilderImpl jwtBuilder = new SignedJwtBuilderImpl(signingHandler);
-        jwtBuilder.claims(builder.build());
-        jwtBuilder.headers().alg(JwsAlgorithm.HS256);
         try {
-            return jwtBuilder.build();
+            return credentials.sign(builder.build());
         } catch (IllegalArgumentException e) {
             throw new IOException("Passed empty secret", e);
         }
@@ -60,4 +60,112 @@ public class NotificationFactory {
 
         return notification;
     }
+
+    /**
+     * Generate a pending Notification which, as well as triggering an Intent when the user taps it,
+     * offers Approve and Deny actions which start a service without bringing up any UI.
+     *
+     * The Notification is shown as part of a group, and only makes a sound if asked to. It does not
+     * alert again when it is updated in place. On a secure lock screen it is replaced by a public
+     * version without the actions, so that a login cannot be approved without unlocking the device.
+     *
+     * @param context Required for Android operations.
+     * @param requestCode The ID of the request, allowing multiple notifications to be grouped.
+     * @param title Non null title of the notification.
+     * @param message Non null body of the notification.
+     * @param intent Non null Intent to trigger when the user acknowledges the Intent.
+     * @param approveIntent Non null Intent for the service to start when the user approves.
+     * @param denyIntent Non null Intent for the service to start when the user denies.
+     * @param group Non null key of the group the notification belongs to.
+     * @param alert True if the notification should make a sound, false if it should be silent.
+     * @return Non null Notification.
+     */
+    public Notification generatePending(Context context, int requestCode, String title, String message, Intent intent,
+                                        Intent approveIntent, Intent denyIntent, String group, boolean alert) {
+        PendingIntent pendIntent = PendingIntent.getActivity(context, requestCode, intent, PendingIntent.FLAG_ONE_SHOT);
+        PendingIntent approvePendIntent = PendingIntent.getService(context, requestCode, approveIntent,
+                PendingIntent.FLAG_ONE_SHOT);
+        PendingIntent denyPendIntent = PendingIntent.getService(context, requestCode, denyIntent,
+                PendingIntent.FLAG_ONE_SHOT);
+
+        Notification publicVersion = new NotificationCompat.Builder(context)
+                .setSmallIcon(R.drawable.forgerock_notification)
+                .setContentTitle(title)
+                .setContentText(message)
+                .setContentIntent(pendIntent)
+                .build();
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context)
+                .setSmallIcon(R.drawable.forgerock_notification)
+                .setContentTitle(title)
+                .setContentText(message)
+                .setAutoCancel(true)
+                .setOnlyAlertOnce(true)
+                .setGroup(group)
+                .setContentIntent(pendIntent)
+                .setVisibility(NotificationCompat.VISIBILITY_PRIVATE)
+                .setPublicVersion(publicVersion)
+                .addAction(R.drawable.forgerock_icon_approved,
+                        context.getString(R.string.system_notification_approve), approvePendIntent)
+                .addAction(R.drawable.forgerock_icon_denied,
+                        context.getString(R.string.system_notification_deny), denyPendIntent);
+        if (alert) {
+            builder.setSound(defaultSoundUri);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Generate a silent Notification summarising a group of Notifications, shown in place of the
+     * group where it cannot be shown in full.
+     *
+     * @param context Required for Android operations.
+     * @param requestCode The ID of the request, allowing multiple notifications to be grouped.
+     * @param title Non null title of the notification.
+     * @param message Non null body of the notification.
+     * @param intent Non null Intent to trigger when the user acknowledges the Intent.
+     * @param group Non null key of the group the notification summarises.
+     * @return Non null Notification.
+     */
+    public Notification generateSummary(Context context, int requestCode, String title, String message,
+                                        Intent intent, String group) {
+        PendingIntent pendIntent = PendingIntent.getActivity(context, requestCode, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        return new NotificationCompat.Builder(context)
+                .setSmallIcon(R.drawable.forgerock_notification)
+                .setContentTitle(title)
+                .setContentText(message)
+                .setAutoCancel(true)
+                .setOnlyAlertOnce(true)
+                .setGroup(group)
+                .setGroupSummary(true)
+                .setContentIntent(pendIntent)
+                .build();
+    }
+
+    /**
+     * Generate a silent Notification reporting the outcome of a request, used to replace the
+     * pending Notification with the same ID.
+     *
+     * @param context Required for Android operations.
+     * @param requestCode The ID of the request, allowing multiple notifications to be grouped.
+     * @param title Non null title of the notification.
+     * @param message Non null body of the notification.
+     * @param intent Intent to trigger when the user acknowledges the Intent, or null if none.
+     * @return Non null Notification.
+     */
+    public Notification generateResult(Context context, int requestCode, String title, String message, Intent intent) {
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context)
+                .setSmallIcon(R.drawable.forgerock_notification)
+                .setContentTitle(title)
+                .setContentText(message)
+                .setAutoCancel(true)
+                .setOnlyAlertOnce(true);
+        if (intent != null) {
+            builder.setContentIntent(PendingIntent.getActivity(context, requestCode, intent,
+                    PendingIntent.FLAG_ONE_SHOT));
+        }
+        return builder.build();
+    }
 }
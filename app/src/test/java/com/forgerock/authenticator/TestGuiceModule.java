@@ -20,12 +20,23 @@ import android.app.Application;
 import android.content.Context;
 
 import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.push.PushRegistrar;
+import com.forgerock.authenticator.message.DeviceTokenCache;
+import com.forgerock.authenticator.message.PushIngestionQueue;
+import com.forgerock.authenticator.message.ResponseOutbox;
+import com.forgerock.authenticator.message.SystemNotifier;
 import com.forgerock.authenticator.storage.IdentityDatabase;
 import com.forgerock.authenticator.storage.IdentityModel;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.NotificationCompactor;
 import com.forgerock.authenticator.storage.Settings;
 import com.forgerock.authenticator.utils.MessageUtils;
 import com.google.inject.AbstractModule;
 
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.Executor;
+
 import static org.mockito.Mockito.mock;
 
 /**
@@ -37,8 +48,26 @@ public class TestGuiceModule extends AbstractModule {
     protected void configure() {
         bind(MessageUtils.class).toInstance(mock(MessageUtils.class));
 
-        bind(IdentityModel.class).toInstance(mock(IdentityModel.class));
+        IdentityModel identityModel = mock(IdentityModel.class);
+        bind(IdentityModel.class).toInstance(identityModel);
+        IdentityModelProvider identityModelProvider =
+                new IdentityModelProvider(RuntimeEnvironment.application, identityModel);
+        bind(IdentityModelProvider.class).toInstance(identityModelProvider);
+        SystemNotifier systemNotifier = new SystemNotifier(RuntimeEnvironment.application);
+        bind(SystemNotifier.class).toInstance(systemNotifier);
+        // Process messages on the calling thread, so that tests can check the results directly
+        bind(PushIngestionQueue.class).toInstance(new PushIngestionQueue(RuntimeEnvironment.application,
+                identityModelProvider, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }, systemNotifier));
         bind(Settings.class).toInstance(mock(Settings.class));
+        bind(NotificationCompactor.class).toInstance(mock(NotificationCompactor.class));
+        bind(ResponseOutbox.class).toInstance(mock(ResponseOutbox.class));
+        bind(DeviceTokenCache.class).toInstance(mock(DeviceTokenCache.class));
+        bind(PushRegistrar.class).toInstance(mock(PushRegistrar.class));
 
     }
 }
@@ -18,9 +18,11 @@ package com.forgerock.authenticator.mechanisms.oath;
 import com.forgerock.authenticator.identity.Identity;
 import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
 import com.forgerock.authenticator.storage.IdentityDatabase;
 import com.forgerock.authenticator.storage.IdentityModel;
 import com.forgerock.authenticator.utils.TimeKeeper;
+import com.google.android.apps.authenticator.Base32String;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -34,17 +36,21 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 public class OathTest {
     private IdentityModel model;
     private Oath oath;
     private Identity identity;
+    private IdentityDatabase identityDatabase;
 
     @Before
     public void setUp() throws MechanismCreationException {
         model = mock(IdentityModel.class);
-        IdentityDatabase identityDatabase = mock(IdentityDatabase.class);
+        identityDatabase = mock(IdentityDatabase.class);
         given(identityDatabase.addMechanism(any(Mechanism.class))).willReturn(1l);
         given(model.getStorageSystem()).willReturn(identityDatabase);
         given(model.addIdentity(any(Identity.IdentityBuilder.class))).willAnswer(new Answer<Identity>() {
@@ -76,6 +82,28 @@ public class OathTest {
         assertEquals(oath.getCounter(), 3);
     }
 
+    @Test
+    public void shouldOnlyStoreCounterOnceHOTPIsStored() throws Exception {
+        oath = (Oath) Oath.builder()
+                .setAlgorithm("sha1")
+                .setCounter("0")
+                .setDigits("6")
+                .setPeriod("30")
+                .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM")
+                .setType("hotp")
+                .setMechanismUID("0")
+                .build(identity);
+
+        oath.generateNextCode();
+        oath.generateNextCode();
+        oath.generateNextCode();
+
+        verify(identityDatabase).addMechanism(oath);
+        verify(identityDatabase).updateMechanismCounter(1, 2);
+        verify(identityDatabase).updateMechanismCounter(1, 3);
+        verify(identityDatabase, never()).updateMechanism(anyLong(), any(Mechanism.class));
+    }
+
     @Test
     public void shouldHandleHOTPCorrectlyWith8Digits() throws Exception {
         oath = (Oath) Oath.builder()
@@ -141,5 +169,33 @@ public class OathTest {
         assertEquals(oath.getCounter(), 0);
     }
 
+    @Test
+    public void shouldNotReadStoredSecretUntilFirstUsed() throws Exception {
+        final byte[] secret = Base32String.decode("JMEZ2W7D462P3JYBDG2HV7PFBM");
+        final int[] reads = new int[1];
+        MechanismRecord record = new MechanismRecord()
+                .setTokenType("HOTP")
+                .setAlgorithm("SHA1")
+                .setDigits(6)
+                .setCounter(0L)
+                .setPeriod(30)
+                .setEncryptedSecret(new byte[0], new MechanismRecord.SecretDecrypter() {
+                    @Override
+                    public byte[] decryptSecret(byte[] encryptedSecret) {
+                        reads[0]++;
+                        return secret;
+                    }
+                });
 
+        oath = (Oath) Oath.builder()
+                .setRecord(record)
+                .setMechanismUID("0")
+                .build(identity);
+        assertEquals(0, reads[0]);
+        assertEquals(6, oath.getDigits());
+
+        assertEquals(oath.generateNextCode().getCurrentCode(), "785324");
+        assertEquals(oath.generateNextCode().getCurrentCode(), "361422");
+        assertEquals(1, reads[0]);
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.mechanisms.push;
+
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.message.PushMessageParser;
+import com.forgerock.authenticator.storage.IdentityModel;
+
+import org.forgerock.json.jose.builders.JwtClaimsSetBuilder;
+import org.forgerock.json.jose.builders.SignedJwtBuilderImpl;
+import org.forgerock.json.jose.common.JwtReconstruction;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.json.jose.jws.SigningManager;
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+public class PushCredentialsTest {
+    private static final int BENCHMARK_MESSAGES = 2000;
+
+    private static final Logger logger = LoggerFactory.getLogger(PushCredentialsTest.class);
+
+    private String base64Secret;
+    private String base64Challenge;
+    private PushCredentials credentials;
+
+    @Before
+    public void setUp() {
+        base64Secret = randomBase64(32);
+        base64Challenge = randomBase64(32);
+        credentials = new PushCredentials(base64Secret);
+    }
+
+    @Test
+    public void shouldAnswerChallengesRepeatedly() throws Exception {
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(Base64.decode(base64Secret), "HmacSHA256"));
+        String expected = Base64.encode(hmac.doFinal(Base64.decode(base64Challenge)));
+
+        assertEquals(expected, credentials.generateChallengeResponse(base64Challenge));
+        assertEquals(expected, credentials.generateChallengeResponse(base64Challenge));
+    }
+
+    @Test
+    public void shouldReuseCredentialsOfMechanism() throws Exception {
+        Identity identity = Identity.builder().setIssuer("ForgeRock").setAccountName("test.user")
+                .build(mock(IdentityModel.class));
+        Push push = Push.builder().setMechanismUID("1").setBase64Secret(base64Secret).buildImpl(identity);
+
+        assertTrue(push.getCredentials() == push.getCredentials());
+    }
+
+    /**
+     * Measures the cost of verifying a message and answering its challenge, when the message is
+     * reconstructed and the signing state created for every message as before, and when the
+     * message is parsed by PushMessageParser and the signing state is reused. Only runs when
+     * enabled with -DpushCredentialsBenchmark=true, and reports its figures through the log.
+     */
+    @Test
+    public void benchmarkVerifyAndRespond() throws Exception {
+        assumeTrue(Boolean.getBoolean("pushCredentialsBenchmark"));
+        final String jwt = credentials.sign(new JwtClaimsSetBuilder().claim("u", "1")
+                .claim("c", base64Challenge).build());
+
+        measure("uncached", new Runnable() {
+            @Override
+            public void run() {
+                byte[] secret = Base64.decode(base64Secret);
+                SignedJwt signedJwt = reconstruct(jwt);
+                String challenge = (String) signedJwt.getClaimsSet().getClaim("c");
+                assertTrue(signedJwt.verify(new SigningManager().newHmacSigningHandler(secret)));
+                try {
+                    Mac hmac = Mac.getInstance("HmacSHA256");
+                    hmac.init(new SecretKeySpec(secret, "HmacSHA256"));
+                    hmac.doFinal(Base64.decode(challenge));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                SignedJwtBuilderImpl jwtBuilder = new SignedJwtBuilderImpl(
+                        new SigningManager().newHmacSigningHandler(secret));
+                jwtBuilder.claims(new JwtClaimsSetBuilder().claim("response", base64Challenge).build());
+                jwtBuilder.headers().alg(JwsAlgorithm.HS256);
+                jwtBuilder.build();
+            }
+        });
+
+        measure("cached", new Runnable() {
+            @Override
+            public void run() {
+                PushMessageParser.Claims claims = PushMessageParser.parse(jwt).verify(credentials);
+                String response = credentials.generateChallengeResponse(claims.getChallenge());
+                credentials.sign(new JwtClaimsSetBuilder().claim("response", response).build());
+            }
+        });
+    }
+
+    private static void measure(String name, Runnable message) {
+        // Warm up, so that class loading is not included in the measurement
+        for (int i = 0; i < BENCHMARK_MESSAGES / 10; i++) {
+            message.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            message.run();
+        }
+        long time = System.nanoTime() - start;
+        logger.info(String.format("%-8s verify and respond %8.1f us per message",
+                name, time / 1000.0 / BENCHMARK_MESSAGES));
+    }
+
+    private static SignedJwt reconstruct(String jwt) {
+        return new JwtReconstruction().reconstructJwt(jwt, SignedJwt.class);
+    }
+
+    private static String randomBase64(int length) {
+        byte[] random = new byte[length];
+        new Random().nextBytes(random);
+        return Base64.encode(random);
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.mechanisms.push;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.message.DeviceTokenCache;
+import com.forgerock.authenticator.storage.IdentityModel;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.InMemoryStorageSystem;
+import com.forgerock.authenticator.utils.MessageUtils;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.BDDMockito.willAnswer;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PushRegistrarTest {
+
+    private static final String ENDPOINT = "http://example.com/register";
+
+    private IdentityModel model;
+    private MessageUtils messageUtils;
+    private DeviceTokenCache deviceTokenCache;
+    private ScheduledExecutorService executor;
+    private PushRegistrar registrar;
+    private Push push;
+
+    @Before
+    public void setUp() throws Exception {
+        model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(new InMemoryStorageSystem(
+                new CoreMechanismFactory(RuntimeEnvironment.application, model)));
+
+        messageUtils = mock(MessageUtils.class);
+        deviceTokenCache = mock(DeviceTokenCache.class);
+        given(deviceTokenCache.getToken()).willReturn("token");
+        given(deviceTokenCache.refresh()).willReturn("newToken");
+
+        // Runs registrations straight away, ignoring the delay between attempts
+        executor = mock(ScheduledExecutorService.class);
+        given(executor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class))).willAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        });
+
+        willAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        }).given(executor).execute(any(Runnable.class));
+
+        registrar = createRegistrar(true);
+        push = addPush("test.user", true);
+    }
+
+    @Test
+    public void shouldMarkMechanismRegisteredWhenServerAccepts() throws Exception {
+        // Given
+        given(messageUtils.respond(eq(ENDPOINT), anyString(), any(PushCredentials.class), eq("messageId"),
+                anyMapOf(String.class, Object.class))).willReturn(200);
+
+        // When
+        registrar.register(push, registration());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        assertFalse(push.isRegistering());
+        assertFalse(registrar.isRegistering(push));
+        assertEquals(1, model.getMechanisms().size());
+        assertFalse(Boolean.parseBoolean(push.asRecord().getExtras().get("registering")));
+        assertEquals("token", push.getRegisteredToken());
+    }
+
+    @Test
+    public void shouldRetryThenRollBackWhenServerCannotBeReached() throws Exception {
+        // Given
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class))).willThrow(new IOException("Offline"));
+
+        // When
+        registrar.register(push, registration());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(messageUtils, times(3)).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+        assertTrue(model.getIdentities().isEmpty());
+    }
+
+    @Test
+    public void shouldRollBackWhenServerRejectsRegistration() throws Exception {
+        // Given
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class))).willReturn(403);
+
+        // When
+        registrar.register(push, registration());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(messageUtils, times(1)).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+        assertTrue(model.getIdentities().isEmpty());
+    }
+
+    @Test
+    public void shouldRollBackRegistrationsLeftFromEarlierRun() throws Exception {
+        // Given
+        Push registered = addPush("other.user", false);
+
+        // When
+        registrar.rollBackAbandoned(model);
+
+        // Then
+        assertEquals(1, model.getMechanisms().size());
+        assertTrue(model.getMechanisms().contains(registered));
+    }
+
+    @Test
+    public void shouldSendNewTokenToEveryRegisteredMechanism() throws Exception {
+        // Given
+        Push first = addPush("first.user", false);
+        Push second = addPush("second.user", false);
+        given(messageUtils.respond(eq(ENDPOINT), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class))).willReturn(200);
+
+        // When
+        registrar.refreshToken();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(messageUtils, times(2)).respond(eq(ENDPOINT), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+        assertEquals("newToken", first.getRegisteredToken());
+        assertEquals("newToken", second.getRegisteredToken());
+        assertEquals(PushRegistrar.Status.REGISTERED, registrar.getStatus(first));
+        // Still being registered for the first time, so not sent the new token
+        assertTrue(push.isRegistering());
+        assertEquals(null, registrar.getStatus(push));
+    }
+
+    @Test
+    public void shouldKeepOldTokenWhenUpdateIsRejected() throws Exception {
+        // Given
+        Push registered = addPush("other.user", false);
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class))).willReturn(403);
+
+        // When
+        registrar.refreshToken();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        assertEquals("token", registered.getRegisteredToken());
+        assertEquals(PushRegistrar.Status.FAILED, registrar.getStatus(registered));
+        assertFalse(registrar.isRegistering(registered));
+    }
+
+    @Test
+    public void shouldNotSendRejectedTokenAgainWhenAppNextStarts() throws Exception {
+        // Given
+        Push registered = addPush("other.user", false);
+        given(deviceTokenCache.getToken()).willReturn("newToken");
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class))).willReturn(403);
+        registrar.requestReRegistration(model);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // When
+        PushRegistrar restarted = createRegistrar(true);
+        restarted.requestReRegistration(model);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(messageUtils, times(1)).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+        assertEquals(PushRegistrar.Status.FAILED, restarted.getStatus(registered));
+    }
+
+    @Test
+    public void shouldSendTokenAgainWhenAppNextStartsIfServerCouldNotBeReached() throws Exception {
+        // Given
+        Push registered = addPush("other.user", false);
+        given(deviceTokenCache.getToken()).willReturn("newToken");
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class)))
+                .willThrow(new IOException("Offline"), new IOException("Offline"), new IOException("Offline"))
+                .willReturn(200);
+        registrar.requestReRegistration(model);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(PushRegistrar.Status.FAILED, registrar.getStatus(registered));
+
+        // When
+        PushRegistrar restarted = createRegistrar(true);
+        restarted.requestReRegistration(model);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(messageUtils, times(4)).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+        assertEquals("newToken", registered.getRegisteredToken());
+        assertEquals(PushRegistrar.Status.REGISTERED, restarted.getStatus(registered));
+    }
+
+    @Test
+    public void shouldOnlyReRegisterOnceWhileAppRuns() throws Exception {
+        // Given
+        addPush("other.user", false);
+        given(deviceTokenCache.getToken()).willReturn("newToken");
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class))).willThrow(new IOException("Offline"));
+
+        // When
+        registrar.requestReRegistration(model);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        registrar.requestReRegistration(model);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(messageUtils, times(3)).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void shouldNotSendNewTokenWhenUpdatesAreDisabled() throws Exception {
+        // Given
+        addPush("other.user", false);
+        registrar = createRegistrar(false);
+
+        // When
+        registrar.refreshToken();
+        registrar.requestReRegistration(model);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(messageUtils, never()).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void shouldRefreshCachedTokenWhenUpdatesAreDisabled() throws Exception {
+        // Given
+        registrar = createRegistrar(false);
+
+        // When
+        registrar.refreshToken();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(deviceTokenCache).refresh();
+    }
+
+    @Test
+    public void shouldRetryTokenUpdateWhenServerCannotBeReached() throws Exception {
+        // Given
+        Push registered = addPush("other.user", false);
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class))).willThrow(new IOException("Offline")).willReturn(200);
+
+        // When
+        registrar.refreshToken();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // Then
+        verify(messageUtils, times(2)).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+        assertEquals("newToken", registered.getRegisteredToken());
+        assertEquals(PushRegistrar.Status.REGISTERED, registrar.getStatus(registered));
+    }
+
+    private PushRegistrar createRegistrar(boolean tokenUpdatesEnabled) {
+        return new PushRegistrar(RuntimeEnvironment.application,
+                new IdentityModelProvider(RuntimeEnvironment.application, model), messageUtils, deviceTokenCache,
+                executor, executor, tokenUpdatesEnabled, new Handler(Looper.getMainLooper()));
+    }
+
+    private Push addPush(String accountName, boolean registering) throws Exception {
+        byte[] secret = new byte[32];
+        new Random().nextBytes(secret);
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("ForgeRock").setAccountName(accountName));
+        Push push = (Push) identity.addMechanism(Push.builder()
+                .setMechanismUID(accountName)
+                .setBase64Secret(Base64.encode(secret))
+                .setRegistrationEndpoint(ENDPOINT)
+                .setRegistering(registering));
+        if (!registering) {
+            push.setRegistered("token");
+        }
+        return push;
+    }
+
+    private static PushRegistrar.Registration registration() {
+        byte[] challenge = new byte[32];
+        new Random().nextBytes(challenge);
+        return new PushRegistrar.Registration(ENDPOINT, null, "messageId", Base64.encode(challenge));
+    }
+}
@@ -17,6 +17,7 @@ package com.forgerock.authenticator.message;
 
 import android.app.NotificationManager;
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 
 import com.forgerock.authenticator.BuildConfig;
@@ -25,8 +26,11 @@ import com.forgerock.authenticator.identity.Identity;
 import com.forgerock.authenticator.mechanisms.InvalidNotificationException;
 import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
 import com.forgerock.authenticator.notifications.Notification;
 import com.forgerock.authenticator.storage.IdentityModel;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.StorageSystem;
 
 import org.apache.tools.ant.taskdefs.condition.Not;
 import org.forgerock.json.jose.builders.JwtClaimsSetBuilder;
@@ -47,18 +51,26 @@ import org.robolectric.annotation.Config;
 import org.testng.Assert;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import roboguice.RoboGuice;
 import uk.org.lidalia.slf4jtest.TestLogger;
 import uk.org.lidalia.slf4jtest.TestLoggerFactory;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.BDDMockito.mock;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.robolectric.Shadows.shadowOf;
 import static uk.org.lidalia.slf4jtest.LoggingEvent.error;
 
@@ -112,7 +124,7 @@ public class GcmServiceTest {
 
 
         service = Robolectric.setupService(GcmService.class);
-        logger = TestLoggerFactory.getTestLogger(GcmService.class);
+        logger = TestLoggerFactory.getTestLogger(PushIngestionQueue.class);
     }
 
     @Test
@@ -120,8 +132,7 @@ public class GcmServiceTest {
 
         // Given
         Push push = generateMockMechanism("0");
-        Notification notification = mock(com.forgerock.authenticator.notifications.Notification.class);
-        given(notification.getMechanism()).willReturn(push);
+        Notification notification = generateMockNotification(push);
 
         given(push.addNotification(any(com.forgerock.authenticator.notifications.Notification.NotificationBuilder.class)))
                 .willReturn(notification);
@@ -201,10 +212,104 @@ public class GcmServiceTest {
                 error("Failed to reconstruct JWT.")));
     }
 
+    @Test
+    public void shouldStoreRetriedMessageOnce() throws Exception {
+        // Given
+        Push push = generateMockMechanism("0");
+        Notification notification = generateMockNotification(push);
+        given(push.addNotification(any(com.forgerock.authenticator.notifications.Notification.NotificationBuilder.class)))
+                .willReturn(notification);
+        given(push.getOwner()).willReturn(mock(Identity.class));
+        setupIdentityModel(push);
+        Bundle bundle = generateBundle("id", push.getSecret(), baseMessage);
+
+        // When
+        service.onMessageReceived("sender", bundle);
+        service.onMessageReceived("sender", bundle);
+
+        // Then
+        verify(push, times(1)).addNotification(
+                any(com.forgerock.authenticator.notifications.Notification.NotificationBuilder.class));
+        verify(identityModel, times(1)).beginBatch();
+        verify(identityModel, times(1)).endBatch();
+        assertEquals(1, shadowOf(notificationManager).getAllNotifications().size());
+    }
+
+    @Test
+    public void shouldOnlyReportMessageStoredOnceItsBatchHasBeenProcessed() throws Exception {
+        // Given
+        Push push = generateMockMechanism("0");
+        Notification notification = generateMockNotification(push);
+        given(push.addNotification(any(com.forgerock.authenticator.notifications.Notification.NotificationBuilder.class)))
+                .willReturn(notification);
+        given(push.getOwner()).willReturn(mock(Identity.class));
+        setupIdentityModel(push);
+        final List<Runnable> tasks = new ArrayList<>();
+        PushIngestionQueue queue = new PushIngestionQueue(RuntimeEnvironment.application,
+                RoboGuice.getInjector(RuntimeEnvironment.application).getInstance(IdentityModelProvider.class),
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        tasks.add(command);
+                    }
+                });
+
+        // When
+        Future<Boolean> stored = queue.offer("id", generateJwt(push.getSecret(), baseMessage));
+
+        // Then
+        assertFalse(stored.isDone());
+        tasks.get(0).run();
+        assertTrue(stored.get());
+        assertFalse(queue.offer("id", generateJwt(push.getSecret(), baseMessage)).get());
+    }
+
+    @Test
+    public void shouldKeepProcessingAndAcceptRetryAfterBatchFails() throws Exception {
+        // Given
+        Push push = generateMockMechanism("0");
+        Notification notification = generateMockNotification(push);
+        given(push.addNotification(any(com.forgerock.authenticator.notifications.Notification.NotificationBuilder.class)))
+                .willThrow(new SQLiteException("disk I/O error")).willReturn(notification);
+        given(push.getOwner()).willReturn(mock(Identity.class));
+        setupIdentityModel(push);
+        final List<Runnable> tasks = new ArrayList<>();
+        PushIngestionQueue queue = new PushIngestionQueue(RuntimeEnvironment.application,
+                RoboGuice.getInjector(RuntimeEnvironment.application).getInstance(IdentityModelProvider.class),
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        tasks.add(command);
+                    }
+                });
+
+        // When
+        Future<Boolean> failed = queue.offer("id", generateJwt(push.getSecret(), baseMessage));
+        tasks.get(0).run();
+        Future<Boolean> retried = queue.offer("id", generateJwt(push.getSecret(), baseMessage));
+        tasks.get(1).run();
+
+        // Then
+        assertFalse(failed.get());
+        assertTrue(retried.get());
+    }
+
+    private Notification generateMockNotification(Push push) {
+        Notification notification = mock(com.forgerock.authenticator.notifications.Notification.class);
+        given(notification.getMechanism()).willReturn(push);
+        given(notification.getOpaqueReference()).willReturn(new ArrayList<String>(Arrays.asList("issuer", "0", "1")));
+        Calendar timeExpired = Calendar.getInstance();
+        timeExpired.add(Calendar.MINUTE, 2);
+        given(notification.getTimeExpired()).willReturn(timeExpired);
+        return notification;
+    }
+
     private Push generateMockMechanism(String mechanismUid) throws InvalidNotificationException {
         final Push push = mock(Push.class);
+        given(push.getModel()).willReturn(identityModel);
         given(push.getMechanismUID()).willReturn(mechanismUid);
         given(push.getSecret()).willReturn(CORRECT_SECRET);
+        given(push.getCredentials()).willReturn(new PushCredentials(CORRECT_SECRET));
         return push;
     }
 
@@ -214,6 +319,7 @@ public class GcmServiceTest {
             mechanismList.add(mechanism);
         }
         given(identityModel.getMechanisms()).willReturn(mechanismList);
+        given(identityModel.getStorageSystem()).willReturn(mock(StorageSystem.class));
     }
 
     private Bundle generateBundle(String messageId, String base64Secret, Map<String, String> map) throws JSONException{
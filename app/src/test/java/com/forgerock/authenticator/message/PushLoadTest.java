@@ -0,0 +1,383 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import android.os.Bundle;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.storage.IdentityModel;
+import com.forgerock.authenticator.storage.IdentityModelListener;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.InMemoryStorageSystem;
+import com.forgerock.authenticator.storage.NotificationCompactor;
+import com.forgerock.authenticator.storage.Settings;
+import com.forgerock.authenticator.utils.MessageUtils;
+import com.google.inject.AbstractModule;
+
+import org.forgerock.json.jose.builders.JwtClaimsSetBuilder;
+import org.forgerock.json.jose.common.JwtReconstruction;
+import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.json.jose.jws.SigningManager;
+import org.forgerock.util.encode.Base64;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import roboguice.RoboGuice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Load test of push handling. Signed push messages for a number of enrolled Push mechanisms are
+ * fed to the {@link GcmService} at a fixed rate, and every notification is approved as soon as it
+ * is stored. The approvals are sent to a mock AM server, which checks the response to each
+ * challenge. Reports ingest throughput, approve latency from delivery to the server, dropped and
+ * duplicate messages, and heap growth through the log.
+ *
+ * The test takes several seconds, so only runs when enabled with -DpushLoad.enabled=true.
+ * The load can be changed with system properties, e.g. -DpushLoad.messages=5000:
+ * pushLoad.mechanisms, pushLoad.messages, pushLoad.rate (messages per second),
+ * pushLoad.redeliveries (percentage of messages delivered twice) and pushLoad.approvers.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PushLoadTest {
+    private static final int MECHANISMS = Integer.getInteger("pushLoad.mechanisms", 20);
+    private static final int MESSAGES = Integer.getInteger("pushLoad.messages", 200);
+    private static final int RATE = Integer.getInteger("pushLoad.rate", 100);
+    private static final int REDELIVERY_PERCENT = Integer.getInteger("pushLoad.redeliveries", 10);
+    private static final int APPROVERS = Integer.getInteger("pushLoad.approvers", 4);
+    private static final int TTL_SECONDS = 120;
+    private static final long SETTLE_MILLIS = 500;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private static final Logger logger = LoggerFactory.getLogger(PushLoadTest.class);
+
+    private final Random random = new Random();
+    private final Map<String, SentMessage> sent = new ConcurrentHashMap<>();
+    private final Map<String, Long> ingested = new ConcurrentHashMap<>();
+    private final Map<String, Long> acknowledged = new ConcurrentHashMap<>();
+    private final AtomicInteger serverDuplicates = new AtomicInteger();
+    private final AtomicInteger serverRejections = new AtomicInteger();
+
+    private MockWebServer server;
+    private ExecutorService ingestWorker;
+    private ExecutorService approvers;
+    private IdentityModel model;
+    private List<Push> mechanisms;
+    private List<String> secrets;
+    private GcmService service;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("pushLoad.enabled"));
+        server = new MockWebServer();
+        server.setDispatcher(new MockAmDispatcher());
+        server.start();
+
+        model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(new InMemoryStorageSystem(
+                new CoreMechanismFactory(RuntimeEnvironment.application, model)));
+        ingestWorker = Executors.newSingleThreadExecutor();
+        approvers = Executors.newFixedThreadPool(APPROVERS);
+
+        RoboGuice.setUseAnnotationDatabases(false);
+        RoboGuice.overrideApplicationInjector(RuntimeEnvironment.application,
+                RoboGuice.newDefaultRoboModule(RuntimeEnvironment.application), new LoadTestModule());
+
+        String endpoint = server.url("/push").toString();
+        mechanisms = new ArrayList<>();
+        secrets = new ArrayList<>();
+        for (int i = 0; i < MECHANISMS; i++) {
+            String secret = randomBase64(32);
+            secrets.add(secret);
+            Identity identity = model.addIdentity(Identity.builder()
+                    .setIssuer("issuer")
+                    .setAccountName("account" + i));
+            mechanisms.add((Push) identity.addMechanism(Push.builder()
+                    .setMechanismUID("uid" + i)
+                    .setBase64Secret(secret)
+                    .setAuthEndpoint(endpoint)));
+        }
+        model.addListener(new Approver());
+
+        service = Robolectric.setupService(GcmService.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Nothing was started when the test is not enabled
+        if (server == null) {
+            return;
+        }
+        approvers.shutdownNow();
+        ingestWorker.shutdownNow();
+        server.shutdown();
+    }
+
+    @Test
+    public void pushStorm() throws Exception {
+        long startHeap = usedHeap();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long start = System.nanoTime();
+        int deliveries = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            Push push = mechanisms.get(i % mechanisms.size());
+            String secret = secrets.get(i % secrets.size());
+            String messageId = "message" + i;
+            String challenge = randomBase64(32);
+            Bundle bundle = bundle(messageId, sign(push, challenge));
+
+            long due = start + i * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            sent.put(messageId, new SentMessage(secret, challenge, System.nanoTime()));
+            service.onMessageReceived("sender", bundle);
+            deliveries++;
+            if (random.nextInt(100) < REDELIVERY_PERCENT) {
+                service.onMessageReceived("sender", bundle);
+                deliveries++;
+            }
+        }
+        long sendTime = System.nanoTime() - start;
+
+        awaitQuiet();
+        long endHeap = usedHeap();
+
+        int storedDuplicates = 0;
+        Set<String> stored = new HashSet<>();
+        for (Notification notification : model.getNotifications()) {
+            if (!stored.add(messageId(notification))) {
+                storedDuplicates++;
+            }
+        }
+        int dropped = MESSAGES - stored.size();
+
+        report(deliveries, sendTime, start, dropped, storedDuplicates, endHeap - startHeap);
+
+        assertEquals(0, serverRejections.get());
+        assertEquals(0, serverDuplicates.get());
+        assertEquals(0, storedDuplicates);
+        assertEquals(stored.size(), acknowledged.size());
+    }
+
+    /**
+     * Waits until no message has been stored or acknowledged for a while, and every stored
+     * notification has been acknowledged.
+     */
+    private void awaitQuiet() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        int lastCount = -1;
+        long quietSince = System.currentTimeMillis();
+        while (System.currentTimeMillis() < deadline) {
+            int count = ingested.size() + acknowledged.size();
+            if (count != lastCount) {
+                lastCount = count;
+                quietSince = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - quietSince >= SETTLE_MILLIS
+                    && acknowledged.size() >= ingested.size()) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void report(int deliveries, long sendTime, long start, int dropped, int storedDuplicates,
+                        long heapGrowth) {
+        long lastIngest = start;
+        for (long time : ingested.values()) {
+            lastIngest = Math.max(lastIngest, time);
+        }
+        double ingestSeconds = (lastIngest - start) / 1e9;
+
+        List<Long> latencies = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : acknowledged.entrySet()) {
+            latencies.add(entry.getValue() - sent.get(entry.getKey()).sentTime);
+        }
+        Collections.sort(latencies);
+
+        logger.info(String.format("push load: %d mechanisms, %d messages (%d deliveries) at %d/s over %.2f s",
+                MECHANISMS, MESSAGES, deliveries, RATE, sendTime / 1e9));
+        logger.info(String.format("ingest    %8.1f messages/s", ingested.size() / ingestSeconds));
+        logger.info(String.format("approve   p50 %8.2f ms  p90 %8.2f ms  p99 %8.2f ms  max %8.2f ms",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 100)));
+        logger.info(String.format("dropped   %d  duplicates stored %d  duplicates sent %d  rejected %d",
+                dropped, storedDuplicates, serverDuplicates.get(), serverRejections.get()));
+        logger.info(String.format("heap      %+d bytes", heapGrowth));
+    }
+
+    private static double percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)) / 1e6;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String sign(Push push, String challenge) {
+        return push.getCredentials().sign(new JwtClaimsSetBuilder()
+                .claim("u", push.getMechanismUID())
+                .claim("c", challenge)
+                .claim("t", Integer.toString(TTL_SECONDS))
+                .build());
+    }
+
+    private static String messageId(Notification notification) {
+        return notification.getData().get("messageId");
+    }
+
+    private static Bundle bundle(String messageId, String jwt) {
+        Bundle bundle = new Bundle();
+        bundle.putString("messageId", messageId);
+        bundle.putString("message", jwt);
+        return bundle;
+    }
+
+    private static String randomBase64(int length) {
+        byte[] bytes = new byte[length];
+        new Random().nextBytes(bytes);
+        return Base64.encode(bytes);
+    }
+
+    /**
+     * Approves each notification once it has been stored. Called by the ingestion worker once
+     * per batch.
+     */
+    private class Approver implements IdentityModelListener {
+        @Override
+        public void notificationChanged() {
+            long now = System.nanoTime();
+            for (Notification notification : model.getNotifications()) {
+                final Notification pending = notification;
+                if (ingested.containsKey(messageId(pending))) {
+                    continue;
+                }
+                ingested.put(messageId(pending), now);
+                approvers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.accept();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void mechanismChanged() {
+        }
+    }
+
+    /**
+     * Acts as AM, checking that each response is signed with the secret of the mechanism and
+     * answers the challenge that was sent.
+     */
+    private class MockAmDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            long now = System.nanoTime();
+            try {
+                JSONObject body = new JSONObject(request.getBody().readUtf8());
+                String messageId = body.getString("messageId");
+                SentMessage message = sent.get(messageId);
+                SignedJwt jwt = new JwtReconstruction().reconstructJwt(body.getString("jwt"), SignedJwt.class);
+                if (message == null
+                        || !jwt.verify(new SigningManager().newHmacSigningHandler(message.secret))
+                        || !message.expectedResponse.equals(jwt.getClaimsSet().getClaim("response"))) {
+                    serverRejections.incrementAndGet();
+                    return new MockResponse().setResponseCode(401);
+                }
+                if (acknowledged.put(messageId, now) != null) {
+                    serverDuplicates.incrementAndGet();
+                }
+                return new MockResponse();
+            } catch (Exception e) {
+                serverRejections.incrementAndGet();
+                return new MockResponse().setResponseCode(400);
+            }
+        }
+    }
+
+    private static final class SentMessage {
+        private final byte[] secret;
+        private final String expectedResponse;
+        private final long sentTime;
+
+        private SentMessage(String base64Secret, String challenge, long sentTime) {
+            this.secret = Base64.decode(base64Secret);
+            this.expectedResponse = new PushCredentials(base64Secret).generateChallengeResponse(challenge);
+            this.sentTime = sentTime;
+        }
+    }
+
+    private class LoadTestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            IdentityModelProvider identityModelProvider =
+                    new IdentityModelProvider(RuntimeEnvironment.application, model);
+            bind(MessageUtils.class).toInstance(new MessageUtils());
+            bind(IdentityModel.class).toInstance(model);
+            bind(IdentityModelProvider.class).toInstance(identityModelProvider);
+            bind(PushIngestionQueue.class).toInstance(new PushIngestionQueue(RuntimeEnvironment.application,
+                    identityModelProvider, ingestWorker));
+            bind(Settings.class).toInstance(mock(Settings.class));
+            bind(NotificationCompactor.class).toInstance(mock(NotificationCompactor.class));
+            bind(ResponseOutbox.class).toInstance(mock(ResponseOutbox.class));
+        }
+    }
+}
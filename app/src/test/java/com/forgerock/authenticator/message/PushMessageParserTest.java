@@ -0,0 +1,109 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
+
+import org.forgerock.json.jose.builders.JwtClaimsSetBuilder;
+import org.forgerock.util.encode.Base64;
+import org.forgerock.util.encode.Base64url;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class PushMessageParserTest {
+    private PushCredentials credentials;
+
+    @Before
+    public void setUp() {
+        credentials = new PushCredentials(randomBase64());
+    }
+
+    @Test
+    public void shouldParseAndVerifySignedMessage() {
+        String jwt = credentials.sign(new JwtClaimsSetBuilder()
+                .claim("u", "mechanism")
+                .claim("c", "challenge")
+                .claim("l", Base64.encode("cookie".getBytes()))
+                .claim("t", "60")
+                .build());
+
+        PushMessageParser.ParsedMessage parsedMessage = PushMessageParser.parse(jwt);
+        assertNotNull(parsedMessage);
+        assertEquals("mechanism", parsedMessage.getMechanismUid());
+
+        PushMessageParser.Claims claims = parsedMessage.verify(credentials);
+        assertNotNull(claims);
+        assertEquals("challenge", claims.getChallenge());
+        assertEquals("cookie", claims.getAmlbCookie());
+        assertEquals(60, claims.getTtlSeconds(120));
+    }
+
+    @Test
+    public void shouldUseDefaultsForMissingClaims() {
+        String jwt = credentials.sign(new JwtClaimsSetBuilder().claim("u", "mechanism").build());
+
+        PushMessageParser.Claims claims = PushMessageParser.parse(jwt).verify(credentials);
+
+        assertNull(claims.getAmlbCookie());
+        assertEquals(120, claims.getTtlSeconds(120));
+    }
+
+    @Test
+    public void shouldRejectMessageSignedWithOtherSecret() {
+        String jwt = credentials.sign(new JwtClaimsSetBuilder().claim("u", "mechanism").build());
+
+        assertNull(PushMessageParser.parse(jwt).verify(new PushCredentials(randomBase64())));
+    }
+
+    @Test
+    public void shouldRejectModifiedPayload() {
+        String jwt = credentials.sign(new JwtClaimsSetBuilder().claim("u", "mechanism").build());
+        String[] parts = jwt.split("\\.");
+        String payload = Base64url.encode("{\"u\":\"other\"}".getBytes());
+
+        assertNull(PushMessageParser.parse(parts[0] + "." + payload + "." + parts[2]).verify(credentials));
+    }
+
+    @Test
+    public void shouldRejectUnsignedMessage() {
+        String header = Base64url.encode("{\"alg\":\"none\"}".getBytes());
+        String payload = Base64url.encode("{\"u\":\"mechanism\"}".getBytes());
+
+        assertNull(PushMessageParser.parse(header + "." + payload + "."));
+    }
+
+    @Test
+    public void shouldRejectMalformedMessages() {
+        assertNull(PushMessageParser.parse(null));
+        assertNull(PushMessageParser.parse("{\"u\":\"mechanism\"}"));
+        assertNull(PushMessageParser.parse("a.b"));
+        assertNull(PushMessageParser.parse("a.b.c.d"));
+    }
+
+    private static String randomBase64() {
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        return Base64.encode(random);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import android.app.AlarmManager;
+import android.app.KeyguardManager;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.R;
+import com.forgerock.authenticator.TestGuiceModule;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.mechanisms.push.PushAuthActivity;
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.PushNotification;
+import com.forgerock.authenticator.storage.IdentityModel;
+import com.forgerock.authenticator.storage.StorageSystem;
+import com.forgerock.authenticator.utils.MessageUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.TimeZone;
+
+import roboguice.RoboGuice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PushResponseServiceTest {
+
+    private static final int SYSTEM_NOTIFICATION_ID = 5;
+    private static final String SECRET = "2afd55692b492e60df7e9c0b4f55b0492afd55692b492e60df7e9c0b4f55b049";
+
+    private NotificationManager notificationManager;
+    private MessageUtils messageUtils;
+    private PushNotification notification;
+    private PushResponseService service;
+
+    @Before
+    public void setUp() throws Exception {
+        RoboGuice.setUseAnnotationDatabases(false);
+        RoboGuice.overrideApplicationInjector(RuntimeEnvironment.application, RoboGuice.newDefaultRoboModule(RuntimeEnvironment.application), new TestGuiceModule());
+        notificationManager = (NotificationManager) RuntimeEnvironment.application.getSystemService(Context.NOTIFICATION_SERVICE);
+        messageUtils = RoboGuice.getInjector(RuntimeEnvironment.application).getInstance(MessageUtils.class);
+
+        IdentityModel model = RoboGuice.getInjector(RuntimeEnvironment.application).getInstance(IdentityModel.class);
+        given(model.getStorageSystem()).willReturn(mock(StorageSystem.class));
+        given(model.getInjector()).willReturn(RoboGuice.getInjector(RuntimeEnvironment.application));
+
+        Identity owner = mock(Identity.class);
+        given(owner.getIssuer()).willReturn("issuer");
+        given(owner.getAccountName()).willReturn("accountName");
+        Push push = mock(Push.class);
+        given(push.getOwner()).willReturn(owner);
+        given(push.getModel()).willReturn(model);
+        given(push.getMechanismUID()).willReturn("0");
+        given(push.getCredentials()).willReturn(new PushCredentials(SECRET));
+        given(push.getOpaqueReference()).willAnswer(new Answer<ArrayList<String>>() {
+            @Override
+            public ArrayList<String> answer(InvocationOnMock invocation) {
+                return new ArrayList<>(Arrays.asList("issuer", "accountName", "0"));
+            }
+        });
+
+        Calendar timeExpired = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        timeExpired.add(Calendar.MINUTE, 2);
+        notification = (PushNotification) PushNotification.builder().setId(1).setMessageId("messageId")
+                .setTimeExpired(timeExpired).build(push);
+        given(push.getNotifications()).willReturn(Collections.<Notification>singletonList(notification));
+        given(model.getMechanisms()).willReturn(Collections.<Mechanism>singletonList(push));
+
+        service = Robolectric.setupService(PushResponseService.class);
+    }
+
+    @Test
+    public void shouldApproveAndUpdateSystemNotification() throws Exception {
+        // Given
+        givenServerResponds(200);
+
+        // When
+        service.onHandleIntent(responseIntent(PushResponseService.ACTION_APPROVE));
+
+        // Then
+        assertTrue(notification.wasApproved());
+        assertFalse(notification.isPending());
+        assertEquals(getString(R.string.notification_status_approved), getSystemNotificationText());
+    }
+
+    @Test
+    public void shouldDenyAndUpdateSystemNotification() throws Exception {
+        // Given
+        givenServerResponds(200);
+
+        // When
+        service.onHandleIntent(responseIntent(PushResponseService.ACTION_DENY));
+
+        // Then
+        assertFalse(notification.wasApproved());
+        assertFalse(notification.isPending());
+        assertEquals(getString(R.string.notification_status_rejected), getSystemNotificationText());
+    }
+
+    @Test
+    public void shouldReportFailureWhenServerRejectsResponse() throws Exception {
+        // Given
+        givenServerResponds(404);
+
+        // When
+        service.onHandleIntent(responseIntent(PushResponseService.ACTION_APPROVE));
+
+        // Then
+        assertTrue(notification.isPending());
+        assertEquals(getString(R.string.system_notification_response_failed), getSystemNotificationText());
+    }
+
+    @Test
+    public void shouldReportExpiryWhenNotificationIsAlreadyHandled() throws Exception {
+        // Given
+        givenServerResponds(200);
+        Intent intent = responseIntent(PushResponseService.ACTION_APPROVE);
+        notification.deny();
+
+        // When
+        service.onHandleIntent(intent);
+
+        // Then
+        assertFalse(notification.wasApproved());
+        assertEquals(getString(R.string.notification_status_expired), getSystemNotificationText());
+    }
+
+    @Test
+    public void shouldTakeAnsweredNotificationOutOfSystemNotifier() throws Exception {
+        // Given
+        givenServerResponds(200);
+        RoboGuice.getInjector(RuntimeEnvironment.application).getInstance(SystemNotifier.class)
+                .show(Collections.<Notification>singletonList(notification));
+        int systemNotificationId = SystemNotifier.getId(notification);
+
+        // When
+        service.onHandleIntent(PushResponseService.setupIntent(RuntimeEnvironment.application,
+                PushResponseService.ACTION_APPROVE, notification, systemNotificationId, "title"));
+
+        // Then
+        // The result is not removed when the notification expires
+        AlarmManager alarmManager = (AlarmManager) RuntimeEnvironment.application
+                .getSystemService(Context.ALARM_SERVICE);
+        assertTrue(shadowOf(alarmManager).getScheduledAlarms().isEmpty());
+        android.app.Notification systemNotification = shadowOf(notificationManager).getNotification(systemNotificationId);
+        assertEquals(getString(R.string.notification_status_approved),
+                shadowOf(systemNotification).getContentText().toString());
+    }
+
+    @Test
+    public void shouldOpenNotificationInsteadOfRespondingWhileDeviceIsLocked() throws Exception {
+        // Given
+        givenServerResponds(200);
+        KeyguardManager keyguardManager = (KeyguardManager) RuntimeEnvironment.application
+                .getSystemService(Context.KEYGUARD_SERVICE);
+        shadowOf(keyguardManager).setKeyguardLocked(true);
+
+        // When
+        service.onHandleIntent(responseIntent(PushResponseService.ACTION_APPROVE));
+
+        // Then
+        assertTrue(notification.isPending());
+        verify(messageUtils, never()).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+        Intent started = shadowOf(RuntimeEnvironment.application).getNextStartedActivity();
+        assertEquals(PushAuthActivity.class.getName(), started.getComponent().getClassName());
+    }
+
+    private void givenServerResponds(int returnCode) throws Exception {
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class))).willReturn(returnCode);
+    }
+
+    private Intent responseIntent(String action) {
+        return PushResponseService.setupIntent(RuntimeEnvironment.application, action, notification,
+                SYSTEM_NOTIFICATION_ID, "title");
+    }
+
+    private String getSystemNotificationText() {
+        android.app.Notification systemNotification = shadowOf(notificationManager).getNotification(SYSTEM_NOTIFICATION_ID);
+        return shadowOf(systemNotification).getContentText().toString();
+    }
+
+    private static String getString(int resId) {
+        return RuntimeEnvironment.application.getString(resId);
+    }
+}
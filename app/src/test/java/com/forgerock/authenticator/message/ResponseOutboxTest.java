@@ -0,0 +1,237 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.PushNotification;
+import com.forgerock.authenticator.notifications.QueuedResponse;
+import com.forgerock.authenticator.storage.IdentityModel;
+import com.forgerock.authenticator.storage.IdentityModelProvider;
+import com.forgerock.authenticator.storage.StorageSystem;
+import com.forgerock.authenticator.utils.MessageUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ResponseOutboxTest {
+
+    private static final String MECHANISM_UID = "0";
+    private static final long TIME_ADDED = 1000;
+
+    private StorageSystem storageSystem;
+    private MessageUtils messageUtils;
+    private SystemNotifier systemNotifier;
+    private ScheduledExecutorService worker;
+    private PushNotification notification;
+    private ResponseOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        storageSystem = mock(StorageSystem.class);
+        IdentityModel model = mock(IdentityModel.class);
+        given(model.getStorageSystem()).willReturn(storageSystem);
+
+        Push push = mock(Push.class);
+        given(push.getModel()).willReturn(model);
+        given(push.getMechanismUID()).willReturn(MECHANISM_UID);
+        notification = (PushNotification) PushNotification.builder().setId(1)
+                .setTimeAdded(utcTime(TIME_ADDED)).setTimeExpired(utcTime(System.currentTimeMillis() + 60000))
+                .build(push);
+        given(push.getNotifications()).willReturn(Collections.<Notification>singletonList(notification));
+        given(model.getMechanisms()).willReturn(Collections.<Mechanism>singletonList(push));
+
+        messageUtils = mock(MessageUtils.class);
+        systemNotifier = mock(SystemNotifier.class);
+        worker = mock(ScheduledExecutorService.class);
+        outbox = new ResponseOutbox(new IdentityModelProvider(RuntimeEnvironment.application, model),
+                messageUtils, systemNotifier, worker, new Random(0));
+    }
+
+    @Test
+    public void shouldSettleNotificationWhenServerAcknowledgesResponse() throws Exception {
+        // Given
+        givenQueued(dueResponse(false));
+        given(messageUtils.respond(anyString(), anyString(), eq("messageId"), eq("signed"))).willReturn(200);
+
+        // When
+        outbox.drain();
+
+        // Then
+        verify(storageSystem).deleteQueuedResponse(MECHANISM_UID, TIME_ADDED);
+        assertFalse(notification.isPending());
+        assertTrue(notification.wasApproved());
+        verify(systemNotifier).cancel(notification);
+    }
+
+    @Test
+    public void shouldRetryWithBackoffWhenServerCannotBeReached() throws Exception {
+        // Given
+        givenQueued(dueResponse(true));
+        given(messageUtils.respond(anyString(), anyString(), anyString(), anyString()))
+                .willThrow(new IOException("Offline"));
+        long now = System.currentTimeMillis();
+
+        // When
+        outbox.drain();
+
+        // Then
+        ArgumentCaptor<QueuedResponse> retry = ArgumentCaptor.forClass(QueuedResponse.class);
+        verify(storageSystem).queueResponse(retry.capture());
+        assertEquals(2, retry.getValue().getAttempts());
+        assertTrue(retry.getValue().getNextAttemptTime() >= now + 1000);
+        verify(worker).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+        verify(storageSystem, never()).deleteQueuedResponse(anyString(), anyLong());
+        assertTrue(notification.isPending());
+    }
+
+    @Test
+    public void shouldDiscardResponseRejectedByServer() throws Exception {
+        // Given
+        givenQueued(dueResponse(false));
+        given(messageUtils.respond(anyString(), anyString(), anyString(), anyString())).willReturn(403);
+
+        // When
+        outbox.drain();
+
+        // Then
+        verify(storageSystem).deleteQueuedResponse(MECHANISM_UID, TIME_ADDED);
+        verify(storageSystem, never()).queueResponse(any(QueuedResponse.class));
+        assertTrue(notification.isPending());
+    }
+
+    @Test
+    public void shouldDiscardExpiredResponseWithoutSendingIt() throws Exception {
+        // Given
+        givenQueued(QueuedResponse.builder()
+                .setNotification(MECHANISM_UID, TIME_ADDED)
+                .setMessageId("messageId")
+                .setSignedResponse("signed", false)
+                .setDeadline(System.currentTimeMillis() - 1)
+                .build());
+
+        // When
+        outbox.drain();
+
+        // Then
+        verify(messageUtils, never()).respond(anyString(), anyString(), anyString(), anyString());
+        verify(storageSystem).deleteQueuedResponse(MECHANISM_UID, TIME_ADDED);
+    }
+
+    @Test
+    public void shouldReportAcknowledgedResponseWhenCancelled() throws Exception {
+        // Given
+        givenQueued(dueResponse(true));
+        given(messageUtils.respond(anyString(), anyString(), anyString(), anyString())).willReturn(200);
+        outbox.drain();
+
+        // When
+        Boolean acknowledgedDeny = outbox.cancel(MECHANISM_UID, TIME_ADDED);
+
+        // Then
+        assertEquals(Boolean.TRUE, acknowledgedDeny);
+    }
+
+    @Test
+    public void shouldNotSendWithdrawnResponse() throws Exception {
+        // Given
+        given(storageSystem.getQueuedResponses()).willAnswer(new Answer<List<QueuedResponse>>() {
+            @Override
+            public List<QueuedResponse> answer(InvocationOnMock invocation) {
+                // The user answers while the outbox is reading the queue
+                assertNull(outbox.cancel(MECHANISM_UID, TIME_ADDED));
+                return Collections.singletonList(dueResponse(false));
+            }
+        });
+
+        // When
+        outbox.drain();
+
+        // Then
+        verify(messageUtils, never()).respond(anyString(), anyString(), anyString(), anyString());
+        verify(storageSystem).deleteQueuedResponse(MECHANISM_UID, TIME_ADDED);
+        assertTrue(notification.isPending());
+    }
+
+    @Test
+    public void shouldGrowBackoffUpToLimit() {
+        long previousLimit = 0;
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long limit = Math.min(TimeUnit.MINUTES.toMillis(1), TimeUnit.SECONDS.toMillis(2) << (attempt - 1));
+            long backoff = outbox.getBackoff(attempt);
+            assertTrue(backoff >= limit / 2 && backoff <= limit);
+            assertTrue(limit >= previousLimit);
+            previousLimit = limit;
+        }
+    }
+
+    private void givenQueued(QueuedResponse response) {
+        given(storageSystem.getQueuedResponses()).willReturn(Collections.singletonList(response));
+    }
+
+    private QueuedResponse dueResponse(boolean deny) {
+        return QueuedResponse.builder()
+                .setNotification(MECHANISM_UID, TIME_ADDED)
+                .setEndpoint("http://example.com")
+                .setMessageId("messageId")
+                .setSignedResponse("signed", deny)
+                .setAttempts(1)
+                .setNextAttemptTime(System.currentTimeMillis() - 1)
+                .setDeadline(System.currentTimeMillis() + 60000)
+                .build();
+    }
+
+    private static Calendar utcTime(long time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+}
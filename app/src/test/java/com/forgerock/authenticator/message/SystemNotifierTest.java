@@ -0,0 +1,240 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.message;
+
+import android.app.AlarmManager;
+import android.app.NotificationManager;
+import android.content.Context;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.utils.ContextService;
+import com.forgerock.authenticator.utils.NotificationFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAlarmManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class SystemNotifierTest {
+
+    private NotificationManager notificationManager;
+    private SystemNotifier notifier;
+    private Push push;
+
+    @Before
+    public void setUp() {
+        notificationManager = (NotificationManager) RuntimeEnvironment.application
+                .getSystemService(Context.NOTIFICATION_SERVICE);
+        notifier = createNotifier();
+
+        Identity owner = mock(Identity.class);
+        given(owner.getIssuer()).willReturn("issuer");
+        given(owner.getAccountName()).willReturn("user");
+        push = mock(Push.class);
+        given(push.getOwner()).willReturn(owner);
+        given(push.getMechanismUID()).willReturn("0");
+    }
+
+    @Test
+    public void shouldShowOnlyRecentNotificationsOfBurstWithOneAlert() {
+        // Given
+        List<Notification> burst = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            burst.add(notification(i));
+        }
+
+        // When
+        notifier.show(burst);
+
+        // Then
+        List<android.app.Notification> shown = shadowOf(notificationManager).getAllNotifications();
+        // The three most recent, plus the summary of the group
+        assertEquals(SystemNotifier.MAX_SHOWN_PER_IDENTITY + 1, shown.size());
+        assertEquals(1, countAlerting(shown));
+    }
+
+    @Test
+    public void shouldHideActionsOnLockScreen() {
+        // When
+        notifier.show(Arrays.asList(notification(1)));
+
+        // Then
+        android.app.Notification shown = shadowOf(notificationManager).getAllNotifications().get(0);
+        assertEquals(2, shown.actions.length);
+        assertEquals(android.app.Notification.VISIBILITY_PRIVATE, shown.visibility);
+        assertNull(shown.publicVersion.actions);
+    }
+
+    @Test
+    public void shouldUpdateNotificationInPlaceWithoutAlertingAgain() {
+        // Given
+        Notification notification = notification(1);
+        notifier.show(Arrays.asList(notification));
+
+        // When
+        notifier.show(Arrays.asList(notification));
+
+        // Then
+        List<android.app.Notification> shown = shadowOf(notificationManager).getAllNotifications();
+        assertEquals(1, shown.size());
+        assertEquals(0, countAlerting(shown));
+    }
+
+    @Test
+    public void shouldCancelNotificationsAndSummaryWhenAnswered() {
+        // Given
+        Notification first = notification(1);
+        Notification second = notification(2);
+        notifier.show(Arrays.asList(first, second));
+
+        // When
+        notifier.cancel(first);
+        notifier.cancel(second);
+
+        // Then
+        assertEquals(0, shadowOf(notificationManager).getAllNotifications().size());
+    }
+
+    @Test
+    public void shouldCancelNotificationWhenExpired() {
+        // Given
+        notifier.show(Arrays.asList(notification(1)));
+
+        // When
+        fireExpiryAlarms();
+
+        // Then
+        assertEquals(0, shadowOf(notificationManager).getAllNotifications().size());
+    }
+
+    @Test
+    public void shouldReplaceNotificationWithResultAndUpdateSummaryWhenAnsweredFromTray() {
+        // Given
+        Notification first = notification(1);
+        Notification second = notification(2);
+        Notification third = notification(3);
+        notifier.show(Arrays.asList(first, second, third));
+
+        // When
+        notifier.showResult(SystemNotifier.getId(first), "title", "approved", null);
+        notifier.showResult(SystemNotifier.getId(second), "title", "approved", null);
+
+        // Then
+        // The two results and the remaining notification, without a summary for a single notification
+        assertEquals(3, shadowOf(notificationManager).getAllNotifications().size());
+        assertEquals("approved", shadowOf(shadowOf(notificationManager).getNotification(SystemNotifier.getId(first)))
+                .getContentText().toString());
+    }
+
+    @Test
+    public void shouldKeepResultWhenNotificationExpires() {
+        // Given
+        Notification notification = notification(1);
+        notifier.show(Arrays.asList(notification));
+        notifier.showResult(SystemNotifier.getId(notification), "title", "approved", null);
+
+        // When
+        fireExpiryAlarms();
+
+        // Then
+        assertEquals(1, shadowOf(notificationManager).getAllNotifications().size());
+    }
+
+    @Test
+    public void shouldCancelAnsweredNotificationsAndSummaryAfterProcessRestarts() {
+        // Given
+        Notification first = notification(1);
+        Notification second = notification(2);
+        notifier.show(Arrays.asList(first, second));
+
+        // When
+        SystemNotifier restarted = createNotifier();
+        restarted.cancel(first);
+        restarted.cancel(second);
+
+        // Then
+        assertEquals(0, shadowOf(notificationManager).getAllNotifications().size());
+    }
+
+    @Test
+    public void shouldKeepSummaryCountAfterProcessRestarts() {
+        // Given
+        Notification first = notification(1);
+        notifier.show(Arrays.asList(first, notification(2), notification(3)));
+
+        // When
+        createNotifier().cancel(first);
+
+        // Then
+        // The two remaining, plus the summary of the group
+        assertEquals(3, shadowOf(notificationManager).getAllNotifications().size());
+    }
+
+    private SystemNotifier createNotifier() {
+        return new SystemNotifier(RuntimeEnvironment.application, new NotificationFactory(), new ContextService());
+    }
+
+    private void fireExpiryAlarms() {
+        AlarmManager alarmManager = (AlarmManager) RuntimeEnvironment.application
+                .getSystemService(Context.ALARM_SERVICE);
+        for (ShadowAlarmManager.ScheduledAlarm alarm
+                : new ArrayList<>(shadowOf(alarmManager).getScheduledAlarms())) {
+            notifier.handleExpiry(shadowOf(alarm.operation).getSavedIntent());
+        }
+    }
+
+    private Notification notification(int index) {
+        Notification notification = mock(Notification.class);
+        given(notification.getMechanism()).willReturn(push);
+        given(notification.getOpaqueReference())
+                .willReturn(new ArrayList<String>(Arrays.asList("issuer", "user", "0", Integer.toString(index))));
+        Calendar timeExpired = Calendar.getInstance();
+        timeExpired.add(Calendar.MINUTE, 2);
+        given(notification.getTimeExpired()).willReturn(timeExpired);
+        return notification;
+    }
+
+    private static int countAlerting(List<android.app.Notification> notifications) {
+        int count = 0;
+        for (android.app.Notification notification : notifications) {
+            if (notification.sound != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -23,29 +23,40 @@ import com.forgerock.authenticator.mechanisms.InvalidNotificationException;
 import com.forgerock.authenticator.mechanisms.MechanismCreationException;
 import com.forgerock.authenticator.mechanisms.oath.Oath;
 import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
+import com.forgerock.authenticator.message.ResponseOutbox;
 import com.forgerock.authenticator.storage.IdentityDatabase;
 import com.forgerock.authenticator.storage.IdentityModel;
 import com.forgerock.authenticator.support.MockIdentityBuilder;
 import com.forgerock.authenticator.utils.MessageUtils;
+import com.forgerock.authenticator.utils.TimeKeeper;
 
 import org.forgerock.util.encode.Base64;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.IOException;
+import java.util.Calendar;
 import java.util.Random;
+import java.util.TimeZone;
 
 import roboguice.RoboGuice;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
@@ -83,6 +94,7 @@ public class PushNotificationTest {
         push = mock(Push.class);
         given(push.getModel()).willReturn(model);
         given(push.getSecret()).willReturn(base64value);
+        given(push.getCredentials()).willReturn(new PushCredentials(base64value));
 
         notification = (PushNotification) PushNotification.builder().setId(1).build(push);
 
@@ -116,9 +128,9 @@ public class PushNotificationTest {
 
     @Test
     public void shouldAcceptCorrectlyWithCorrectServer() throws Exception {
-        given(messageUtils.respond(anyString(), anyString(), anyString(), anyString(), anyMapOf(String.class, Object.class))).willReturn(200);
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class))).willReturn(200);
         notification.accept();
-        verify(messageUtils).respond(anyString(), anyString(), anyString(), anyString(), anyMapOf(String.class, Object.class));
+        verify(messageUtils).respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class));
         verify(identityDatabase).updateNotification(1, notification);
         assertTrue(notification.wasApproved());
         assertFalse(notification.isPending());
@@ -126,9 +138,9 @@ public class PushNotificationTest {
 
     @Test
     public void shouldFailToAcceptWithIncorrectServer() throws Exception {
-        given(messageUtils.respond(anyString(), anyString(), anyString(), anyString(), anyMapOf(String.class, Object.class))).willReturn(404);
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class))).willReturn(404);
         notification.accept();
-        verify(messageUtils).respond(anyString(), anyString(), anyString(), anyString(), anyMapOf(String.class, Object.class));
+        verify(messageUtils).respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class));
         verifyZeroInteractions(identityDatabase);
         assertFalse(notification.wasApproved());
         assertTrue(notification.isPending());
@@ -136,9 +148,9 @@ public class PushNotificationTest {
 
     @Test
     public void shouldDenyCorrectlyWithCorrectServer() throws Exception {
-        given(messageUtils.respond(anyString(), anyString(), anyString(), anyString(), anyMapOf(String.class, Object.class))).willReturn(200);
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class))).willReturn(200);
         notification.deny();
-        verify(messageUtils).respond(anyString(), anyString(), anyString(), anyString(), anyMapOf(String.class, Object.class));
+        verify(messageUtils).respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class));
         verify(identityDatabase).updateNotification(1, notification);
         assertFalse(notification.wasApproved());
         assertFalse(notification.isPending());
@@ -147,12 +159,84 @@ public class PushNotificationTest {
 
     @Test
     public void shouldFailToDenyWithIncorrectServer() throws Exception {
-        given(messageUtils.respond(anyString(), anyString(), anyString(), anyString(), anyMapOf(String.class, Object.class))).willReturn(404);
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class))).willReturn(404);
         notification.deny();
-        verify(messageUtils).respond(anyString(), anyString(), anyString(), anyString(), anyMapOf(String.class, Object.class));
+        verify(messageUtils).respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class));
         verifyZeroInteractions(identityDatabase);
         assertFalse(notification.wasApproved());
         assertTrue(notification.isPending());
 
     }
+
+    @Test
+    public void shouldSendPreparedResponseOnAccept() throws Exception {
+        notification = (PushNotification) PushNotification.builder().setId(1).setMessageId("messageId")
+                .setTimeExpired(expiresIn(60000)).build(push);
+        given(messageUtils.signResponse(any(PushCredentials.class), anyMapOf(String.class, Object.class)))
+                .willReturn("signed");
+        given(messageUtils.respond(anyString(), anyString(), anyString(), eq("signed"))).willReturn(200);
+
+        notification.prepareResponses();
+        notification.accept();
+
+        verify(messageUtils, never()).respond(anyString(), anyString(), any(PushCredentials.class), anyString(),
+                anyMapOf(String.class, Object.class));
+        assertTrue(notification.wasApproved());
+        assertFalse(notification.isPending());
+    }
+
+    @Test
+    public void shouldDiscardPreparedResponsesAtExpiry() throws Exception {
+        TimeKeeper timeKeeper = new TimeKeeper() {
+            private long offset = 0;
+
+            @Override
+            public long getCurrentTimeMillis() {
+                return System.currentTimeMillis() + offset;
+            }
+
+            @Override
+            public void timeTravel(long addTime) {
+                offset += addTime;
+            }
+        };
+        notification = (PushNotification) PushNotification.builder().setId(1).setMessageId("messageId")
+                .setTimeExpired(expiresIn(60000)).setTimeKeeper(timeKeeper).build(push);
+        given(messageUtils.signResponse(any(PushCredentials.class), anyMapOf(String.class, Object.class)))
+                .willReturn("signed");
+        notification.prepareResponses();
+        timeKeeper.timeTravel(120000);
+
+        notification.deny();
+
+        verify(messageUtils, never()).respond(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void shouldQueueResponseWhenServerCannotBeReached() throws Exception {
+        given(push.getMechanismUID()).willReturn("0");
+        notification = (PushNotification) PushNotification.builder().setId(1).setMessageId("messageId")
+                .setTimeExpired(expiresIn(60000)).build(push);
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class)))
+                .willThrow(new IOException("Offline"));
+        given(messageUtils.signResponse(any(PushCredentials.class), anyMapOf(String.class, Object.class)))
+                .willReturn("signed");
+
+        assertFalse(notification.accept());
+
+        ArgumentCaptor<QueuedResponse> queued = ArgumentCaptor.forClass(QueuedResponse.class);
+        verify(RoboGuice.getInjector(RuntimeEnvironment.application).getInstance(ResponseOutbox.class))
+                .queue(queued.capture());
+        assertEquals("signed", queued.getValue().getSignedResponse());
+        assertFalse(queued.getValue().isDeny());
+        assertTrue(notification.isResponseQueued());
+        assertTrue(notification.isPending());
+        verifyZeroInteractions(identityDatabase);
+    }
+
+    private static Calendar expiresIn(long millis) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(calendar.getTimeInMillis() + millis);
+        return calendar;
+    }
 }
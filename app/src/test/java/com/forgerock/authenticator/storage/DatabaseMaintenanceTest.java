@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.notifications.PushNotification;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class DatabaseMaintenanceTest {
+    private IdentityModel model;
+    private IdentityDatabase database;
+
+    @Before
+    public void setup() {
+        model = new IdentityModel(RuntimeEnvironment.application);
+        database = new IdentityDatabase(RuntimeEnvironment.application,
+                new CoreMechanismFactory(RuntimeEnvironment.application, model));
+        model.loadFromStorageSystem(database);
+    }
+
+    @Test
+    public void maintenanceReleasesPagesFreedByDeletedHistory() throws Exception {
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account"));
+        Mechanism mechanism = identity.addMechanism(Push.builder()
+                .setMechanismUID("1").setBase64Secret(Base64.encode(random)));
+
+        database.beginTransaction();
+        for (int i = 0; i < 2000; i++) {
+            Calendar time = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            time.setTimeInMillis(i);
+            mechanism.addNotification(PushNotification.builder().setTimeAdded(time).setTimeExpired(time)
+                    .setMessageId("message" + i).setPending(false));
+        }
+        database.setTransactionSuccessful();
+        database.endTransaction();
+        mechanism.clearInactiveNotifications();
+
+        MaintenanceReport first = database.performMaintenance();
+        assertTrue(first.isIntegrityOk());
+        assertTrue(first.getFreelistCountBefore() > 0);
+        assertEquals(0, first.getFreelistCountAfter());
+        assertTrue(first.getPageCountAfter() < first.getPageCountBefore());
+
+        MaintenanceReport second = database.performMaintenance();
+        assertTrue(second.isIntegrityOk());
+        assertEquals(first.getPageCountAfter(), second.getPageCountAfter());
+        assertEquals(0, second.getFreelistCountAfter());
+    }
+
+    @Test
+    public void diagnosticsReturnLastRecordedReport() {
+        StorageDiagnostics diagnostics = new StorageDiagnostics(RuntimeEnvironment.application);
+        assertNull(diagnostics.getLastMaintenanceReport());
+
+        MaintenanceReport report = database.performMaintenance();
+        diagnostics.recordMaintenance(report);
+
+        MaintenanceReport recorded = diagnostics.getLastMaintenanceReport();
+        assertEquals(report.getTimeCompleted(), recorded.getTimeCompleted());
+        assertEquals(report.getPageCountAfter(), recorded.getPageCountAfter());
+        assertEquals(report.getFreelistCountAfter(), recorded.getFreelistCountAfter());
+        assertEquals(report.getDatabaseSize(), recorded.getDatabaseSize());
+        assertTrue(recorded.isIntegrityOk());
+    }
+}
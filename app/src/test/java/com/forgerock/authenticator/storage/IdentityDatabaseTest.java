@@ -23,8 +23,11 @@ import com.forgerock.authenticator.mechanisms.base.Mechanism;
 import com.forgerock.authenticator.mechanisms.oath.Oath;
 import com.forgerock.authenticator.mechanisms.push.Push;
 import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.NotificationStatistics;
 import com.forgerock.authenticator.notifications.PushNotification;
 import com.forgerock.authenticator.notifications.PushNotificationTest;
+import com.forgerock.authenticator.notifications.QueuedResponse;
 
 import org.forgerock.util.encode.Base64;
 import org.junit.Before;
@@ -35,8 +38,12 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 import java.util.Calendar;
+import java.util.List;
 import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -219,6 +226,35 @@ public class IdentityDatabaseTest {
         assertEquals(PREREQUISITE_MECHANISM.getMechanismUID(), loadedMechanism.getMechanismUID());
     }
 
+    @Test
+    public void canLoadSavedPushMechanismFields() {
+        database.addMechanism(PREREQUISITE_MECHANISM);
+        reloadModel();
+
+        Push loadedMechanism = (Push) model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference());
+
+        assertEquals(((Push) PREREQUISITE_MECHANISM).getSecret(), loadedMechanism.getSecret());
+        assertEquals(((Push) PREREQUISITE_MECHANISM).getEndpoint(), loadedMechanism.getEndpoint());
+    }
+
+    @Test
+    public void canLoadSavedOathMechanismFields() throws Exception {
+        Oath oath = (Oath) Oath.builder().setType("hotp").setAlgorithm("sha256").setDigits("8")
+                .setCounter("42").setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM").setMechanismUID("9996")
+                .build(SAVED_IDENTITY);
+        database.addMechanism(oath);
+        reloadModel();
+
+        Oath loadedMechanism = (Oath) model.getMechanism(oath.getOpaqueReference());
+
+        assertEquals(oath.getType(), loadedMechanism.getType());
+        assertEquals(oath.getAlgo(), loadedMechanism.getAlgo());
+        assertEquals(oath.getDigits(), loadedMechanism.getDigits());
+        assertEquals(oath.getCounter(), loadedMechanism.getCounter());
+        assertEquals(oath.getPeriod(), loadedMechanism.getPeriod());
+        assertEquals(oath.asMap(), loadedMechanism.asMap());
+    }
+
     @Test
     public void canDeleteSavedMechanism() {
         int initialSize = model.getMechanisms().size();
@@ -267,6 +303,26 @@ public class IdentityDatabaseTest {
         assertFalse(database.updateMechanism(345, newValue));
     }
 
+    @Test
+    public void canUpdateMechanismCounter() throws Exception {
+        Mechanism mechanism = Oath.builder().setType("hotp").setCounter("0").setMechanismUID("6789")
+                .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM").build(SAVED_IDENTITY);
+
+        long id = database.addMechanism(mechanism);
+        assertTrue(database.updateMechanismCounter(id, 99));
+
+        reloadModel();
+
+        Oath loadedMechanism = (Oath) model.getMechanism(mechanism.getOpaqueReference());
+        assertEquals(99, loadedMechanism.getCounter());
+        assertArrayEquals(mechanism.asRecord().getSecret(), loadedMechanism.asRecord().getSecret());
+    }
+
+    @Test
+    public void cantUpdateMechanismCounterWithWrongId() {
+        assertFalse(database.updateMechanismCounter(345, 99));
+    }
+
     @Test
     public void cannotAddNotificationWithoutFirstAddingMechanism() throws Exception {
         assertEquals(database.addNotification(BASIC_NOTIFICATION), -1);
@@ -358,6 +414,165 @@ public class IdentityDatabaseTest {
         assertFalse(database.updateNotification(345, newValue));
     }
 
+    @Test
+    public void compactionRemovesOldHistoryAndKeepsStatistics() throws Exception {
+        database.addMechanism(PREREQUISITE_MECHANISM);
+        reloadModel();
+        Mechanism mechanism = model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference());
+        long now = System.currentTimeMillis();
+        long day = TimeUnit.DAYS.toMillis(1);
+
+        mechanism.addNotification(historicNotification(now - 40 * day, false, true));
+        mechanism.addNotification(historicNotification(now - 40 * day + 1, false, false));
+        mechanism.addNotification(historicNotification(now - 40 * day + 2, true, false));
+        mechanism.addNotification(historicNotification(now - 2 * day, false, true));
+        mechanism.addNotification(PushNotification.builder()
+                .setTimeAdded(utcTime(now - 1000))
+                .setTimeExpired(utcTime(now + 60000)));
+        NotificationStatistics statistics = mechanism.getNotificationStatistics();
+
+        NotificationRetentionPolicy policy = NotificationRetentionPolicy.builder()
+                .setMaxAge(30 * day)
+                .setDeniedMaxAge(90 * day)
+                .build();
+
+        assertEquals(2, model.applyRetentionPolicy(policy, now));
+        assertEquals(3, mechanism.getNotifications().size());
+        assertEquals(statistics, mechanism.getNotificationStatistics());
+
+        reloadModel();
+        Mechanism reloadedMechanism = model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference());
+
+        assertEquals(3, reloadedMechanism.getNotifications().size());
+        assertEquals(new NotificationStatistics(2, 1, 1), reloadedMechanism.getNotificationStatistics());
+    }
+
+    @Test
+    public void compactionKeepsMostRecentHistoryAndDeniedNotifications() throws Exception {
+        database.addMechanism(PREREQUISITE_MECHANISM);
+        reloadModel();
+        Mechanism mechanism = model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference());
+        long now = System.currentTimeMillis();
+
+        for (int i = 1; i <= 4; i++) {
+            mechanism.addNotification(historicNotification(now - i * 60000, false, true));
+        }
+        mechanism.addNotification(historicNotification(now - 10 * 60000, false, false));
+
+        NotificationRetentionPolicy policy = NotificationRetentionPolicy.builder()
+                .setMaxCountPerMechanism(2)
+                .build();
+
+        assertEquals(2, model.applyRetentionPolicy(policy, now));
+
+        reloadModel();
+        Mechanism reloadedMechanism = model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference());
+
+        assertEquals(mechanism.getNotifications(), reloadedMechanism.getNotifications());
+        assertEquals(3, reloadedMechanism.getNotifications().size());
+        assertFalse(reloadedMechanism.getNotifications().get(2).wasApproved());
+    }
+
+    @Test
+    public void deletingIdentityDeletesItsMechanismsAndNotifications() throws Exception {
+        database.addMechanism(PREREQUISITE_MECHANISM);
+        database.addNotification(BASIC_NOTIFICATION);
+        reloadModel();
+        int initialMechanisms = model.getMechanisms().size();
+        int initialNotifications = model.getNotifications().size();
+
+        model.getIdentity(SAVED_IDENTITY.getOpaqueReference()).delete();
+        reloadModel();
+
+        assertEquals(initialMechanisms - 1, model.getMechanisms().size());
+        assertEquals(initialNotifications - 1, model.getNotifications().size());
+        assertEquals(null, model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference()));
+    }
+
+    @Test
+    public void clearingHistoryDeletesInactiveNotificationsInBulk() throws Exception {
+        database.addMechanism(PREREQUISITE_MECHANISM);
+        reloadModel();
+        Mechanism mechanism = model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference());
+        long now = System.currentTimeMillis();
+
+        database.beginTransaction();
+        for (int i = 1; i <= 5000; i++) {
+            mechanism.addNotification(historicNotification(now - i * 1000, false, i % 2 == 0));
+        }
+        database.setTransactionSuccessful();
+        database.endTransaction();
+        mechanism.addNotification(PushNotification.builder()
+                .setTimeAdded(utcTime(now))
+                .setTimeExpired(utcTime(now + 60000)));
+
+        mechanism.clearInactiveNotifications();
+        assertEquals(1, mechanism.getNotifications().size());
+
+        reloadModel();
+        Mechanism reloadedMechanism = model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference());
+        assertEquals(mechanism.getNotifications(), reloadedMechanism.getNotifications());
+        assertEquals(0, database.deleteInactiveNotifications(reloadedMechanism, now));
+    }
+
+    @Test
+    public void canQueueAndReplaceResponse() throws Exception {
+        database.queueResponse(queuedResponse(SAVED_MECHANISM, 1000, 1));
+        database.queueResponse(queuedResponse(SAVED_MECHANISM, 2000, 3));
+        database.queueResponse(queuedResponse(SAVED_MECHANISM, 1000, 5));
+        reloadModel();
+
+        List<QueuedResponse> responses = database.getQueuedResponses();
+        assertEquals(2, responses.size());
+        assertEquals(2000, responses.get(0).getTimeAdded());
+        assertEquals(1000, responses.get(1).getTimeAdded());
+        assertEquals(5, responses.get(1).getNextAttemptTime());
+        assertEquals("signed", responses.get(1).getSignedResponse());
+        assertTrue(responses.get(1).isDeny());
+
+        assertTrue(database.deleteQueuedResponse(SAVED_MECHANISM.getMechanismUID(), 2000));
+        assertFalse(database.deleteQueuedResponse(SAVED_MECHANISM.getMechanismUID(), 2000));
+        assertEquals(1, database.getQueuedResponses().size());
+    }
+
+    @Test
+    public void cannotQueueResponseWithoutMechanismAndDeletingMechanismDeletesQueuedResponses() throws Exception {
+        assertFalse(database.queueResponse(queuedResponse(PREREQUISITE_MECHANISM, 1000, 1)));
+
+        database.addMechanism(PREREQUISITE_MECHANISM);
+        assertTrue(database.queueResponse(queuedResponse(PREREQUISITE_MECHANISM, 1000, 1)));
+        reloadModel();
+
+        model.getMechanism(PREREQUISITE_MECHANISM.getOpaqueReference()).delete();
+        assertTrue(database.getQueuedResponses().isEmpty());
+    }
+
+    private QueuedResponse queuedResponse(Mechanism mechanism, long timeAdded, long nextAttemptTime) {
+        return QueuedResponse.builder()
+                .setNotification(mechanism.getMechanismUID(), timeAdded)
+                .setEndpoint("http://example.com")
+                .setMessageId("messageId")
+                .setSignedResponse("signed", true)
+                .setNextAttemptTime(nextAttemptTime)
+                .setDeadline(timeAdded + 120000)
+                .build();
+    }
+
+    private PushNotification.PushNotificationBuilder historicNotification(long timeAdded, boolean pending,
+                                                                          boolean approved) {
+        return PushNotification.builder()
+                .setTimeAdded(utcTime(timeAdded))
+                .setTimeExpired(utcTime(timeAdded + 120000))
+                .setPending(pending)
+                .setApproved(approved);
+    }
+
+    private Calendar utcTime(long time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+
     private void reloadModel() {
         model = new IdentityModel(RuntimeEnvironment.application);
         database = new IdentityDatabase(RuntimeEnvironment.application, new CoreMechanismFactory(RuntimeEnvironment.application, model));
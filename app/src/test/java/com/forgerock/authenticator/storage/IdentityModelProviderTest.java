@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.oath.Oath;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.notifications.PushNotification;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class IdentityModelProviderTest {
+    private Push push;
+
+    @Before
+    public void setup() throws Exception {
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        IdentityModel model = new ModelOpenHelper(RuntimeEnvironment.application).getModel();
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account"));
+        identity.addMechanism(Oath.builder().setMechanismUID("1").setType("totp")
+                .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM"));
+        push = (Push) identity.addMechanism(Push.builder()
+                .setMechanismUID("2").setBase64Secret(Base64.encode(random)));
+    }
+
+    @Test
+    public void mechanismIsFoundWithoutLoadingModel() {
+        IdentityModelProvider provider = new IdentityModelProvider(RuntimeEnvironment.application);
+
+        Mechanism mechanism = provider.getMechanism("2");
+
+        assertFalse(provider.isLoaded());
+        assertEquals(push, mechanism);
+        assertEquals(push.getSecret(), ((Push) mechanism).getSecret());
+        assertEquals(1, mechanism.getOwner().getMechanisms().size());
+    }
+
+    @Test
+    public void mechanismsOfOneIdentityShareItInPartialModel() {
+        IdentityModelProvider provider = new IdentityModelProvider(RuntimeEnvironment.application);
+
+        Mechanism oath = provider.getMechanism("1");
+        Mechanism loadedPush = provider.getMechanism("2");
+
+        assertFalse(provider.isLoaded());
+        assertSame(oath.getOwner(), loadedPush.getOwner());
+        assertEquals(2, oath.getOwner().getMechanisms().size());
+        assertEquals(1, oath.getOwner().getModel().getIdentities().size());
+    }
+
+    @Test
+    public void unknownMechanismIsNotFound() {
+        IdentityModelProvider provider = new IdentityModelProvider(RuntimeEnvironment.application);
+
+        assertNull(provider.getMechanism("3"));
+        assertFalse(provider.isLoaded());
+    }
+
+    @Test
+    public void notificationAddedBeforeLoadIsInLoadedModel() throws Exception {
+        IdentityModelProvider provider = new IdentityModelProvider(RuntimeEnvironment.application);
+        Calendar time = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+        provider.getMechanism("2").addNotification(PushNotification.builder()
+                .setTimeAdded(time).setTimeExpired(time).setMessageId("message"));
+
+        IdentityModel model = provider.get();
+        assertTrue(provider.isLoaded());
+        assertEquals(2, model.getMechanisms().size());
+        Mechanism loaded = provider.getMechanism("2");
+        assertEquals(push, loaded);
+        assertEquals(1, loaded.getNotifications().size());
+    }
+
+    @Test
+    public void mechanismReturnedBeforeLoadCanStillBeChangedAfterLoad() throws Exception {
+        IdentityModelProvider provider = new IdentityModelProvider(RuntimeEnvironment.application);
+        Calendar time = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        Mechanism partial = provider.getMechanism("2");
+
+        provider.get();
+        partial.addNotification(PushNotification.builder()
+                .setTimeAdded(time).setTimeExpired(time).setMessageId("message"));
+
+        IdentityModel reloaded = new ModelOpenHelper(RuntimeEnvironment.application).getModel();
+        assertEquals(1, reloaded.getNotifications().size());
+        assertTrue(provider.getStorageSystem() instanceof IdentityDatabase);
+    }
+}
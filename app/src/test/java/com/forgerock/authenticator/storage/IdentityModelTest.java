@@ -0,0 +1,159 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.TestGuiceModule;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.mechanisms.push.PushCredentials;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.PushNotification;
+import com.forgerock.authenticator.utils.MessageUtils;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import roboguice.RoboGuice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class IdentityModelTest {
+
+    private IdentityModel model;
+    private StorageSystem storageSystem;
+    private MessageUtils messageUtils;
+
+    @Before
+    public void setUp() throws Exception {
+        RoboGuice.setUseAnnotationDatabases(false);
+        RoboGuice.overrideApplicationInjector(RuntimeEnvironment.application, RoboGuice.newDefaultRoboModule(RuntimeEnvironment.application), new TestGuiceModule());
+        messageUtils = RoboGuice.getInjector(RuntimeEnvironment.application).getInstance(MessageUtils.class);
+
+        storageSystem = mock(StorageSystem.class);
+        given(storageSystem.getModel(any(IdentityModel.class))).willReturn(new ArrayList<Identity>());
+        model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(storageSystem);
+    }
+
+    @Test
+    public void shouldSettleAcknowledgedResponsesInOneTransaction() throws Exception {
+        given(messageUtils.respond(eq("http://a"), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class))).willReturn(200);
+        given(messageUtils.respond(eq("http://b"), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class))).willReturn(404);
+        Push pushA = push("http://a");
+        Push pushB = push("http://b");
+        PushNotification first = (PushNotification) PushNotification.builder().setId(1).build(pushA);
+        PushNotification second = (PushNotification) PushNotification.builder().setId(2).build(pushA);
+        PushNotification third = (PushNotification) PushNotification.builder().setId(3).build(pushB);
+
+        List<Notification> acknowledged = model.respondToNotifications(
+                Arrays.<Notification>asList(first, second, third), true);
+
+        assertEquals(Arrays.<Notification>asList(first, second), acknowledged);
+        assertTrue(first.wasApproved());
+        assertTrue(second.wasApproved());
+        assertTrue(third.isPending());
+        InOrder inOrder = inOrder(storageSystem);
+        inOrder.verify(storageSystem).beginTransaction();
+        inOrder.verify(storageSystem).updateNotification(1, first);
+        inOrder.verify(storageSystem).updateNotification(2, second);
+        inOrder.verify(storageSystem).setTransactionSuccessful();
+        inOrder.verify(storageSystem).endTransaction();
+        verify(storageSystem, never()).updateNotification(3, third);
+    }
+
+    @Test
+    public void shouldNotOpenTransactionWhenNoResponseIsAcknowledged() throws Exception {
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class))).willReturn(404);
+        PushNotification notification = (PushNotification) PushNotification.builder().setId(1).build(push("http://a"));
+
+        List<Notification> acknowledged = model.respondToNotifications(
+                Arrays.<Notification>asList(notification), false);
+
+        assertTrue(acknowledged.isEmpty());
+        assertTrue(notification.isPending());
+        assertFalse(notification.wasApproved());
+        verify(storageSystem, never()).beginTransaction();
+    }
+
+    @Test
+    public void shouldSendResponsesToSameEndpointInParallel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicBoolean parallel = new AtomicBoolean(true);
+        given(messageUtils.respond(anyString(), anyString(), any(PushCredentials.class), anyString(), anyMapOf(String.class, Object.class))).willAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                // Sent one at a time, the first response would wait for the second in vain
+                if (!started.await(5, TimeUnit.SECONDS)) {
+                    parallel.set(false);
+                }
+                return 200;
+            }
+        });
+        Push push = push("http://a");
+        List<Notification> notifications = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            notifications.add(PushNotification.builder().setId(i).build(push));
+        }
+
+        List<Notification> acknowledged = model.respondToNotifications(notifications, true);
+
+        assertEquals(notifications, acknowledged);
+        assertTrue(parallel.get());
+    }
+
+    private Push push(String endpoint) {
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        Push push = mock(Push.class);
+        given(push.getModel()).willReturn(model);
+        given(push.getEndpoint()).willReturn(endpoint);
+        given(push.getCredentials()).willReturn(new PushCredentials(Base64.encode(random)));
+        return push;
+    }
+}
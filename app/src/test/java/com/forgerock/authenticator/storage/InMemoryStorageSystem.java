@@ -0,0 +1,575 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.MechanismCreationException;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.base.MechanismRecord;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.NotificationStatistics;
+import com.forgerock.authenticator.notifications.QueuedResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Storage system which holds Identities, Mechanisms and Notifications in memory only. Applies the
+ * same constraints as the IdentityDatabase: ids are assigned in the same way, Identities are unique
+ * by issuer and account name, Mechanisms by owner and type and by mechanism UID, Notifications by
+ * mechanism UID and time received, and stored objects must exist before anything referencing them
+ * can be stored, and while anything references them. Allows the model layer to be tested and
+ * measured without the cost of a database.
+ *
+ * Notifications are indexed by mechanism UID and Mechanisms by owner, so that deleting an Identity
+ * only visits its own rows. Each change made during a transaction is recorded in an undo log, so
+ * that beginning a transaction does not copy the tables.
+ */
+public class InMemoryStorageSystem implements StorageSystem {
+    private static final Comparator<String> NULLS_FIRST = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            if (lhs == null || rhs == null) {
+                return lhs == null ? (rhs == null ? 0 : -1) : 1;
+            }
+            return lhs.compareTo(rhs);
+        }
+    };
+
+    private final CoreMechanismFactory coreMechanismFactory;
+    private final Tables tables = new Tables();
+    private Deque<Runnable> undoLog;
+    private final Deque<Boolean> transactionLevels = new ArrayDeque<>();
+    private boolean transactionFailed;
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryStorageSystem.class);
+
+    /**
+     * Creates an empty storage system.
+     * @param factory The factory used to restore Mechanisms.
+     */
+    public InMemoryStorageSystem(CoreMechanismFactory factory) {
+        coreMechanismFactory = factory;
+    }
+
+    @Override
+    public synchronized List<Identity> getModel(IdentityModel model) {
+        Map<List<String>, List<Mechanism.PartialMechanismBuilder>> mechanismBuilders = new HashMap<>();
+        Map<String, List<Notification.NotificationBuilder>> notificationBuilders = new HashMap<>();
+
+        for (Map.Entry<String, TreeMap<Long, Long>> history : tables.notificationsByMechanism.entrySet()) {
+            List<Notification.NotificationBuilder> builders = new ArrayList<>();
+            for (long notificationId : new TreeSet<>(history.getValue().values())) {
+                NotificationRow row = tables.notifications.get(notificationId);
+                builders.add(NotificationStore.newNotificationBuilder(row.id, row.timeAdded, row.timeExpired,
+                        row.approved, row.pending, new HashMap<>(row.data)));
+            }
+            notificationBuilders.put(history.getKey(), builders);
+        }
+
+        for (MechanismRow row : tables.mechanisms.values()) {
+            Mechanism.PartialMechanismBuilder builder;
+            try {
+                builder = coreMechanismFactory.restoreFromRecord(row.type, row.version, copy(row.record));
+            } catch (MechanismCreationException e) {
+                logger.error("Failed to load mechanism. This may be caused by invalid data, or data " +
+                        "that has not been upgraded.", e);
+                continue;
+            }
+            List<Notification.NotificationBuilder> notifications = notificationBuilders.get(row.mechanismUID);
+            NotificationStatistics statistics = tables.summaries.get(row.mechanismUID);
+            builder.setId(row.id)
+                    .setMechanismUID(row.mechanismUID)
+                    .setNotifications(notifications == null || row.mechanismUID == null
+                            ? new ArrayList<Notification.NotificationBuilder>() : notifications)
+                    .setArchivedStatistics(statistics == null ? NotificationStatistics.EMPTY : statistics);
+
+            List<String> owner = Arrays.asList(row.issuer, row.accountName);
+            List<Mechanism.PartialMechanismBuilder> builders = mechanismBuilders.get(owner);
+            if (builders == null) {
+                builders = new ArrayList<>();
+                mechanismBuilders.put(owner, builders);
+            }
+            builders.add(builder);
+        }
+
+        List<IdentityRow> identityRows = new ArrayList<>(tables.identities.values());
+        Collections.sort(identityRows, new Comparator<IdentityRow>() {
+            @Override
+            public int compare(IdentityRow lhs, IdentityRow rhs) {
+                int result = NULLS_FIRST.compare(lhs.issuer, rhs.issuer);
+                return result != 0 ? result : NULLS_FIRST.compare(lhs.accountName, rhs.accountName);
+            }
+        });
+
+        List<Identity> identities = new ArrayList<>();
+        for (IdentityRow row : identityRows) {
+            List<Mechanism.PartialMechanismBuilder> builders =
+                    mechanismBuilders.get(Arrays.asList(row.issuer, row.accountName));
+            identities.add(Identity.builder()
+                    .setIssuer(row.issuer)
+                    .setAccountName(row.accountName)
+                    .setImageURL(row.imageURL)
+                    .setId(row.id)
+                    .setBackgroundColor(row.backgroundColor)
+                    .setMechanisms(builders == null ? new ArrayList<Mechanism.PartialMechanismBuilder>() : builders)
+                    .build(model));
+        }
+        return identities;
+    }
+
+    @Override
+    public synchronized long addIdentity(Identity id) {
+        List<String> key = Arrays.asList(id.getIssuer(), id.getAccountName());
+        if (tables.identityKeys.containsKey(key)) {
+            return -1;
+        }
+        long rowId = nextId(tables.identities);
+        put(tables.identities, rowId, new IdentityRow(rowId, id.getIssuer(), id.getAccountName(),
+                id.getImageURL() == null ? null : id.getImageURL().toString(), id.getBackgroundColor()));
+        put(tables.identityKeys, key, rowId);
+        return rowId;
+    }
+
+    @Override
+    public synchronized long addMechanism(Mechanism mechanism) {
+        String issuer = mechanism.getOwner().getIssuer();
+        String accountName = mechanism.getOwner().getAccountName();
+        String type = mechanism.getInfo().getMechanismString();
+        String mechanismUID = mechanism.getMechanismUID();
+
+        List<String> key = Arrays.asList(issuer, accountName, type);
+        if (!tables.identityKeys.containsKey(Arrays.asList(issuer, accountName))
+                || tables.mechanismKeys.containsKey(key)
+                || (mechanismUID != null && tables.mechanismUIDs.containsKey(mechanismUID))) {
+            return -1;
+        }
+        long rowId = nextId(tables.mechanisms);
+        put(tables.mechanisms, rowId, new MechanismRow(rowId, issuer, accountName, type,
+                mechanism.getVersion(), mechanismUID, copy(mechanism.asRecord())));
+        put(tables.mechanismKeys, key, rowId);
+        put(index(tables.mechanismsByOwner, Arrays.asList(issuer, accountName)), type, rowId);
+        if (mechanismUID != null) {
+            put(tables.mechanismUIDs, mechanismUID, rowId);
+        }
+        return rowId;
+    }
+
+    @Override
+    public synchronized long addNotification(Notification notification) {
+        String mechanismUID = notification.getMechanism().getMechanismUID();
+        long timeAdded = notification.getTimeAdded().getTimeInMillis();
+
+        if (mechanismUID == null || !tables.mechanismUIDs.containsKey(mechanismUID)
+                || findNotification(mechanismUID, timeAdded) != null) {
+            return -1;
+        }
+        Map<String, String> data = new HashMap<>();
+        if (notification.getData() != null) {
+            for (Map.Entry<String, String> item : notification.getData().entrySet()) {
+                if (item.getValue() != null) {
+                    data.put(item.getKey(), item.getValue());
+                }
+            }
+        }
+        long rowId = nextId(tables.notifications);
+        put(tables.notifications, rowId, new NotificationRow(rowId, mechanismUID, timeAdded,
+                notification.getTimeExpired().getTimeInMillis(), notification.wasApproved(),
+                notification.isPending(), data));
+        put(index(tables.notificationsByMechanism, mechanismUID), timeAdded, rowId);
+        return rowId;
+    }
+
+    @Override
+    public synchronized boolean updateMechanism(long mechanismId, Mechanism mechanism) {
+        MechanismRow row = tables.mechanisms.get(mechanismId);
+        if (row == null) {
+            return false;
+        }
+        put(tables.mechanisms, mechanismId, new MechanismRow(row.id, row.issuer, row.accountName, row.type,
+                row.version, row.mechanismUID, copy(mechanism.asRecord())));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updateMechanismCounter(long mechanismId, long counter) {
+        MechanismRow row = tables.mechanisms.get(mechanismId);
+        if (row == null) {
+            return false;
+        }
+        put(tables.mechanisms, mechanismId, new MechanismRow(row.id, row.issuer, row.accountName, row.type,
+                row.version, row.mechanismUID, copy(row.record).setCounter(counter)));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updateNotification(long notificationId, Notification notification) {
+        NotificationRow row = tables.notifications.get(notificationId);
+        if (row == null) {
+            return false;
+        }
+        put(tables.notifications, notificationId, new NotificationRow(row.id, row.mechanismUID, row.timeAdded,
+                row.timeExpired, notification.wasApproved(), notification.isPending(), row.data));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteMechanism(long mechanismId) {
+        MechanismRow row = remove(tables.mechanisms, mechanismId);
+        if (row == null) {
+            return false;
+        }
+        remove(tables.mechanismKeys, Arrays.asList(row.issuer, row.accountName, row.type));
+        removeFromIndex(tables.mechanismsByOwner, Arrays.asList(row.issuer, row.accountName), row.type);
+        if (row.mechanismUID != null) {
+            remove(tables.mechanismUIDs, row.mechanismUID);
+            remove(tables.summaries, row.mechanismUID);
+            deleteNotifications(row.mechanismUID, Long.MAX_VALUE, true);
+            for (List<Object> key : new ArrayList<>(tables.outbox.keySet())) {
+                if (row.mechanismUID.equals(key.get(0))) {
+                    remove(tables.outbox, key);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteIdentity(long identityId) {
+        IdentityRow row = remove(tables.identities, identityId);
+        if (row == null) {
+            return false;
+        }
+        List<String> owner = Arrays.asList(row.issuer, row.accountName);
+        remove(tables.identityKeys, owner);
+        TreeMap<String, Long> mechanisms = tables.mechanismsByOwner.get(owner);
+        if (mechanisms != null) {
+            for (long mechanismId : new ArrayList<>(mechanisms.values())) {
+                deleteMechanism(mechanismId);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int deleteInactiveNotifications(Mechanism mechanism, long now) {
+        if (mechanism.getMechanismUID() == null) {
+            return 0;
+        }
+        return deleteNotifications(mechanism.getMechanismUID(), now, false);
+    }
+
+    private int deleteNotifications(String mechanismUID, long now, boolean includeActive) {
+        TreeMap<Long, Long> history = tables.notificationsByMechanism.get(mechanismUID);
+        if (history == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (long notificationId : new ArrayList<>(history.values())) {
+            NotificationRow row = tables.notifications.get(notificationId);
+            if (includeActive || !row.pending || row.timeExpired < now) {
+                deleteNotification(row.id);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private NotificationRow findNotification(String mechanismUID, long timeAdded) {
+        TreeMap<Long, Long> history = tables.notificationsByMechanism.get(mechanismUID);
+        Long notificationId = history == null ? null : history.get(timeAdded);
+        return notificationId == null ? null : tables.notifications.get(notificationId);
+    }
+
+    @Override
+    public synchronized boolean deleteNotification(long notificationId) {
+        NotificationRow row = remove(tables.notifications, notificationId);
+        if (row == null) {
+            return false;
+        }
+        removeFromIndex(tables.notificationsByMechanism, row.mechanismUID, row.timeAdded);
+        return true;
+    }
+
+    @Override
+    public synchronized int compactNotifications(NotificationRetentionPolicy policy, long now) {
+        int removed = 0;
+        for (String mechanismUID : new ArrayList<>(tables.notificationsByMechanism.keySet())) {
+            NotificationRetentionPolicy.Selector selector = policy.newSelector(now);
+            NotificationStatistics statistics = tables.summaries.get(mechanismUID);
+            if (statistics == null) {
+                statistics = NotificationStatistics.EMPTY;
+            }
+            TreeMap<Long, Long> history = tables.notificationsByMechanism.get(mechanismUID);
+            for (long notificationId : new ArrayList<>(history.descendingMap().values())) {
+                NotificationRow row = tables.notifications.get(notificationId);
+                if (selector.remove(row.pending, row.approved, row.timeAdded, row.timeExpired)) {
+                    deleteNotification(row.id);
+                    statistics = statistics.add(new NotificationStatistics(!row.pending && row.approved ? 1 : 0,
+                            !row.pending && !row.approved ? 1 : 0, row.pending ? 1 : 0));
+                    removed++;
+                }
+            }
+            if (statistics.getTotalCount() > 0) {
+                put(tables.summaries, mechanismUID, statistics);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean queueResponse(QueuedResponse response) {
+        if (!tables.mechanismUIDs.containsKey(response.getMechanismUID())) {
+            return false;
+        }
+        put(tables.outbox, Arrays.<Object>asList(response.getMechanismUID(), response.getTimeAdded()), response);
+        return true;
+    }
+
+    @Override
+    public synchronized List<QueuedResponse> getQueuedResponses() {
+        List<QueuedResponse> result = new ArrayList<>(tables.outbox.values());
+        Collections.sort(result, new Comparator<QueuedResponse>() {
+            @Override
+            public int compare(QueuedResponse lhs, QueuedResponse rhs) {
+                return Long.valueOf(lhs.getNextAttemptTime()).compareTo(rhs.getNextAttemptTime());
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public synchronized boolean deleteQueuedResponse(String mechanismUID, long timeAdded) {
+        return remove(tables.outbox, Arrays.<Object>asList(mechanismUID, timeAdded)) != null;
+    }
+
+    @Override
+    public synchronized void beginTransaction() {
+        if (transactionLevels.isEmpty()) {
+            undoLog = new ArrayDeque<>();
+            transactionFailed = false;
+        }
+        transactionLevels.push(false);
+    }
+
+    @Override
+    public synchronized void setTransactionSuccessful() {
+        if (transactionLevels.isEmpty()) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        transactionLevels.pop();
+        transactionLevels.push(true);
+    }
+
+    @Override
+    public synchronized void endTransaction() {
+        if (transactionLevels.isEmpty()) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        transactionFailed |= !transactionLevels.pop();
+        if (transactionLevels.isEmpty()) {
+            Deque<Runnable> changes = undoLog;
+            undoLog = null;
+            if (transactionFailed) {
+                for (Runnable undo : changes) {
+                    undo.run();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return tables.identities.isEmpty();
+    }
+
+    /**
+     * Stores a value in a table, recording how to undo the change if a transaction is in progress.
+     */
+    private <K, V> void put(final Map<K, V> table, final K key, V value) {
+        final V previous = table.put(key, value);
+        if (undoLog != null) {
+            undoLog.push(new Runnable() {
+                @Override
+                public void run() {
+                    restore(table, key, previous);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes a value from a table, recording how to undo the change if a transaction is in
+     * progress.
+     */
+    private <K, V> V remove(final Map<K, V> table, final K key) {
+        final V previous = table.remove(key);
+        if (undoLog != null && previous != null) {
+            undoLog.push(new Runnable() {
+                @Override
+                public void run() {
+                    restore(table, key, previous);
+                }
+            });
+        }
+        return previous;
+    }
+
+    private static <K, V> void restore(Map<K, V> table, K key, V previous) {
+        if (previous == null) {
+            table.remove(key);
+        } else {
+            table.put(key, previous);
+        }
+    }
+
+    /**
+     * Gets the entries of an index with the given key, adding them if there are none.
+     */
+    private <K, L, V> TreeMap<L, V> index(Map<K, TreeMap<L, V>> index, K key) {
+        TreeMap<L, V> entries = index.get(key);
+        if (entries == null) {
+            entries = new TreeMap<>();
+            put(index, key, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Removes an entry from an index, and removes the key once it has no entries.
+     */
+    private <K, L, V> void removeFromIndex(Map<K, TreeMap<L, V>> index, K key, L entry) {
+        TreeMap<L, V> entries = index.get(key);
+        if (entries != null) {
+            remove(entries, entry);
+            if (entries.isEmpty()) {
+                remove(index, key);
+            }
+        }
+    }
+
+    /**
+     * Ids are assigned as the database assigns row ids, one greater than the largest in use.
+     */
+    private static long nextId(TreeMap<Long, ?> table) {
+        return table.isEmpty() ? 1 : table.lastKey() + 1;
+    }
+
+    private static MechanismRecord copy(MechanismRecord record) {
+        return new MechanismRecord()
+                .setTokenType(record.getTokenType())
+                .setAlgorithm(record.getAlgorithm())
+                .setDigits(record.getDigits())
+                .setPeriod(record.getPeriod())
+                .setCounter(record.getCounter())
+                .setSecret(record.getSecret() == null ? null : record.getSecret().clone())
+                .setEndpoint(record.getEndpoint())
+                .putExtras(record.getExtras());
+    }
+
+    /**
+     * The stored rows and the indexes which find them and enforce their uniqueness. Rows are never
+     * modified once stored, only replaced, so a change is undone by restoring the previous row.
+     */
+    private static final class Tables {
+        private final TreeMap<Long, IdentityRow> identities = new TreeMap<>();
+        private final TreeMap<Long, MechanismRow> mechanisms = new TreeMap<>();
+        private final TreeMap<Long, NotificationRow> notifications = new TreeMap<>();
+        private final Map<List<String>, Long> identityKeys = new HashMap<>();
+        private final Map<List<String>, Long> mechanismKeys = new HashMap<>();
+        // Mechanism ids by type, for each issuer and account name
+        private final Map<List<String>, TreeMap<String, Long>> mechanismsByOwner = new HashMap<>();
+        private final Map<String, Long> mechanismUIDs = new HashMap<>();
+        // Notification ids by time received, for each mechanism UID
+        private final Map<String, TreeMap<Long, Long>> notificationsByMechanism = new HashMap<>();
+        private final Map<String, NotificationStatistics> summaries = new HashMap<>();
+        private final Map<List<Object>, QueuedResponse> outbox = new HashMap<>();
+    }
+
+    private static final class IdentityRow {
+        private final long id;
+        private final String issuer;
+        private final String accountName;
+        private final String imageURL;
+        private final String backgroundColor;
+
+        private IdentityRow(long id, String issuer, String accountName, String imageURL, String backgroundColor) {
+            this.id = id;
+            this.issuer = issuer;
+            this.accountName = accountName;
+            this.imageURL = imageURL;
+            this.backgroundColor = backgroundColor;
+        }
+    }
+
+    private static final class MechanismRow {
+        private final long id;
+        private final String issuer;
+        private final String accountName;
+        private final String type;
+        private final int version;
+        private final String mechanismUID;
+        private final MechanismRecord record;
+
+        private MechanismRow(long id, String issuer, String accountName, String type, int version,
+                             String mechanismUID, MechanismRecord record) {
+            this.id = id;
+            this.issuer = issuer;
+            this.accountName = accountName;
+            this.type = type;
+            this.version = version;
+            this.mechanismUID = mechanismUID;
+            this.record = record;
+        }
+    }
+
+    private static final class NotificationRow {
+        private final long id;
+        private final String mechanismUID;
+        private final long timeAdded;
+        private final long timeExpired;
+        private final boolean approved;
+        private final boolean pending;
+        private final Map<String, String> data;
+
+        private NotificationRow(long id, String mechanismUID, long timeAdded, long timeExpired,
+                                boolean approved, boolean pending, Map<String, String> data) {
+            this.id = id;
+            this.mechanismUID = mechanismUID;
+            this.timeAdded = timeAdded;
+            this.timeExpired = timeExpired;
+            this.approved = approved;
+            this.pending = pending;
+            this.data = Collections.unmodifiableMap(data);
+        }
+    }
+}
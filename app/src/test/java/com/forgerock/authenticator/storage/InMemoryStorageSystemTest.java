@@ -0,0 +1,155 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.PushNotification;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static com.forgerock.authenticator.storage.IdentityDatabaseTest.assertNotEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class InMemoryStorageSystemTest {
+    private IdentityModel model;
+    private InMemoryStorageSystem storageSystem;
+    private Identity identity;
+    private Mechanism mechanism;
+
+    @Before
+    public void setup() throws Exception {
+        model = new IdentityModel(RuntimeEnvironment.application);
+        storageSystem = new InMemoryStorageSystem(new CoreMechanismFactory(RuntimeEnvironment.application, model));
+        model.loadFromStorageSystem(storageSystem);
+
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        identity = Identity.builder().setIssuer("issuer").setAccountName("account").build(model);
+        mechanism = Push.builder().setMechanismUID("1").setBase64Secret(Base64.encode(random)).build(identity);
+    }
+
+    @Test
+    public void cantSaveDuplicateIdentity() {
+        assertNotEquals(storageSystem.addIdentity(identity), -1L);
+        assertEquals(-1L, storageSystem.addIdentity(identity));
+    }
+
+    @Test
+    public void cannotAddMechanismWithoutFirstAddingIdentity() {
+        assertEquals(-1L, storageSystem.addMechanism(mechanism));
+        storageSystem.addIdentity(identity);
+        assertNotEquals(storageSystem.addMechanism(mechanism), -1L);
+        assertEquals(-1L, storageSystem.addMechanism(mechanism));
+    }
+
+    @Test
+    public void cannotAddNotificationWithoutFirstAddingMechanism() throws Exception {
+        Notification notification = PushNotification.builder().build(mechanism);
+        assertEquals(-1L, storageSystem.addNotification(notification));
+
+        storageSystem.addIdentity(identity);
+        long mechanismId = storageSystem.addMechanism(mechanism);
+        long notificationId = storageSystem.addNotification(notification);
+        assertNotEquals(notificationId, -1L);
+        assertEquals(-1L, storageSystem.addNotification(notification));
+    }
+
+    @Test
+    public void deletingIdentityDeletesMechanismsAndNotifications() throws Exception {
+        long identityId = storageSystem.addIdentity(identity);
+        long mechanismId = storageSystem.addMechanism(mechanism);
+        long notificationId = storageSystem.addNotification(PushNotification.builder().build(mechanism));
+
+        assertTrue(storageSystem.deleteIdentity(identityId));
+
+        assertTrue(storageSystem.isEmpty());
+        assertFalse(storageSystem.deleteMechanism(mechanismId));
+        assertFalse(storageSystem.deleteNotification(notificationId));
+    }
+
+    @Test
+    public void canLoadSavedModel() throws Exception {
+        storageSystem.addIdentity(identity);
+        storageSystem.addMechanism(mechanism);
+        Notification notification = PushNotification.builder().setMessageId("message").build(mechanism);
+        storageSystem.addNotification(notification);
+
+        IdentityModel reloaded = new IdentityModel(RuntimeEnvironment.application);
+        reloaded.loadFromStorageSystem(storageSystem);
+
+        assertEquals(identity, reloaded.getIdentity("issuer", "account"));
+        assertEquals(mechanism, reloaded.getMechanisms().get(0));
+        assertEquals(notification, reloaded.getNotifications().get(0));
+    }
+
+    @Test
+    public void transactionWhichIsNotSuccessfulIsRolledBack() {
+        storageSystem.beginTransaction();
+        storageSystem.addIdentity(identity);
+        storageSystem.beginTransaction();
+        storageSystem.setTransactionSuccessful();
+        storageSystem.endTransaction();
+        storageSystem.endTransaction();
+
+        assertTrue(storageSystem.isEmpty());
+
+        storageSystem.beginTransaction();
+        storageSystem.addIdentity(identity);
+        storageSystem.setTransactionSuccessful();
+        storageSystem.endTransaction();
+
+        assertFalse(storageSystem.isEmpty());
+    }
+
+    @Test
+    public void deletionWhichIsRolledBackRestoresMechanismsAndNotifications() throws Exception {
+        long identityId = storageSystem.addIdentity(identity);
+        storageSystem.addMechanism(mechanism);
+        Notification notification = PushNotification.builder().setMessageId("message").build(mechanism);
+        storageSystem.addNotification(notification);
+
+        storageSystem.beginTransaction();
+        storageSystem.deleteIdentity(identityId);
+        storageSystem.endTransaction();
+
+        IdentityModel reloaded = new IdentityModel(RuntimeEnvironment.application);
+        reloaded.loadFromStorageSystem(storageSystem);
+        assertEquals(mechanism, reloaded.getMechanisms().get(0));
+        assertEquals(notification, reloaded.getNotifications().get(0));
+        assertEquals(-1L, storageSystem.addNotification(notification));
+        assertTrue(storageSystem.deleteIdentity(identityId));
+        assertTrue(storageSystem.isEmpty());
+    }
+}
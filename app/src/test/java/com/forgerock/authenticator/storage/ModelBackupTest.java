@@ -0,0 +1,192 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.oath.Oath;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.notifications.PushNotification;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ModelBackupTest {
+    private IdentityModel model;
+    private String base64Secret;
+    private SecretKey backupKey;
+
+    @Before
+    public void setup() throws Exception {
+        model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(new InMemoryStorageSystem(
+                new CoreMechanismFactory(RuntimeEnvironment.application, model)));
+
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        base64Secret = Base64.encode(random);
+        backupKey = newKey();
+    }
+
+    @Test
+    public void shouldRestoreIdentitiesMechanismsAndNotifications() throws Exception {
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("ForgeRock").setAccountName("alice")
+                .setImageURL("https://forgerock.com/logo.png").setBackgroundColor("#519387"));
+        identity.addMechanism(Oath.builder().setMechanismUID("1").setType("hotp").setCounter("5")
+                .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM"));
+        Mechanism push = identity.addMechanism(Push.builder().setMechanismUID("2").setBase64Secret(base64Secret));
+        push.addNotification(PushNotification.builder().setMessageId("message").setPending(false).setApproved(true));
+
+        IdentityModel restored = restore(backup(true));
+
+        assertEquals(model.getIdentities(), restored.getIdentities());
+        assertEquals(model.getMechanisms(), restored.getMechanisms());
+        assertEquals(model.getNotifications(), restored.getNotifications());
+    }
+
+    @Test
+    public void shouldLeaveOutNotificationsWhenNotIncluded() throws Exception {
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("ForgeRock").setAccountName("alice"));
+        Mechanism push = identity.addMechanism(Push.builder().setMechanismUID("1").setBase64Secret(base64Secret));
+        push.addNotification(PushNotification.builder().setMessageId("message"));
+
+        IdentityModel restored = restore(backup(false));
+
+        assertEquals(model.getMechanisms(), restored.getMechanisms());
+        assertEquals(0, restored.getNotifications().size());
+    }
+
+    @Test
+    public void shouldRestoreNothingFromDamagedBackup() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Identity identity = model.addIdentity(Identity.builder().setIssuer("issuer" + i));
+            identity.addMechanism(Push.builder().setMechanismUID(Integer.toString(i)).setBase64Secret(base64Secret));
+        }
+        byte[] backup = backup(true);
+        byte[] damaged = backup.clone();
+        damaged[damaged.length / 2] ^= 1;
+
+        assertRestoreFails(damaged);
+        assertRestoreFails(Arrays.copyOf(backup, backup.length - 1));
+        assertRestoreFails(new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void shouldNotWriteSecretsUnencrypted() throws Exception {
+        byte[] secret = Base64.decode(base64Secret);
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("ForgeRock").setAccountName("alice"));
+        identity.addMechanism(Push.builder().setMechanismUID("1").setBase64Secret(base64Secret));
+
+        byte[] backup = backup(true);
+
+        for (int i = 0; i + secret.length <= backup.length; i++) {
+            assertFalse(Arrays.equals(secret, Arrays.copyOfRange(backup, i, i + secret.length)));
+        }
+    }
+
+    @Test
+    public void shouldRestoreNothingWithDifferentKey() throws Exception {
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("ForgeRock").setAccountName("alice"));
+        identity.addMechanism(Push.builder().setMechanismUID("1").setBase64Secret(base64Secret));
+        byte[] backup = backup(true);
+
+        backupKey = newKey();
+
+        assertRestoreFails(backup);
+    }
+
+    @Test
+    public void shouldRestoreEveryMechanismOfLargeBackup() throws Exception {
+        InMemoryStorageSystem source = new InMemoryStorageSystem(
+                new CoreMechanismFactory(RuntimeEnvironment.application, model));
+        for (int i = 0; i < 1000; i++) {
+            Identity identity = Identity.builder().setIssuer("issuer").setAccountName("account" + i).build(model);
+            source.addIdentity(identity);
+            source.addMechanism(Oath.builder().setMechanismUID(Integer.toString(i)).setType("totp")
+                    .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM").build(identity));
+        }
+        model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(source);
+
+        IdentityModel restored = restore(backup(false));
+
+        assertEquals(1000, restored.getIdentities().size());
+        assertEquals(model.getMechanisms(), restored.getMechanisms());
+    }
+
+    private byte[] backup(boolean includeNotifications) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ModelBackup(model, new CoreMechanismFactory(RuntimeEnvironment.application, model), backupKey)
+                .write(output, includeNotifications);
+        return output.toByteArray();
+    }
+
+    private IdentityModel restore(byte[] backup) throws Exception {
+        IdentityModel restored = new IdentityModel(RuntimeEnvironment.application);
+        StorageSystem storageSystem = new InMemoryStorageSystem(
+                new CoreMechanismFactory(RuntimeEnvironment.application, restored));
+        restoreInto(backup, storageSystem);
+        restored.loadFromStorageSystem(storageSystem);
+        return restored;
+    }
+
+    private int restoreInto(byte[] backup, StorageSystem storageSystem) throws Exception {
+        IdentityModel target = new IdentityModel(RuntimeEnvironment.application);
+        return new ModelBackup(target, new CoreMechanismFactory(RuntimeEnvironment.application, target), backupKey)
+                .restore(new ByteArrayInputStream(backup), storageSystem);
+    }
+
+    private void assertRestoreFails(byte[] backup) throws Exception {
+        StorageSystem storageSystem = new InMemoryStorageSystem(
+                new CoreMechanismFactory(RuntimeEnvironment.application, model));
+        try {
+            restoreInto(backup, storageSystem);
+            fail("Restored damaged backup");
+        } catch (BackupFormatException e) {
+            assertTrue(storageSystem.isEmpty());
+        }
+    }
+
+    private static SecretKey newKey() {
+        byte[] key = new byte[16];
+        new Random().nextBytes(key);
+        return new SecretKeySpec(key, "AES");
+    }
+}
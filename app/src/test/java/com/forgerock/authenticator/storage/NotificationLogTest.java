@@ -0,0 +1,226 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import android.database.DatabaseUtils;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.NotificationRetentionPolicy;
+import com.forgerock.authenticator.notifications.NotificationStatistics;
+import com.forgerock.authenticator.notifications.PushNotification;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class NotificationLogTest {
+    private static final long START_TIME = 1466000000000L;
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private IdentityModel model;
+    private File directory;
+    private Mechanism mechanism;
+
+    @Before
+    public void setup() throws Exception {
+        model = new IdentityModel(RuntimeEnvironment.application);
+        directory = new File(RuntimeEnvironment.application.getFilesDir(), NotificationLog.DIRECTORY_NAME);
+
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        Identity identity = Identity.builder().setIssuer("issuer").setAccountName("account").build(model);
+        mechanism = Push.builder().setMechanismUID("1").setBase64Secret(Base64.encode(random)).build(identity);
+    }
+
+    @Test
+    public void shouldReloadNotificationsWhenReopened() throws Exception {
+        NotificationLog log = openLog(NotificationLog.DEFAULT_SEGMENT_SIZE);
+        long first = log.addNotification(notification(0));
+        long second = log.addNotification(notification(1));
+
+        List<Notification.NotificationBuilder> builders = openLog(NotificationLog.DEFAULT_SEGMENT_SIZE)
+                .getNotificationBuilders(mechanism.getMechanismUID());
+
+        assertTrue(first != -1 && second != -1 && first != second);
+        assertEquals(2, builders.size());
+        Notification reloaded = builders.get(1).build(mechanism);
+        assertEquals(notification(1), reloaded);
+        assertTrue(reloaded.isPending());
+    }
+
+    @Test
+    public void shouldRejectDuplicateNotification() throws Exception {
+        NotificationLog log = openLog(NotificationLog.DEFAULT_SEGMENT_SIZE);
+
+        assertTrue(log.addNotification(notification(0)) != -1);
+        assertEquals(-1, log.addNotification(notification(0)));
+    }
+
+    @Test
+    public void shouldReplayUpdatesAndRemovals() throws Exception {
+        NotificationLog log = openLog(NotificationLog.DEFAULT_SEGMENT_SIZE);
+        long answered = log.addNotification(notification(0));
+        long removed = log.addNotification(notification(1));
+        Notification approved = notificationBuilder(0).setPending(false).setApproved(true).build(mechanism);
+
+        assertTrue(log.updateNotification(answered, approved));
+        assertTrue(log.deleteNotification(removed));
+        assertFalse(log.deleteNotification(removed));
+
+        List<Notification.NotificationBuilder> builders = openLog(NotificationLog.DEFAULT_SEGMENT_SIZE)
+                .getNotificationBuilders(mechanism.getMechanismUID());
+        assertEquals(1, builders.size());
+        Notification reloaded = builders.get(0).build(mechanism);
+        assertEquals(approved, reloaded);
+        assertFalse(reloaded.isPending());
+        assertTrue(reloaded.wasApproved());
+    }
+
+    @Test
+    public void shouldIgnoreIncompleteRecord() throws Exception {
+        NotificationLog log = openLog(NotificationLog.DEFAULT_SEGMENT_SIZE);
+        log.addNotification(notification(0));
+        log.addNotification(notification(1));
+
+        RandomAccessFile segment = new RandomAccessFile(new File(directory, "gen-0-0.seg"), "rw");
+        try {
+            int firstLength = segment.readInt();
+            // Corrupt the body of the second record
+            long position = 8 + firstLength + 8 + 1;
+            segment.seek(position);
+            int value = segment.readByte();
+            segment.seek(position);
+            segment.writeByte(~value);
+        } finally {
+            segment.close();
+        }
+
+        log = openLog(NotificationLog.DEFAULT_SEGMENT_SIZE);
+        assertEquals(1, log.getNotificationBuilders(mechanism.getMechanismUID()).size());
+        assertTrue(log.addNotification(notification(2)) != -1);
+        assertEquals(2, openLog(NotificationLog.DEFAULT_SEGMENT_SIZE)
+                .getNotificationBuilders(mechanism.getMechanismUID()).size());
+    }
+
+    @Test
+    public void shouldRewriteLogOnceMostlyRemoved() throws Exception {
+        NotificationLog log = openLog(256);
+        long[] ids = new long[20];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = log.addNotification(notification(i));
+        }
+        assertTrue(log.getSegmentCount() > 2);
+
+        for (int i = 0; i < ids.length - 2; i++) {
+            assertTrue(log.deleteNotification(ids[i]));
+        }
+
+        assertEquals(1, log.getSegmentCount());
+        assertEquals(2, directory.list().length);
+        NotificationLog reopened = openLog(256);
+        List<Notification.NotificationBuilder> builders =
+                reopened.getNotificationBuilders(mechanism.getMechanismUID());
+        assertEquals(2, builders.size());
+        assertEquals(notification(18), builders.get(0).build(mechanism));
+        assertTrue(reopened.deleteNotification(ids[19]));
+    }
+
+    @Test
+    public void shouldRemoveNotificationsOutsideRetentionPolicy() throws Exception {
+        NotificationLog log = openLog(NotificationLog.DEFAULT_SEGMENT_SIZE);
+        for (int i = 0; i < 5; i++) {
+            log.addNotification(notificationBuilder(i).setPending(false).setApproved(true).build(mechanism));
+        }
+        log.addNotification(notificationBuilder(5).setPending(false).setApproved(false).build(mechanism));
+        NotificationRetentionPolicy policy = NotificationRetentionPolicy.builder()
+                .setMaxCountPerMechanism(2)
+                .build();
+
+        Map<String, NotificationStatistics> removed = log.compact(policy, START_TIME + 600000);
+
+        assertEquals(new NotificationStatistics(3, 0, 0), removed.get(mechanism.getMechanismUID()));
+        assertEquals(3, openLog(NotificationLog.DEFAULT_SEGMENT_SIZE)
+                .getNotificationBuilders(mechanism.getMechanismUID()).size());
+    }
+
+    @Test
+    public void databaseShouldStoreNotificationsInLogOnceCreated() throws Exception {
+        assertTrue(directory.mkdirs());
+        IdentityDatabase database = new IdentityDatabase(RuntimeEnvironment.application,
+                new CoreMechanismFactory(RuntimeEnvironment.application, model));
+        database.addIdentity(mechanism.getOwner());
+        database.addMechanism(mechanism);
+
+        assertTrue(database.addNotification(notification(0)) != -1);
+
+        assertEquals(1, NotificationLog.getInstance(RuntimeEnvironment.application)
+                .getNotificationBuilders(mechanism.getMechanismUID()).size());
+        assertEquals(0, DatabaseUtils.queryNumEntries(DatabaseOpenHelper.getInstance(RuntimeEnvironment.application)
+                .getReadableDatabase(), IdentityDatabase.NOTIFICATION_TABLE_NAME));
+    }
+
+    private NotificationLog openLog(int segmentSize) throws Exception {
+        return new NotificationLog(directory, segmentSize, DIRECT_EXECUTOR);
+    }
+
+    private Notification notification(int index) throws Exception {
+        return notificationBuilder(index).build(mechanism);
+    }
+
+    private PushNotification.PushNotificationBuilder notificationBuilder(int index) {
+        return PushNotification.builder()
+                .setTimeAdded(utcTime(START_TIME + index * 60000L))
+                .setTimeExpired(utcTime(START_TIME + index * 60000L + 120000))
+                .setMessageId("message-" + index);
+    }
+
+    private Calendar utcTime(long time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.oath.Oath;
+import com.google.android.apps.authenticator.Base32String;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class SecretEncryptionTest {
+    private SecretEncryption encryption;
+    private byte[] secret;
+
+    @Before
+    public void setup() {
+        encryption = new SecretEncryption(fixedKey());
+        secret = new byte[20];
+        new Random().nextBytes(secret);
+    }
+
+    @Test
+    public void encryptedSecretCanBeDecrypted() throws Exception {
+        byte[] encrypted = encryption.encrypt(secret);
+
+        assertFalse(Arrays.equals(secret, Arrays.copyOfRange(encrypted, encrypted.length - secret.length,
+                encrypted.length)));
+        assertArrayEquals(secret, encryption.decrypt(encrypted));
+    }
+
+    @Test
+    public void encryptingTwiceUsesDifferentIvs() throws Exception {
+        assertFalse(Arrays.equals(encryption.encrypt(secret), encryption.encrypt(secret)));
+    }
+
+    @Test
+    public void modifiedSecretIsRejected() throws Exception {
+        byte[] encrypted = encryption.encrypt(secret);
+        encrypted[encrypted.length - 1] ^= 1;
+        try {
+            encryption.decrypt(encrypted);
+            fail("Modified secret was decrypted");
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void dataKeyIsOnlyRequestedOnce() throws Exception {
+        CountingKeyProvider keyProvider = new CountingKeyProvider();
+        SecretEncryption countedEncryption = new SecretEncryption(keyProvider);
+        for (int i = 0; i < 10; i++) {
+            countedEncryption.decrypt(countedEncryption.encrypt(secret));
+        }
+        assertEquals(1, keyProvider.count);
+    }
+
+    @Test
+    public void unavailableKeyIsReported() {
+        assertFalse(new SecretEncryption(unavailableKey()).isAvailable());
+        assertTrue(encryption.isAvailable());
+    }
+
+    @Test
+    @Config(constants = BuildConfig.class, sdk = 18)
+    public void secretsAreStoredUnencryptedBeforeKitKat() throws Exception {
+        try {
+            new KeyStoreDataKeyProvider(RuntimeEnvironment.application).getDataKey(true);
+            fail("Provided a data key before KitKat");
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+        assertFalse(new SecretEncryption(fixedKey()).isAvailable());
+
+        IdentityModel model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(openDatabase(model, fixedKey()));
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account"));
+        identity.addMechanism(Oath.builder()
+                .setMechanismUID("1")
+                .setType("totp")
+                .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM"));
+
+        IdentityModel reloadedModel = new IdentityModel(RuntimeEnvironment.application);
+        reloadedModel.loadFromStorageSystem(openDatabase(reloadedModel, fixedKey()));
+        Oath reloaded = (Oath) reloadedModel.getMechanisms().get(0);
+        assertTrue(reloaded.hasBase64Secret(Base64.encode(Base32String.decode("JMEZ2W7D462P3JYBDG2HV7PFBM"))));
+    }
+
+    @Test
+    public void databaseStoresSecretsEncryptedAndReloadsThem() throws Exception {
+        IdentityModel model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(openDatabase(model, unavailableKey()));
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account"));
+        Mechanism mechanism = identity.addMechanism(Oath.builder()
+                .setMechanismUID("1")
+                .setType("totp")
+                .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM"));
+
+        // Plaintext secrets are encrypted in place when encryption becomes available
+        IdentityModel encryptedModel = new IdentityModel(RuntimeEnvironment.application);
+        encryptedModel.loadFromStorageSystem(openDatabase(encryptedModel, fixedKey()));
+        assertEquals(mechanism, encryptedModel.getMechanisms().get(0));
+
+        IdentityModel reloadedModel = new IdentityModel(RuntimeEnvironment.application);
+        reloadedModel.loadFromStorageSystem(openDatabase(reloadedModel, fixedKey()));
+        Oath reloaded = (Oath) reloadedModel.getMechanisms().get(0);
+        assertTrue(reloaded.hasBase64Secret(Base64.encode(Base32String.decode("JMEZ2W7D462P3JYBDG2HV7PFBM"))));
+
+        // Without the data key, the secret cannot be recovered when the mechanism is first used
+        IdentityModel unreadableModel = new IdentityModel(RuntimeEnvironment.application);
+        unreadableModel.loadFromStorageSystem(openDatabase(unreadableModel, unavailableKey()));
+        Oath unreadable = (Oath) unreadableModel.getMechanisms().get(0);
+        assertFalse(unreadable.hasBase64Secret(Base64.encode(Base32String.decode("JMEZ2W7D462P3JYBDG2HV7PFBM"))));
+        assertEquals("", unreadable.generateNextCode().getCurrentCode());
+    }
+
+    @Test
+    public void unreadableSecretIsNotOverwrittenWhenMechanismIsSaved() throws Exception {
+        IdentityModel model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(openDatabase(model, fixedKey()));
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account"));
+        identity.addMechanism(Oath.builder()
+                .setMechanismUID("1")
+                .setType("hotp")
+                .setCounter("5")
+                .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM"));
+
+        IdentityModel unreadableModel = new IdentityModel(RuntimeEnvironment.application);
+        unreadableModel.loadFromStorageSystem(openDatabase(unreadableModel, unavailableKey()));
+        Oath unreadable = (Oath) unreadableModel.getMechanisms().get(0);
+        assertEquals("", unreadable.generateNextCode().getCurrentCode());
+        assertEquals(5, unreadable.getCounter());
+        unreadable.save();
+
+        IdentityModel reloadedModel = new IdentityModel(RuntimeEnvironment.application);
+        reloadedModel.loadFromStorageSystem(openDatabase(reloadedModel, fixedKey()));
+        Oath reloaded = (Oath) reloadedModel.getMechanisms().get(0);
+        assertTrue(reloaded.hasBase64Secret(Base64.encode(Base32String.decode("JMEZ2W7D462P3JYBDG2HV7PFBM"))));
+        assertEquals(5, reloaded.getCounter());
+    }
+
+    @Test
+    public void newDataKeyIsNotCreatedWhileEncryptedSecretsAreStored() throws Exception {
+        IdentityModel model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(openDatabase(model, fixedKey()));
+        Identity identity = model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account"));
+        identity.addMechanism(Oath.builder()
+                .setMechanismUID("1")
+                .setType("totp")
+                .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM"));
+
+        // The data key has been lost, so one would be created if that were allowed
+        LostKeyProvider keyProvider = new LostKeyProvider();
+        SecretEncryption lostEncryption = new SecretEncryption(keyProvider);
+        IdentityModel lostModel = new IdentityModel(RuntimeEnvironment.application);
+        lostModel.loadFromStorageSystem(new IdentityDatabase(RuntimeEnvironment.application,
+                new CoreMechanismFactory(RuntimeEnvironment.application, lostModel), null, lostEncryption));
+
+        assertTrue(lostEncryption.isKeyLost());
+        assertFalse(lostEncryption.isAvailable());
+        assertFalse(keyProvider.createAllowed);
+    }
+
+    private static IdentityDatabase openDatabase(IdentityModel model, DataKeyProvider keyProvider) {
+        return new IdentityDatabase(RuntimeEnvironment.application,
+                new CoreMechanismFactory(RuntimeEnvironment.application, model), null,
+                new SecretEncryption(keyProvider));
+    }
+
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    static DataKeyProvider fixedKey() {
+        return new DataKeyProvider() {
+            @Override
+            public SecretKey getDataKey(boolean create) {
+                return KEY;
+            }
+        };
+    }
+
+    static DataKeyProvider unavailableKey() {
+        return new DataKeyProvider() {
+            @Override
+            public SecretKey getDataKey(boolean create) throws GeneralSecurityException {
+                throw new GeneralSecurityException("Key store is not available");
+            }
+        };
+    }
+
+    private static class LostKeyProvider implements DataKeyProvider {
+        private boolean createAllowed;
+
+        @Override
+        public SecretKey getDataKey(boolean create) throws GeneralSecurityException {
+            createAllowed = create;
+            if (create) {
+                return new SecretKeySpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, "AES");
+            }
+            throw new DataKeyLostException("Data key is missing");
+        }
+    }
+
+    private static class CountingKeyProvider implements DataKeyProvider {
+        private int count;
+
+        @Override
+        public SecretKey getDataKey(boolean create) {
+            count++;
+            return KEY;
+        }
+    }
+}
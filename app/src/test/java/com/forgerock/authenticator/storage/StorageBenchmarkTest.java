@@ -0,0 +1,405 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+
+package com.forgerock.authenticator.storage;
+
+import com.forgerock.authenticator.BuildConfig;
+import com.forgerock.authenticator.identity.Identity;
+import com.forgerock.authenticator.mechanisms.CoreMechanismFactory;
+import com.forgerock.authenticator.mechanisms.base.Mechanism;
+import com.forgerock.authenticator.mechanisms.oath.Oath;
+import com.forgerock.authenticator.mechanisms.push.Push;
+import com.forgerock.authenticator.notifications.Notification;
+import com.forgerock.authenticator.notifications.PushNotification;
+
+import org.forgerock.util.encode.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the time taken and the memory allocated by the model layer when loading, adding,
+ * updating and deleting Identities, and when receiving push notifications, for each storage
+ * system. Also compares the NotificationLog with the notification table of the database, and
+ * times restoring a ModelBackup. Each test runs one backend at one size, so that each starts
+ * from empty storage.
+ *
+ * The benchmarks take several seconds, so only run when enabled with -DstorageBenchmark=true, and
+ * report their figures through the log.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class StorageBenchmarkTest {
+    private static final int HISTORY_DEPTH = 20;
+    private static final long START_TIME = 1466000000000L;
+    private static final int ENCRYPTION_MECHANISM_COUNT = 1000;
+    private static final int NOTIFICATION_LOG_COUNT = 2000;
+    private static final int BACKUP_MECHANISM_COUNT = 10000;
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageBenchmarkTest.class);
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("storageBenchmark"));
+    }
+
+    @Test
+    public void databaseWith10Identities() throws Exception {
+        run(database(), 10);
+    }
+
+    @Test
+    public void databaseWith100Identities() throws Exception {
+        run(database(), 100);
+    }
+
+    @Test
+    public void databaseWith1000Identities() throws Exception {
+        run(database(), 1000);
+    }
+
+    @Test
+    public void databaseWith10000Identities() throws Exception {
+        run(database(), 10000);
+    }
+
+    @Test
+    public void inMemoryWith10Identities() throws Exception {
+        run(inMemory(), 10);
+    }
+
+    @Test
+    public void inMemoryWith100Identities() throws Exception {
+        run(inMemory(), 100);
+    }
+
+    @Test
+    public void inMemoryWith1000Identities() throws Exception {
+        run(inMemory(), 1000);
+    }
+
+    @Test
+    public void inMemoryWith10000Identities() throws Exception {
+        run(inMemory(), 10000);
+    }
+
+    @Test
+    public void notificationLogAgainstDatabase() throws Exception {
+        IdentityModel model = new IdentityModel(RuntimeEnvironment.application);
+        IdentityDatabase database = new IdentityDatabase(RuntimeEnvironment.application,
+                new CoreMechanismFactory(RuntimeEnvironment.application, model));
+        model.loadFromStorageSystem(database);
+        Mechanism mechanism = model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account"))
+                .addMechanism(Push.builder().setMechanismUID("uid").setBase64Secret(randomSecret()));
+        File directory = new File(RuntimeEnvironment.application.getCacheDir(), NotificationLog.DIRECTORY_NAME);
+        NotificationLog log = new NotificationLog(directory, NotificationLog.DEFAULT_SEGMENT_SIZE, DIRECT_EXECUTOR);
+        List<Notification> notifications = new ArrayList<>();
+        for (int i = 0; i < NOTIFICATION_LOG_COUNT; i++) {
+            notifications.add(PushNotification.builder()
+                    .setTimeAdded(utcTime(START_TIME + i * 60000L))
+                    .setTimeExpired(utcTime(START_TIME + i * 60000L + 120000))
+                    .setMessageId("message-" + i)
+                    .build(mechanism));
+        }
+
+        long start = System.nanoTime();
+        for (Notification notification : notifications) {
+            database.addNotification(notification);
+        }
+        long databaseIngest = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (Notification notification : notifications) {
+            log.addNotification(notification);
+        }
+        long logIngest = System.nanoTime() - start;
+
+        SqliteNotificationStore databaseStore = new SqliteNotificationStore(
+                DatabaseOpenHelper.getInstance(RuntimeEnvironment.application).getWritableDatabase());
+        start = System.nanoTime();
+        assertEquals(NOTIFICATION_LOG_COUNT, databaseStore.getNotificationBuilders("uid").size());
+        long databaseScan = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        NotificationLog reopened = new NotificationLog(directory, NotificationLog.DEFAULT_SEGMENT_SIZE,
+                DIRECT_EXECUTOR);
+        assertEquals(NOTIFICATION_LOG_COUNT, reopened.getNotificationBuilders("uid").size());
+        long logScan = System.nanoTime() - start;
+
+        logger.info(String.format("sqlite %6d notifications ingest %10.2f ms  scan %10.2f ms",
+                NOTIFICATION_LOG_COUNT, databaseIngest / 1000000.0, databaseScan / 1000000.0));
+        logger.info(String.format("log    %6d notifications ingest %10.2f ms  open and scan %10.2f ms",
+                NOTIFICATION_LOG_COUNT, logIngest / 1000000.0, logScan / 1000000.0));
+    }
+
+    @Test
+    public void encryptionOverheadOnLoad() throws Exception {
+        final Backend plaintext = database(SecretEncryptionTest.unavailableKey());
+        final Backend encrypted = database(SecretEncryptionTest.fixedKey());
+        IdentityModel model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(plaintext.open(model));
+        String secret = randomSecret();
+        for (int i = 0; i < ENCRYPTION_MECHANISM_COUNT; i++) {
+            model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account" + i))
+                    .addMechanism(Push.builder().setMechanismUID("uid" + i).setBase64Secret(secret));
+        }
+
+        long plaintextTime = Long.MAX_VALUE;
+        long encryptedTime = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            plaintextTime = Math.min(plaintextTime, measure(plaintext, ENCRYPTION_MECHANISM_COUNT, "load",
+                    load(plaintext)));
+        }
+        // The first encrypted load encrypts the existing plaintext secrets in place
+        load(encrypted).run();
+        for (int run = 0; run < 3; run++) {
+            encryptedTime = Math.min(encryptedTime, measure(encrypted, ENCRYPTION_MECHANISM_COUNT, "load",
+                    load(encrypted)));
+        }
+
+        logger.info(String.format("encryption added %.2f ms to load %d mechanisms",
+                (encryptedTime - plaintextTime) / 1000000.0, ENCRYPTION_MECHANISM_COUNT));
+    }
+
+    @Test
+    public void restoreBackup() throws Exception {
+        IdentityModel model = new IdentityModel(RuntimeEnvironment.application);
+        final CoreMechanismFactory factory = new CoreMechanismFactory(RuntimeEnvironment.application, model);
+        model.loadFromStorageSystem(new InMemoryStorageSystem(factory));
+        for (int i = 0; i < BACKUP_MECHANISM_COUNT; i++) {
+            model.addIdentity(Identity.builder().setIssuer("issuer").setAccountName("account" + i))
+                    .addMechanism(Oath.builder().setMechanismUID(Integer.toString(i)).setType("totp")
+                            .setSecret("JMEZ2W7D462P3JYBDG2HV7PFBM"));
+        }
+        final SecretKey backupKey = new SecretKeySpec(new byte[16], "AES");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ModelBackup(model, factory, backupKey).write(output, false);
+        final byte[] backup = output.toByteArray();
+
+        Operation restore = new Operation() {
+            @Override
+            public void run() throws Exception {
+                IdentityModel target = new IdentityModel(RuntimeEnvironment.application);
+                CoreMechanismFactory targetFactory = new CoreMechanismFactory(RuntimeEnvironment.application, target);
+                assertEquals(BACKUP_MECHANISM_COUNT, new ModelBackup(target, targetFactory, backupKey)
+                        .restore(new ByteArrayInputStream(backup), new InMemoryStorageSystem(targetFactory)));
+            }
+        };
+        // The first restore warms up the JIT
+        restore.run();
+        measure(inMemory(), BACKUP_MECHANISM_COUNT, "restore", restore);
+    }
+
+    private static Operation load(final Backend backend) {
+        return new Operation() {
+            @Override
+            public void run() throws Exception {
+                IdentityModel reloaded = new IdentityModel(RuntimeEnvironment.application);
+                reloaded.loadFromStorageSystem(backend.open(reloaded));
+                assertEquals(ENCRYPTION_MECHANISM_COUNT, reloaded.getMechanisms().size());
+            }
+        };
+    }
+
+    private static Backend database(final DataKeyProvider keyProvider) {
+        // Shared between loads, as the data key is only unwrapped once per process
+        final SecretEncryption secretEncryption = new SecretEncryption(keyProvider);
+        return new Backend(secretEncryption.isAvailable() ? "aesgcm" : "plain") {
+            @Override
+            StorageSystem open(IdentityModel model) {
+                return new IdentityDatabase(RuntimeEnvironment.application,
+                        new CoreMechanismFactory(RuntimeEnvironment.application, model), null, secretEncryption);
+            }
+        };
+    }
+
+    private static Backend database() {
+        return new Backend("sqlite") {
+            @Override
+            StorageSystem open(IdentityModel model) {
+                return new IdentityDatabase(RuntimeEnvironment.application,
+                        new CoreMechanismFactory(RuntimeEnvironment.application, model));
+            }
+        };
+    }
+
+    private static Backend inMemory() {
+        return new Backend("memory") {
+            private StorageSystem storageSystem;
+
+            @Override
+            StorageSystem open(IdentityModel model) {
+                // The data is only kept by the instance, so every model shares it
+                if (storageSystem == null) {
+                    storageSystem = new InMemoryStorageSystem(
+                            new CoreMechanismFactory(RuntimeEnvironment.application, model));
+                }
+                return storageSystem;
+            }
+        };
+    }
+
+    private void run(final Backend backend, final int identityCount) throws Exception {
+        final IdentityModel model = new IdentityModel(RuntimeEnvironment.application);
+        model.loadFromStorageSystem(backend.open(model));
+        final String secret = randomSecret();
+
+        measure(backend, identityCount, "add", new Operation() {
+            @Override
+            public void run() throws Exception {
+                for (int i = 0; i < identityCount; i++) {
+                    Identity identity = model.addIdentity(Identity.builder()
+                            .setIssuer("issuer")
+                            .setAccountName("account" + i));
+                    identity.addMechanism(Push.builder()
+                            .setMechanismUID("uid" + i)
+                            .setBase64Secret(secret));
+                }
+            }
+        });
+
+        measure(backend, identityCount, "ingest", new Operation() {
+            @Override
+            public void run() throws Exception {
+                for (int depth = 0; depth < HISTORY_DEPTH; depth++) {
+                    for (Mechanism mechanism : model.getMechanisms()) {
+                        mechanism.addNotification(PushNotification.builder()
+                                .setTimeAdded(utcTime(START_TIME + depth * 60000L))
+                                .setTimeExpired(utcTime(START_TIME + depth * 60000L + 120000))
+                                .setMessageId(mechanism.getMechanismUID() + ":" + depth));
+                    }
+                }
+            }
+        });
+
+        final List<IdentityModel> loaded = new ArrayList<>();
+        measure(backend, identityCount, "load", new Operation() {
+            @Override
+            public void run() throws Exception {
+                IdentityModel reloaded = new IdentityModel(RuntimeEnvironment.application);
+                reloaded.loadFromStorageSystem(backend.open(reloaded));
+                loaded.add(reloaded);
+            }
+        });
+        final IdentityModel reloaded = loaded.get(0);
+        assertEquals(identityCount, reloaded.getIdentities().size());
+        assertEquals(identityCount * HISTORY_DEPTH, reloaded.getNotifications().size());
+
+        measure(backend, identityCount, "update", new Operation() {
+            @Override
+            public void run() throws Exception {
+                for (Mechanism mechanism : reloaded.getMechanisms()) {
+                    mechanism.save();
+                    for (Notification notification : mechanism.getNotifications()) {
+                        notification.save();
+                    }
+                }
+            }
+        });
+
+        measure(backend, identityCount, "delete", new Operation() {
+            @Override
+            public void run() throws Exception {
+                for (Identity identity : new ArrayList<>(reloaded.getIdentities())) {
+                    reloaded.removeIdentity(identity);
+                }
+            }
+        });
+        assertTrue(reloaded.getStorageSystem().isEmpty());
+    }
+
+    private long measure(Backend backend, int identityCount, String name, Operation operation)
+            throws Exception {
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        operation.run();
+        long time = System.nanoTime() - start;
+        long bytes = startBytes == -1 ? -1 : allocatedBytes() - startBytes;
+
+        logger.info(String.format("%-6s %6d identities %-6s %10.2f ms %14d bytes allocated",
+                backend.name, identityCount, name, time / 1000000.0, bytes));
+        return time;
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if the JVM does not report them.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static String randomSecret() {
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        return Base64.encode(random);
+    }
+
+    private static Calendar utcTime(long time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    private abstract static class Backend {
+        private final String name;
+
+        private Backend(String name) {
+            this.name = name;
+        }
+
+        abstract StorageSystem open(IdentityModel model);
+    }
+}
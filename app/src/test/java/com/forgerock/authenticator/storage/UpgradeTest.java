@@ -17,7 +17,9 @@
 package com.forgerock.authenticator.storage;
 
 import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.SharedPreferences;
+import android.database.DatabaseUtils;
 
 import com.forgerock.authenticator.BuildConfig;
 import com.forgerock.authenticator.identity.Identity;
@@ -34,11 +36,19 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import static com.forgerock.authenticator.storage.IdentityDatabaseTest.assertNotEquals;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 /**
  * Currently tests the upgrade process from SharedPreferences to SQLite
@@ -182,6 +192,29 @@ public class UpgradeTest {
         assertEquals("", prefs.getString("ForgeRock:alice", ""));
     }
 
+    @Test
+    public void upgradeShouldKeepLegacyTokensWhichShareIssuerAccountAndType() {
+        String totpAlice = FORGEROCK_ALICE.replace("\"HOTP\"", "\"TOTP\"").replace("\"counter\":5", "\"counter\":0");
+        prefs.edit().putString(ORDER, "[\"ForgeRock:alice\",\"ForgeRock:alice:totp\"]")
+                .remove("OtherIDP:alice")
+                .remove("ForgeRock:charlie")
+                .putString("ForgeRock:alice:totp", totpAlice)
+                .apply();
+
+        IdentityModel model = modelOpenHelper.getModel();
+
+        // Only one can be held in the new storage system, so the other is left for a later attempt
+        validateOath(model, "ForgeRock", "alice", 5, 30, 6, "SHA1", Oath.TokenType.HOTP, "SwmdW+PntP2nARm0ev3lCw==");
+        assertEquals("[\"\",\"ForgeRock:alice:totp\"]", prefs.getString(ORDER, ""));
+        assertEquals("", prefs.getString("ForgeRock:alice", ""));
+        assertEquals(totpAlice, prefs.getString("ForgeRock:alice:totp", ""));
+        assertEquals(-1, storageInfo.getInt("lastVersion", -1));
+
+        // Running the upgrade again must not lose the token which was transferred
+        validateOath(new ModelOpenHelper(RuntimeEnvironment.application).getModel(), "ForgeRock", "alice", 5, 30, 6,
+                "SHA1", Oath.TokenType.HOTP, "SwmdW+PntP2nARm0ev3lCw==");
+    }
+
     @Test
     public void partialTransferShouldNotUpdateStorageValue() {
         String BAD_ALICE = "{\"algo\":\"SHA1\",\"counter\":5,\"digits\":6,\"issuer\":\"ForgeRock\",\"label\":\"alice\",\"period\":30,\"secret\":[75,9,-99,91,-29,-25,-76,-3,-89,1,25,-76,122,-3,-27,11],\"type\":\"ANGRYBADGER\"}";
@@ -259,6 +292,117 @@ public class UpgradeTest {
         assertTrue(oath.hasBase64Secret(base64Secret));
     }
 
+    @Test
+    public void migrationShouldLoadLatestStorageOnceForOneToken() {
+        assertLatestStorageLoadedOnce(1);
+    }
+
+    @Test
+    public void migrationShouldLoadLatestStorageOnceForOneBatch() {
+        assertLatestStorageLoadedOnce(100);
+    }
+
+    @Test
+    public void migrationShouldLoadLatestStorageOnceForSeveralBatches() {
+        assertLatestStorageLoadedOnce(500);
+    }
+
+    private void assertLatestStorageLoadedOnce(int tokenCount) {
+        final int[] latestLoads = { 0 };
+        modelOpenHelper = new ModelOpenHelper(RuntimeEnvironment.application) {
+            @Override
+            protected IdentityModel getModelFromLatest(Context context) {
+                latestLoads[0]++;
+                return super.getModelFromLatest(context);
+            }
+        };
+        populateLegacyTokens("Issuer", tokenCount);
+        IdentityModel oldModel = new IdentityModel(RuntimeEnvironment.application);
+
+        IdentityModel model = modelOpenHelper.migrate(oldModel, new SharedPreferencesStorage(
+                RuntimeEnvironment.application, new CoreMechanismFactory(RuntimeEnvironment.application, oldModel)));
+
+        assertEquals(1, latestLoads[0]);
+        assertEquals(tokenCount, model.getMechanisms().size());
+        assertEquals("", prefs.getString(ORDER, ""));
+    }
+
+    @Test
+    public void migrationShouldTransferEachBatchAsItIsRead() {
+        populateLegacyTokens("Issuer", 250);
+        final IdentityModel oldModel = new IdentityModel(RuntimeEnvironment.application);
+        SharedPreferencesStorage oldStorage = new SharedPreferencesStorage(RuntimeEnvironment.application,
+                new CoreMechanismFactory(RuntimeEnvironment.application, oldModel)) {
+            @Override
+            void readEntries(int batchSize, final EntryBatchListener listener) {
+                final int[] read = { 0 };
+                super.readEntries(batchSize, new EntryBatchListener() {
+                    @Override
+                    public void onBatch(List<Identity.IdentityBuilder> identityBuilders) {
+                        // Every batch read before this one is already in the latest storage system
+                        assertEquals(read[0], DatabaseUtils.queryNumEntries(DatabaseOpenHelper
+                                .getInstance(RuntimeEnvironment.application).getReadableDatabase(),
+                                IdentityDatabase.MECHANISM_TABLE_NAME));
+                        read[0] += identityBuilders.size();
+                        listener.onBatch(identityBuilders);
+                    }
+                });
+            }
+        };
+
+        IdentityModel model = modelOpenHelper.migrate(oldModel, oldStorage);
+
+        assertEquals(250, model.getMechanisms().size());
+        assertEquals("", prefs.getString(ORDER, ""));
+    }
+
+    @Test
+    public void legacyEntriesShouldBeReadDespiteUnknownOrNullFields() {
+        String extendedAlice = FORGEROCK_ALICE.replace("{", "{\"image\":null,\"unknown\":{\"a\":[1,2]},");
+        prefs.edit().putString("ForgeRock:alice", extendedAlice).apply();
+
+        IdentityModel model = modelOpenHelper.getModel();
+
+        validateOath(model, "ForgeRock", "alice", 5, 30, 6, "SHA1", Oath.TokenType.HOTP, "SwmdW+PntP2nARm0ev3lCw==");
+    }
+
+    @Test
+    public void legacyReadShouldReadOrderAndEachEntryOnce() {
+        populateLegacyTokens("Issuer", 500);
+        final SharedPreferences countedPrefs = mock(SharedPreferences.class, delegatesTo(prefs));
+        Context context = new ContextWrapper(RuntimeEnvironment.application) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                return NAME.equals(name) ? countedPrefs : super.getSharedPreferences(name, mode);
+            }
+        };
+
+        IdentityModel oldModel = new IdentityModel(RuntimeEnvironment.application);
+        oldModel.loadFromStorageSystem(new SharedPreferencesStorage(context,
+                new CoreMechanismFactory(RuntimeEnvironment.application, oldModel)));
+
+        assertEquals(500, oldModel.getMechanisms().size());
+        verify(countedPrefs, times(1)).getString(eq(ORDER), anyString());
+        verify(countedPrefs, times(501)).getString(anyString(), anyString());
+        verify(countedPrefs, never()).getAll();
+    }
+
+    private void populateLegacyTokens(String issuerPrefix, int count) {
+        StringBuilder order = new StringBuilder("[");
+        SharedPreferences.Editor editor = prefs.edit().clear();
+        for (int i = 0; i < count; i++) {
+            String key = issuerPrefix + i + ":alice";
+            order.append(i == 0 ? "" : ",").append('"').append(key).append('"');
+            editor.putString(key, FORGEROCK_ALICE.replace("\"ForgeRock\"", "\"" + issuerPrefix + i + "\""));
+        }
+        editor.putString(ORDER, order.append("]").toString()).apply();
+    }
+
     @Test
     public void shouldNotUpgradeWhenUpToDateVersionInformationIsPresent() {
         SharedPreferences storageInfo = RuntimeEnvironment.application.getApplicationContext().getSharedPreferences("applicationInfo", Context.MODE_PRIVATE);
@@ -71,6 +71,91 @@ public class MessageUtilsTest {
 
     }
 
+    @Test
+    public void shouldReuseConnectionForLaterResponses() throws Exception {
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse().setResponseCode(401));
+        server.enqueue(new MockResponse());
+        server.start();
+
+        String endpoint = server.url("/").toString();
+        MessageUtils messageUtils = new MessageUtils();
+        assertEquals(200, messageUtils.respond(endpoint, TEST_COOKIE, "dGVzdHNlY3JldA==",
+                "testMessageId", new HashMap<String, Object>()));
+        assertEquals(401, messageUtils.respond(endpoint, TEST_COOKIE, "dGVzdHNlY3JldA==",
+                "testMessageId", new HashMap<String, Object>()));
+        assertEquals(200, messageUtils.respond(endpoint, TEST_COOKIE, "dGVzdHNlY3JldA==",
+                "testMessageId", new HashMap<String, Object>()));
+
+        // The sequence number counts the requests made over the same connection
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals(i, request.getSequenceNumber());
+            assertEquals(String.valueOf(request.getBodySize()), request.getHeader("Content-Length"));
+            assertEquals("application/json", request.getHeader("Content-Type"));
+        }
+    }
+
+    @Test
+    public void shouldRespondOverWarmedUpConnection() throws Exception {
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse());
+        server.start();
+
+        String endpoint = server.url("/").toString();
+        MessageUtils messageUtils = new MessageUtils();
+        messageUtils.warmUp(endpoint, TEST_COOKIE, System.currentTimeMillis() + 60000);
+
+        RecordedRequest warmUp = server.takeRequest();
+        assertEquals("HEAD", warmUp.getMethod());
+        assertEquals(TEST_COOKIE, warmUp.getHeader("Cookie"));
+        waitForIdleConnections(messageUtils, 1);
+
+        assertEquals(200, messageUtils.respond(endpoint, TEST_COOKIE, "dGVzdHNlY3JldA==",
+                "testMessageId", new HashMap<String, Object>()));
+        // The response is the second request on the warmed up connection, so needs a single round trip
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+    }
+
+    @Test
+    public void shouldKeepConnectionPooledAfterWarmUpExpiry() throws Exception {
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse());
+        server.start();
+
+        String endpoint = server.url("/").toString();
+        MessageUtils messageUtils = new MessageUtils();
+        messageUtils.warmUp(endpoint, TEST_COOKIE, System.currentTimeMillis() + 200);
+        waitForIdleConnections(messageUtils, 1);
+        Thread.sleep(500);
+
+        // Connections are left to the keep-alive of the pool, so a later response still reuses it
+        assertEquals(1, messageUtils.getIdleConnectionCount());
+        assertEquals(200, messageUtils.respond(endpoint, TEST_COOKIE, "dGVzdHNlY3JldA==",
+                "testMessageId", new HashMap<String, Object>()));
+        server.takeRequest();
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+    }
+
+    @Test
+    public void shouldNotWarmUpAfterExpiry() throws Exception {
+        server.start();
+
+        MessageUtils messageUtils = new MessageUtils();
+        messageUtils.warmUp(server.url("/").toString(), TEST_COOKIE, System.currentTimeMillis() - 1);
+
+        assertEquals(0, server.getRequestCount());
+        assertEquals(0, messageUtils.getIdleConnectionCount());
+    }
+
+    private static void waitForIdleConnections(MessageUtils messageUtils, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messageUtils.getIdleConnectionCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, messageUtils.getIdleConnectionCount());
+    }
+
     @Test(expected = IOException.class)
     public void shouldRejectEmptySecret() throws Exception {
 